@@ -0,0 +1,51 @@
+package de.qabel.core.crypto;
+
+import de.qabel.core.config.Contact;
+import de.qabel.core.config.Identity;
+import de.qabel.core.drop.DropMessage;
+import de.qabel.core.drop.DropURL;
+import de.qabel.core.exceptions.QblDropInvalidMessageSizeException;
+import de.qabel.core.exceptions.QblDropPayloadSizeException;
+import de.qabel.core.exceptions.QblSpoofedSenderException;
+import de.qabel.core.exceptions.QblVersionMismatchException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembling a drop message for a contact and disassembling it with the receiving identity.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BinaryDropMessageBenchmark {
+    private Identity sender;
+    private Identity recipient;
+    private Contact recipientContact;
+    private BinaryDropMessageV0 message;
+    private byte[] assembled;
+
+    @Setup
+    public void setUp() throws QblDropPayloadSizeException {
+        sender = new Identity("sender", new ArrayList<DropURL>(), new QblECKeyPair());
+        recipient = new Identity("recipient", new ArrayList<DropURL>(), new QblECKeyPair());
+        recipientContact = new Contact("recipient", null, recipient.getEcPublicKey());
+        message = new BinaryDropMessageV0(new DropMessage(sender, "{\"message\":\"benchmark\"}", "box_message"));
+        assembled = message.assembleMessageFor(recipientContact, sender);
+    }
+
+    @Benchmark
+    public byte[] assemble() {
+        return message.assembleMessageFor(recipientContact, sender);
+    }
+
+    @Benchmark
+    public DropMessage disassemble() throws QblVersionMismatchException, QblDropInvalidMessageSizeException,
+        QblSpoofedSenderException {
+        return new BinaryDropMessageV0(assembled).disassembleMessage(recipient);
+    }
+}
@@ -0,0 +1,51 @@
+package de.qabel.core.crypto;
+
+import org.openjdk.jmh.annotations.*;
+import org.spongycastle.crypto.CipherKeyGenerator;
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.KeyGenerationParameters;
+
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drop message sized noise boxes with a new symmetric key, created with the shared instance and its
+ * per-thread DRBGs and the previous way, seeding a new SecureRandom and CipherKeyGenerator per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoUtilsBenchmark {
+    private static final int PAYLOAD_SIZE = 2048;
+
+    private QblECKeyPair sender;
+    private QblECKeyPair recipient;
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        sender = new QblECKeyPair();
+        recipient = new QblECKeyPair();
+        payload = new byte[PAYLOAD_SIZE];
+    }
+
+    @Benchmark
+    public DecryptedPlaintext sharedInstance() throws InvalidKeyException, InvalidCipherTextException {
+        CryptoUtils cryptoUtils = CryptoUtils.getInstance();
+        cryptoUtils.generateSymmetricKey();
+        return cryptoUtils.readBox(recipient, cryptoUtils.createBox(sender, recipient.getPub(), payload, 0));
+    }
+
+    @Benchmark
+    public DecryptedPlaintext seededPerCall() throws InvalidKeyException, InvalidCipherTextException {
+        CryptoUtils cryptoUtils = new CryptoUtils();
+        CipherKeyGenerator keyGenerator = new CipherKeyGenerator();
+        keyGenerator.init(new KeyGenerationParameters(new SecureRandom(), 256));
+        keyGenerator.generateKey();
+        return cryptoUtils.readBox(recipient, cryptoUtils.createBox(sender, recipient.getPub(), payload, 0));
+    }
+}
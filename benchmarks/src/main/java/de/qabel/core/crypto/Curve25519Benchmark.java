@@ -0,0 +1,60 @@
+package de.qabel.core.crypto;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Curve25519 scalar multiplications, single calls and batches of {@link #BATCH_SIZE}.
+ * The Java implementation is measured as well because it is used if the native library is missing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Curve25519Benchmark {
+    private static final int BATCH_SIZE = 64;
+
+    private final Curve25519 curve = new Curve25519();
+    private byte[] scalar;
+    private byte[] point;
+    private List<byte[]> scalars;
+    private List<byte[]> points;
+
+    @Setup
+    public void setUp() {
+        scalar = SecureRandoms.nextBytes(32);
+        point = curve.cryptoScalarmultBase(SecureRandoms.nextBytes(32));
+        scalars = new ArrayList<>();
+        points = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            scalars.add(SecureRandoms.nextBytes(32));
+            points.add(point);
+        }
+    }
+
+    @Benchmark
+    public byte[] scalarmult() {
+        return curve.cryptoScalarmult(scalar, point);
+    }
+
+    @Benchmark
+    public byte[] scalarmultBase() {
+        return curve.cryptoScalarmultBase(scalar);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<byte[]> scalarmultBatch() {
+        return curve.cryptoScalarmultBatch(scalars, points);
+    }
+
+    @Benchmark
+    public byte[] scalarmultJava() {
+        return JavaCurve25519.scalarmult(scalar, point);
+    }
+}
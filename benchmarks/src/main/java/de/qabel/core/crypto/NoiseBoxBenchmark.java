@@ -0,0 +1,54 @@
+package de.qabel.core.crypto;
+
+import org.openjdk.jmh.annotations.*;
+import org.spongycastle.crypto.InvalidCipherTextException;
+
+import java.security.InvalidKeyException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Noise boxes as used for drop messages and the index, and the noise kdf.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NoiseBoxBenchmark {
+    @Param({"0", "2048", "65536"})
+    public int size;
+
+    private final CryptoUtils cryptoUtils = CryptoUtils.getInstance();
+    private QblECKeyPair sender;
+    private QblECKeyPair recipient;
+    private byte[] appData;
+    private byte[] box;
+    private byte[] secret;
+    private byte[] chainingVariable;
+
+    @Setup
+    public void setUp() throws InvalidKeyException {
+        sender = new QblECKeyPair();
+        recipient = new QblECKeyPair();
+        appData = cryptoUtils.getRandomBytes(size);
+        box = cryptoUtils.createBox(sender, recipient.getPub(), appData, 0);
+        secret = sender.ECDH(recipient.getPub());
+        chainingVariable = cryptoUtils.getRandomBytes(48);
+    }
+
+    @Benchmark
+    public byte[] createBox() throws InvalidKeyException {
+        return cryptoUtils.createBox(sender, recipient.getPub(), appData, 0);
+    }
+
+    @Benchmark
+    public DecryptedPlaintext readBox() throws InvalidKeyException, InvalidCipherTextException {
+        return cryptoUtils.readBox(recipient, box);
+    }
+
+    @Benchmark
+    public byte[] kdf() {
+        return NoiseBoxEngine.kdf(secret, chainingVariable, (byte) 1);
+    }
+}
@@ -0,0 +1,73 @@
+package de.qabel.core.crypto;
+
+import org.openjdk.jmh.annotations.*;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authenticated stream en- and decryption of files as done for box uploads and downloads.
+ * Decryption reads from a file and writes to a file, encryption discards the ciphertext.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamEncryptionBenchmark {
+    @Param({"4096", "1048576", "16777216"})
+    public int size;
+
+    @Param({SpongyCastleAeadBackend.NAME, JcaAeadBackend.NAME})
+    public String backend;
+
+    private CryptoUtils cryptoUtils;
+    private KeyParameter key;
+    private byte[] plaintext;
+    private File ciphertextFile;
+    private File plaintextFile;
+
+    @Setup
+    public void setUp() throws Exception {
+        cryptoUtils = new CryptoUtils(AeadBackends.get(backend));
+        key = cryptoUtils.generateSymmetricKey();
+        plaintext = cryptoUtils.getRandomBytes(size);
+        ciphertextFile = File.createTempFile("benchmark", ".enc");
+        plaintextFile = File.createTempFile("benchmark", ".dec");
+        try (OutputStream out = new FileOutputStream(ciphertextFile)) {
+            cryptoUtils.encryptStreamAuthenticatedSymmetric(new ByteArrayInputStream(plaintext), out, key, null);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(ciphertextFile.toPath());
+        Files.deleteIfExists(plaintextFile.toPath());
+    }
+
+    @Benchmark
+    public boolean encryptStream() throws Exception {
+        return cryptoUtils.encryptStreamAuthenticatedSymmetric(
+            new ByteArrayInputStream(plaintext), new NullOutputStream(), key, null);
+    }
+
+    @Benchmark
+    public boolean decryptFile() throws Exception {
+        try (InputStream in = new FileInputStream(ciphertextFile)) {
+            return cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(in, plaintextFile, key);
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package de.qabel.core.drop;
+
+import com.google.gson.Gson;
+import de.qabel.core.config.Identity;
+import de.qabel.core.config.factory.DropUrlGenerator;
+import de.qabel.core.crypto.QblECKeyPair;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing and deserializing a drop message with metadata, with the streaming codec
+ * and with the Gson adapters it replaces.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DropMessageCodecBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int PADDED_SIZE = 2048;
+
+    private DropMessage message;
+    private byte[] padded;
+
+    @Setup
+    public void setUp() throws URISyntaxException {
+        DropURL dropUrl = new DropUrlGenerator("http://drop.example").generateUrl();
+        Identity sender = new Identity("sender", Collections.singletonList(dropUrl), new QblECKeyPair());
+        message = new DropMessage(sender, "{\"msg\":\"benchmark\"}", "box_message");
+        message.setDropMessageMetadata(new DropMessageMetadata(sender));
+        padded = Arrays.copyOf(DropMessageCodec.INSTANCE.encode(message), PADDED_SIZE);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return DropMessageCodec.INSTANCE.encode(message);
+    }
+
+    @Benchmark
+    public DropMessage deserialize() {
+        return DropMessageCodec.INSTANCE.decode(padded, DropMessageCodec.INSTANCE.unpaddedLength(padded));
+    }
+
+    @Benchmark
+    public byte[] serializeGson() {
+        Gson gson = DropMessageGson.INSTANCE.create();
+        return gson.toJson(message).getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public DropMessage deserializeGson() {
+        Gson gson = DropMessageGson.INSTANCE.create();
+        int length = DropMessageCodec.INSTANCE.unpaddedLength(padded);
+        return gson.fromJson(new String(Arrays.copyOf(padded, length), UTF_8), DropMessage.class);
+    }
+}
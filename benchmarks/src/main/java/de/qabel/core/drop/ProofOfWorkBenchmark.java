@@ -0,0 +1,41 @@
+package de.qabel.core.drop;
+
+import de.qabel.core.crypto.CryptoUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Proof of work calculation at several difficulties, single threaded and with the parallel solver.
+ * The time grows exponentially with the leading zeros.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProofOfWorkBenchmark {
+    @Param({"8", "12", "16"})
+    public int leadingZeros;
+
+    private byte[] initVectorServer;
+    private byte[] messageHash;
+    private final ProofOfWorkSolver solver = new ProofOfWorkSolver();
+
+    @Setup
+    public void setUp() {
+        initVectorServer = CryptoUtils.getInstance().getRandomBytes(16);
+        messageHash = CryptoUtils.getInstance().getRandomBytes(32);
+    }
+
+    @Benchmark
+    public ProofOfWork calculate() {
+        return ProofOfWork.calculate(leadingZeros, initVectorServer, messageHash);
+    }
+
+    @Benchmark
+    public ProofOfWork solve() throws InterruptedException {
+        return solver.solve(leadingZeros, initVectorServer, messageHash);
+    }
+}
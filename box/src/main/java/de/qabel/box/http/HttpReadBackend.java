@@ -2,21 +2,24 @@ package de.qabel.box.http;
 
 import de.qabel.box.storage.exceptions.QblStorageException;
 import de.qabel.box.storage.exceptions.QblStorageNotFound;
+import de.qabel.box.storage.BoundedInputStream;
+import de.qabel.box.storage.RangedStorageReadBackend;
 import de.qabel.box.storage.StorageDownload;
-import de.qabel.box.storage.StorageReadBackend;
 import de.qabel.box.storage.UnmodifiedException;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 
-public class HttpReadBackend extends AbstractHttpStorageBackend implements StorageReadBackend {
+public class HttpReadBackend extends AbstractHttpStorageBackend implements RangedStorageReadBackend {
     public HttpReadBackend(String root) throws URISyntaxException {
         super(root);
     }
@@ -73,6 +76,76 @@ public class HttpReadBackend extends AbstractHttpStorageBackend implements Stora
         }
     }
 
+    @Override
+    public long getSize(String name) throws QblStorageException {
+        HttpHead httpHead = new HttpHead(getRoot().resolve(name));
+        prepareRequest(httpHead);
+
+        try (CloseableHttpResponse response = getHttpclient().execute(httpHead)) {
+            int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_NOT_FOUND || status == HttpStatus.SC_FORBIDDEN) {
+                throw new QblStorageNotFound("File not found");
+            }
+            if (status != HttpStatus.SC_OK || !response.containsHeader(HttpHeaders.CONTENT_LENGTH)) {
+                throw new QblStorageException("Size request error");
+            }
+            return Long.parseLong(response.getFirstHeader(HttpHeaders.CONTENT_LENGTH).getValue());
+        } catch (IOException | NumberFormatException e) {
+            throw new QblStorageException(e);
+        }
+    }
+
+    /**
+     * Servers that ignore the Range header answer with the whole file, which is skipped up to the offset.
+     */
+    @Override
+    public StorageDownload download(String name, long offset, long length) throws QblStorageException {
+        HttpGet httpGet = new HttpGet(getRoot().resolve(name));
+        httpGet.addHeader(HttpHeaders.RANGE, "bytes=" + offset + "-" + (offset + length - 1));
+        prepareRequest(httpGet);
+
+        try {
+            CloseableHttpResponse response = getHttpclient().execute(httpGet);
+            try {
+                int status = response.getStatusLine().getStatusCode();
+                if (status == HttpStatus.SC_NOT_FOUND || status == HttpStatus.SC_FORBIDDEN) {
+                    throw new QblStorageNotFound("File not found");
+                }
+                if (status != HttpStatus.SC_PARTIAL_CONTENT && status != HttpStatus.SC_OK) {
+                    throw new QblStorageException("Download error");
+                }
+                HttpEntity entity = response.getEntity();
+                if (entity == null) {
+                    throw new QblStorageException("No content");
+                }
+                InputStream content = entity.getContent();
+                if (status == HttpStatus.SC_OK) {
+                    skip(content, offset);
+                }
+                return new StorageDownload(new BoundedInputStream(content, length), null, length, response);
+            } catch (Exception e) {
+                response.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new QblStorageException(e);
+        }
+    }
+
+    private static void skip(InputStream content, long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            long skipped = content.skip(remaining);
+            if (skipped <= 0) {
+                if (content.read() < 0) {
+                    throw new EOFException("Range is out of bounds");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
     @Override
     public String getUrl(String meta) {
         return getRoot().resolve(meta).toString();
@@ -5,13 +5,17 @@ import de.qabel.box.storage.StorageWriteBackend
 import de.qabel.box.storage.exceptions.QblStorageException
 import de.qabel.box.storage.exceptions.QblStorageNotFound
 import de.qabel.core.logging.QabelLog
+import org.apache.commons.io.output.CountingOutputStream
+import org.apache.http.HttpEntity
 import org.apache.http.client.methods.CloseableHttpResponse
 import org.apache.http.client.methods.HttpDelete
 import org.apache.http.client.methods.HttpPost
 import org.apache.http.client.utils.DateUtils
+import org.apache.http.entity.AbstractHttpEntity
 import org.apache.http.entity.InputStreamEntity
 import java.io.IOException
 import java.io.InputStream
+import java.io.OutputStream
 import java.net.URI
 import java.net.URISyntaxException
 
@@ -25,7 +29,19 @@ constructor(root: String) : AbstractHttpStorageBackend(root), StorageWriteBacken
     override fun upload(name: String, content: InputStream, eTag: String?) = uploadIfOld(name, content, eTag)
 
     @Throws(QblStorageException::class)
-    fun uploadIfOld(name: String, content: InputStream, eTag: String?): StorageWriteBackend.UploadResult {
+    fun uploadIfOld(name: String, content: InputStream, eTag: String?): StorageWriteBackend.UploadResult =
+        upload(name, InputStreamEntity(content), eTag)
+
+    /**
+     * The content is written directly into the request body, which is sent with a Content-Length
+     * instead of chunked transfer encoding. The request can not be retried.
+     */
+    @Throws(QblStorageException::class)
+    override fun uploadStreaming(name: String, length: Long, eTag: String?,
+                                 writer: (OutputStream) -> Unit): StorageWriteBackend.UploadResult =
+        upload(name, WriterEntity(length, writer), eTag)
+
+    private fun upload(name: String, entity: HttpEntity, eTag: String?): StorageWriteBackend.UploadResult {
         trace("Uploading " + name)
         val httpPost: HttpPost
         try {
@@ -33,7 +49,7 @@ constructor(root: String) : AbstractHttpStorageBackend(root), StorageWriteBacken
             httpPost = HttpPost(uri)
             prepareRequest(httpPost)
             if (eTag != null) httpPost.addHeader("If-Match", eTag)
-            httpPost.entity = InputStreamEntity(content)
+            httpPost.entity = entity
 
             httpclient.execute(httpPost).use { response ->
                 val status = response.statusLine.statusCode
@@ -52,6 +68,29 @@ constructor(root: String) : AbstractHttpStorageBackend(root), StorageWriteBacken
 
     }
 
+    /**
+     * Non repeatable entity of a known length whose content is produced by the writer.
+     * The content only exists while it is written, so there is no stream to read it from.
+     */
+    private class WriterEntity(private val length: Long, private val writer: (OutputStream) -> Unit) : AbstractHttpEntity() {
+        override fun isRepeatable() = false
+
+        override fun getContentLength() = length
+
+        override fun getContent(): InputStream = throw IllegalStateException("Content is only written to the request")
+
+        override fun writeTo(outstream: OutputStream) {
+            val output = CountingOutputStream(outstream)
+            writer(output)
+            output.flush()
+            if (output.byteCount != length) {
+                throw IOException("Wrote ${output.byteCount} bytes instead of the announced $length")
+            }
+        }
+
+        override fun isStreaming() = true
+    }
+
     private fun statusToMessage(response: CloseableHttpResponse): String = with (response.statusLine) {
         return "${statusCode} '${reasonPhrase}'"
     }
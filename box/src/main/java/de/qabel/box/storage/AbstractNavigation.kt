@@ -9,12 +9,14 @@ import de.qabel.box.storage.exceptions.QblStorageException
 import de.qabel.box.storage.exceptions.QblStorageInvalidKey
 import de.qabel.box.storage.exceptions.QblStorageNameConflict
 import de.qabel.box.storage.exceptions.QblStorageNotFound
-import de.qabel.core.crypto.CryptoUtils
+import de.qabel.box.storage.memory.MemoryDirectoryMetadata
+import de.qabel.core.crypto.ChunkedAuthenticatedCipher
 import de.qabel.core.crypto.QblECPublicKey
 import de.qabel.core.logging.QabelLog
 import de.qabel.core.util.loop
 import org.apache.commons.codec.binary.Hex
 import org.apache.commons.lang3.NotImplementedException
+import org.spongycastle.crypto.InvalidCipherTextException
 import org.spongycastle.crypto.params.KeyParameter
 import rx.lang.kotlin.PublishSubject
 import rx.subjects.SerializedSubject
@@ -46,7 +48,7 @@ abstract class AbstractNavigation(
     protected val folderNavigationFactory by lazy {
         CachedFolderNavigationFactory(indexNavigation, volumeConfig, navCache)
     }
-    protected val cryptoUtils by lazy { CryptoUtils() }
+    protected val cryptoUtils = volumeConfig.cryptoUtils
 
     private var pendingChanges: List<DMChange<*>> = emptyList()
     private val committing = AtomicBoolean(false)
@@ -67,6 +69,9 @@ abstract class AbstractNavigation(
         }
 
     protected fun clone(directoryMetadata: DirectoryMetadata): DirectoryMetadata {
+        if (directoryMetadata is MemoryDirectoryMetadata) {
+            return directoryMetadata.snapshot()
+        }
         val tmp = File.createTempFile("dir", "db", tempDir)
         tmp.deleteOnExit()
         directoryMetadata.path.copyTo(tmp, true)
@@ -85,25 +90,41 @@ abstract class AbstractNavigation(
     override fun navigate(target: BoxFolder): AbstractNavigation {
         try {
             return navCache.get(target) {
-                readBackend.download(target.ref).inputStream.use { indexDl ->
-                    val tmp = File.createTempFile("dir", "db2", tempDir)
-                    tmp.deleteOnExit()
-                    val key = KeyParameter(target.key)
-                    if (cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(indexDl, tmp, key)) {
-                        val dm = directoryFactory.open(tmp, target.ref)
-                        folderNavigationFactory.fromDirectoryMetadata(path / target.name, dm, target).apply {
-                            setAutocommit(autocommit)
-                            setAutocommitDelay(autocommitDelay)
-                        }
-                    } else {
-                        throw QblStorageNotFound("Invalid key")
+                val download = readBackend.download(target.ref)
+                download.inputStream.use { indexDl ->
+                    val tmp = decryptMetadata(indexDl, KeyParameter(target.key), "db2")
+                    val dm = directoryFactory.open(tmp, target.ref)
+                    volumeConfig.directoryJournal?.let {
+                        it.replaceBase(target.ref, DirectoryMetadataJournal.Base(download.mHash, dm.findJournalSequence()))
+                        it.catchUp(dm, KeyParameter(target.key))
+                    }
+                    folderNavigationFactory.fromDirectoryMetadata(path / target.name, dm, target).apply {
+                        setAutocommit(autocommit)
+                        setAutocommitDelay(autocommitDelay)
                     }
                 }
             }.apply { subscribe(this) }
         } catch (e: IOException) {
             throw QblStorageException(e)
-        } catch (e: InvalidKeyException) {
-            throw QblStorageException(e)
+        }
+    }
+
+    /**
+     * Decrypts a metadata database into a new file in the temp dir.
+     * The file is only created after the authentication tag has been verified.
+     */
+    @Throws(IOException::class, QblStorageNotFound::class)
+    protected fun decryptMetadata(encrypted: InputStream, key: KeyParameter, suffix: String): File {
+        val plaintext = try {
+            cryptoUtils.decryptAuthenticatedSymmetric(encrypted, key, tempDir)
+        } catch (e: InvalidCipherTextException) {
+            throw QblStorageNotFound("Invalid key")
+        }
+        plaintext.use {
+            val tmp = File.createTempFile("dir", suffix, tempDir)
+            tmp.deleteOnExit()
+            it.writeTo(tmp)
+            return tmp
         }
     }
 
@@ -129,13 +150,16 @@ abstract class AbstractNavigation(
         if (!committing.compareAndSet(false, true)) {
             return
         }
-        do {
-            val commitChanges = pendingChanges
-            pendingChanges = emptyList()
-
-            commit(commitChanges)
-        } while (!pendingChanges.isEmpty())
-        committing.set(false)
+        try {
+            do {
+                val commitChanges = pendingChanges
+                pendingChanges = emptyList()
+
+                commit(commitChanges)
+            } while (!pendingChanges.isEmpty())
+        } finally {
+            committing.set(false)
+        }
     }
 
     private fun commit(changes: List<DMChange<*>>) {
@@ -158,12 +182,15 @@ abstract class AbstractNavigation(
                 info("Conflicting version")
                 // ignore our local directory metadata
                 // all changes that are not inserted in the new dm are _lost_!
+                checkReplayedChunks(changes, updatedDM)
                 dm = updatedDM
                 changes.execute(dm)
                 dm.commit()
             }
             try {
-                uploadDirectoryMetadata()
+                if (!uploadJournal()) {
+                    uploadDirectoryMetadata()
+                }
                 break
             } catch (e: ModifiedException) {
                 info("DM conflicted while uploading, will retry merge and upload")
@@ -174,6 +201,26 @@ abstract class AbstractNavigation(
         originalDm = clone(dm)
     }
 
+    /**
+     * A concurrent commit that deleted the last other file of a reused chunk has deleted the block of the chunk
+     * as well. The chunks of the replayed files that the remote metadata does not reference must still exist
+     * before the merged metadata is uploaded.
+     */
+    @Throws(QblStorageException::class)
+    private fun checkReplayedChunks(changes: List<DMChange<*>>, remoteDm: DirectoryMetadata) {
+        changes.filterIsInstance<UpdateFileChange>().flatMap { it.newFile.chunks }.map { it.block }.distinct()
+            .filter { !remoteDm.isChunkReferenced(it) }
+            .forEach { block ->
+                try {
+                    readBackend.download("blocks/" + block).close()
+                } catch (e: QblStorageNotFound) {
+                    throw QblStorageNotFound("Chunk block $block has been deleted by a concurrent commit")
+                } catch (e: IOException) {
+                    throw QblStorageException(e)
+                }
+            }
+    }
+
     @Synchronized @Throws(QblStorageException::class)
     override fun refresh() {
         refresh(false)
@@ -215,55 +262,48 @@ abstract class AbstractNavigation(
             return
         }
 
+        val folders = originalDm.folderChanges(newDm)
+        val files = originalDm.fileChanges(newDm)
+
         // remote folder adds
-        newDm.listFolders()
-            .filter { !originalDm.hasFolder(it.name) }
+        folders.filter { it.first == null }
+            .map { it.second!! }
             .loop { newFolders.add(it) }
             .map { remoteFolderAdd(it) }
             .forEach { push(it) }
 
         // remote folder deletes
-        originalDm.listFolders()
-            .filter { !newDm.hasFolder(it.name) }
-            .map { remoteFolderDelete(it) }
+        folders.filter { it.second == null }
+            .map { remoteFolderDelete(it.first!!) }
             .forEach { push(it) }
 
         // local file adds
-        newDm.listFiles()
-            .filter { !originalDm.hasFile(it.name) }
-            .map { fileAdd(it) }
+        files.filter { it.first == null }
+            .map { fileAdd(it.second!!) }
             .forEach { push(it) }
 
         // local file deletes
-        originalDm.listFiles()
-            .filter { !newDm.hasFile(it.name) }
-            .map { localFileDelete(it) }
+        files.filter { it.second == null }
+            .map { localFileDelete(it.first!!) }
             .forEach { push(it) }
 
         // remote file changes (update, neither add nor delete)
-        newDm.listFiles()
-            .filter { originalDm.hasFile(it.name) && !hashEquals(originalDm.getFile(it.name)!!, it) }
-            .map { fileChange(it) }
+        files.filter { it.first != null && it.second != null && !hashEquals(it.first!!, it.second!!) }
+            .map { UpdateFileChange(it.first, it.second!!) }
             .forEach { push(it) }
 
         // detect new shared files
-        newDm.listFiles()
-            .filter { it.isShared() && !(originalDm.getFile(it.name)?.isShared() ?: true) }
-            .map { shareChange(it) }
+        files.filter { it.second?.isShared() ?: false && !(it.first?.isShared() ?: true) }
+            .map { shareChange(it.second!!) }
             .forEach { push(it) }
 
         // detect unshared files
-        newDm.listFiles()
-            .filter { !it.isShared() && originalDm.getFile(it.name)?.isShared() ?: false }
-            .map { unshareChange(it) }
+        files.filter { !(it.second?.isShared() ?: true) && it.first?.isShared() ?: false }
+            .map { unshareChange(it.second!!) }
             .forEach { push(it) }
     }
 
-    private fun fileChange(file: BoxFile) = UpdateFileChange(
-        originalDm.getFile(file.name) ?: throw IllegalStateException("file for change event missing: " + file.name),
-        file
-    )
-    private fun remoteFolderAdd(it: BoxFolder) = CreateFolderChange(this, it.name, folderNavigationFactory, directoryFactory)
+    private fun remoteFolderAdd(it: BoxFolder) = CreateFolderChange(this, it.name, folderNavigationFactory, directoryFactory, cryptoUtils)
     private fun remoteFolderDelete(it: BoxFolder) = DeleteFolderChange(it)
     private fun fileAdd(file: BoxFile) = UpdateFileChange(null, file)
     private fun localFileDelete(file: BoxFile) = DeleteFileChange(file)
@@ -286,6 +326,21 @@ abstract class AbstractNavigation(
     @Throws(QblStorageException::class)
     protected abstract fun uploadDirectoryMetadata()
 
+    /**
+     * Uploads only the changes since the last upload if the navigation keeps a journal
+     *
+     * @return false if the whole directory metadata needs to be uploaded
+     */
+    @Throws(QblStorageException::class)
+    protected open fun uploadJournal() = false
+
+    /**
+     * Deletes the journal of the directory metadata before the folder is deleted
+     */
+    @Throws(QblStorageException::class)
+    protected open fun deleteJournal() {
+    }
+
     override fun navigate(target: BoxExternalFolder): BoxNavigation = TODO()
 
     @Throws(QblStorageException::class)
@@ -346,8 +401,14 @@ abstract class AbstractNavigation(
         )
         boxFile.mtime = mtime
 
-        val uploadResult = uploadEncrypted(fileInput, key, "blocks/" + block, listener)
-        boxFile.hashed = uploadResult.hash
+        if (size >= volumeConfig.chunkingThreshold && !boxFile.isShared()) {
+            val upload = volumeConfig.chunkedTransfer.upload(fileInput, dm, defaultHashAlgorithm, listener, size)
+            boxFile.chunks = upload.chunks
+            boxFile.hashed = upload.hash
+        } else {
+            val uploadResult = uploadEncrypted(fileInput, key, "blocks/" + block, listener, size)
+            boxFile.hashed = uploadResult.hash
+        }
 
         execute(UpdateFileChange(oldFile, boxFile))
 
@@ -392,18 +453,28 @@ abstract class AbstractNavigation(
 
     @Throws(QblStorageException::class)
     @JvmOverloads protected fun uploadEncrypted(file: File, key: KeyParameter, block: String, listener: ProgressListener? = null)
-        = uploadEncrypted(FileInputStream(file), key, block, listener)
-
+        = uploadEncrypted(FileInputStream(file), key, block, listener, file.length())
+
+    /**
+     * Encrypts and hashes the input while it is uploaded if the size of the input is known.
+     * Otherwise the input is encrypted into a temp file first.
+     *
+     * @param size size of the input in bytes, or UNKNOWN_SIZE
+     */
     @Throws(QblStorageException::class)
-    @JvmOverloads protected fun uploadEncrypted(fileInput: InputStream, key: KeyParameter, block: String, listener: ProgressListener? = null): UploadResult {
+    @JvmOverloads protected fun uploadEncrypted(fileInput: InputStream, key: KeyParameter, block: String,
+                                                listener: ProgressListener? = null, size: Long = UNKNOWN_SIZE): UploadResult {
+        if (size != UNKNOWN_SIZE) {
+            return uploadEncryptedStreaming(fileInput, key, block, listener, size)
+        }
         try {
             val hashAlgorithm = defaultHashAlgorithm
             val tempFile = File.createTempFile("upload", "up", tempDir)
             val digest = MessageDigest.getInstance(hashAlgorithm)
             val outputStream = FileOutputStream(tempFile)
-            val inputStream = InputStreamListener(fileInput) { bytes, n -> digest.update(bytes, 0, n) }
+            val inputStream = InputStreamListener(fileInput) { bytes, off, n -> digest.update(bytes, off, n) }
 
-            if (!cryptoUtils.encryptStreamAuthenticatedSymmetric(inputStream, outputStream, key, null)) {
+            if (!cryptoUtils.encryptStreamAuthenticatedSymmetricChunked(inputStream, outputStream, key)) {
                 throw QblStorageException("Encryption failed")
             }
             outputStream.flush()
@@ -424,6 +495,32 @@ abstract class AbstractNavigation(
         }
     }
 
+    /**
+     * The ciphertext size of the chunked format only depends on the plaintext size, so the request is sent
+     * with a Content-Length while the chunks are encrypted into the request body.
+     */
+    private fun uploadEncryptedStreaming(fileInput: InputStream, key: KeyParameter, block: String,
+                                         listener: ProgressListener?, size: Long): UploadResult {
+        try {
+            val hashAlgorithm = defaultHashAlgorithm
+            val digest = MessageDigest.getInstance(hashAlgorithm)
+            var input: InputStream = InputStreamListener(fileInput) { bytes, off, n -> digest.update(bytes, off, n) }
+            if (listener != null) {
+                listener.setSize(size)
+                input = ProgressInputStream(input, listener)
+            }
+            val length = ChunkedAuthenticatedCipher.ciphertextSize(size, ChunkedAuthenticatedCipher.DEFAULT_CHUNK_SIZE)
+            val serverTime = writeBackend.uploadStreaming(block, length, null) { output ->
+                if (!cryptoUtils.encryptStreamAuthenticatedSymmetricChunked(input, output, key)) {
+                    throw IOException("Encryption failed")
+                }
+            }.time.time
+            return UploadResult(serverTime, Hash(digest.digest(), hashAlgorithm))
+        } finally {
+            fileInput.close()
+        }
+    }
+
     data class UploadResult(val serverTime: Long, val hash: Hash)
 
     override fun download(filename: String) = download(getFile(filename))
@@ -433,6 +530,13 @@ abstract class AbstractNavigation(
 
     @Throws(QblStorageException::class)
     override fun download(file: BoxFile, listener: ProgressListener?): InputStream {
+        if (file.isChunked()) {
+            return volumeConfig.chunkedTransfer.download(file, listener)
+        }
+        val rangedDownloader = volumeConfig.rangedDownloader
+        if (rangedDownloader != null && file.size > rangedDownloader.partSize) {
+            return downloadRanged(rangedDownloader, file, listener)
+        }
         try {
             readBackend.download("blocks/" + file.block).use { download ->
                 var content = download.inputStream
@@ -441,17 +545,31 @@ abstract class AbstractNavigation(
                     content = ProgressInputStream(content, listener)
                 }
                 val key = KeyParameter(file.getKey())
-                val temp = File.createTempFile("upload", "down", tempDir)
-                temp.deleteOnExit()
-                if (!cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(content, temp, key)) {
-                    throw QblStorageException("Decryption failed")
-                }
-                return DeleteOnCloseFileInputStream(temp)
+                return cryptoUtils.decryptAuthenticatedSymmetric(content, key, tempDir).inputStream
             }
+        } catch (e: InvalidCipherTextException) {
+            throw QblStorageException("Decryption failed")
         } catch (e: IOException) {
             throw QblStorageException(e)
-        } catch (e: InvalidKeyException) {
+        }
+    }
+
+    /**
+     * Downloads the block in parallel parts into a temp file and decrypts it from there
+     */
+    @Throws(QblStorageException::class)
+    private fun downloadRanged(downloader: RangedBlockDownloader, file: BoxFile, listener: ProgressListener?): InputStream {
+        val encrypted = downloader.download("blocks/" + file.block, listener)
+        try {
+            FileInputStream(encrypted).use {
+                return cryptoUtils.decryptAuthenticatedSymmetric(it, KeyParameter(file.getKey()), tempDir).inputStream
+            }
+        } catch (e: InvalidCipherTextException) {
+            throw QblStorageException("Decryption failed")
+        } catch (e: IOException) {
             throw QblStorageException(e)
+        } finally {
+            encrypted.delete()
         }
     }
 
@@ -459,6 +577,9 @@ abstract class AbstractNavigation(
     fun createFileMetadata(owner: QblECPublicKey, boxFile: BoxFile): BoxExternalReference {
         try {
             if (!boxFile.isShared()) {
+                if (boxFile.isChunked()) {
+                    materializeBlock(boxFile)
+                }
                 val block = UUID.randomUUID().toString()
                 val key = cryptoUtils.generateSymmetricKey()
                 boxFile.shared = Share.create(block, key.key)
@@ -472,6 +593,17 @@ abstract class AbstractNavigation(
         }
     }
 
+    /**
+     * Share receivers only read single blocks, so the chunks of a shared file are also uploaded
+     * as one block under the block name of the file.
+     */
+    @Throws(QblStorageException::class)
+    private fun materializeBlock(boxFile: BoxFile) {
+        volumeConfig.chunkedTransfer.download(boxFile, null).use {
+            uploadEncrypted(it, KeyParameter(boxFile.key), "blocks/" + boxFile.block, null, boxFile.size)
+        }
+    }
+
     override fun getExternalReference(owner: QblECPublicKey, boxFile: BoxFile)
         = BoxExternalReference(false, readBackend.getUrl(boxFile.meta), boxFile.getName(), owner, boxFile.metakey)
 
@@ -515,19 +647,13 @@ abstract class AbstractNavigation(
     @Throws(QblStorageException::class, IOException::class, InvalidKeyException::class)
     override fun getMetadataFile(share: Share): FileMetadata {
         readBackend.download(share.meta).inputStream.use { encryptedMetadata ->
-            val tmp = File.createTempFile("dir", "db1", tempDir)
-            tmp.deleteOnExit()
-            if (cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(encryptedMetadata, tmp, KeyParameter(share.metaKey))) {
-                return fileFactory.open(tmp)
-            } else {
-                throw QblStorageNotFound("Invalid key")
-            }
+            return fileFactory.open(decryptMetadata(encryptedMetadata, KeyParameter(share.metaKey), "db1"))
         }
     }
 
     @Synchronized @Throws(QblStorageException::class)
     override fun createFolder(name: String): BoxFolder {
-        execute(CreateFolderChange(this, name, folderNavigationFactory, directoryFactory))
+        execute(CreateFolderChange(this, name, folderNavigationFactory, directoryFactory, cryptoUtils))
         commit()
         refresh()
         return getFolder(name)
@@ -560,6 +686,7 @@ abstract class AbstractNavigation(
             folderNav.delete(subFolder)
         }
         folderNav.commit()
+        folderNav.deleteJournal()
 
         execute(DeleteFolderChange(folder))
     }
@@ -644,6 +771,7 @@ abstract class AbstractNavigation(
 
     companion object {
         val BLOCKS_PREFIX = "blocks/"
+        const val UNKNOWN_SIZE = -1L
 
         private val scheduler = Executors.newScheduledThreadPool(1)
 
@@ -0,0 +1,36 @@
+package de.qabel.box.storage
+
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Ends after the first [limit] bytes of the wrapped stream
+ */
+class BoundedInputStream(`in`: InputStream, private val limit: Long) : FilterInputStream(`in`) {
+    private var read: Long = 0
+
+    @Throws(IOException::class)
+    override fun read(): Int {
+        if (read >= limit) {
+            return -1
+        }
+        return super.read().apply { if (this >= 0) read++ }
+    }
+
+    @Throws(IOException::class)
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (read >= limit) {
+            return -1
+        }
+        return super.read(b, off, Math.min(len.toLong(), limit - read).toInt()).apply { if (this > 0) read += this }
+    }
+
+    @Throws(IOException::class)
+    override fun skip(n: Long) = super.skip(Math.min(n, limit - read)).apply { read += this }
+
+    @Throws(IOException::class)
+    override fun available() = Math.min(super.available().toLong(), limit - read).toInt()
+
+    override fun markSupported() = false
+}
@@ -25,6 +25,11 @@ open class BoxFile(
         this.key = key
     }
 
+    /**
+     * Content defined chunks of the file. Files without chunks are stored in a single block.
+     */
+    var chunks: List<BoxFileChunk> = emptyList()
+
     val meta: String? get() = shared?.meta
     val metakey: ByteArray? get () = shared?.metaKey
 
@@ -83,7 +88,7 @@ open class BoxFile(
 
     @Throws(CloneNotSupportedException::class)
     protected fun clone(): BoxFile {
-        return BoxFile(prefix, block, name, size, mtime, key, hashed, shared)
+        return BoxFile(prefix, block, name, size, mtime, key, hashed, shared).apply { chunks = this@BoxFile.chunks }
     }
 
     override fun getRef(): String? {
@@ -98,6 +103,7 @@ open class BoxFile(
         hashed = Hash.create(hash, algorithm)
     }
 
+    fun isChunked() = chunks.isNotEmpty()
     fun isShared() = shared != null
     fun isHashed() = hashed != null
 }
@@ -0,0 +1,39 @@
+package de.qabel.box.storage
+
+import java.util.*
+
+/**
+ * Part of a chunked file, stored encrypted with its own key in blocks/[block].
+ * Chunks with the same [hash] share their block, so unchanged content is only uploaded once.
+ */
+class BoxFileChunk(
+    val offset: Long,
+    val size: Long,
+    val hash: ByteArray,
+    val block: String,
+    val key: ByteArray
+) {
+    override fun equals(other: Any?): Boolean {
+        if (this === other) {
+            return true
+        }
+        if (other !is BoxFileChunk) {
+            return false
+        }
+        return offset == other.offset
+            && size == other.size
+            && Arrays.equals(hash, other.hash)
+            && block == other.block
+            && Arrays.equals(key, other.key)
+    }
+
+    override fun hashCode(): Int {
+        var result = offset.hashCode()
+        result = 31 * result + size.hashCode()
+        result = 31 * result + Arrays.hashCode(hash)
+        result = 31 * result + block.hashCode()
+        return result
+    }
+
+    override fun toString() = "BoxFileChunk(offset=$offset, size=$size, block=$block)"
+}
@@ -1,7 +1,8 @@
 package de.qabel.box.storage
 
-import de.qabel.box.storage.jdbc.JdbcDirectoryMetadataFactory
 import de.qabel.box.storage.jdbc.JdbcFileMetadataFactory
+import de.qabel.box.storage.memory.MemoryDirectoryMetadataFactory
+import de.qabel.core.crypto.CryptoUtils
 import java.io.File
 
 class BoxVolumeConfig(
@@ -13,9 +14,48 @@ class BoxVolumeConfig(
     var defaultHashAlgorithm: String,
     val tempDir: File,
     val directoryMetadataFactoryFactory: (File, ByteArray) -> DirectoryMetadataFactory =
-        { tempDir, deviceId -> JdbcDirectoryMetadataFactory(tempDir, deviceId) },
-    val fileMetadataFactoryFactory: (File) -> FileMetadataFactory = { JdbcFileMetadataFactory(it) }
+        { tempDir, deviceId -> MemoryDirectoryMetadataFactory(tempDir, deviceId) },
+    val fileMetadataFactoryFactory: (File) -> FileMetadataFactory = { JdbcFileMetadataFactory(it) },
+    val cryptoUtils: CryptoUtils = CryptoUtils.getInstance(),
+    val chunkingThreshold: Long = DEFAULT_CHUNKING_THRESHOLD,
+    val chunker: ContentDefinedChunker = ContentDefinedChunker(),
+    val transferParallelism: Int = ChunkedFileTransfer.DEFAULT_PARALLELISM,
+    val downloadPartSize: Long = RangedBlockDownloader.DEFAULT_PART_SIZE,
+    val downloadParallelism: Int = RangedBlockDownloader.DEFAULT_PARALLELISM,
+    val metadataJournal: Boolean = false,
+    val journalCompactionInterval: Int = DirectoryMetadataJournal.DEFAULT_COMPACTION_INTERVAL
 ) {
     val directoryFactory: DirectoryMetadataFactory by lazy { directoryMetadataFactoryFactory(tempDir, deviceId) }
     val fileFactory: FileMetadataFactory by lazy { fileMetadataFactoryFactory(tempDir) }
+
+    val chunkedTransfer: ChunkedFileTransfer by lazy {
+        ChunkedFileTransfer(readBackend, writeBackend, cryptoUtils, tempDir, chunker, transferParallelism)
+    }
+
+    /**
+     * Downloads large blocks in parallel parts if the read backend supports ranged downloads
+     */
+    val rangedDownloader: RangedBlockDownloader? by lazy {
+        (readBackend as? RangedStorageReadBackend)?.let {
+            RangedBlockDownloader(it, tempDir, downloadPartSize, downloadParallelism)
+        }
+    }
+
+    /**
+     * Journal for the directory metadata of folders if commits only upload their changes
+     */
+    val directoryJournal: DirectoryMetadataJournal? by lazy {
+        if (metadataJournal) {
+            DirectoryMetadataJournal(readBackend, writeBackend, cryptoUtils, tempDir, journalCompactionInterval)
+        } else {
+            null
+        }
+    }
+
+    companion object {
+        /**
+         * Files of at least this size are uploaded in content defined chunks
+         */
+        const val DEFAULT_CHUNKING_THRESHOLD = 8L * 1024 * 1024
+    }
 }
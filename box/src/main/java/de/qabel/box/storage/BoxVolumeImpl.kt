@@ -4,7 +4,6 @@ import de.qabel.box.storage.exceptions.QblStorageException
 import de.qabel.box.storage.exceptions.QblStorageIOFailure
 import de.qabel.box.storage.hash.QabelBoxDigestProvider
 import de.qabel.core.config.Prefix
-import de.qabel.core.crypto.CryptoUtils
 import de.qabel.core.crypto.QblECKeyPair
 import org.slf4j.LoggerFactory
 import org.spongycastle.jce.provider.BouncyCastleProvider
@@ -14,10 +13,9 @@ import java.security.Security
 
 open class BoxVolumeImpl(final override val config: BoxVolumeConfig, private val keyPair: QblECKeyPair) : BoxVolume {
     private val logger by lazy { LoggerFactory.getLogger(BoxVolumeImpl::class.java) }
-    private val cryptoUtils = CryptoUtils()
     private val indexDmDownloader by lazy {
         with (config) {
-            IndexDMDownloader(readBackend, keyPair, tempDir, directoryFactory)
+            IndexDMDownloader(readBackend, keyPair, tempDir, directoryFactory, cryptoUtils)
         }
     }
     override fun getReadBackend() = config.readBackend
@@ -95,7 +93,7 @@ open class BoxVolumeImpl(final override val config: BoxVolumeConfig, private val
      */
     @Throws(QblStorageException::class)
     override fun createIndex(root: String)
-        = createIndex(config.directoryFactory, config.writeBackend, cryptoUtils, rootRef, keyPair)
+        = createIndex(config.directoryFactory, config.writeBackend, config.cryptoUtils, rootRef, keyPair)
 }
 
 fun ByteArray.toLong() = ByteBuffer.wrap(this).long
@@ -0,0 +1,237 @@
+package de.qabel.box.storage
+
+import de.qabel.box.storage.exceptions.QblStorageException
+import de.qabel.core.crypto.ChunkedAuthenticatedCipher
+import de.qabel.core.crypto.CryptoUtils
+import de.qabel.core.logging.QabelLog
+import org.apache.commons.codec.binary.Hex
+import org.spongycastle.crypto.InvalidCipherTextException
+import org.spongycastle.crypto.digests.Blake2bDigest
+import org.spongycastle.crypto.params.KeyParameter
+import java.io.*
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.util.*
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Uploads and downloads files as content defined chunks. Every chunk is encrypted into its own block,
+ * chunks that are already referenced in the directory metadata are not uploaded again.
+ * Up to [parallelism] chunks are transferred at the same time.
+ */
+class ChunkedFileTransfer(
+    private val readBackend: StorageReadBackend,
+    private val writeBackend: StorageWriteBackend,
+    private val cryptoUtils: CryptoUtils,
+    private val tempDir: File,
+    private val chunker: ContentDefinedChunker,
+    private val parallelism: Int
+) : QabelLog {
+
+    class ChunkedUpload(val chunks: List<BoxFileChunk>, val hash: Hash)
+
+    /**
+     * Uploads the chunks of the input that are not yet stored. Chunks are only reused from files of the same
+     * directory, so deleting a file only has to check the references in its own directory metadata.
+     */
+    @Throws(QblStorageException::class)
+    fun upload(input: InputStream, dm: DirectoryMetadata, hashAlgorithm: String,
+               listener: ProgressListener?, size: Long): ChunkedUpload {
+        val digest = MessageDigest.getInstance(hashAlgorithm)
+        val chunks = ArrayList<BoxFileChunk>()
+        val known = HashMap<String, BoxFileChunk>()
+        val progress = AtomicLong()
+        val tasks = ParallelTasks(parallelism)
+        listener?.setSize(size)
+        try {
+            var offset = 0L
+            input.use {
+                chunker.chunks(it) { data ->
+                    tasks.checkFailures()
+                    digest.update(data)
+                    val hash = chunkHash(data)
+                    val hex = Hex.encodeHexString(hash)
+                    val existing = known[hex] ?: dm.findChunk(hash)
+                    val chunk: BoxFileChunk
+                    if (existing != null) {
+                        chunk = BoxFileChunk(offset, data.size.toLong(), hash, existing.block, existing.key)
+                        listener?.setProgress(progress.addAndGet(data.size.toLong()))
+                    } else {
+                        chunk = BoxFileChunk(offset, data.size.toLong(), hash, UUID.randomUUID().toString(),
+                            cryptoUtils.generateSymmetricKey().key)
+                        tasks.submit {
+                            uploadChunk(chunk, data)
+                            listener?.setProgress(progress.addAndGet(data.size.toLong()))
+                        }
+                    }
+                    known.put(hex, chunk)
+                    chunks.add(chunk)
+                    offset += data.size
+                }
+            }
+            tasks.await()
+            return ChunkedUpload(chunks, Hash(digest.digest(), hashAlgorithm))
+        } catch (e: IOException) {
+            tasks.cancel()
+            throw QblStorageException(e.message, e)
+        } catch (e: QblStorageException) {
+            tasks.cancel()
+            throw e
+        }
+    }
+
+    private fun uploadChunk(chunk: BoxFileChunk, data: ByteArray) {
+        val key = KeyParameter(chunk.key)
+        val length = ChunkedAuthenticatedCipher.ciphertextSize(
+            data.size.toLong(), ChunkedAuthenticatedCipher.DEFAULT_CHUNK_SIZE)
+        writeBackend.uploadStreaming(BLOCKS_PREFIX + chunk.block, length, null) { output ->
+            if (!cryptoUtils.encryptStreamAuthenticatedSymmetricChunked(ByteArrayInputStream(data), output, key)) {
+                throw IOException("Encryption failed")
+            }
+        }
+    }
+
+    /**
+     * Downloads the chunks of the file into a temp file, which is deleted when the returned stream is closed.
+     * Every block is downloaded once, even if the file contains its chunk multiple times.
+     */
+    @Throws(QblStorageException::class)
+    fun download(file: BoxFile, listener: ProgressListener?): InputStream {
+        val target = File.createTempFile("download", "chunked", tempDir)
+        val progress = AtomicLong()
+        val tasks = ParallelTasks(parallelism)
+        listener?.setSize(file.size)
+        try {
+            RandomAccessFile(target, "rw").use { output ->
+                output.setLength(file.size)
+                val channel = output.channel
+                file.chunks.groupBy { it.block }.values.forEach { chunks ->
+                    tasks.submit {
+                        val data = downloadChunk(chunks.first())
+                        chunks.forEach { chunk ->
+                            val buffer = ByteBuffer.wrap(data)
+                            var position = chunk.offset
+                            while (buffer.hasRemaining()) {
+                                position += channel.write(buffer, position)
+                            }
+                            listener?.setProgress(progress.addAndGet(chunk.size))
+                        }
+                    }
+                }
+                tasks.await()
+            }
+            return DeleteOnCloseFileInputStream(target)
+        } catch (e: Exception) {
+            tasks.cancel()
+            target.delete()
+            when (e) {
+                is QblStorageException -> throw e
+                else -> throw QblStorageException(e)
+            }
+        }
+    }
+
+    private fun downloadChunk(chunk: BoxFileChunk): ByteArray {
+        try {
+            readBackend.download(BLOCKS_PREFIX + chunk.block).use { download ->
+                cryptoUtils.decryptAuthenticatedSymmetric(download.inputStream, KeyParameter(chunk.key), tempDir)
+                    .use { plaintext ->
+                        if (plaintext.size() != chunk.size) {
+                            throw QblStorageException("Chunk size mismatch in block " + chunk.block)
+                        }
+                        val data = ByteArray(chunk.size.toInt())
+                        DataInputStream(plaintext.inputStream).use { it.readFully(data) }
+                        if (!Arrays.equals(chunkHash(data), chunk.hash)) {
+                            throw QblStorageException("Chunk hash mismatch in block " + chunk.block)
+                        }
+                        return data
+                    }
+            }
+        } catch (e: InvalidCipherTextException) {
+            throw QblStorageException("Decryption failed")
+        }
+    }
+
+    /**
+     * Runs tasks on the shared executor while limiting the number of running and queued tasks,
+     * so only a bounded number of chunks is held in memory.
+     */
+    private class ParallelTasks(parallelism: Int) {
+        private val permits = Semaphore(parallelism)
+        private val futures = LinkedList<Future<*>>()
+
+        fun submit(task: () -> Unit) {
+            permits.acquire()
+            try {
+                futures.add(executor.submit(Runnable {
+                    try {
+                        task()
+                    } finally {
+                        permits.release()
+                    }
+                }))
+            } catch (e: RuntimeException) {
+                permits.release()
+                throw e
+            }
+        }
+
+        /**
+         * Throws the failure of a finished task, if any
+         */
+        fun checkFailures() {
+            val iterator = futures.iterator()
+            while (iterator.hasNext()) {
+                val future = iterator.next()
+                if (future.isDone) {
+                    get(future)
+                    iterator.remove()
+                }
+            }
+        }
+
+        fun await() {
+            while (futures.isNotEmpty()) {
+                get(futures.removeFirst())
+            }
+        }
+
+        fun cancel() {
+            futures.forEach { it.cancel(true) }
+            futures.clear()
+        }
+
+        private fun get(future: Future<*>) {
+            try {
+                future.get()
+            } catch (e: ExecutionException) {
+                val cause = e.cause
+                when (cause) {
+                    is QblStorageException -> throw cause
+                    is Exception -> throw QblStorageException(cause.message, cause)
+                    else -> throw QblStorageException(e)
+                }
+            }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_PARALLELISM = 4
+        private const val BLOCKS_PREFIX = "blocks/"
+
+        private val executor = Executors.newCachedThreadPool { runnable ->
+            Thread(runnable, "box-chunk-transfer").apply { isDaemon = true }
+        }
+
+        @JvmStatic
+        fun chunkHash(data: ByteArray): ByteArray {
+            val digest = Blake2bDigest()
+            digest.update(data, 0, data.size)
+            return ByteArray(digest.digestSize).apply { digest.doFinal(this, 0) }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package de.qabel.box.storage
+
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Splits a stream into chunks whose boundaries depend on the content instead of the offset,
+ * so an insertion only changes the chunks around it (FastCDC with a gear rolling hash).
+ *
+ * The gear table is derived from a fixed seed because all clients need the same boundaries
+ * to share chunks of the same content.
+ */
+class ContentDefinedChunker @JvmOverloads constructor(
+    val minSize: Int = DEFAULT_MIN_SIZE,
+    val averageSize: Int = DEFAULT_AVERAGE_SIZE,
+    val maxSize: Int = DEFAULT_MAX_SIZE
+) {
+    private val smallMask: Long
+    private val largeMask: Long
+
+    init {
+        if (minSize <= 0 || minSize > averageSize || averageSize > maxSize) {
+            throw IllegalArgumentException("invalid chunk sizes: $minSize <= $averageSize <= $maxSize")
+        }
+        val bits = 64 - java.lang.Long.numberOfLeadingZeros(averageSize.toLong() - 1)
+        smallMask = mask(Math.min(bits + NORMALIZATION, 63))
+        largeMask = mask(Math.max(bits - NORMALIZATION, 1))
+    }
+
+    /**
+     * Reads the input to its end and passes every chunk to the consumer, in order.
+     * An empty input has no chunks.
+     */
+    @Throws(IOException::class)
+    fun chunks(input: InputStream, consumer: (ByteArray) -> Unit) {
+        val buffer = ByteArray(maxSize)
+        var length = fill(input, buffer, 0)
+        while (length > 0) {
+            val boundary = boundary(buffer, length)
+            consumer(buffer.copyOf(boundary))
+            System.arraycopy(buffer, boundary, buffer, 0, length - boundary)
+            length = fill(input, buffer, length - boundary)
+        }
+    }
+
+    /**
+     * Size of the first chunk of the given data
+     */
+    fun boundary(data: ByteArray, length: Int): Int {
+        if (length <= minSize) {
+            return length
+        }
+        val end = Math.min(length, maxSize)
+        val normal = Math.min(end, averageSize)
+        var hash = 0L
+        var i = minSize
+        while (i < normal) {
+            hash = (hash shl 1) + GEAR[data[i].toInt() and 0xff]
+            if (hash and smallMask == 0L) {
+                return i + 1
+            }
+            i++
+        }
+        while (i < end) {
+            hash = (hash shl 1) + GEAR[data[i].toInt() and 0xff]
+            if (hash and largeMask == 0L) {
+                return i + 1
+            }
+            i++
+        }
+        return end
+    }
+
+    private fun fill(input: InputStream, buffer: ByteArray, offset: Int): Int {
+        var length = offset
+        while (length < buffer.size) {
+            val read = input.read(buffer, length, buffer.size - length)
+            if (read < 0) {
+                break
+            }
+            length += read
+        }
+        return length
+    }
+
+    companion object {
+        const val DEFAULT_MIN_SIZE = 256 * 1024
+        const val DEFAULT_AVERAGE_SIZE = 1024 * 1024
+        const val DEFAULT_MAX_SIZE = 4 * 1024 * 1024
+
+        private const val NORMALIZATION = 2
+        private const val GEAR_SEED = 0x516162656c426f78L
+
+        /**
+         * The gear hash shifts older bytes to the high bits, so the masks use the high bits
+         * to cover a window of the last bytes.
+         */
+        private fun mask(bits: Int) = ((1L shl bits) - 1) shl (64 - bits)
+
+        private val GEAR = LongArray(256).apply {
+            var state = GEAR_SEED
+            for (i in indices) {
+                state += -0x61c8864680b583ebL
+                var z = state
+                z = (z xor (z ushr 30)) * -0x40a7b892e31b1a47L
+                z = (z xor (z ushr 27)) * -0x6b2fb644ecceee15L
+                this[i] = z xor (z ushr 31)
+            }
+        }
+    }
+}
@@ -18,7 +18,7 @@ class DefaultIndexNavigation(dm: DirectoryMetadata, val keyPair: QblECKeyPair, v
     : AbstractNavigation(BoxPath.Root, dm, volumeConfig), IndexNavigation {
     private val directoryMetadataMHashes = WeakHashMap<Int, String>()
     private val logger by lazy { LoggerFactory.getLogger(DefaultIndexNavigation::class.java) }
-    private val indexDmDownloader = object : IndexDMDownloader(readBackend, keyPair, tempDir, directoryFactory) {
+    private val indexDmDownloader = object : IndexDMDownloader(readBackend, keyPair, tempDir, directoryFactory, cryptoUtils) {
         override fun startDownload(rootRef: String): StorageDownload {
             return readBackend.download(rootRef, directoryMetadataMHashes[Arrays.hashCode(dm.version)])
         }
@@ -2,6 +2,7 @@ package de.qabel.box.storage
 
 import de.qabel.box.storage.exceptions.QblStorageException
 import java.io.File
+import java.util.*
 
 interface DirectoryMetadata {
     val path: File
@@ -44,6 +45,39 @@ interface DirectoryMetadata {
     @Throws(QblStorageException::class)
     fun listFiles(): List<BoxFile>
 
+    /**
+     * Finds a chunk of any file in this directory by its content hash.
+     * Chunks of other directories are not found, see [isChunkReferenced].
+     */
+    @Throws(QblStorageException::class)
+    fun findChunk(hash: ByteArray): BoxFileChunk? =
+        listFiles().flatMap { it.chunks }.firstOrNull { Arrays.equals(it.hash, hash) }
+
+    /**
+     * True if a chunk of any file in this directory is stored in the block.
+     * Chunk blocks are only shared within a directory, so an unreferenced block can be deleted.
+     */
+    @Throws(QblStorageException::class)
+    fun isChunkReferenced(block: String): Boolean = listFiles().any { it.chunks.any { it.block == block } }
+
+    /**
+     * Pairs of old and new files that may differ in the other metadata, matched by name.
+     * The old file is null for added files and the new file is null for deleted files.
+     */
+    @Throws(QblStorageException::class)
+    fun fileChanges(other: DirectoryMetadata): List<Pair<BoxFile?, BoxFile?>> =
+        changes(listFiles().associateBy { it.name }, other.listFiles().associateBy { it.name })
+
+    /**
+     * Pairs of old and new folders that may differ in the other metadata, matched by name
+     */
+    @Throws(QblStorageException::class)
+    fun folderChanges(other: DirectoryMetadata): List<Pair<BoxFolder?, BoxFolder?>> =
+        changes(listFolders().associateBy { it.name }, other.listFolders().associateBy { it.name })
+
+    private fun <T> changes(old: Map<String, T>, new: Map<String, T>): List<Pair<T?, T?>> =
+        (old.keys + new.keys).map { Pair(old[it], new[it]) }
+
     @Throws(QblStorageException::class)
     fun deleteShare(share: BoxShare)
 
@@ -53,5 +87,20 @@ interface DirectoryMetadata {
     @Throws(QblStorageException::class)
     fun commit()
 
+    /**
+     * Sets the version to the version of another replica after its changes have been applied
+     */
+    @Throws(QblStorageException::class)
+    fun commitVersion(version: ByteArray)
+
+    /**
+     * Sequence number of the last change set of the metadata journal that is contained, 0 if there is none
+     */
+    @Throws(QblStorageException::class)
+    fun findJournalSequence(): Long
+
+    @Throws(QblStorageException::class)
+    fun replaceJournalSequence(sequence: Long)
+
     fun listShares(): List<BoxShare>
 }
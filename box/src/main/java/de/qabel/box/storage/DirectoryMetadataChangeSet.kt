@@ -0,0 +1,250 @@
+package de.qabel.box.storage
+
+import de.qabel.box.storage.exceptions.QblStorageCorruptMetadata
+import de.qabel.box.storage.exceptions.QblStorageException
+import java.io.*
+import java.util.*
+
+/**
+ * Changes of a directory metadata from one version to the next, stored as an entry of the metadata journal.
+ * Applying the operations to a replica of [previousVersion] results in a replica of [version].
+ */
+class DirectoryMetadataChangeSet(
+    val sequence: Long,
+    val previousVersion: ByteArray,
+    val version: ByteArray,
+    val operations: List<Operation>
+) {
+    sealed class Operation {
+        @Throws(QblStorageException::class)
+        abstract fun applyTo(dm: DirectoryMetadata)
+
+        class InsertFile(val file: BoxFile) : Operation() {
+            override fun applyTo(dm: DirectoryMetadata) = dm.insertFile(file)
+        }
+
+        class DeleteFile(val name: String) : Operation() {
+            override fun applyTo(dm: DirectoryMetadata) {
+                dm.getFile(name)?.let { dm.deleteFile(it) }
+            }
+        }
+
+        class InsertFolder(val folder: BoxFolder) : Operation() {
+            override fun applyTo(dm: DirectoryMetadata) = dm.insertFolder(folder)
+        }
+
+        class DeleteFolder(val name: String) : Operation() {
+            override fun applyTo(dm: DirectoryMetadata) {
+                dm.getFolder(name)?.let { dm.deleteFolder(it) }
+            }
+        }
+
+        class InsertShare(val share: BoxShare) : Operation() {
+            override fun applyTo(dm: DirectoryMetadata) = dm.insertShare(share)
+        }
+
+        class DeleteShare(val share: BoxShare) : Operation() {
+            override fun applyTo(dm: DirectoryMetadata) = dm.deleteShare(share)
+        }
+    }
+
+    /**
+     * Applies the operations and sets the sequence and version of the change set
+     */
+    @Throws(QblStorageException::class)
+    fun applyTo(dm: DirectoryMetadata) {
+        operations.forEach { it.applyTo(dm) }
+        dm.replaceJournalSequence(sequence)
+        dm.commitVersion(version)
+    }
+
+    @Throws(IOException::class)
+    fun writeTo(output: OutputStream) {
+        val out = DataOutputStream(output)
+        out.writeByte(FORMAT_VERSION)
+        out.writeLong(sequence)
+        writeBytes(out, previousVersion)
+        writeBytes(out, version)
+        out.writeInt(operations.size)
+        operations.forEach {
+            when (it) {
+                is Operation.InsertFile -> {
+                    out.writeByte(INSERT_FILE)
+                    writeFile(out, it.file)
+                }
+                is Operation.DeleteFile -> {
+                    out.writeByte(DELETE_FILE)
+                    out.writeUTF(it.name)
+                }
+                is Operation.InsertFolder -> {
+                    out.writeByte(INSERT_FOLDER)
+                    out.writeUTF(it.folder.ref)
+                    out.writeUTF(it.folder.name)
+                    writeBytes(out, it.folder.key)
+                }
+                is Operation.DeleteFolder -> {
+                    out.writeByte(DELETE_FOLDER)
+                    out.writeUTF(it.name)
+                }
+                is Operation.InsertShare -> {
+                    out.writeByte(INSERT_SHARE)
+                    writeShare(out, it.share)
+                }
+                is Operation.DeleteShare -> {
+                    out.writeByte(DELETE_SHARE)
+                    writeShare(out, it.share)
+                }
+            }
+        }
+        out.flush()
+    }
+
+    fun toByteArray(): ByteArray {
+        val output = ByteArrayOutputStream()
+        writeTo(output)
+        return output.toByteArray()
+    }
+
+    companion object {
+        private const val FORMAT_VERSION = 0
+        private const val INSERT_FILE = 1
+        private const val DELETE_FILE = 2
+        private const val INSERT_FOLDER = 3
+        private const val DELETE_FOLDER = 4
+        private const val INSERT_SHARE = 5
+        private const val DELETE_SHARE = 6
+
+        /**
+         * Operations that change [from] into [to]. Changed entries are deleted and inserted again.
+         */
+        @JvmStatic
+        @Throws(QblStorageException::class)
+        fun diff(sequence: Long, from: DirectoryMetadata, to: DirectoryMetadata): DirectoryMetadataChangeSet {
+            val operations = ArrayList<Operation>()
+            val files = from.fileChanges(to).filter { !sameFile(it.first, it.second) }
+            val folders = from.folderChanges(to).filter { it.first != it.second }
+            val oldShares = from.listShares().associateBy { shareKey(it) }
+            val newShares = to.listShares().associateBy { shareKey(it) }
+
+            oldShares.filterKeys { !newShares.containsKey(it) }.values.forEach { operations.add(Operation.DeleteShare(it)) }
+            files.forEach { it.first?.let { operations.add(Operation.DeleteFile(it.name)) } }
+            folders.forEach { it.first?.let { operations.add(Operation.DeleteFolder(it.name)) } }
+            folders.forEach { it.second?.let { operations.add(Operation.InsertFolder(it)) } }
+            files.forEach { it.second?.let { operations.add(Operation.InsertFile(it)) } }
+            newShares.filterKeys { !oldShares.containsKey(it) }.values.forEach { operations.add(Operation.InsertShare(it)) }
+
+            return DirectoryMetadataChangeSet(sequence, from.version, to.version, operations)
+        }
+
+        private fun shareKey(share: BoxShare) = listOf(share.ref, share.recipient, share.type)
+
+        private fun sameFile(file: BoxFile?, other: BoxFile?) =
+            file != null && other != null && file == other && file.hashed == other.hashed && file.chunks == other.chunks
+
+        @JvmStatic
+        @Throws(QblStorageException::class)
+        fun readFrom(input: InputStream): DirectoryMetadataChangeSet {
+            try {
+                val data = DataInputStream(input)
+                val format = data.readByte().toInt()
+                if (format != FORMAT_VERSION) {
+                    throw QblStorageCorruptMetadata("unknown change set format $format")
+                }
+                val sequence = data.readLong()
+                val previousVersion = readBytes(data)!!
+                val version = readBytes(data)!!
+                val operations = ArrayList<Operation>()
+                for (i in 0 until data.readInt()) {
+                    val type = data.readByte().toInt()
+                    operations.add(when (type) {
+                        INSERT_FILE -> Operation.InsertFile(readFile(data))
+                        DELETE_FILE -> Operation.DeleteFile(data.readUTF())
+                        INSERT_FOLDER -> Operation.InsertFolder(BoxFolder(data.readUTF(), data.readUTF(), readBytes(data)))
+                        DELETE_FOLDER -> Operation.DeleteFolder(data.readUTF())
+                        INSERT_SHARE -> Operation.InsertShare(readShare(data))
+                        DELETE_SHARE -> Operation.DeleteShare(readShare(data))
+                        else -> throw QblStorageCorruptMetadata("unknown change set operation $type")
+                    })
+                }
+                return DirectoryMetadataChangeSet(sequence, previousVersion, version, operations)
+            } catch (e: IOException) {
+                throw QblStorageCorruptMetadata(e)
+            }
+        }
+
+        private fun writeFile(out: DataOutputStream, file: BoxFile) {
+            out.writeUTF(file.prefix)
+            out.writeUTF(file.block)
+            out.writeUTF(file.name)
+            out.writeLong(file.size)
+            out.writeLong(file.mtime)
+            writeBytes(out, file.key)
+            writeBytes(out, file.hashed?.hash)
+            writeString(out, file.hashed?.algorithm)
+            writeString(out, file.shared?.meta)
+            writeBytes(out, file.shared?.metaKey)
+            out.writeInt(file.chunks.size)
+            file.chunks.forEach {
+                out.writeLong(it.offset)
+                out.writeLong(it.size)
+                writeBytes(out, it.hash)
+                out.writeUTF(it.block)
+                writeBytes(out, it.key)
+            }
+        }
+
+        private fun readFile(data: DataInputStream): BoxFile {
+            val file = BoxFile(
+                prefix = data.readUTF(),
+                block = data.readUTF(),
+                name = data.readUTF(),
+                size = data.readLong(),
+                mtime = data.readLong(),
+                key = readBytes(data)!!,
+                hashed = Hash.create(readBytes(data), readString(data)),
+                shared = Share.create(readString(data), readBytes(data))
+            )
+            val chunks = ArrayList<BoxFileChunk>()
+            for (i in 0 until data.readInt()) {
+                chunks.add(BoxFileChunk(data.readLong(), data.readLong(), readBytes(data)!!, data.readUTF(),
+                    readBytes(data)!!))
+            }
+            file.chunks = chunks
+            return file
+        }
+
+        private fun writeShare(out: DataOutputStream, share: BoxShare) {
+            out.writeUTF(share.ref)
+            out.writeUTF(share.recipient)
+            out.writeUTF(share.type)
+        }
+
+        private fun readShare(data: DataInputStream) = BoxShare(data.readUTF(), data.readUTF(), data.readUTF())
+
+        private fun writeBytes(out: DataOutputStream, bytes: ByteArray?) {
+            if (bytes == null) {
+                out.writeInt(-1)
+                return
+            }
+            out.writeInt(bytes.size)
+            out.write(bytes)
+        }
+
+        private fun readBytes(data: DataInputStream): ByteArray? {
+            val length = data.readInt()
+            if (length < 0) {
+                return null
+            }
+            return ByteArray(length).apply { data.readFully(this) }
+        }
+
+        private fun writeString(out: DataOutputStream, value: String?) {
+            out.writeBoolean(value != null)
+            if (value != null) {
+                out.writeUTF(value)
+            }
+        }
+
+        private fun readString(data: DataInputStream) = if (data.readBoolean()) data.readUTF() else null
+    }
+}
@@ -0,0 +1,136 @@
+package de.qabel.box.storage
+
+import de.qabel.box.storage.exceptions.QblStorageDecryptionFailed
+import de.qabel.box.storage.exceptions.QblStorageException
+import de.qabel.box.storage.exceptions.QblStorageNotFound
+import de.qabel.core.crypto.CryptoUtils
+import de.qabel.core.logging.QabelLog
+import org.spongycastle.crypto.InvalidCipherTextException
+import org.spongycastle.crypto.params.KeyParameter
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Journal of a folder's directory metadata. Instead of the whole metadata, every commit uploads a change set
+ * named after the metadata and its sequence number. Readers apply the change sets that follow the sequence of
+ * their replica. After [compactionInterval] change sets the whole metadata is uploaded again as the new base
+ * and the folded change sets are deleted.
+ *
+ * Writers that race for the same sequence leave a change set that does not continue the version of its
+ * predecessor. Readers stop in front of it and the next commit uploads the whole metadata again.
+ */
+class DirectoryMetadataJournal(
+    private val readBackend: StorageReadBackend,
+    private val writeBackend: StorageWriteBackend,
+    private val cryptoUtils: CryptoUtils,
+    private val tempDir: File,
+    val compactionInterval: Int = DEFAULT_COMPACTION_INTERVAL
+) : QabelLog {
+
+    /**
+     * Last known state of the uploaded base metadata
+     */
+    class Base(val eTag: String?, val sequence: Long)
+
+    /**
+     * Result of [catchUp]
+     *
+     * @property applied number of applied change sets
+     * @property diverged a change set did not continue the version of the metadata and has not been applied
+     */
+    class CatchUp(val applied: Int, val diverged: Boolean)
+
+    private val bases = ConcurrentHashMap<String, Base>()
+    private val diverged = Collections.newSetFromMap(ConcurrentHashMap<String, Boolean>())
+
+    fun findBase(fileName: String): Base? = bases[fileName]
+
+    fun replaceBase(fileName: String, base: Base) {
+        bases.put(fileName, base)
+    }
+
+    fun isCompactionDue(fileName: String, sequence: Long) =
+        diverged.contains(fileName) || sequence - (bases[fileName]?.sequence ?: 0L) > compactionInterval
+
+    @Throws(QblStorageException::class)
+    fun append(fileName: String, key: KeyParameter, changeSet: DirectoryMetadataChangeSet) {
+        val encrypted = ByteArrayOutputStream()
+        if (!cryptoUtils.encryptStreamAuthenticatedSymmetricChunked(
+            ByteArrayInputStream(changeSet.toByteArray()), encrypted, key)) {
+            throw QblStorageException("Encryption failed")
+        }
+        writeBackend.upload(changeSetName(fileName, changeSet.sequence), ByteArrayInputStream(encrypted.toByteArray()))
+    }
+
+    /**
+     * Applies all change sets that follow the sequence of the metadata.
+     * Stops in front of a change set that does not continue the version of the metadata and
+     * makes the next commit of the folder a compaction.
+     */
+    @Throws(QblStorageException::class)
+    fun catchUp(dm: DirectoryMetadata, key: KeyParameter): CatchUp {
+        var applied = 0
+        while (true) {
+            val changeSet = download(dm.fileName, dm.findJournalSequence() + 1, key) ?: return CatchUp(applied, false)
+            if (!Arrays.equals(changeSet.previousVersion, dm.version)) {
+                warn("change set ${changeSet.sequence} of ${dm.fileName} does not continue the local version")
+                diverged.add(dm.fileName)
+                return CatchUp(applied, true)
+            }
+            changeSet.applyTo(dm)
+            applied++
+        }
+    }
+
+    private fun download(fileName: String, sequence: Long, key: KeyParameter): DirectoryMetadataChangeSet? {
+        try {
+            readBackend.download(changeSetName(fileName, sequence)).use { download ->
+                cryptoUtils.decryptAuthenticatedSymmetric(download.inputStream, key, tempDir).use {
+                    return DirectoryMetadataChangeSet.readFrom(it.inputStream)
+                }
+            }
+        } catch (e: QblStorageNotFound) {
+            return null
+        } catch (e: InvalidCipherTextException) {
+            throw QblStorageDecryptionFailed(e)
+        } catch (e: IOException) {
+            throw QblStorageException(e)
+        }
+    }
+
+    /**
+     * Deletes the change sets after the previous base up to the sequence of the new base
+     */
+    @Throws(QblStorageException::class)
+    fun compacted(fileName: String, base: Base) {
+        val previous = bases[fileName]?.sequence ?: 0L
+        replaceBase(fileName, base)
+        diverged.remove(fileName)
+        for (sequence in previous + 1..base.sequence) {
+            writeBackend.delete(changeSetName(fileName, sequence))
+        }
+    }
+
+    /**
+     * Deletes all change sets of a deleted folder
+     */
+    @Throws(QblStorageException::class)
+    fun delete(dm: DirectoryMetadata) {
+        val first = bases.remove(dm.fileName)?.sequence ?: 0L
+        diverged.remove(dm.fileName)
+        for (sequence in first + 1..dm.findJournalSequence()) {
+            writeBackend.delete(changeSetName(dm.fileName, sequence))
+        }
+    }
+
+    companion object {
+        const val DEFAULT_COMPACTION_INTERVAL = 64
+
+        @JvmStatic
+        fun changeSetName(fileName: String, sequence: Long) = "$fileName.$sequence"
+    }
+}
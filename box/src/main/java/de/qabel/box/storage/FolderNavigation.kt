@@ -2,12 +2,9 @@ package de.qabel.box.storage
 
 import de.qabel.box.storage.dto.BoxPath
 import de.qabel.box.storage.exceptions.QblStorageException
-import de.qabel.box.storage.exceptions.QblStorageNotFound
 import org.slf4j.LoggerFactory
 import org.spongycastle.crypto.params.KeyParameter
-import java.io.File
 import java.io.IOException
-import java.security.InvalidKeyException
 import java.util.*
 
 class FolderNavigation(
@@ -19,37 +16,96 @@ class FolderNavigation(
 ) : AbstractNavigation(path, dm, volumeConfig) {
     private val directoryMetadataMHashes = WeakHashMap<Int, String>()
     private val logger by lazy { LoggerFactory.getLogger(FolderNavigation::class.java) }
+    private val journal = volumeConfig.directoryJournal
+
+    /**
+     * Replica of the uploaded metadata, the change sets of the journal are computed against it.
+     * Unknown until the base metadata has been downloaded or uploaded.
+     */
+    private var remote: DirectoryMetadata? = journal?.findBase(dm.fileName)?.let { clone(dm) }
 
     @Throws(QblStorageException::class)
     override fun uploadDirectoryMetadata() {
         logger.trace("Uploading directory metadata")
         uploadEncrypted(dm.path, KeyParameter(key), dm.fileName)
+        journal?.let {
+            it.compacted(dm.fileName, DirectoryMetadataJournal.Base(null, dm.findJournalSequence()))
+            remote = clone(dm)
+        }
+    }
+
+    @Throws(QblStorageException::class)
+    override fun uploadJournal(): Boolean {
+        val journal = journal ?: return false
+        val remote = remote ?: return false
+        val sequence = remote.findJournalSequence() + 1
+        if (journal.isCompactionDue(dm.fileName, sequence)) {
+            return false
+        }
+        logger.trace("Appending change set $sequence to the directory metadata journal")
+        journal.append(dm.fileName, KeyParameter(key), DirectoryMetadataChangeSet.diff(sequence, remote, dm))
+        dm.replaceJournalSequence(sequence)
+        this.remote = clone(dm)
+        return true
+    }
+
+    @Throws(QblStorageException::class)
+    override fun deleteJournal() {
+        journal?.delete(dm)
     }
 
     @Throws(QblStorageException::class)
     override fun reloadMetadata(): DirectoryMetadata {
+        val journal = journal ?: return reloadWholeMetadata()
+        val remote = remote
+        try {
+            val eTag = if (remote != null) journal.findBase(dm.fileName)?.eTag else null
+            return reloadBase(journal, eTag)
+        } catch (e: UnmodifiedException) {
+            // the replica stays a replica of the uploaded metadata when the new change sets are applied
+            val caughtUp = journal.catchUp(remote!!, KeyParameter(key))
+            if (caughtUp.diverged) {
+                logger.trace("Directory metadata $path diverged from the journal, reloading the base")
+                return reloadBase(journal, null)
+            }
+            if (caughtUp.applied == 0) {
+                return dm
+            }
+            return clone(remote)
+        }
+    }
+
+    @Throws(QblStorageException::class, UnmodifiedException::class)
+    private fun reloadBase(journal: DirectoryMetadataJournal, eTag: String?): DirectoryMetadata {
+        try {
+            readBackend.download(dm.fileName, eTag).use { download ->
+                val tmp = decryptMetadata(download.inputStream, KeyParameter(this.key), "db7")
+                val newDM = directoryFactory.open(tmp, dm.fileName)
+                journal.replaceBase(dm.fileName, DirectoryMetadataJournal.Base(download.mHash, newDM.findJournalSequence()))
+                journal.catchUp(newDM, KeyParameter(key))
+                this.remote = clone(newDM)
+                return newDM
+            }
+        } catch (e: IOException) {
+            throw QblStorageException(e)
+        }
+    }
+
+    @Throws(QblStorageException::class)
+    private fun reloadWholeMetadata(): DirectoryMetadata {
         logger.trace("Reloading directory metadata $path")
         // duplicate of navigate()
         try {
             readBackend.download(dm.fileName, mHash).use { download ->
-                val indexDl = download.inputStream
-                val tmp = File.createTempFile("dir", "db7", tempDir)
-                tmp.deleteOnExit()
-                val key = KeyParameter(this.key)
-                if (cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(indexDl, tmp, key)) {
-                    val newDM = directoryFactory.open(tmp, dm.fileName)
-                    directoryMetadataMHashes.put(Arrays.hashCode(newDM.version), download.mHash)
-                    return newDM
-                } else {
-                    throw QblStorageNotFound("Invalid key")
-                }
+                val tmp = decryptMetadata(download.inputStream, KeyParameter(this.key), "db7")
+                val newDM = directoryFactory.open(tmp, dm.fileName)
+                directoryMetadataMHashes.put(Arrays.hashCode(newDM.version), download.mHash)
+                return newDM
             }
         } catch (e: UnmodifiedException) {
             return dm
         } catch (e: IOException) {
             throw QblStorageException(e)
-        } catch (e: InvalidKeyException) {
-            throw QblStorageException(e)
         }
     }
 
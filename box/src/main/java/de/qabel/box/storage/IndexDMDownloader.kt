@@ -15,9 +15,9 @@ open class IndexDMDownloader(
     val readBackend: StorageReadBackend,
     val keyPair: QblECKeyPair,
     val tempDir: File,
-    val directoryFactory: DirectoryMetadataFactory
+    val directoryFactory: DirectoryMetadataFactory,
+    private val cryptoUtils: CryptoUtils = CryptoUtils.getInstance()
 ) {
-    private val cryptoUtils by lazy { CryptoUtils() }
 
     fun loadDirectoryMetadata(rootRef: String): DownloadedDirectoryMetadata {
         val download = startDownload(rootRef)
@@ -3,10 +3,13 @@ package de.qabel.box.storage
 import java.io.FilterInputStream
 import java.io.InputStream
 
-class InputStreamListener(input: InputStream, private val consumer: (ByteArray, Int) -> Unit) : FilterInputStream(input) {
+/**
+ * Passes every read buffer with the offset and length of the read bytes to the consumer
+ */
+class InputStreamListener(input: InputStream, private val consumer: (ByteArray, Int, Int) -> Unit) : FilterInputStream(input) {
     override fun read(b: ByteArray?, off: Int, len: Int): Int {
         return super.read(b, off, len).apply {
-            if (b != null && this > 0) consumer(b, this)
+            if (b != null && this > 0) consumer(b, off, this)
         }
     }
 }
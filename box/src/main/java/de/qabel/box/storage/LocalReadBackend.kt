@@ -8,7 +8,7 @@ import java.io.File
 import java.io.FileInputStream
 import java.io.IOException
 
-class LocalReadBackend(private val root: File) : StorageReadBackend {
+class LocalReadBackend(private val root: File) : RangedStorageReadBackend {
 
     @Throws(QblStorageException::class)
     override fun download(name: String): StorageDownload {
@@ -44,6 +44,33 @@ class LocalReadBackend(private val root: File) : StorageReadBackend {
 
     }
 
+    @Throws(QblStorageException::class)
+    override fun getSize(name: String): Long {
+        val file = root.resolve(name)
+        if (!file.isFile) {
+            throw QblStorageNotFound("File not found: " + file)
+        }
+        return file.length()
+    }
+
+    @Throws(QblStorageException::class)
+    override fun download(name: String, offset: Long, length: Long): StorageDownload {
+        val file = root.resolve(name)
+        try {
+            val input = FileInputStream(file)
+            try {
+                input.channel.position(offset)
+            } catch (e: IOException) {
+                input.close()
+                throw e
+            }
+            val size = Math.max(0L, Math.min(length, file.length() - offset))
+            return StorageDownload(BoundedInputStream(input, size), null, size, input)
+        } catch (e: IOException) {
+            throw QblStorageNotFound(e)
+        }
+    }
+
     @Throws(IOException::class)
     private fun getMHash(file: File): String {
         FileInputStream(file).use { data -> return String(DigestUtils.md5(data)) }
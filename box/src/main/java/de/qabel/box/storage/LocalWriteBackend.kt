@@ -8,6 +8,7 @@ import java.io.File
 import java.io.FileOutputStream
 import java.io.IOException
 import java.io.InputStream
+import java.io.OutputStream
 import java.util.*
 
 class LocalWriteBackend(private val root: File) : StorageWriteBackend {
@@ -32,7 +33,20 @@ class LocalWriteBackend(private val root: File) : StorageWriteBackend {
     }
 
     @Throws(QblStorageException::class, ModifiedException::class)
-    override fun upload(name: String, content: InputStream, eTag: String?): StorageWriteBackend.UploadResult {
+    override fun upload(name: String, content: InputStream, eTag: String?): StorageWriteBackend.UploadResult =
+        write(name, eTag) { IOUtils.copy(content, it) }
+
+    @Throws(QblStorageException::class, ModifiedException::class)
+    override fun uploadStreaming(name: String, length: Long, eTag: String?,
+                                 writer: (OutputStream) -> Unit): StorageWriteBackend.UploadResult =
+        write(name, eTag) {
+            writer(it)
+            if (it.channel.position() != length) {
+                throw IOException("Wrote ${it.channel.position()} bytes instead of the announced $length")
+            }
+        }
+
+    private fun write(name: String, eTag: String?, writer: (FileOutputStream) -> Unit): StorageWriteBackend.UploadResult {
         val file = root.resolve(name)
         logger.trace("Uploading file path " + file)
         try {
@@ -41,13 +55,12 @@ class LocalWriteBackend(private val root: File) : StorageWriteBackend {
             }
             root.resolve("blocks").mkdirs()
             FileOutputStream(file).use { output ->
-                output.write(IOUtils.toByteArray(content))
-                return StorageWriteBackend.UploadResult(Date(), hasher.getHash(file))
+                writer(output)
             }
+            return StorageWriteBackend.UploadResult(Date(), hasher.getHash(file))
         } catch (e: IOException) {
             throw QblStorageException(e.message, e)
         }
-
     }
 
     companion object {
@@ -0,0 +1,170 @@
+package de.qabel.box.storage
+
+import de.qabel.box.storage.exceptions.QblStorageException
+import de.qabel.core.logging.QabelLog
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.*
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Downloads a file in parts of [partSize] bytes over up to [parallelism] connections into a preallocated temp file.
+ * A part that fails or receives no data for [stallTimeout] milliseconds is retried from its last received byte,
+ * up to [maxAttempts] times.
+ */
+class RangedBlockDownloader @JvmOverloads constructor(
+    private val readBackend: RangedStorageReadBackend,
+    private val tempDir: File,
+    val partSize: Long = DEFAULT_PART_SIZE,
+    val parallelism: Int = DEFAULT_PARALLELISM,
+    val stallTimeout: Long = DEFAULT_STALL_TIMEOUT,
+    val maxAttempts: Int = DEFAULT_MAX_ATTEMPTS
+) : QabelLog {
+
+    init {
+        if (partSize <= 0 || parallelism <= 0 || maxAttempts <= 0) {
+            throw IllegalArgumentException("invalid download settings: $partSize bytes, $parallelism, $maxAttempts")
+        }
+    }
+
+    /**
+     * Downloads the file into a temp file, which has to be deleted by the caller
+     */
+    @Throws(QblStorageException::class)
+    fun download(name: String, listener: ProgressListener?): File {
+        val size = readBackend.getSize(name)
+        val target = File.createTempFile("download", "ranged", tempDir)
+        listener?.setSize(size)
+        try {
+            RandomAccessFile(target, "rw").use { output ->
+                output.setLength(size)
+                val progress = AtomicLong()
+                val parts = LinkedList<Part>()
+                var offset = 0L
+                while (offset < size) {
+                    parts.add(Part(name, offset, Math.min(partSize, size - offset), output.channel, progress, listener))
+                    offset += partSize
+                }
+                run(parts)
+            }
+            return target
+        } catch (e: Exception) {
+            target.delete()
+            when (e) {
+                is QblStorageException -> throw e
+                else -> throw QblStorageException(e)
+            }
+        }
+    }
+
+    private fun run(pending: LinkedList<Part>) {
+        val completion = ExecutorCompletionService<Part>(executor)
+        val running = HashMap<Future<Part>, Part>()
+        try {
+            while (pending.isNotEmpty() || running.isNotEmpty()) {
+                while (running.size < parallelism && pending.isNotEmpty()) {
+                    val part = pending.removeFirst()
+                    part.lastProgress = System.currentTimeMillis()
+                    running.put(completion.submit(part), part)
+                }
+                val done = completion.poll(Math.min(stallTimeout, POLL_INTERVAL), TimeUnit.MILLISECONDS)
+                if (done == null) {
+                    val now = System.currentTimeMillis()
+                    running.values.filter { now - it.lastProgress > stallTimeout }.forEach {
+                        warn("download of $it stalled")
+                        it.abort()
+                    }
+                    continue
+                }
+                val part = running.remove(done)!!
+                try {
+                    done.get()
+                } catch (e: ExecutionException) {
+                    if (++part.attempts >= maxAttempts) {
+                        val cause = e.cause
+                        when (cause) {
+                            is QblStorageException -> throw cause
+                            is Exception -> throw QblStorageException(cause.message, cause)
+                            else -> throw QblStorageException(e)
+                        }
+                    }
+                    info("retrying download of $part: " + e.cause?.message)
+                    pending.add(part)
+                }
+            }
+        } finally {
+            for ((future, part) in running) {
+                part.abort()
+                future.cancel(true)
+            }
+        }
+    }
+
+    private inner class Part(
+        val name: String,
+        val offset: Long,
+        val length: Long,
+        val channel: FileChannel,
+        val progress: AtomicLong,
+        val listener: ProgressListener?
+    ) : Callable<Part> {
+        @Volatile var lastProgress = 0L
+        @Volatile private var download: StorageDownload? = null
+        var received = 0L
+        var attempts = 0
+
+        override fun call(): Part {
+            readBackend.download(name, offset + received, length - received).use {
+                download = it
+                val input = it.inputStream
+                val buffer = ByteArray(BUFFER_SIZE)
+                while (received < length) {
+                    val read = input.read(buffer, 0, Math.min(buffer.size.toLong(), length - received).toInt())
+                    if (read < 0) {
+                        throw IOException("download of $this ended after $received bytes")
+                    }
+                    val bytes = ByteBuffer.wrap(buffer, 0, read)
+                    var position = offset + received
+                    while (bytes.hasRemaining()) {
+                        position += channel.write(bytes, position)
+                    }
+                    received += read
+                    lastProgress = System.currentTimeMillis()
+                    listener?.setProgress(progress.addAndGet(read.toLong()))
+                }
+            }
+            download = null
+            return this
+        }
+
+        /**
+         * Closes the connection of a running download, which fails the download
+         */
+        fun abort() {
+            try {
+                download?.close()
+            } catch (e: IOException) {
+                debug("failed to abort download of $this: " + e.message)
+            }
+        }
+
+        override fun toString() = "$name [$offset, ${offset + length})"
+    }
+
+    companion object {
+        const val DEFAULT_PART_SIZE = 8L * 1024 * 1024
+        const val DEFAULT_PARALLELISM = 4
+        const val DEFAULT_STALL_TIMEOUT = 30000L
+        const val DEFAULT_MAX_ATTEMPTS = 3
+        private const val POLL_INTERVAL = 1000L
+        private const val BUFFER_SIZE = 64 * 1024
+
+        private val executor = Executors.newCachedThreadPool { runnable ->
+            Thread(runnable, "box-ranged-download").apply { isDaemon = true }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package de.qabel.box.storage;
+
+import de.qabel.box.storage.exceptions.QblStorageException;
+
+/**
+ * Read backend that can download parts of a file, so large files can be downloaded over multiple connections
+ */
+public interface RangedStorageReadBackend extends StorageReadBackend {
+
+    /**
+     * Size of a file on the storage in bytes
+     */
+    long getSize(String name) throws QblStorageException;
+
+    /**
+     * Download length bytes of a file on the storage, starting at offset
+     */
+    StorageDownload download(String name, long offset, long length) throws QblStorageException;
+}
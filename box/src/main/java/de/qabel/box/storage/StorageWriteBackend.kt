@@ -1,7 +1,12 @@
 package de.qabel.box.storage
 
 import de.qabel.box.storage.exceptions.QblStorageException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
 import java.io.InputStream
+import java.io.OutputStream
 import java.util.*
 
 interface StorageWriteBackend {
@@ -18,6 +23,30 @@ interface StorageWriteBackend {
     @Throws(QblStorageException::class, ModifiedException::class)
     fun upload(name: String, content: InputStream, eTag: String?): UploadResult
 
+    /**
+     * Upload a file whose content is written by the writer while it is uploaded.
+     * The writer has to write exactly length bytes, otherwise the upload fails.
+     * Throws ModifiedException if the eTag is given and does not match the existing one.
+     *
+     * By default the content is written to a temp file first and uploaded with [upload].
+     */
+    @Throws(QblStorageException::class, ModifiedException::class)
+    fun uploadStreaming(name: String, length: Long, eTag: String?, writer: (OutputStream) -> Unit): UploadResult {
+        var buffer: File? = null
+        try {
+            buffer = File.createTempFile("upload", "up")
+            FileOutputStream(buffer).use { writer(it) }
+            if (buffer.length() != length) {
+                throw IOException("Wrote ${buffer.length()} bytes instead of the announced $length")
+            }
+            return FileInputStream(buffer).use { upload(name, it, eTag) }
+        } catch (e: IOException) {
+            throw QblStorageException(e.message, e)
+        } finally {
+            buffer?.delete()
+        }
+    }
+
     /**
      * Delete a file on the storage. Will not fail if the file was not found
      */
@@ -8,9 +8,10 @@ class CreateFolderChange(
     val parentNav: BoxNavigation,
     val name: String,
     val navigationFactory: FolderNavigationFactory,
-    val directoryFactory: DirectoryMetadataFactory
+    val directoryFactory: DirectoryMetadataFactory,
+    private val cryptoUtils: CryptoUtils = CryptoUtils.getInstance()
 ) : DMChange<ChangeResult<BoxFolder>> {
-    private val secretKey: KeyParameter by lazy { CryptoUtils().generateSymmetricKey() }
+    private val secretKey: KeyParameter by lazy { cryptoUtils.generateSymmetricKey() }
     private val result : ChangeResult<BoxFolder> by lazy { createAndUploadDM() }
     val folder: BoxFolder
         get() = result.boxObject
@@ -1,5 +1,6 @@
 package de.qabel.box.storage.command
 
+import de.qabel.box.storage.BoxFile
 import de.qabel.box.storage.DirectoryMetadata
 import de.qabel.box.storage.ShareHolder
 import de.qabel.box.storage.StorageWriteBackend
@@ -11,3 +12,23 @@ fun List<DMChange<*>>.postprocess(
 ) = filterIsInstance<Postprocessable>().forEach { it.postprocess(dm, writeBackend, indexNavigation) }
 
 fun StorageWriteBackend.deleteBlock(blockReference: String) = delete("blocks/" + blockReference)
+
+/**
+ * Deletes the block of the file and the blocks of its chunks that no other file in the directory references.
+ * A chunked file only has a block of its own while it is shared.
+ */
+fun StorageWriteBackend.deleteFileBlocks(file: BoxFile, dm: DirectoryMetadata) {
+    if (!file.isChunked() || file.isShared()) {
+        deleteBlock(file.block)
+    }
+    deleteChunkBlocks(file, dm)
+}
+
+/**
+ * Deletes the blocks of the chunks of the file that no other file in the directory references.
+ * Chunks are only reused within a directory, so the directory metadata knows all references.
+ */
+fun StorageWriteBackend.deleteChunkBlocks(file: BoxFile, dm: DirectoryMetadata) =
+    file.chunks.map { it.block }.distinct()
+        .filter { !dm.isChunkReferenced(it) }
+        .forEach { deleteBlock(it) }
@@ -27,5 +27,9 @@ class UnshareChange(val file: BoxFile) : DMChange<Unit>, Postprocessable, QabelL
         }
 
         writeBackend.delete(oldMeta)
+        if (file.isChunked()) {
+            // the chunks were only uploaded as a single block for the share receivers
+            writeBackend.deleteBlock(file.block)
+        }
     }
 }
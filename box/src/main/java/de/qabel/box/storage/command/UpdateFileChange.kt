@@ -12,21 +12,25 @@ open class UpdateFileChange(
     private val logger by lazy { LoggerFactory.getLogger(UpdateFileChange::class.java) }
 
     private var sameFileByHash = false
+    private var replacedFile: BoxFile? = null
 
     private fun hasSameHash(obj: BoxObject) = obj is BoxFile && obj.isHashed() && obj.hashed == newFile.hashed
 
     override fun postprocess(dm: DirectoryMetadata, writeBackend: StorageWriteBackend, shares: ShareHolder) {
         if (sameFileByHash) {
-            writeBackend.deleteBlock(newFile.block)
+            writeBackend.deleteFileBlocks(newFile, dm)
         }
+        replacedFile?.let { writeBackend.deleteChunkBlocks(it, dm) }
     }
 
     override fun execute(dm: DirectoryMetadata) {
         var filename = newFile.name
+        replacedFile = null
         try {
             dm.getFile(newFile.name)?.apply {
                 if (isSame(expectedFile)) {
                     dm.deleteFile(this)
+                    replacedFile = this
                 }
             }
             dm.insertFile(newFile)
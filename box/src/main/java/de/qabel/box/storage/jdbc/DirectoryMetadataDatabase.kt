@@ -8,14 +8,16 @@ import de.qabel.core.repository.sqlite.AbstractClientDatabase
 import de.qabel.core.repository.sqlite.PragmaVersionAdapter
 import de.qabel.core.repository.sqlite.VersionAdapter
 import de.qabel.core.repository.sqlite.migration.AbstractMigration
+import java.io.Closeable
 import java.sql.Connection
 
 class DirectoryMetadataDatabase(
     connection: Connection,
     versionAdapter: VersionAdapter = PragmaVersionAdapter(connection)
 ): AbstractClientDatabase(connection),
-    DatabaseMigrationProvider by DirectoryMetadataMigrations() {
+    DatabaseMigrationProvider by DirectoryMetadataMigrations(), Closeable {
 
     override var version by versionAdapter
 
+    override fun close() = connection.close()
 }
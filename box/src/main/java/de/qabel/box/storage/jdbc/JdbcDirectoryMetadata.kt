@@ -6,7 +6,9 @@ import de.qabel.core.repository.sqlite.ClientDatabase
 import de.qabel.core.repository.sqlite.tryWith
 import org.apache.commons.codec.DecoderException
 import org.apache.commons.codec.binary.Hex
+import java.io.Closeable
 import java.io.File
+import java.io.IOException
 import java.security.MessageDigest
 import java.security.NoSuchAlgorithmException
 import java.sql.SQLException
@@ -145,6 +147,34 @@ class JdbcDirectoryMetadata(
     }
 
 
+    @Throws(QblStorageException::class)
+    override fun commitVersion(version: ByteArray) = executeStatement {
+        connection.prepare("INSERT INTO version (version, time) VALUES (?, ?)").apply {
+            setBytes(1, version)
+            setLong(2, System.currentTimeMillis())
+        }
+    }
+
+    @Throws(QblStorageException::class)
+    override fun findJournalSequence(): Long {
+        try {
+            tryWith(connection.prepare("SELECT value FROM meta WHERE name='journal_sequence'")) {
+                tryWith(executeQuery()) {
+                    return if (next()) getString(1).toLong() else 0L
+                }
+            }
+        } catch (e: SQLException) {
+            throw QblStorageException(e)
+        }
+    }
+
+    @Throws(QblStorageException::class)
+    override fun replaceJournalSequence(sequence: Long) = executeStatement {
+        connection.prepare("INSERT OR REPLACE INTO meta (name, value) VALUES ('journal_sequence', ?)").apply {
+            setString(1, sequence.toString())
+        }
+    }
+
     @Throws(QblStorageException::class)
     override fun listFiles(): List<BoxFile> {
         try {
@@ -176,6 +206,8 @@ class JdbcDirectoryMetadata(
                             Share.create(getString(++i), getBytes(++i))
                         ))
                     }
+                    val chunks = listChunks()
+                    files.forEach { file -> chunks[file.name]?.let { file.chunks = it } }
                     return files
                 }
             }
@@ -184,6 +216,91 @@ class JdbcDirectoryMetadata(
         }
     }
 
+    @Throws(SQLException::class)
+    private fun listChunks(): Map<String, List<BoxFileChunk>> {
+        tryWith(connection.prepare(
+            "SELECT file_name, file_offset, size, hash, block, key FROM file_chunks ORDER BY file_name, idx")) {
+            tryWith(executeQuery()) {
+                val chunks = HashMap<String, MutableList<BoxFileChunk>>()
+                while (next()) {
+                    chunks.getOrPut(getString(1)) { ArrayList() }.add(
+                        BoxFileChunk(getLong(2), getLong(3), getBytes(4), getString(5), getBytes(6)))
+                }
+                return chunks
+            }
+        }
+    }
+
+    @Throws(SQLException::class)
+    private fun findChunks(fileName: String): List<BoxFileChunk> {
+        tryWith(connection.prepare(
+            "SELECT file_offset, size, hash, block, key FROM file_chunks WHERE file_name = ? ORDER BY idx")) {
+            setString(1, fileName)
+            tryWith(executeQuery()) {
+                val chunks = ArrayList<BoxFileChunk>()
+                while (next()) {
+                    chunks.add(BoxFileChunk(getLong(1), getLong(2), getBytes(3), getString(4), getBytes(5)))
+                }
+                return chunks
+            }
+        }
+    }
+
+    @Throws(SQLException::class)
+    private fun insertChunks(file: BoxFile) {
+        if (!file.isChunked()) {
+            return
+        }
+        tryWith(connection.prepare(
+            "INSERT INTO file_chunks (file_name, idx, file_offset, size, hash, block, key) VALUES (?, ?, ?, ?, ?, ?, ?)"
+        )) {
+            file.chunks.forEachIndexed { index, chunk ->
+                var i = 0
+                setString(++i, file.name)
+                setInt(++i, index)
+                setLong(++i, chunk.offset)
+                setLong(++i, chunk.size)
+                setBytes(++i, chunk.hash)
+                setString(++i, chunk.block)
+                setBytes(++i, chunk.key)
+                addBatch()
+            }
+            executeBatch()
+        }
+    }
+
+    @Throws(QblStorageException::class)
+    override fun findChunk(hash: ByteArray): BoxFileChunk? {
+        try {
+            tryWith(connection.prepare(
+                "SELECT file_offset, size, hash, block, key FROM file_chunks WHERE hash = ? LIMIT 1")) {
+                setBytes(1, hash)
+                tryWith(executeQuery()) {
+                    if (next()) {
+                        return BoxFileChunk(getLong(1), getLong(2), getBytes(3), getString(4), getBytes(5))
+                    }
+                    return null
+                }
+            }
+        } catch (e: SQLException) {
+            throw QblStorageException(e)
+        }
+    }
+
+    @Throws(QblStorageException::class)
+    override fun isChunkReferenced(block: String): Boolean {
+        try {
+            tryWith(connection.prepare("SELECT 1 FROM file_chunks WHERE block = ? LIMIT 1")) {
+                setString(1, block)
+                tryWith(executeQuery()) {
+                    return next()
+                }
+            }
+        } catch (e: SQLException) {
+            throw QblStorageException(e)
+        }
+    }
+
     @Throws(QblStorageException::class)
     override fun insertFile(file: BoxFile) {
         val type = isA(file.getName())
@@ -210,6 +327,7 @@ class JdbcDirectoryMetadata(
                     setBytes(++i, file.shared?.metaKey)
                 }
             }
+            insertChunks(file)
         } catch (e: SQLException) {
             throw QblStorageException(e)
         }
@@ -224,6 +342,10 @@ class JdbcDirectoryMetadata(
                     throw QblStorageException("Failed to delete file: Not found")
                 }
             }
+            tryWith(connection.prepare("DELETE FROM file_chunks WHERE file_name=?")) {
+                setString(1, file.getName())
+                executeUpdate()
+            }
         } catch (e: SQLException) {
             throw QblStorageException(e)
         }
@@ -307,6 +429,17 @@ class JdbcDirectoryMetadata(
 
     }
 
+    /**
+     * Closes the database connection, the metadata cannot be used afterwards
+     */
+    fun close() {
+        try {
+            (connection as? Closeable)?.close()
+        } catch (e: IOException) {
+            throw QblStorageException(e)
+        }
+    }
+
     @JvmName("insertExternal")
     @Throws(QblStorageException::class)
     internal fun insertExternal(external: BoxExternalReference) {
@@ -371,7 +504,7 @@ class JdbcDirectoryMetadata(
                             key = getBytes(++i),
                             hashed = Hash.create(getBytes(++i), getString(++i)),
                             shared = Share.create(getString(++i), getBytes(++i))
-                        )
+                        ).apply { chunks = findChunks(name) }
                     }
                     return null
                 }
@@ -0,0 +1,26 @@
+package de.qabel.box.storage.jdbc.migration
+
+import de.qabel.core.repository.sqlite.migration.AbstractMigration
+import java.sql.Connection
+
+class DMMigration1487002000Chunks(connection: Connection) : AbstractMigration(connection) {
+    override fun getVersion() = 1487002000L
+
+    override fun up() {
+        execute("""CREATE TABLE IF NOT EXISTS file_chunks (
+                file_name VARCHAR(255)NOT NULL,
+                idx INTEGER NOT NULL,
+                file_offset LONG NOT NULL,
+                size LONG NOT NULL,
+                hash BLOB NOT NULL,
+                block VARCHAR(255)NOT NULL,
+                key BLOB NOT NULL,
+                PRIMARY KEY (file_name, idx) )""")
+        execute("CREATE INDEX IF NOT EXISTS idx_file_chunks_hash ON file_chunks(hash)")
+        execute("CREATE INDEX IF NOT EXISTS idx_file_chunks_block ON file_chunks(block)")
+    }
+
+    override fun down() {
+        execute("DROP TABLE file_chunks")
+    }
+}
@@ -7,6 +7,7 @@ import java.sql.Connection
 class DirectoryMetadataMigrations : DatabaseMigrationProvider {
     override fun getMigrations(connection: Connection): Array<out AbstractMigration> = arrayOf(
         DMMigration1467796453Init(connection),
-        DMMigration1468245565Hash(connection)
+        DMMigration1468245565Hash(connection),
+        DMMigration1487002000Chunks(connection)
         )
 }
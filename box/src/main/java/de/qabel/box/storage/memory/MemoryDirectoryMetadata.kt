@@ -0,0 +1,231 @@
+package de.qabel.box.storage.memory
+
+import de.qabel.box.storage.*
+import de.qabel.box.storage.exceptions.QblStorageException
+import de.qabel.box.storage.exceptions.QblStorageNameConflict
+import java.io.File
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.util.*
+
+/**
+ * Directory metadata that is held in persistent maps. Every change replaces the immutable [State],
+ * so a [snapshot] shares all entries with the original and comparing a snapshot with its original only
+ * visits the changed entries. The metadata is only written to an SQLite file when its [path] is requested.
+ *
+ * Entries are copied on the way in and out, the stored objects are never modified.
+ */
+class MemoryDirectoryMetadata internal constructor(
+    private val factory: MemoryDirectoryMetadataFactory,
+    override val fileName: String,
+    @Volatile private var state: State
+) : DirectoryMetadata {
+
+    internal class State(
+        val files: PersistentHashMap<String, BoxFile>,
+        val folders: PersistentHashMap<String, BoxFolder>,
+        val shares: PersistentHashMap<List<String>, BoxShare>,
+        val version: ByteArray,
+        val journalSequence: Long,
+        val root: String?,
+        /**
+         * Chunks of all files by their hash, so [findChunk] does not visit every file
+         */
+        val chunks: PersistentHashMap<ByteBuffer, List<IndexedChunk>> =
+            indexChunks(PersistentHashMap.empty(), files.values, 1)
+    ) {
+        fun copy(
+            files: PersistentHashMap<String, BoxFile> = this.files,
+            folders: PersistentHashMap<String, BoxFolder> = this.folders,
+            shares: PersistentHashMap<List<String>, BoxShare> = this.shares,
+            version: ByteArray = this.version,
+            journalSequence: Long = this.journalSequence,
+            chunks: PersistentHashMap<ByteBuffer, List<IndexedChunk>> = this.chunks
+        ) = State(files, folders, shares, version, journalSequence, root, chunks)
+
+        fun plusFile(file: BoxFile) =
+            copy(files = files.plus(file.name, file), chunks = indexChunks(chunks, listOf(file), 1))
+
+        fun minusFile(file: BoxFile) =
+            copy(files = files.minus(file.name), chunks = indexChunks(chunks, listOf(file), -1))
+    }
+
+    /**
+     * Chunk in the index with the number of references to its block
+     */
+    internal class IndexedChunk(val chunk: BoxFileChunk, val references: Int)
+
+    private class Serialized(val state: State, val path: File)
+
+    private var serialized: Serialized? = null
+
+    /**
+     * SQLite file with the current state, written again after every change
+     */
+    override val path: File
+        @Synchronized @Throws(QblStorageException::class)
+        get() {
+            val current = state
+            serialized?.let {
+                if (it.state === current) {
+                    return it.path
+                }
+                it.path.delete()
+            }
+            return factory.serialize(current).apply { serialized = Serialized(current, this) }
+        }
+
+    override val version: ByteArray
+        get() = state.version.clone()
+
+    /**
+     * Independent copy of the metadata that shares the current state
+     */
+    fun snapshot() = MemoryDirectoryMetadata(factory, fileName, state)
+
+    @Synchronized @Throws(QblStorageException::class)
+    override fun insertFile(file: BoxFile) {
+        checkNameIsFree(file.name)
+        state = state.plusFile(copyOf(file))
+    }
+
+    @Synchronized @Throws(QblStorageException::class)
+    override fun insertFolder(folder: BoxFolder) {
+        checkNameIsFree(folder.name)
+        state = state.copy(folders = state.folders.plus(folder.name, copyOf(folder)))
+    }
+
+    private fun checkNameIsFree(name: String) {
+        if (state.files.containsKey(name) || state.folders.containsKey(name)) {
+            throw QblStorageNameConflict(name)
+        }
+    }
+
+    @Synchronized @Throws(QblStorageException::class)
+    override fun deleteFile(file: BoxFile) {
+        val stored = state.files[file.name] ?: throw QblStorageException("Failed to delete file: Not found")
+        state = state.minusFile(stored)
+    }
+
+    @Synchronized @Throws(QblStorageException::class)
+    override fun deleteFolder(folder: BoxFolder) {
+        if (!state.folders.containsKey(folder.name)) {
+            throw QblStorageException("failed to delete folder " + folder.name)
+        }
+        state = state.copy(folders = state.folders.minus(folder.name))
+    }
+
+    override fun getFile(name: String) = state.files[name]?.let { copyOf(it) }
+
+    override fun hasFile(name: String) = state.files.containsKey(name)
+
+    override fun getFolder(name: String) = state.folders[name]?.let { copyOf(it) }
+
+    override fun hasFolder(name: String) = state.folders.containsKey(name)
+
+    override fun listFolders() = state.folders.values.map { copyOf(it) }
+
+    override fun listFiles() = state.files.values.map { copyOf(it) }
+
+    override fun findChunk(hash: ByteArray) = state.chunks[ByteBuffer.wrap(hash)]?.first()?.chunk
+
+    override fun isChunkReferenced(block: String) = state.files.values.any { it.chunks.any { it.block == block } }
+
+    override fun fileChanges(other: DirectoryMetadata): List<Pair<BoxFile?, BoxFile?>> {
+        if (other !is MemoryDirectoryMetadata) {
+            return super.fileChanges(other)
+        }
+        val changes = ArrayList<Pair<BoxFile?, BoxFile?>>()
+        state.files.diff(other.state.files) { old, new ->
+            changes.add(Pair(old?.let { copyOf(it) }, new?.let { copyOf(it) }))
+        }
+        return changes
+    }
+
+    override fun folderChanges(other: DirectoryMetadata): List<Pair<BoxFolder?, BoxFolder?>> {
+        if (other !is MemoryDirectoryMetadata) {
+            return super.folderChanges(other)
+        }
+        val changes = ArrayList<Pair<BoxFolder?, BoxFolder?>>()
+        state.folders.diff(other.state.folders) { old, new ->
+            changes.add(Pair(old?.let { copyOf(it) }, new?.let { copyOf(it) }))
+        }
+        return changes
+    }
+
+    @Synchronized @Throws(QblStorageException::class)
+    override fun insertShare(share: BoxShare) {
+        state = state.copy(shares = state.shares.plus(shareKey(share), share))
+    }
+
+    @Synchronized @Throws(QblStorageException::class)
+    override fun deleteShare(share: BoxShare) {
+        if (!state.shares.containsKey(shareKey(share))) {
+            throw QblStorageException("Failed to delete share: Not found")
+        }
+        state = state.copy(shares = state.shares.minus(shareKey(share)))
+    }
+
+    override fun listShares() = state.shares.values
+
+    @Synchronized @Throws(QblStorageException::class)
+    override fun commit() {
+        val md = MessageDigest.getInstance("SHA-256")
+        md.update(byteArrayOf(0, 1))
+        md.update(state.version)
+        md.update(UUID.randomUUID().toString().toByteArray())
+        state = state.copy(version = md.digest())
+    }
+
+    @Synchronized @Throws(QblStorageException::class)
+    override fun commitVersion(version: ByteArray) {
+        state = state.copy(version = version.clone())
+    }
+
+    override fun findJournalSequence() = state.journalSequence
+
+    @Synchronized @Throws(QblStorageException::class)
+    override fun replaceJournalSequence(sequence: Long) {
+        state = state.copy(journalSequence = sequence)
+    }
+
+    companion object {
+        private fun shareKey(share: BoxShare) = listOf(share.ref, share.recipient, share.type)
+
+        /**
+         * Copies the file with the mtime precision of the SQLite metadata
+         */
+        internal fun copyOf(file: BoxFile) =
+            BoxFile(file.prefix, file.block, file.name, file.size, file.mtime / 1000 * 1000, file.key,
+                file.hashed, file.shared).apply { chunks = file.chunks }
+
+        internal fun copyOf(folder: BoxFolder) = BoxFolder(folder.ref, folder.name, folder.key)
+    }
+}
+
+/**
+ * Adds delta to the references of every chunk of the files, chunks without references are removed
+ */
+private fun indexChunks(
+    index: PersistentHashMap<ByteBuffer, List<MemoryDirectoryMetadata.IndexedChunk>>,
+    files: Collection<BoxFile>,
+    delta: Int
+): PersistentHashMap<ByteBuffer, List<MemoryDirectoryMetadata.IndexedChunk>> {
+    var chunks = index
+    for (file in files) {
+        for (chunk in file.chunks) {
+            val hash = ByteBuffer.wrap(chunk.hash)
+            val indexed = chunks[hash] ?: emptyList()
+            val existing = indexed.firstOrNull { it.chunk.block == chunk.block }
+            val references = (existing?.references ?: 0) + delta
+            val others = indexed.filter { it !== existing }
+            val updated = if (references > 0) {
+                others + MemoryDirectoryMetadata.IndexedChunk(existing?.chunk ?: chunk, references)
+            } else {
+                others
+            }
+            chunks = if (updated.isEmpty()) chunks.minus(hash) else chunks.plus(hash, updated)
+        }
+    }
+    return chunks
+}
@@ -0,0 +1,88 @@
+package de.qabel.box.storage.memory
+
+import de.qabel.box.storage.BoxFile
+import de.qabel.box.storage.BoxFolder
+import de.qabel.box.storage.BoxShare
+import de.qabel.box.storage.DirectoryMetadataFactory
+import de.qabel.box.storage.exceptions.QblStorageException
+import de.qabel.box.storage.exceptions.QblStorageNotFound
+import de.qabel.box.storage.jdbc.JdbcDirectoryMetadataFactory
+import de.qabel.core.repository.RunnableTransaction
+import de.qabel.core.repository.exception.PersistenceException
+import java.io.File
+import java.security.MessageDigest
+import java.util.*
+
+/**
+ * Creates [MemoryDirectoryMetadata] and converts it from and to the SQLite files of the [JdbcDirectoryMetadataFactory]
+ */
+class MemoryDirectoryMetadataFactory @JvmOverloads constructor(
+    val tempDir: File,
+    val deviceId: ByteArray,
+    private val jdbcFactory: JdbcDirectoryMetadataFactory = JdbcDirectoryMetadataFactory(tempDir, deviceId)
+) : DirectoryMetadataFactory {
+
+    override fun create(root: String) = newMetadata(root)
+
+    override fun create() = newMetadata(null)
+
+    private fun newMetadata(root: String?): MemoryDirectoryMetadata {
+        val md = MessageDigest.getInstance("SHA-256")
+        md.update(byteArrayOf(0, 0))
+        md.update(deviceId)
+        md.update(UUID.randomUUID().toString().toByteArray())
+        return MemoryDirectoryMetadata(this, UUID.randomUUID().toString(), MemoryDirectoryMetadata.State(
+            PersistentHashMap.empty(), PersistentHashMap.empty(), PersistentHashMap.empty(), md.digest(), 0L, root))
+    }
+
+    /**
+     * Reads an existing DM from a decrypted database file, the file is not used afterwards
+     */
+    @Throws(QblStorageException::class)
+    override fun open(path: File, fileName: String): MemoryDirectoryMetadata {
+        val jdbc = jdbcFactory.open(path, fileName)
+        try {
+            var files = PersistentHashMap.empty<String, BoxFile>()
+            jdbc.listFiles().forEach { files = files.plus(it.name, it) }
+            var folders = PersistentHashMap.empty<String, BoxFolder>()
+            jdbc.listFolders().forEach { folders = folders.plus(it.name, it) }
+            var shares = PersistentHashMap.empty<List<String>, BoxShare>()
+            jdbc.listShares().forEach { shares = shares.plus(listOf(it.ref, it.recipient, it.type), it) }
+            val root = try {
+                jdbc.root
+            } catch (e: QblStorageNotFound) {
+                null
+            }
+            return MemoryDirectoryMetadata(this, fileName, MemoryDirectoryMetadata.State(
+                files, folders, shares, jdbc.version, jdbc.findJournalSequence(), root))
+        } finally {
+            jdbc.close()
+        }
+    }
+
+    /**
+     * Writes the state into a new database file
+     */
+    @Throws(QblStorageException::class)
+    internal fun serialize(state: MemoryDirectoryMetadata.State): File {
+        val jdbc = if (state.root != null) jdbcFactory.create(state.root) else jdbcFactory.create()
+        try {
+            jdbc.connection.transactionManager.transactional(RunnableTransaction {
+                state.files.values.forEach { jdbc.insertFile(it) }
+                state.folders.values.forEach { jdbc.insertFolder(it) }
+                state.shares.values.forEach { jdbc.insertShare(it) }
+                jdbc.commitVersion(state.version)
+                if (state.journalSequence > 0) {
+                    jdbc.replaceJournalSequence(state.journalSequence)
+                }
+            })
+        } catch (e: PersistenceException) {
+            jdbc.path.delete()
+            val cause = e.cause
+            throw if (cause is QblStorageException) cause else QblStorageException(e)
+        } finally {
+            jdbc.close()
+        }
+        return jdbc.path
+    }
+}
@@ -0,0 +1,187 @@
+package de.qabel.box.storage.memory
+
+import java.util.*
+
+/**
+ * Immutable hash array mapped trie. An update copies only the nodes on the path to the changed entry and shares
+ * all other nodes with the previous map, so keeping previous versions is free.
+ * [diff] skips the nodes that two versions share and only visits the replaced entries.
+ */
+class PersistentHashMap<K, V : Any> private constructor(private val root: Node<K, V>?, val size: Int) {
+
+    private abstract class Node<K, V>
+
+    private class Entry<K, V>(val key: K, val value: V)
+
+    /**
+     * Entries of the same hash, usually exactly one
+     */
+    private class Leaf<K, V>(val hash: Int, val entries: List<Entry<K, V>>) : Node<K, V>()
+
+    /**
+     * Children for the hash slots that are set in the bitmap, ordered by slot
+     */
+    private class Branch<K, V>(val bitmap: Int, val children: List<Node<K, V>>) : Node<K, V>()
+
+    operator fun get(key: K): V? {
+        val hash = hash(key)
+        var node = root
+        var shift = 0
+        while (node is Branch) {
+            val bit = bit(hash, shift)
+            if (node.bitmap and bit == 0) {
+                return null
+            }
+            node = node.children[index(node.bitmap, bit)]
+            shift += BITS
+        }
+        if (node is Leaf && node.hash == hash) {
+            return node.entries.firstOrNull { it.key == key }?.value
+        }
+        return null
+    }
+
+    fun containsKey(key: K) = get(key) != null
+
+    fun isEmpty() = size == 0
+
+    fun plus(key: K, value: V): PersistentHashMap<K, V> =
+        PersistentHashMap(put(root, 0, hash(key), key, value), if (containsKey(key)) size else size + 1)
+
+    fun minus(key: K): PersistentHashMap<K, V> {
+        val newRoot = remove(root, 0, hash(key), key)
+        return if (newRoot === root) this else PersistentHashMap(newRoot, size - 1)
+    }
+
+    val values: List<V>
+        get() {
+            val values = ArrayList<V>(size)
+            collect(root) { values.add(it.value) }
+            return values
+        }
+
+    /**
+     * Calls the consumer with the old and new value of every key whose value has been replaced in [other].
+     * A value is null if its key is missing in that map.
+     * Values are compared by identity, a value that has been removed and inserted again is reported as well.
+     */
+    fun diff(other: PersistentHashMap<K, V>, consumer: (V?, V?) -> Unit) {
+        diff(root, other.root, consumer)
+    }
+
+    private fun diff(old: Node<K, V>?, new: Node<K, V>?, consumer: (V?, V?) -> Unit) {
+        if (old === new) {
+            return
+        }
+        if (old is Branch && new is Branch) {
+            var slots = old.bitmap or new.bitmap
+            while (slots != 0) {
+                val bit = Integer.lowestOneBit(slots)
+                slots = slots xor bit
+                diff(child(old, bit), child(new, bit), consumer)
+            }
+            return
+        }
+        val oldEntries = HashMap<K, V>()
+        collect(old) { oldEntries.put(it.key, it.value) }
+        collect(new) {
+            val oldValue = oldEntries.remove(it.key)
+            if (oldValue !== it.value) {
+                consumer(oldValue, it.value)
+            }
+        }
+        for (value in oldEntries.values) {
+            consumer(value, null)
+        }
+    }
+
+    private fun child(branch: Branch<K, V>, bit: Int) =
+        if (branch.bitmap and bit == 0) null else branch.children[index(branch.bitmap, bit)]
+
+    private fun collect(node: Node<K, V>?, consumer: (Entry<K, V>) -> Unit) {
+        when (node) {
+            is Leaf -> node.entries.forEach(consumer)
+            is Branch -> node.children.forEach { collect(it, consumer) }
+        }
+    }
+
+    private fun put(node: Node<K, V>?, shift: Int, hash: Int, key: K, value: V): Node<K, V> = when (node) {
+        is Leaf -> if (node.hash == hash) {
+            Leaf(hash, node.entries.filter { it.key != key } + Entry(key, value))
+        } else {
+            // hashes that differ split up at the latest in the last level
+            put(Branch(bit(node.hash, shift), listOf<Node<K, V>>(node)), shift, hash, key, value)
+        }
+        is Branch -> {
+            val bit = bit(hash, shift)
+            val index = index(node.bitmap, bit)
+            val children = ArrayList(node.children)
+            if (node.bitmap and bit == 0) {
+                children.add(index, Leaf(hash, listOf(Entry(key, value))))
+                Branch(node.bitmap or bit, children)
+            } else {
+                children[index] = put(children[index], shift + BITS, hash, key, value)
+                Branch(node.bitmap, children)
+            }
+        }
+        else -> Leaf(hash, listOf(Entry(key, value)))
+    }
+
+    private fun remove(node: Node<K, V>?, shift: Int, hash: Int, key: K): Node<K, V>? = when (node) {
+        is Leaf -> {
+            val entries = node.entries.filter { it.key != key }
+            when {
+                node.hash != hash || entries.size == node.entries.size -> node
+                entries.isEmpty() -> null
+                else -> Leaf(hash, entries)
+            }
+        }
+        is Branch -> {
+            val bit = bit(hash, shift)
+            if (node.bitmap and bit == 0) {
+                node
+            } else {
+                val index = index(node.bitmap, bit)
+                val child = node.children[index]
+                val newChild = remove(child, shift + BITS, hash, key)
+                val children = ArrayList(node.children)
+                when {
+                    newChild === child -> node
+                    newChild == null -> {
+                        children.removeAt(index)
+                        // a single remaining leaf moves up, so the shape only depends on the keys
+                        if (children.isEmpty()) null
+                        else if (children.size == 1 && children[0] is Leaf) children[0]
+                        else Branch(node.bitmap xor bit, children)
+                    }
+                    children.size == 1 && newChild is Leaf -> newChild
+                    else -> {
+                        children[index] = newChild
+                        Branch(node.bitmap, children)
+                    }
+                }
+            }
+        }
+        else -> null
+    }
+
+    companion object {
+        private const val BITS = 5
+        private const val MASK = (1 shl BITS) - 1
+
+        private val EMPTY = PersistentHashMap<Any?, Any>(null, 0)
+
+        @Suppress("UNCHECKED_CAST")
+        @JvmStatic
+        fun <K, V : Any> empty() = EMPTY as PersistentHashMap<K, V>
+
+        private fun hash(key: Any?): Int {
+            val hash = key?.hashCode() ?: 0
+            return hash xor (hash ushr 16)
+        }
+
+        private fun bit(hash: Int, shift: Int) = 1 shl ((hash ushr shift) and MASK)
+
+        private fun index(bitmap: Int, bit: Int) = Integer.bitCount(bitmap and (bit - 1))
+    }
+}
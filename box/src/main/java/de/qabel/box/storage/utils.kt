@@ -36,7 +36,7 @@ fun createIndex(
 ) = createIndex(
     directoryFactory,
     writeBackend,
-    CryptoUtils(),
+    CryptoUtils.getInstance(),
     RootRefCalculator().rootFor(identity.primaryKeyPair.privateKey, prefix.type, prefix.prefix),
     identity.primaryKeyPair
 )
@@ -1,11 +1,23 @@
 package de.qabel.box.storage
 
+import de.qabel.box.storage.exceptions.QblStorageException
+import de.qabel.box.storage.exceptions.QblStorageNotFound
+import de.qabel.core.crypto.ChunkedAuthenticatedCipher
 import org.apache.commons.io.FileUtils
+import org.apache.commons.io.IOUtils
 import org.hamcrest.MatcherAssert.assertThat
 import org.hamcrest.core.IsEqual.equalTo
+import org.hamcrest.core.IsNot.not
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
 import org.junit.Test
+import java.io.ByteArrayInputStream
 import java.io.File
 import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.*
 
 class BoxVolumeLocalTest : BoxVolumeTest() {
     private val tempFolder: File by lazy { createTempDir("longerPrefix") }
@@ -34,4 +46,273 @@ class BoxVolumeLocalTest : BoxVolumeTest() {
     fun rootRefNotChanged() {
         assertThat(volume.rootRef, equalTo("300c9c96-03b9-2a4b-39ed-3958bf924011"))
     }
+
+    @Test
+    fun encryptsStreamsWhileUploading() {
+        val content = ByteArray(3 * 64 * 1024 + 5) { it.toByte() }
+        val file = volume.navigate().upload("large", ByteArrayInputStream(content), content.size.toLong())
+
+        assertThat(volume2.navigate().download("large").use { IOUtils.toByteArray(it) }, equalTo(content))
+        assertThat(File(tempFolder, "blocks/" + file.block).length(),
+            equalTo(ChunkedAuthenticatedCipher.ciphertextSize(content.size.toLong(),
+                ChunkedAuthenticatedCipher.DEFAULT_CHUNK_SIZE)))
+    }
+
+    @Test(expected = QblStorageException::class)
+    fun failsOnWrongStreamSize() {
+        volume.navigate().upload("wrongSize", ByteArrayInputStream("content".toByteArray()), 3L)
+    }
+
+    /**
+     * Fails like the block server when a file that does not exist is deleted
+     */
+    private val strictWriteBackend by lazy {
+        val backend = LocalWriteBackend(tempFolder)
+        object : StorageWriteBackend {
+            override fun upload(name: String, content: InputStream) = backend.upload(name, content)
+
+            override fun upload(name: String, content: InputStream, eTag: String?) =
+                backend.upload(name, content, eTag)
+
+            override fun uploadStreaming(name: String, length: Long, eTag: String?, writer: (OutputStream) -> Unit) =
+                backend.uploadStreaming(name, length, eTag, writer)
+
+            override fun delete(name: String) {
+                if (!File(tempFolder, name).exists()) {
+                    throw QblStorageNotFound("File not found: $name")
+                }
+                backend.delete(name)
+            }
+        }
+    }
+
+    private fun chunkingVolume(deviceId: ByteArray) = with(volume.config) {
+        BoxVolumeImpl(BoxVolumeConfig(prefix, rootRef, deviceId, readBackend, strictWriteBackend,
+            defaultHashAlgorithm, tempDir, chunkingThreshold = 1024L,
+            chunker = ContentDefinedChunker(1024, 4096, 16384)), keyPair)
+    }
+
+    private val chunkingVolume by lazy { chunkingVolume(deviceID) }
+
+    private fun randomContent(size: Int) = ByteArray(size).apply { Random(size.toLong()).nextBytes(this) }
+
+    private fun blockCount() = File(tempFolder, "blocks").list()?.size ?: 0
+
+    @Test
+    fun uploadsLargeFilesInChunks() {
+        val content = randomContent(100 * 1024)
+        val file = chunkingVolume.navigate().upload("chunked", ByteArrayInputStream(content), content.size.toLong())
+
+        assertTrue(file.isChunked())
+        assertFalse(File(tempFolder, "blocks/" + file.block).exists())
+        assertThat(volume2.navigate().download("chunked").use { IOUtils.toByteArray(it) }, equalTo(content))
+    }
+
+    @Test
+    fun uploadsOnlyChangedChunks() {
+        val content = randomContent(100 * 1024)
+        val nav = chunkingVolume.navigate()
+        val file = nav.upload("original", ByteArrayInputStream(content), content.size.toLong())
+        val blocks = blockCount()
+
+        val changed = content.copyOfRange(0, 50 * 1024) + "inserted".toByteArray() +
+            content.copyOfRange(50 * 1024, content.size)
+        nav.upload("changed", ByteArrayInputStream(changed), changed.size.toLong())
+
+        assertTrue(blockCount() - blocks < file.chunks.size / 2)
+        assertThat(volume2.navigate().download("changed").use { IOUtils.toByteArray(it) }, equalTo(changed))
+    }
+
+    @Test
+    fun keepsChunksReferencedByOtherFiles() {
+        val content = randomContent(100 * 1024)
+        val nav = chunkingVolume.navigate()
+        val blocks = blockCount()
+        val original = nav.upload("original", ByteArrayInputStream(content), content.size.toLong())
+        nav.upload("copy", ByteArrayInputStream(content), content.size.toLong())
+
+        nav.delete(original)
+        assertThat(nav.download("copy").use { IOUtils.toByteArray(it) }, equalTo(content))
+
+        nav.delete(nav.getFile("copy"))
+        assertThat(blockCount(), equalTo(blocks))
+    }
+
+    @Test
+    fun deletesChunksOfOverwrittenFiles() {
+        val nav = chunkingVolume.navigate()
+        val blocks = blockCount()
+        nav.upload("file", ByteArrayInputStream(randomContent(100 * 1024)), 100 * 1024L)
+        val content = randomContent(50 * 1024)
+
+        nav.upload("file", ByteArrayInputStream(content), content.size.toLong())
+
+        assertThat(blockCount() - blocks, equalTo(nav.getFile("file").chunks.map { it.block }.distinct().size))
+        assertThat(nav.download("file").use { IOUtils.toByteArray(it) }, equalTo(content))
+    }
+
+    @Test
+    fun deletesTheSharedBlockOfChunkedFiles() {
+        val content = randomContent(100 * 1024)
+        val nav = chunkingVolume.navigate()
+        val blocks = blockCount()
+        val file = nav.upload("chunked", ByteArrayInputStream(content), content.size.toLong())
+        nav.share(keyPair.pub, file, contact.keyIdentifier)
+        assertTrue(File(tempFolder, "blocks/" + file.block).exists())
+
+        nav.unshare(file)
+        assertFalse(File(tempFolder, "blocks/" + file.block).exists())
+        nav.share(keyPair.pub, file, contact.keyIdentifier)
+        nav.delete(file)
+
+        assertThat(blockCount(), equalTo(blocks))
+    }
+
+    @Test
+    fun failsToReuseChunksDeletedByConcurrentCommits() {
+        val content = randomContent(100 * 1024)
+        val nav = chunkingVolume.navigate()
+        nav.upload("original", ByteArrayInputStream(content), content.size.toLong())
+        val otherNav = chunkingVolume(deviceID2).navigate()
+        otherNav.delete(otherNav.getFile("original"))
+
+        try {
+            nav.upload("copy", ByteArrayInputStream(content), content.size.toLong())
+            fail("Commit should have failed, the reused chunks have been deleted")
+        } catch (e: QblStorageNotFound) {
+        }
+    }
+
+    @Test
+    fun readsSingleBlockFiles() {
+        val content = randomContent(100 * 1024)
+        val file = volume.navigate().upload("single", ByteArrayInputStream(content), content.size.toLong())
+
+        assertFalse(file.isChunked())
+        chunkingVolume.navigate().refresh()
+        assertThat(chunkingVolume.navigate().download("single").use { IOUtils.toByteArray(it) }, equalTo(content))
+    }
+
+    @Test
+    fun downloadsLargeBlocksInParts() {
+        val content = randomContent(100 * 1024)
+        volume.navigate().upload("large", ByteArrayInputStream(content), content.size.toLong())
+
+        val rangedVolume = with(volume.config) {
+            BoxVolumeImpl(BoxVolumeConfig(prefix, rootRef, deviceID2, readBackend, LocalWriteBackend(tempFolder),
+                defaultHashAlgorithm, tempDir, downloadPartSize = 4096L, downloadParallelism = 3), keyPair)
+        }
+        assertThat(rangedVolume.navigate().download("large").use { IOUtils.toByteArray(it) }, equalTo(content))
+    }
+
+    private fun journalVolume(deviceId: ByteArray, compactionInterval: Int = 64) = with(volume.config) {
+        BoxVolumeImpl(BoxVolumeConfig(prefix, rootRef, deviceId, readBackend, LocalWriteBackend(tempFolder),
+            defaultHashAlgorithm, tempDir, metadataJournal = true, journalCompactionInterval = compactionInterval),
+            keyPair)
+    }
+
+    private fun changeSets(folder: BoxFolder) = tempFolder.list().filter { it.startsWith(folder.ref + ".") }
+
+    @Test
+    fun appendsChangesToTheJournal() {
+        val journalVolume = journalVolume(deviceID)
+        val folder = journalVolume.navigate().createFolder("journal")
+        val nav = journalVolume.navigate().navigate(folder)
+        nav.upload("first", ByteArrayInputStream("first".toByteArray()), 5L)
+        val base = File(tempFolder, folder.ref).readBytes()
+
+        nav.upload("second", ByteArrayInputStream("second".toByteArray()), 6L)
+
+        assertThat(File(tempFolder, folder.ref).readBytes(), equalTo(base))
+        assertFalse(changeSets(folder).isEmpty())
+        val otherNav = journalVolume(deviceID2).navigate().navigate("journal")
+        assertThat(otherNav.listFiles().map { it.name }.toSet(), equalTo(setOf("first", "second")))
+        assertThat(otherNav.download("second").use { IOUtils.toByteArray(it) }, equalTo("second".toByteArray()))
+    }
+
+    @Test
+    fun readsChangesOfOtherJournalVolumes() {
+        val folder = journalVolume(deviceID).navigate().createFolder("journal")
+        val nav = journalVolume(deviceID).navigate().navigate(folder)
+        val otherNav = journalVolume(deviceID2).navigate().navigate(folder)
+
+        nav.upload("first", ByteArrayInputStream("first".toByteArray()), 5L)
+        otherNav.refresh()
+        otherNav.upload("second", ByteArrayInputStream("second".toByteArray()), 6L)
+        nav.refresh()
+        nav.delete(nav.getFile("first"))
+        otherNav.refresh()
+
+        assertThat(nav.listFiles().map { it.name }, equalTo(listOf("second")))
+        assertThat(otherNav.listFiles().map { it.name }, equalTo(listOf("second")))
+    }
+
+    @Test
+    fun compactsTheJournal() {
+        val journalVolume = journalVolume(deviceID, compactionInterval = 2)
+        val folder = journalVolume.navigate().createFolder("journal")
+        val nav = journalVolume.navigate().navigate(folder)
+        for (i in 1..7) {
+            nav.upload("file$i", ByteArrayInputStream("content".toByteArray()), 7L)
+        }
+
+        assertTrue(changeSets(folder).size <= 2)
+        val otherNav = journalVolume(deviceID2).navigate().navigate("journal")
+        assertThat(otherNav.listFiles().size, equalTo(7))
+    }
+
+    /**
+     * Lets the navigations write the first change set at the same time, the change set of [winner] is kept
+     */
+    private fun raceForFirstChangeSet(folder: BoxFolder, winner: BoxNavigation, loser: BoxNavigation) {
+        winner.upload("a", ByteArrayInputStream("a".toByteArray()), 1L)
+        val changeSet = File(tempFolder, folder.ref + ".1")
+        val winnerChangeSet = changeSet.readBytes()
+        changeSet.delete()
+        loser.upload("b", ByteArrayInputStream("b".toByteArray()), 1L)
+        changeSet.writeBytes(winnerChangeSet)
+    }
+
+    @Test
+    fun reloadsTheBaseWhenTheReplicaDiverged() {
+        val folder = journalVolume(deviceID).navigate().createFolder("journal")
+        val nav = journalVolume(deviceID).navigate().navigate(folder)
+        val otherNav = journalVolume(deviceID2).navigate().navigate(folder)
+        raceForFirstChangeSet(folder, nav, otherNav)
+
+        nav.upload("c", ByteArrayInputStream("c".toByteArray()), 1L)
+        otherNav.refresh()
+
+        assertThat(otherNav.listFiles().map { it.name }.toSet(), equalTo(setOf("a", "c")))
+    }
+
+    @Test
+    fun compactsTheJournalAfterADivergedChangeSet() {
+        val folder = journalVolume(deviceID).navigate().createFolder("journal")
+        val nav = journalVolume(deviceID).navigate().navigate(folder)
+        val otherNav = journalVolume(deviceID2).navigate().navigate(folder)
+        raceForFirstChangeSet(folder, otherNav, nav)
+        nav.upload("c", ByteArrayInputStream("c".toByteArray()), 1L)
+        val base = File(tempFolder, folder.ref).readBytes()
+
+        val reader = journalVolume(deviceID2).navigate().navigate("journal")
+        assertThat(reader.listFiles().map { it.name }.toSet(), equalTo(setOf("a")))
+        reader.upload("d", ByteArrayInputStream("d".toByteArray()), 1L)
+
+        assertThat(File(tempFolder, folder.ref).readBytes(), not(equalTo(base)))
+        assertThat(journalVolume(deviceID).navigate().navigate("journal").listFiles().map { it.name }.toSet(),
+            equalTo(setOf("a", "d")))
+    }
+
+    @Test
+    fun deletesTheJournalOfDeletedFolders() {
+        val journalVolume = journalVolume(deviceID)
+        val root = journalVolume.navigate()
+        val folder = root.createFolder("journal")
+        root.navigate(folder).upload("file", ByteArrayInputStream("content".toByteArray()), 7L)
+
+        root.delete(folder)
+
+        assertTrue(changeSets(folder).isEmpty())
+    }
 }
@@ -0,0 +1,63 @@
+package de.qabel.box.storage
+
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.util.*
+
+class ContentDefinedChunkerTest {
+    private val chunker = ContentDefinedChunker(1024, 4096, 16384)
+
+    private fun randomContent(size: Int) = ByteArray(size).apply { Random(42).nextBytes(this) }
+
+    private fun chunks(content: ByteArray): List<ByteArray> {
+        val chunks = mutableListOf<ByteArray>()
+        chunker.chunks(ByteArrayInputStream(content)) { chunks.add(it) }
+        return chunks
+    }
+
+    @Test
+    fun chunksContainTheWholeInput() {
+        val content = randomContent(200 * 1024)
+        val chunks = chunks(content)
+
+        assertThat(chunks.fold(ByteArray(0)) { all, chunk -> all + chunk }, equalTo(content))
+    }
+
+    @Test
+    fun respectsChunkSizes() {
+        val chunks = chunks(randomContent(200 * 1024))
+
+        chunks.dropLast(1).forEach {
+            assertThat(it.size, greaterThanOrEqualTo(1024))
+            assertThat(it.size, lessThanOrEqualTo(16384))
+        }
+        val average = chunks.map { it.size }.sum() / chunks.size
+        assertThat(average, both(greaterThan(2048)).and(lessThan(8192)))
+    }
+
+    @Test
+    fun cutsAtMaxSizeWithoutBoundary() {
+        val chunks = chunks(ByteArray(40000))
+
+        assertThat(chunks.map { it.size }, equalTo(listOf(16384, 16384, 7232)))
+    }
+
+    @Test
+    fun insertionOnlyChangesNearbyChunks() {
+        val content = randomContent(200 * 1024)
+        val changed = content.copyOfRange(0, 100 * 1024) + byteArrayOf(1, 2, 3) +
+            content.copyOfRange(100 * 1024, content.size)
+
+        val original = chunks(content).map { Arrays.hashCode(it) }.toSet()
+        val changedChunks = chunks(changed).map { Arrays.hashCode(it) }
+
+        assertThat(changedChunks.count { !original.contains(it) }, lessThanOrEqualTo(2))
+    }
+
+    @Test
+    fun emptyInputHasNoChunks() {
+        assertThat(chunks(ByteArray(0)), empty())
+    }
+}
@@ -0,0 +1,80 @@
+package de.qabel.box.storage
+
+import de.qabel.box.storage.exceptions.QblStorageCorruptMetadata
+import de.qabel.box.storage.jdbc.JdbcDirectoryMetadataFactory
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.After
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.nio.file.Files
+
+class DirectoryMetadataChangeSetTest {
+    private val tempDir = Files.createTempDirectory("qbl_changeset").toFile()
+    private val factory = JdbcDirectoryMetadataFactory(tempDir, byteArrayOf(1, 2, 3, 4))
+    private val from = factory.create("prefix")
+    private val to = factory.open(from.path.copyTo(createTempFile(directory = tempDir), true), from.fileName)
+
+    @After
+    fun tearDown() {
+        tempDir.deleteRecursively()
+    }
+
+    @Test
+    fun transformsMetadata() {
+        val kept = BoxFile("prefix", "kept", "kept", 1L, 1L, byteArrayOf(1))
+        val removed = BoxFile("prefix", "removed", "removed", 2L, 2L, byteArrayOf(2))
+        val changed = BoxFile("prefix", "changed", "changed", 3L, 3L, byteArrayOf(3))
+        listOf(kept, removed, changed).forEach { from.insertFile(it) }
+        from.insertFolder(BoxFolder("folder", "folder", byteArrayOf(4)))
+        from.commit()
+        val fromCopy = factory.open(from.path.copyTo(createTempFile(directory = tempDir), true), from.fileName)
+        listOf(kept, removed, changed).forEach { to.insertFile(it) }
+        to.insertFolder(BoxFolder("folder", "folder", byteArrayOf(4)))
+        to.commitVersion(from.version)
+
+        to.deleteFile(removed)
+        to.deleteFile(changed)
+        to.insertFile(BoxFile("prefix", "changed2", "changed", 5L, 5L, byteArrayOf(5),
+            Hash(byteArrayOf(6), "SHA-256")))
+        to.deleteFolder(BoxFolder("folder", "folder", byteArrayOf(4)))
+        to.insertFolder(BoxFolder("new", "new", byteArrayOf(7)))
+        to.insertShare(BoxShare("kept", "recipient"))
+        to.commit()
+
+        val changeSet = DirectoryMetadataChangeSet.readFrom(ByteArrayInputStream(
+            DirectoryMetadataChangeSet.diff(1L, fromCopy, to).toByteArray()))
+        changeSet.applyTo(fromCopy)
+
+        assertThat(fromCopy.version, equalTo(to.version))
+        assertThat(fromCopy.findJournalSequence(), equalTo(1L))
+        assertThat(fromCopy.listFiles().toSet(), equalTo(to.listFiles().toSet()))
+        assertThat(fromCopy.getFile("changed")!!.hashed, equalTo(to.getFile("changed")!!.hashed))
+        assertThat(fromCopy.listFolders(), equalTo(to.listFolders()))
+        assertThat(fromCopy.listShares().map { it.ref + it.recipient + it.type },
+            equalTo(to.listShares().map { it.ref + it.recipient + it.type }))
+    }
+
+    @Test
+    fun keepsChunks() {
+        val file = BoxFile("prefix", "block", "chunked", 10L, 1L, byteArrayOf(1))
+        file.chunks = listOf(BoxFileChunk(0L, 10L, byteArrayOf(2), "chunk", byteArrayOf(3)))
+        to.insertFile(file)
+        to.commit()
+
+        DirectoryMetadataChangeSet.readFrom(ByteArrayInputStream(
+            DirectoryMetadataChangeSet.diff(1L, from, to).toByteArray())).applyTo(from)
+
+        assertThat(from.getFile("chunked")!!.chunks.map { it.block }, equalTo(listOf("chunk")))
+    }
+
+    @Test
+    fun emptyDiff() {
+        assertThat(DirectoryMetadataChangeSet.diff(1L, from, to).operations, empty())
+    }
+
+    @Test(expected = QblStorageCorruptMetadata::class)
+    fun rejectsUnknownFormat() {
+        DirectoryMetadataChangeSet.readFrom(ByteArrayInputStream(byteArrayOf(42)))
+    }
+}
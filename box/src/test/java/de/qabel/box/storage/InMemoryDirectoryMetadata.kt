@@ -9,16 +9,27 @@ class InMemoryDirectoryMetadata : DirectoryMetadata {
     override val path: File get() = throw UnsupportedOperationException()
     override val fileName by lazy { UUID.randomUUID().toString() }
 
-    override val version = ByteArray(0)
+    override var version = ByteArray(0)
     val files = HashMap<String, BoxFile>()
     val folders = HashMap<String, BoxFolder>()
     val shares = HashMap<String, BoxShare>()
     var committed = false
+    var journalSequence = 0L
 
     override fun commit() {
         committed = true
     }
 
+    override fun commitVersion(version: ByteArray) {
+        this.version = version
+    }
+
+    override fun findJournalSequence() = journalSequence
+
+    override fun replaceJournalSequence(sequence: Long) {
+        journalSequence = sequence
+    }
+
     override fun listShares(): List<BoxShare> = shares.values.toList()
 
     override fun deleteShare(share: BoxShare) {
@@ -5,11 +5,13 @@ import org.apache.commons.io.FileUtils
 import org.apache.commons.io.IOUtils
 import org.junit.After
 import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
 import org.junit.Assert.fail
 import org.junit.Before
 import org.junit.Test
 import java.io.ByteArrayInputStream
 import java.io.IOException
+import java.io.InputStream
 
 class LocalBackendTest {
     private val bytes: ByteArray = byteArrayOf(1, 2, 3, 4)
@@ -54,5 +56,50 @@ class LocalBackendTest {
         }
 
     }
-}
 
+    @Test
+    fun testStreamingUpload() {
+        writeBackend.uploadStreaming(testFile, 3, null) { it.write(byteArrayOf(7, 8, 9)) }
+        assertArrayEquals(byteArrayOf(7, 8, 9), IOUtils.toByteArray(readBackend.download(testFile).inputStream))
+    }
+
+    @Test(expected = QblStorageException::class)
+    fun testStreamingUploadWithWrongLength() {
+        writeBackend.uploadStreaming(testFile, 4, null) { it.write(byteArrayOf(7, 8, 9)) }
+    }
+
+    /**
+     * Backend that only implements the required methods and buffers streaming uploads
+     */
+    private val bufferingBackend = object : StorageWriteBackend {
+        override fun upload(name: String, content: InputStream) = writeBackend.upload(name, content)
+
+        override fun upload(name: String, content: InputStream, eTag: String?) = writeBackend.upload(name, content, eTag)
+
+        override fun delete(name: String) = writeBackend.delete(name)
+    }
+
+    @Test
+    fun testBufferedStreamingUpload() {
+        bufferingBackend.uploadStreaming(testFile, 3, null) { it.write(byteArrayOf(7, 8, 9)) }
+        assertArrayEquals(byteArrayOf(7, 8, 9), IOUtils.toByteArray(readBackend.download(testFile).inputStream))
+    }
+
+    @Test
+    fun testBufferedStreamingUploadWithWrongLength() {
+        try {
+            bufferingBackend.uploadStreaming(testFile, 4, null) { it.write(byteArrayOf(7, 8, 9)) }
+            fail("Upload should have failed, the length does not match")
+        } catch (e: QblStorageException) {
+        }
+        assertArrayEquals(bytes, IOUtils.toByteArray(readBackend.download(testFile).inputStream))
+    }
+
+    @Test
+    fun testRangedDownload() {
+        assertEquals(4L, readBackend.getSize(testFile))
+        readBackend.download(testFile, 1, 2).use {
+            assertArrayEquals(byteArrayOf(2, 3), IOUtils.toByteArray(it.inputStream))
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package de.qabel.box.storage
+
+import de.qabel.box.storage.exceptions.QblStorageException
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.After
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.nio.file.Files
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class RangedBlockDownloaderTest {
+    private val tempDir = Files.createTempDirectory("qbl_ranged").toFile()
+    private val content = ByteArray(10000).apply { Random(1).nextBytes(this) }
+    private val backend = RangedBackend()
+
+    @After
+    fun tearDown() {
+        tempDir.deleteRecursively()
+    }
+
+    private fun download(downloader: RangedBlockDownloader): ByteArray {
+        val file = downloader.download("block", null)
+        try {
+            return file.readBytes()
+        } finally {
+            file.delete()
+        }
+    }
+
+    @Test
+    fun downloadsAllParts() {
+        assertThat(download(RangedBlockDownloader(backend, tempDir, 1024, 3)), equalTo(content))
+        assertThat(backend.requests.size, equalTo(10))
+        assertThat(backend.requests, hasItem(Pair(9216L, 784L)))
+    }
+
+    @Test
+    fun resumesFailedParts() {
+        backend.failures.add(2048L)
+
+        assertThat(download(RangedBlockDownloader(backend, tempDir, 1024, 3)), equalTo(content))
+        assertThat(backend.requests, hasItem(Pair(2048L + 100, 1024L - 100)))
+    }
+
+    @Test
+    fun retriesStalledParts() {
+        backend.stalls.add(4096L)
+
+        assertThat(download(RangedBlockDownloader(backend, tempDir, 1024, 3, stallTimeout = 100)), equalTo(content))
+        assertThat(backend.requests, hasItem(Pair(4096L + 100, 1024L - 100)))
+    }
+
+    @Test(expected = QblStorageException::class)
+    fun failsAfterMaxAttempts() {
+        backend.failures.addAll(listOf(0L, 100L, 200L))
+
+        download(RangedBlockDownloader(backend, tempDir, 1024, 3, maxAttempts = 3))
+    }
+
+    @Test
+    fun removesTempFileOnFailure() {
+        backend.failures.addAll(listOf(0L, 100L, 200L))
+        try {
+            download(RangedBlockDownloader(backend, tempDir, 1024, 3, maxAttempts = 3))
+        } catch (ignored: QblStorageException) {
+        }
+
+        assertThat(tempDir.list().toList(), empty())
+    }
+
+    /**
+     * Serves the content, requests starting at an offset in [failures] fail after 100 bytes
+     * and requests starting at an offset in [stalls] block after 100 bytes until they are closed.
+     */
+    private inner class RangedBackend : RangedStorageReadBackend {
+        val requests: MutableList<Pair<Long, Long>> = Collections.synchronizedList(mutableListOf<Pair<Long, Long>>())
+        val failures: MutableSet<Long> = Collections.synchronizedSet(mutableSetOf<Long>())
+        val stalls: MutableSet<Long> = Collections.synchronizedSet(mutableSetOf<Long>())
+
+        override fun getSize(name: String) = content.size.toLong()
+
+        override fun download(name: String, offset: Long, length: Long): StorageDownload {
+            requests.add(Pair(offset, length))
+            val part = content.copyOfRange(offset.toInt(), (offset + length).toInt())
+            val closed = CountDownLatch(1)
+            val input: InputStream = when {
+                failures.remove(offset) -> InterruptedStream(part) { throw IOException("connection reset") }
+                stalls.remove(offset) -> InterruptedStream(part) {
+                    closed.await(10, TimeUnit.SECONDS)
+                    throw IOException("connection closed")
+                }
+                else -> ByteArrayInputStream(part)
+            }
+            return StorageDownload(input, null, length, Closeable { closed.countDown() })
+        }
+
+        override fun download(name: String) = throw UnsupportedOperationException()
+
+        override fun download(name: String, ifModifiedVersion: String?) = throw UnsupportedOperationException()
+
+        override fun getUrl(meta: String) = throw UnsupportedOperationException()
+    }
+
+    private class InterruptedStream(part: ByteArray, val interruption: () -> Unit)
+        : ByteArrayInputStream(part.copyOf(100)) {
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (available() == 0) {
+                interruption()
+            }
+            return super.read(b, off, len)
+        }
+    }
+}
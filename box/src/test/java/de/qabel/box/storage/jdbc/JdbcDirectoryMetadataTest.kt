@@ -1,6 +1,7 @@
 package de.qabel.box.storage.jdbc
 
 import de.qabel.box.storage.BoxFile
+import de.qabel.box.storage.BoxFileChunk
 import de.qabel.box.storage.BoxFolder
 import de.qabel.box.storage.BoxShare
 import de.qabel.box.storage.Hash
@@ -128,6 +129,25 @@ class JdbcDirectoryMetadataTest {
         assertTrue(loadedFile.isHashed())
     }
 
+    @Test
+    fun loadsChunks() {
+        val chunks = listOf(
+            BoxFileChunk(0L, 10L, byteArrayOf(1), "block1", byteArrayOf(2)),
+            BoxFileChunk(10L, 5L, byteArrayOf(3), "block2", byteArrayOf(4)))
+        val file = BoxFile("p", "b", "n", 15L, 1L, "key".toByteArray()).apply { this.chunks = chunks }
+
+        dm.insertFile(file)
+
+        assertThat(dm.getFile("n")!!.chunks, equalTo(chunks))
+        assertThat(dm.listFiles()[0].chunks, equalTo(chunks))
+        assertThat(dm.findChunk(byteArrayOf(3)), equalTo(chunks[1]))
+        assertTrue(dm.isChunkReferenced("block1"))
+
+        dm.deleteFile(file)
+        assertNull(dm.findChunk(byteArrayOf(3)))
+        assertFalse(dm.isChunkReferenced("block1"))
+    }
+
     @Test
     fun migratioFrom0Version() {
         dm.connection.version = 0
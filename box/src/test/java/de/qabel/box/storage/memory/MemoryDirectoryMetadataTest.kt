@@ -0,0 +1,164 @@
+package de.qabel.box.storage.memory
+
+import de.qabel.box.storage.BoxFile
+import de.qabel.box.storage.BoxFileChunk
+import de.qabel.box.storage.BoxFolder
+import de.qabel.box.storage.BoxShare
+import de.qabel.box.storage.Hash
+import de.qabel.box.storage.exceptions.QblStorageException
+import de.qabel.box.storage.exceptions.QblStorageNameConflict
+import de.qabel.box.storage.jdbc.JdbcDirectoryMetadataFactory
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.After
+import org.junit.Test
+import java.nio.file.Files
+
+class MemoryDirectoryMetadataTest {
+    private val tempDir = Files.createTempDirectory("qbl_memory_dm").toFile()
+    private val deviceId = byteArrayOf(1, 2, 3, 4)
+    private val factory = MemoryDirectoryMetadataFactory(tempDir, deviceId)
+    private val dm = factory.create()
+
+    @After
+    fun tearDown() {
+        tempDir.deleteRecursively()
+    }
+
+    @Test
+    fun fileOperations() {
+        val file = BoxFile("prefix", "block", "name", 0L, 10000L, byteArrayOf(1, 2))
+        dm.insertFile(file)
+
+        assertThat(dm.listFiles(), equalTo(listOf(file)))
+        assertThat(dm.getFile("name"), equalTo(file))
+        dm.deleteFile(file)
+        assertThat(dm.listFiles(), empty())
+        assertThat(dm.getFile("name"), nullValue())
+    }
+
+    @Test(expected = QblStorageNameConflict::class)
+    fun fileNameConflictsWithFolder() {
+        dm.insertFolder(BoxFolder("ref", "name", byteArrayOf(1)))
+        dm.insertFile(BoxFile("prefix", "block", "name", 0L, 0L, byteArrayOf(1)))
+    }
+
+    @Test(expected = QblStorageException::class)
+    fun deletesOnlyExistingFiles() {
+        dm.deleteFile(BoxFile("prefix", "block", "name", 0L, 0L, byteArrayOf(1)))
+    }
+
+    @Test
+    fun returnedFilesAreCopies() {
+        dm.insertFile(BoxFile("prefix", "block", "name", 0L, 10000L, byteArrayOf(1, 2)))
+
+        dm.getFile("name")!!.mtime = 20000L
+
+        assertThat(dm.getFile("name")!!.mtime, equalTo(10000L))
+    }
+
+    @Test
+    fun findsChunksUntilTheirLastFileIsDeleted() {
+        val chunk = BoxFileChunk(0L, 10L, byteArrayOf(3), "chunk", byteArrayOf(4))
+        val first = BoxFile("prefix", "block", "first", 10L, 0L, byteArrayOf(1)).apply { chunks = listOf(chunk) }
+        val second = BoxFile("prefix", "block", "second", 10L, 0L, byteArrayOf(1)).apply { chunks = listOf(chunk) }
+        dm.insertFile(first)
+        dm.insertFile(second)
+
+        dm.deleteFile(first)
+        assertThat(dm.findChunk(byteArrayOf(3)), equalTo(chunk))
+
+        dm.deleteFile(second)
+        assertThat(dm.findChunk(byteArrayOf(3)), nullValue())
+    }
+
+    @Test
+    fun findsChunksOfOpenedMetadata() {
+        val file = BoxFile("prefix", "block", "file", 10L, 0L, byteArrayOf(1))
+        file.chunks = listOf(BoxFileChunk(0L, 10L, byteArrayOf(3), "chunk", byteArrayOf(4)))
+        dm.insertFile(file)
+
+        val reopened = factory.open(dm.path, dm.fileName)
+
+        assertThat(reopened.findChunk(byteArrayOf(3)), equalTo(file.chunks[0]))
+    }
+
+    @Test
+    fun commitChangesVersion() {
+        val version = dm.version
+        dm.commit()
+        assertThat(dm.version, not(equalTo(version)))
+    }
+
+    @Test
+    fun snapshotsAreIndependent() {
+        dm.insertFile(BoxFile("prefix", "block", "old", 0L, 0L, byteArrayOf(1)))
+        val snapshot = dm.snapshot()
+
+        dm.insertFile(BoxFile("prefix", "block", "new", 0L, 0L, byteArrayOf(1)))
+        dm.commit()
+
+        assertThat(snapshot.listFiles().map { it.name }, equalTo(listOf("old")))
+        assertThat(snapshot.version, not(equalTo(dm.version)))
+        assertThat(dm.listFiles().map { it.name }, containsInAnyOrder("old", "new"))
+    }
+
+    @Test
+    fun diffsSnapshots() {
+        for (i in 0..99) {
+            dm.insertFile(BoxFile("prefix", "block$i", "file$i", 0L, 0L, byteArrayOf(1)))
+        }
+        val snapshot = dm.snapshot()
+        dm.deleteFile(dm.getFile("file1")!!)
+        dm.insertFolder(BoxFolder("ref", "folder", byteArrayOf(2)))
+
+        val files = snapshot.fileChanges(dm)
+        assertThat(files.size, equalTo(1))
+        assertThat(files[0].first!!.name, equalTo("file1"))
+        assertThat(files[0].second, nullValue())
+        assertThat(snapshot.folderChanges(dm).map { it.second?.name }, equalTo(listOf<String?>("folder")))
+    }
+
+    @Test
+    fun serializesToSqlite() {
+        val file = BoxFile("prefix", "block", "file", 10L, 10000L, byteArrayOf(1), Hash(byteArrayOf(2), "SHA-256"))
+        file.chunks = listOf(BoxFileChunk(0L, 10L, byteArrayOf(3), "chunk", byteArrayOf(4)))
+        dm.insertFile(file)
+        dm.insertFolder(BoxFolder("ref", "folder", byteArrayOf(5)))
+        dm.insertShare(BoxShare("ref", "recipient"))
+        dm.replaceJournalSequence(3L)
+        dm.commit()
+
+        val jdbc = JdbcDirectoryMetadataFactory(tempDir, deviceId).open(dm.path, dm.fileName)
+        assertThat(jdbc.version, equalTo(dm.version))
+        assertThat(jdbc.getFile("file"), equalTo(file))
+        assertThat(jdbc.getFile("file")!!.chunks, equalTo(file.chunks))
+        assertThat(jdbc.listFolders(), equalTo(dm.listFolders()))
+        assertThat(jdbc.listShares().map { it.recipient }, equalTo(listOf("recipient")))
+        assertThat(jdbc.findJournalSequence(), equalTo(3L))
+
+        val reopened = factory.open(dm.path, dm.fileName)
+        assertThat(reopened.version, equalTo(dm.version))
+        assertThat(reopened.getFile("file")!!.hashed, equalTo(file.hashed))
+        assertThat(reopened.listShares().size, equalTo(1))
+    }
+
+    @Test
+    fun keepsRootOfIndex() {
+        val index = factory.create("root")
+
+        assertThat(JdbcDirectoryMetadataFactory(tempDir, deviceId).open(index.path, index.fileName).root,
+            equalTo("root"))
+    }
+
+    @Test
+    fun writesPathOnlyAfterChanges() {
+        val path = dm.path
+        assertThat(dm.path, sameInstance(path))
+
+        dm.insertFolder(BoxFolder("ref", "folder", byteArrayOf(5)))
+
+        assertThat(dm.path, not(equalTo(path)))
+        assertThat(path.exists(), equalTo(false))
+    }
+}
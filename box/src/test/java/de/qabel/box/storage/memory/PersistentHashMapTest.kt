@@ -0,0 +1,90 @@
+package de.qabel.box.storage.memory
+
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Test
+import java.util.*
+
+class PersistentHashMapTest {
+
+    /**
+     * Keys with colliding hash codes
+     */
+    private class Key(val name: String) {
+        override fun hashCode() = name.length
+        override fun equals(other: Any?) = other is Key && other.name == name
+        override fun toString() = name
+    }
+
+    @Test
+    fun putAndRemove() {
+        var map = PersistentHashMap.empty<String, Int>()
+        for (i in 0..999) {
+            map = map.plus("key$i", i)
+        }
+        assertThat(map.size, equalTo(1000))
+        assertThat(map["key500"], equalTo(500))
+
+        map = map.plus("key500", -1)
+        assertThat(map.size, equalTo(1000))
+        assertThat(map["key500"], equalTo(-1))
+
+        for (i in 0..998) {
+            map = map.minus("key$i")
+        }
+        assertThat(map.size, equalTo(1))
+        assertThat(map.values, equalTo(listOf(999)))
+        assertThat(map.minus("key999").isEmpty(), equalTo(true))
+    }
+
+    @Test
+    fun keepsPreviousVersions() {
+        val first = PersistentHashMap.empty<String, Int>().plus("a", 1)
+        val second = first.plus("b", 2).minus("a")
+
+        assertThat(first["a"], equalTo(1))
+        assertThat(first.containsKey("b"), equalTo(false))
+        assertThat(second.values, equalTo(listOf(2)))
+    }
+
+    @Test
+    fun handlesHashCollisions() {
+        var map = PersistentHashMap.empty<Key, String>()
+        map = map.plus(Key("ab"), "ab").plus(Key("cd"), "cd").plus(Key("e"), "e")
+
+        assertThat(map.size, equalTo(3))
+        assertThat(map[Key("ab")], equalTo("ab"))
+        assertThat(map[Key("cd")], equalTo("cd"))
+        assertThat(map.minus(Key("ab"))[Key("cd")], equalTo("cd"))
+        assertThat(map.minus(Key("ab"))[Key("ab")], nullValue())
+        assertThat(map.minus(Key("ab")).size, equalTo(2))
+    }
+
+    @Test
+    fun diffsReplacedEntries() {
+        var old = PersistentHashMap.empty<String, String>()
+        for (i in 0..999) {
+            old = old.plus("key$i", "value$i")
+        }
+        val new = old.minus("key1").plus("key2", "changed").plus("added", "new")
+
+        val changes = ArrayList<Pair<String?, String?>>()
+        old.diff(new) { oldValue, newValue -> changes.add(Pair(oldValue, newValue)) }
+
+        assertThat(changes, containsInAnyOrder(
+            Pair<String?, String?>(null, "new"),
+            Pair<String?, String?>("value1", null),
+            Pair<String?, String?>("value2", "changed")))
+    }
+
+    @Test
+    fun diffsUnrelatedMaps() {
+        val old = PersistentHashMap.empty<String, String>().plus("a", "1").plus("b", "2")
+        val new = PersistentHashMap.empty<String, String>().plus("b", "3")
+
+        val changes = ArrayList<String>()
+        old.diff(new) { oldValue, newValue -> changes.add("$oldValue:$newValue") }
+
+        assertThat(changes, containsInAnyOrder("1:null", "2:3"))
+    }
+}
@@ -14,8 +14,18 @@ interface ChatDropMessageRepository : Repository<ChatDropMessage> {
     fun findNew(identityId: Int): List<ChatDropMessage>
     fun findLatest(identityId: Int): List<ChatDropMessage>
 
+    /**
+     * @return outgoing messages that have not been sent yet, oldest first
+     */
+    fun findPending(): List<ChatDropMessage>
+
     fun exists(chatDropMessage : ChatDropMessage): Boolean
 
+    /**
+     * Persists all messages at once, either all of them are stored or none
+     */
+    fun persistAll(messages: Collection<ChatDropMessage>) = messages.forEach { persist(it) }
+
     fun markAsRead(contact: Contact, identity: Identity)
     fun findByContact(contactId: Int, identityId: Int, offset: Int, pageSize: Int): PagingResult<ChatDropMessage>
 
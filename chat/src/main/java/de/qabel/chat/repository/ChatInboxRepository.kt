@@ -0,0 +1,23 @@
+package de.qabel.chat.repository
+
+import de.qabel.chat.repository.entities.ChatInboxMessage
+import de.qabel.core.repository.exception.PersistenceException
+import de.qabel.core.repository.framework.Repository
+
+interface ChatInboxRepository : Repository<ChatInboxMessage> {
+
+    /**
+     * Persists all messages at once, either all of them are stored or none
+     */
+    @Throws(PersistenceException::class)
+    fun persistAll(messages: Collection<ChatInboxMessage>)
+
+    /**
+     * @return ids of all queued messages, oldest first
+     */
+    @Throws(PersistenceException::class)
+    fun findQueuedIds(): List<Int>
+
+    @Throws(PersistenceException::class)
+    fun deleteAll(ids: Collection<Int>)
+}
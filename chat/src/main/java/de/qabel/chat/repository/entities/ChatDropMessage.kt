@@ -4,6 +4,9 @@ import de.qabel.chat.repository.entities.ChatDropMessage.MessageType.BOX_MESSAGE
 import de.qabel.chat.repository.entities.ChatDropMessage.MessageType.SHARE_NOTIFICATION
 import de.qabel.core.repository.framework.BaseEntity
 import de.qabel.core.repository.framework.PersistableEnum
+import org.spongycastle.util.encoders.Hex
+import java.nio.ByteBuffer
+import java.security.MessageDigest
 
 data class ChatDropMessage(val contactId: Int,
                            val identityId: Int,
@@ -24,6 +27,32 @@ data class ChatDropMessage(val contactId: Int,
                 id: Int = 0) : this(contactId, identityId, direction, status, messageType,
         MessagePayload.fromString(messageType, payloadString), createdOn, id)
 
+    /**
+     * Hex encoded SHA-256 over everything identifying a received message, independent of its status
+     */
+    val contentHash: String
+        get() = contentHash(identityId, contactId, direction.type, messageType.type, payload.toString(), createdOn)
+
+    companion object {
+        private val UTF_8 = Charsets.UTF_8
+
+        @JvmStatic
+        fun contentHash(identityId: Int, contactId: Int, direction: Int, payloadType: String,
+                        payload: String, createdOn: Long): String {
+            val digest = MessageDigest.getInstance("SHA-256")
+            digest.update(ByteBuffer.allocate(20).putInt(identityId).putInt(contactId)
+                .putInt(direction).putLong(createdOn).array())
+            digest.updateWithLength(payloadType.toByteArray(UTF_8))
+            digest.updateWithLength(payload.toByteArray(UTF_8))
+            return Hex.toHexString(digest.digest())
+        }
+
+        private fun MessageDigest.updateWithLength(bytes: ByteArray) {
+            update(ByteBuffer.allocate(4).putInt(bytes.size).array())
+            update(bytes)
+        }
+    }
+
     enum class Status(override val type: Int) : PersistableEnum<Int> {
         NEW(0), READ(1), PENDING(2), SENT(3);
     }
@@ -0,0 +1,15 @@
+package de.qabel.chat.repository.entities
+
+import de.qabel.core.repository.framework.BaseEntity
+
+/**
+ * Encrypted drop message that has been received but not decrypted yet
+ *
+ * @param eTag eTag of the drop response the message was received with
+ */
+class ChatInboxMessage(val identityId: Int,
+                       val dropUrl: String,
+                       val eTag: String,
+                       val message: ByteArray,
+                       val receivedOn: Long,
+                       override var id: Int = 0) : BaseEntity
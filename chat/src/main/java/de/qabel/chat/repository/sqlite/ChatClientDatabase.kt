@@ -2,6 +2,8 @@ package de.qabel.chat.repository.sqlite
 
 import de.qabel.chat.repository.sqlite.migration.Migration1460997040ChatDropMessage
 import de.qabel.chat.repository.sqlite.migration.Migration1460997041ChatShares
+import de.qabel.chat.repository.sqlite.migration.Migration1487001200ChatDropMessageContentHash
+import de.qabel.chat.repository.sqlite.migration.Migration1487001300ChatInbox
 import de.qabel.core.repository.sqlite.DesktopClientDatabase
 import de.qabel.core.repository.sqlite.PragmaVersionAdapter
 import de.qabel.core.repository.sqlite.migration.AbstractMigration
@@ -13,6 +15,7 @@ open class ChatClientDatabase(connection: Connection) : DesktopClientDatabase(co
 
     override fun getMigrations(connection: Connection): Array<AbstractMigration> =
         super.getMigrations(connection) +
-            listOf(Migration1460997040ChatDropMessage(connection), Migration1460997041ChatShares(connection))
+            listOf(Migration1460997040ChatDropMessage(connection), Migration1460997041ChatShares(connection),
+                Migration1487001200ChatDropMessageContentHash(connection), Migration1487001300ChatInbox(connection))
 
 }
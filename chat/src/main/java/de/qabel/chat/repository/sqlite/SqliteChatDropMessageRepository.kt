@@ -10,28 +10,75 @@ import de.qabel.chat.repository.sqlite.adapter.ChatDropMessageAdapter
 import de.qabel.chat.repository.sqlite.adapter.ChatShareAdapter
 import de.qabel.chat.repository.sqlite.schemas.ChatDropMessageDB
 import de.qabel.chat.repository.sqlite.schemas.ChatDropMessageDB.CONTACT_ID
+import de.qabel.chat.repository.sqlite.schemas.ChatDropMessageDB.CONTENT_HASH
 import de.qabel.chat.repository.sqlite.schemas.ChatDropMessageDB.CREATED_ON
 import de.qabel.chat.repository.sqlite.schemas.ChatDropMessageDB.DIRECTION
 import de.qabel.chat.repository.sqlite.schemas.ChatDropMessageDB.IDENTITY_ID
-import de.qabel.chat.repository.sqlite.schemas.ChatDropMessageDB.PAYLOAD
-import de.qabel.chat.repository.sqlite.schemas.ChatDropMessageDB.PAYLOAD_TYPE
 import de.qabel.chat.repository.sqlite.schemas.ChatDropMessageDB.STATUS
 import de.qabel.chat.repository.sqlite.schemas.ChatShareDB
 import de.qabel.core.config.Contact
 import de.qabel.core.config.Identity
+import de.qabel.core.extensions.use
 import de.qabel.core.repository.EntityManager
-import de.qabel.core.repository.exception.EntityNotFoundException
 import de.qabel.core.repository.framework.BaseRepository
 import de.qabel.core.repository.framework.PagingResult
 import de.qabel.core.repository.framework.QueryBuilder
 import de.qabel.core.repository.sqlite.ClientDatabase
 import de.qabel.core.repository.sqlite.schemas.ContactDB
+import de.qabel.core.util.BloomFilter
+import org.spongycastle.util.encoders.Hex
 
 class SqliteChatDropMessageRepository(database: ClientDatabase,
                                       entityManager: EntityManager) :
     BaseRepository<ChatDropMessage>(ChatDropMessageDB, ChatDropMessageAdapter(), database, entityManager),
     ChatDropMessageRepository {
 
+    companion object {
+        private const val MIN_FILTER_CAPACITY = 1024
+    }
+
+    /**
+     * Content hashes of the stored messages, loaded on the first [exists] check.
+     * Deleted messages stay in the filter, they only cost an additional lookup.
+     */
+    private var contentHashes: BloomFilter? = null
+    private val contentHashesLock = Any()
+
+    override fun persist(model: ChatDropMessage) {
+        super.persist(model)
+        rememberContentHash(model.contentHash)
+    }
+
+    /**
+     * Inserts the messages in one transaction with a single prepared statement
+     */
+    override fun persistAll(messages: Collection<ChatDropMessage>) {
+        if (messages.isEmpty()) {
+            return
+        }
+        client.transactionManager.transactional {
+            client.prepare(insertStatement).use { statement ->
+                messages.forEach { message ->
+                    relation.applyValues(1, statement, message)
+                    statement.execute()
+                    statement.generatedKeys.use {
+                        it.next()
+                        message.id = it.getInt(1)
+                    }
+                }
+            }
+        }
+        messages.forEach {
+            entityManager.put(it.javaClass, it, it.id)
+            rememberContentHash(it.contentHash)
+        }
+    }
+
+    override fun update(model: ChatDropMessage) {
+        super.update(model)
+        rememberContentHash(model.contentHash)
+    }
+
     override fun createEntityQuery(): QueryBuilder =
         super.createEntityQuery().apply {
             select(ChatShareDB.ID)
@@ -64,6 +111,13 @@ class SqliteChatDropMessageRepository(database: ClientDatabase,
             return getResultList(this)
         }
 
+    override fun findPending(): List<ChatDropMessage> =
+        with(createEntityQuery()) {
+            whereAndEquals(DIRECTION, Direction.OUTGOING.type)
+            whereAndEquals(STATUS, Status.PENDING.type)
+            orderBy(CREATED_ON.exp(), QueryBuilder.Direction.ASCENDING)
+            return getResultList(this)
+        }
 
     override fun findLatest(identityId: Int): List<ChatDropMessage> =
         with(createEntityQuery()) {
@@ -81,20 +135,48 @@ class SqliteChatDropMessageRepository(database: ClientDatabase,
             return getResultList(this)
         }
 
-    override fun exists(chatDropMessage: ChatDropMessage): Boolean =
-        with(createEntityQuery()) {
-            whereAndEquals(IDENTITY_ID, chatDropMessage.identityId)
-            whereAndEquals(CONTACT_ID, chatDropMessage.contactId)
-            whereAndEquals(CREATED_ON, chatDropMessage.createdOn)
-            whereAndEquals(DIRECTION, chatDropMessage.direction.type)
-            whereAndEquals(PAYLOAD, chatDropMessage.payload.toString())
-            whereAndEquals(PAYLOAD_TYPE, chatDropMessage.messageType.type)
-            return try {
-                getSingleResult<ChatDropMessageDB>(this); true
-            } catch(ex: EntityNotFoundException) {
-                false
+    override fun exists(chatDropMessage: ChatDropMessage): Boolean {
+        val contentHash = chatDropMessage.contentHash
+        if (!mightExist(contentHash)) {
+            return false
+        }
+        val query = "SELECT 1 FROM " + relation.TABLE_NAME + " WHERE " + CONTENT_HASH.name + "=? LIMIT 1"
+        return client.prepare(query).use { statement ->
+            statement.setString(1, contentHash)
+            statement.executeQuery().use { it.next() }
+        }
+    }
+
+    private fun mightExist(contentHash: String): Boolean = synchronized(contentHashesLock) {
+        val filter = contentHashes ?: loadContentHashes()
+        filter.mightContain(Hex.decode(contentHash))
+    }
+
+    private fun rememberContentHash(contentHash: String) = synchronized(contentHashesLock) {
+        contentHashes?.let {
+            if (it.size < it.expectedInsertions) {
+                it.put(Hex.decode(contentHash))
+            } else {
+                // reload with a larger capacity to keep the false positive rate
+                contentHashes = null
             }
         }
+    }
+
+    private fun loadContentHashes(): BloomFilter {
+        val hashes = mutableListOf<String>()
+        client.prepare("SELECT " + CONTENT_HASH.name + " FROM " + relation.TABLE_NAME).use { statement ->
+            statement.executeQuery().use {
+                while (it.next()) {
+                    it.getString(1)?.let { hashes.add(it) }
+                }
+            }
+        }
+        return BloomFilter(Math.max(MIN_FILTER_CAPACITY, hashes.size * 2)).apply {
+            hashes.forEach { put(Hex.decode(it)) }
+            contentHashes = this
+        }
+    }
 
     override fun markAsRead(contact: Contact, identity: Identity) {
         val statement = "UPDATE " + relation.TABLE_NAME +
@@ -0,0 +1,60 @@
+package de.qabel.chat.repository.sqlite
+
+import de.qabel.chat.repository.ChatInboxRepository
+import de.qabel.chat.repository.entities.ChatInboxMessage
+import de.qabel.chat.repository.sqlite.adapter.ChatInboxAdapter
+import de.qabel.chat.repository.sqlite.schemas.ChatInboxDB
+import de.qabel.core.extensions.use
+import de.qabel.core.repository.EntityManager
+import de.qabel.core.repository.framework.BaseRepository
+import de.qabel.core.repository.sqlite.ClientDatabase
+
+class SqliteChatInboxRepository(database: ClientDatabase, entityManager: EntityManager) :
+    BaseRepository<ChatInboxMessage>(ChatInboxDB, ChatInboxAdapter(), database, entityManager),
+    ChatInboxRepository {
+
+    override fun persist(model: ChatInboxMessage) = persistAll(listOf(model))
+
+    /**
+     * Inserts the messages in one transaction with a single prepared statement
+     */
+    override fun persistAll(messages: Collection<ChatInboxMessage>) {
+        if (messages.isEmpty()) {
+            return
+        }
+        client.transactionManager.transactional {
+            client.prepare(insertStatement).use { statement ->
+                messages.forEach { message ->
+                    relation.applyValues(1, statement, message)
+                    statement.execute()
+                    statement.generatedKeys.use {
+                        it.next()
+                        message.id = it.getInt(1)
+                    }
+                }
+            }
+        }
+    }
+
+    override fun findQueuedIds(): List<Int> =
+        client.prepare("SELECT " + ChatInboxDB.ID.name + " FROM " + relation.TABLE_NAME +
+            " ORDER BY " + ChatInboxDB.ID.name).use { statement ->
+            statement.executeQuery().use {
+                val ids = mutableListOf<Int>()
+                while (it.next()) {
+                    ids.add(it.getInt(1))
+                }
+                ids
+            }
+        }
+
+    override fun deleteAll(ids: Collection<Int>) {
+        if (ids.isEmpty()) {
+            return
+        }
+        executeStatement("DELETE FROM " + relation.TABLE_NAME + " WHERE " + ChatInboxDB.ID.name +
+            " IN (" + ids.map { "?" }.joinToString(",") + ")", { statement ->
+            ids.forEachIndexed { i, id -> statement.setInt(i + 1, id) }
+        })
+    }
+}
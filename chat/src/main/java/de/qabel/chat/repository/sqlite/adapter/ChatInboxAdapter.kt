@@ -0,0 +1,23 @@
+package de.qabel.chat.repository.sqlite.adapter
+
+import de.qabel.chat.repository.entities.ChatInboxMessage
+import de.qabel.chat.repository.sqlite.schemas.ChatInboxDB
+import de.qabel.core.repository.EntityManager
+import de.qabel.core.repository.framework.ResultAdapter
+import java.sql.ResultSet
+
+/**
+ * Inbox messages are never put into the EntityManager, they are deleted once they have been processed
+ */
+class ChatInboxAdapter : ResultAdapter<ChatInboxMessage> {
+
+    override fun hydrateOne(resultSet: ResultSet, entityManager: EntityManager, detached: Boolean): ChatInboxMessage =
+        with(resultSet) {
+            ChatInboxMessage(getInt(ChatInboxDB.IDENTITY_ID.alias()),
+                getString(ChatInboxDB.DROP_URL.alias()),
+                getString(ChatInboxDB.ETAG.alias()),
+                getBytes(ChatInboxDB.MESSAGE.alias()),
+                getTimestamp(ChatInboxDB.RECEIVED_ON.alias()).time,
+                getInt(ChatInboxDB.ID.alias()))
+        }
+}
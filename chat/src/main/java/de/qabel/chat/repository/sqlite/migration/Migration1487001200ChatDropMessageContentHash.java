@@ -0,0 +1,82 @@
+package de.qabel.chat.repository.sqlite.migration;
+
+import de.qabel.chat.repository.entities.ChatDropMessage;
+import de.qabel.core.repository.sqlite.migration.AbstractMigration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Adds the content hash of chat messages, so already received messages are found by an index
+ * instead of comparing the whole payload. Duplicate incoming messages are removed before the
+ * unique index is created.
+ */
+public class Migration1487001200ChatDropMessageContentHash extends AbstractMigration {
+    private static final int BATCH_SIZE = 500;
+
+    private final Connection connection;
+
+    public Migration1487001200ChatDropMessageContentHash(Connection connection) {
+        super(connection);
+        this.connection = connection;
+    }
+
+    @Override
+    public long getVersion() {
+        return 1487001200L;
+    }
+
+    @Override
+    public void up() throws SQLException {
+        execute("ALTER TABLE chat_drop_message ADD COLUMN content_hash TEXT");
+        backfillContentHashes();
+        execute(
+            "DELETE FROM chat_drop_message WHERE direction = 0 AND id NOT IN (" +
+                "SELECT MIN(id) FROM chat_drop_message WHERE direction = 0 GROUP BY content_hash" +
+            ")"
+        );
+        execute("CREATE INDEX idx_chat_drop_message_content_hash ON chat_drop_message (content_hash)");
+        execute(
+            "CREATE UNIQUE INDEX idx_chat_drop_message_incoming_hash ON chat_drop_message (content_hash) " +
+                "WHERE direction = 0"
+        );
+    }
+
+    private void backfillContentHashes() throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT id, identity_id, contact_id, direction, payload_type, payload, created_on " +
+                    "FROM chat_drop_message");
+             PreparedStatement update = connection.prepareStatement(
+                 "UPDATE chat_drop_message SET content_hash = ? WHERE id = ?");
+             ResultSet resultSet = select.executeQuery()) {
+            int pending = 0;
+            while (resultSet.next()) {
+                String payload = resultSet.getString("payload");
+                update.setString(1, ChatDropMessage.contentHash(
+                    resultSet.getInt("identity_id"),
+                    resultSet.getInt("contact_id"),
+                    resultSet.getInt("direction"),
+                    resultSet.getString("payload_type"),
+                    payload == null ? "" : payload,
+                    resultSet.getTimestamp("created_on").getTime()));
+                update.setInt(2, resultSet.getInt("id"));
+                update.addBatch();
+                if (++pending == BATCH_SIZE) {
+                    update.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                update.executeBatch();
+            }
+        }
+    }
+
+    @Override
+    public void down() throws SQLException {
+        execute("DROP INDEX idx_chat_drop_message_incoming_hash");
+        execute("DROP INDEX idx_chat_drop_message_content_hash");
+    }
+}
@@ -0,0 +1,38 @@
+package de.qabel.chat.repository.sqlite.migration;
+
+import de.qabel.core.repository.sqlite.migration.AbstractMigration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+public class Migration1487001300ChatInbox extends AbstractMigration {
+
+    public Migration1487001300ChatInbox(Connection connection) {
+        super(connection);
+    }
+
+    @Override
+    public long getVersion() {
+        return 1487001300L;
+    }
+
+    @Override
+    public void up() throws SQLException {
+        execute(
+            "CREATE TABLE chat_inbox (" +
+                "id INTEGER PRIMARY KEY," +
+                "identity_id INTEGER NOT NULL," +
+                "drop_url TEXT NOT NULL," +
+                "etag TEXT NOT NULL," +
+                "message BLOB NOT NULL," +
+                "received_on TIMESTAMP NOT NULL," +
+                "FOREIGN KEY (identity_id) REFERENCES identity (id) ON DELETE CASCADE" +
+            ")"
+        );
+    }
+
+    @Override
+    public void down() throws SQLException {
+        execute("DROP TABLE chat_inbox");
+    }
+}
@@ -9,6 +9,7 @@ import de.qabel.core.repository.sqlite.hydrator.BaseEntityResultAdapter
 import java.sql.PreparedStatement
 import java.sql.ResultSet
 import java.sql.Timestamp
+import java.sql.Types
 
 object ChatDropMessageDB : DBRelation<ChatDropMessage> {
 
@@ -27,25 +28,31 @@ object ChatDropMessageDB : DBRelation<ChatDropMessage> {
     val PAYLOAD = field("payload")
 
     val CREATED_ON = field("created_on")
+    val CONTENT_HASH = field("content_hash")
 
     override val ENTITY_FIELDS = listOf(CONTACT_ID, IDENTITY_ID, DIRECTION, STATUS,
-        PAYLOAD_TYPE, PAYLOAD, CREATED_ON, SHARE_ID)
+        PAYLOAD_TYPE, PAYLOAD, CREATED_ON, CONTENT_HASH, SHARE_ID)
 
     override val ENTITY_CLASS: Class<ChatDropMessage> = ChatDropMessage::class.java
 
     override fun applyValues(startIndex: Int, statement: PreparedStatement, model: ChatDropMessage): Int =
         with(statement) {
             val payLoad = model.payload
+            val payloadString = payLoad.toString()
             var i = startIndex
             setInt(i++, model.contactId)
             setInt(i++, model.identityId)
             setInt(i++, model.direction.type)
             setInt(i++, model.status.type)
             setString(i++, model.messageType.type)
-            setString(i++, payLoad.toString())
+            setString(i++, payloadString)
             setTimestamp(i++, Timestamp(model.createdOn))
+            setString(i++, ChatDropMessage.contentHash(model.identityId, model.contactId, model.direction.type,
+                model.messageType.type, payloadString, model.createdOn))
             if (payLoad is MessagePayload.ShareMessage) {
                 setInt(i++, payLoad.shareData.id)
+            } else {
+                setNull(i++, Types.INTEGER)
             }
             return i
         }
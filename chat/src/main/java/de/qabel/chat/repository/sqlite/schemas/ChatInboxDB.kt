@@ -0,0 +1,35 @@
+package de.qabel.chat.repository.sqlite.schemas
+
+import de.qabel.chat.repository.entities.ChatInboxMessage
+import de.qabel.core.repository.framework.DBField
+import de.qabel.core.repository.framework.DBRelation
+import java.sql.PreparedStatement
+import java.sql.Timestamp
+
+object ChatInboxDB : DBRelation<ChatInboxMessage> {
+
+    override val TABLE_NAME = "chat_inbox"
+    override val TABLE_ALIAS = "ci"
+
+    override val ID: DBField = field("id")
+    val IDENTITY_ID = field("identity_id")
+    val DROP_URL = field("drop_url")
+    val ETAG = field("etag")
+    val MESSAGE = field("message")
+    val RECEIVED_ON = field("received_on")
+
+    override val ENTITY_FIELDS = listOf(IDENTITY_ID, DROP_URL, ETAG, MESSAGE, RECEIVED_ON)
+
+    override val ENTITY_CLASS: Class<ChatInboxMessage> = ChatInboxMessage::class.java
+
+    override fun applyValues(startIndex: Int, statement: PreparedStatement, model: ChatInboxMessage): Int =
+        with(statement) {
+            var i = startIndex
+            setInt(i++, model.identityId)
+            setString(i++, model.dropUrl)
+            setString(i++, model.eTag)
+            setBytes(i++, model.message)
+            setTimestamp(i++, Timestamp(model.receivedOn))
+            return i
+        }
+}
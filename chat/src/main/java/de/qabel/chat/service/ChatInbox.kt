@@ -0,0 +1,29 @@
+package de.qabel.chat.service
+
+import de.qabel.chat.repository.entities.ChatDropMessage
+import rx.Observable
+
+/**
+ * Receives incoming chat messages in two steps. A poll only stores the encrypted messages
+ * together with the eTag of their drop, the messages are decrypted and handled in the background.
+ * Queued messages stay in the inbox until they have been handled, so they can be resumed after a restart.
+ */
+interface ChatInbox {
+
+    /**
+     * Messages that have been decrypted and persisted, one list per handled batch
+     */
+    val receivedMessages: Observable<List<ChatDropMessage>>
+
+    /**
+     * Polls the drops that are due, or all drops if force is set, and queues the received messages
+     *
+     * @return emits the number of queued messages per drop response
+     */
+    fun poll(force: Boolean): Observable<Int>
+
+    /**
+     * Handles the messages that are still queued, e.g. after a restart
+     */
+    fun resumeQueued()
+}
@@ -0,0 +1,32 @@
+package de.qabel.chat.service
+
+import de.qabel.chat.repository.entities.ChatDropMessage
+import rx.Observable
+
+/**
+ * Sends outgoing chat messages in the background.
+ * Messages stay PENDING in the repository until they have been delivered,
+ * so they can be resumed after a restart.
+ */
+interface ChatOutbox {
+
+    /**
+     * Messages that have been delivered and marked as SENT
+     */
+    val sentMessages: Observable<ChatDropMessage>
+
+    /**
+     * Persists new messages and sends them in the background, retrying failed sends
+     */
+    fun enqueue(messages: Collection<ChatDropMessage>)
+
+    /**
+     * Enqueues all pending outgoing messages of the repository
+     */
+    fun resumePending()
+
+    /**
+     * Sends the message on the calling thread
+     */
+    fun send(message: ChatDropMessage)
+}
@@ -13,12 +13,35 @@ import rx.Observable
 interface ChatService {
 
     fun sendTextMessage(text : String, identity: Identity, contact : Contact) : Observable<ChatDropMessage>
+
+    /**
+     * Emits one persisted message per contact, the messages are sent in parallel by the outbox
+     */
+    fun sendTextMessage(text : String, identity: Identity, contacts : List<Contact>) : Observable<ChatDropMessage>
     fun sendShareMessage(text : String, identity: Identity, contact: Contact,
                          boxFile: BoxFile, boxNavigation: BoxNavigation) : Observable<ChatDropMessage>
 
 
     fun sendMessage(message: ChatDropMessage)
+
+    /**
+     * Sends the outgoing messages that are still pending, e.g. after a restart
+     */
+    fun resumePendingMessages()
     fun refreshMessages(): Map<String, List<ChatDropMessage>>
 
+    /**
+     * Polls the drops that are due and emits the new messages of each drop response
+     * once they have been persisted together
+     */
+    fun pollMessages(): Observable<List<ChatDropMessage>>
+
     fun handleDropUpdate(identity: Identity, dropState: DropState, messages: List<DropMessage>): List<ChatDropMessage>
+
+    /**
+     * Persists the new messages of the identity in one transaction, duplicates are ignored
+     *
+     * @return the persisted messages
+     */
+    fun handleMessages(identity: Identity, messages: List<DropMessage>): List<ChatDropMessage>
 }
@@ -0,0 +1,115 @@
+package de.qabel.chat.service
+
+import de.qabel.chat.repository.ChatInboxRepository
+import de.qabel.chat.repository.entities.ChatDropMessage
+import de.qabel.chat.repository.entities.ChatInboxMessage
+import de.qabel.core.config.Identity
+import de.qabel.core.drop.DropConnector
+import de.qabel.core.drop.DropMessage
+import de.qabel.core.drop.DropPoller
+import de.qabel.core.repository.DropStateRepository
+import de.qabel.core.repository.IdentityRepository
+import de.qabel.core.repository.TransactionManager
+import org.slf4j.LoggerFactory
+import rx.Observable
+import rx.Scheduler
+import rx.functions.Func1
+import rx.schedulers.Schedulers
+import rx.subjects.PublishSubject
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Inbox that acknowledges a poll as soon as the encrypted messages and the new drop state are persisted.
+ * Queued messages are decrypted and handled in batches of batchSize by up to workers batches at once.
+ * A batch is removed from the inbox after its messages have been handled, if handling fails it stays
+ * queued until [resumeQueued] is called again. Messages that are handled twice are deduplicated by the
+ * chat service.
+ */
+class MainChatInbox @JvmOverloads constructor(
+    private val chatService: ChatService,
+    private val dropConnector: DropConnector,
+    private val dropPoller: DropPoller,
+    private val identityRepository: IdentityRepository,
+    private val inboxRepository: ChatInboxRepository,
+    private val dropStateRepository: DropStateRepository,
+    private val transactionManager: TransactionManager,
+    private val workers: Int = Runtime.getRuntime().availableProcessors(),
+    private val batchSize: Int = DEFAULT_BATCH_SIZE,
+    private val scheduler: Scheduler = Schedulers.computation()
+) : ChatInbox {
+
+    companion object {
+        const val DEFAULT_BATCH_SIZE = 64
+
+        private val logger = LoggerFactory.getLogger(MainChatInbox::class.java)
+    }
+
+    private val received = PublishSubject.create<List<ChatDropMessage>>().toSerialized()
+    private val batches = PublishSubject.create<List<Int>>().toSerialized()
+    private val claimed: MutableSet<Int> = Collections.newSetFromMap(ConcurrentHashMap<Int, Boolean>())
+
+    override val receivedMessages: Observable<List<ChatDropMessage>> = received.asObservable()
+
+    init {
+        batches.onBackpressureBuffer()
+            .flatMap({ handleBatch(it) }, workers)
+            .subscribe({ received.onNext(it) }, { logger.error("Inbox failed", it) })
+    }
+
+    override fun poll(force: Boolean): Observable<Int> =
+        Observable.defer {
+            val drops = identityRepository.findAll().entities.flatMap { identity ->
+                identity.dropUrls.map { Pair(identity, it) }
+            }
+            dropPoller.pollEncrypted(drops, force) { identity, dropUrl, dropState, messages ->
+                val receivedOn = System.currentTimeMillis()
+                val entries = messages.map {
+                    ChatInboxMessage(identity.id, dropUrl.toString(), dropState.eTag, it, receivedOn)
+                }
+                transactionManager.transactional(Callable<Int> {
+                    inboxRepository.persistAll(entries)
+                    dropStateRepository.setDropState(dropState)
+                    entries.size
+                })
+            }.doOnCompleted { resumeQueued() }
+        }
+
+    override fun resumeQueued() {
+        val ids = inboxRepository.findQueuedIds().filter { claimed.add(it) }
+        var start = 0
+        while (start < ids.size) {
+            val end = Math.min(start + batchSize, ids.size)
+            batches.onNext(ids.subList(start, end))
+            start = end
+        }
+    }
+
+    private fun handleBatch(ids: List<Int>): Observable<List<ChatDropMessage>> =
+        Observable.fromCallable {
+            try {
+                val handled = inboxRepository.findByIds(ids).groupBy { it.identityId }.flatMap {
+                    val identity = identityRepository.find(it.key)
+                    chatService.handleMessages(identity, it.value.map { decrypt(identity, it) }.filterNotNull())
+                }
+                inboxRepository.deleteAll(ids)
+                handled
+            } finally {
+                claimed.removeAll(ids)
+            }
+        }.subscribeOn(scheduler)
+            .filter { !it.isEmpty() }
+            .onErrorResumeNext(Func1<Throwable, Observable<List<ChatDropMessage>>> { error ->
+                logger.warn("Cannot handle {} queued messages", ids.size, error)
+                Observable.empty()
+            })
+
+    private fun decrypt(identity: Identity, message: ChatInboxMessage): DropMessage? =
+        try {
+            dropConnector.decryptDropMessage(identity, message.message)
+        } catch (e: Exception) {
+            logger.warn("Cannot decrypt queued message {} of {}", message.id, message.dropUrl, e)
+            null
+        }
+}
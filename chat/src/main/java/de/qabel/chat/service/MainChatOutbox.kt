@@ -0,0 +1,139 @@
+package de.qabel.chat.service
+
+import de.qabel.chat.repository.ChatDropMessageRepository
+import de.qabel.chat.repository.entities.ChatDropMessage
+import de.qabel.chat.repository.entities.ChatDropMessage.Status
+import de.qabel.core.config.Contact
+import de.qabel.core.drop.DropConnector
+import de.qabel.core.drop.DropMessage
+import de.qabel.core.drop.DropMessageMetadata
+import de.qabel.core.drop.http.DropHttpClient
+import de.qabel.core.repository.ContactRepository
+import de.qabel.core.repository.IdentityRepository
+import org.slf4j.LoggerFactory
+import rx.Observable
+import rx.Scheduler
+import rx.functions.Action0
+import rx.functions.Func1
+import rx.schedulers.Schedulers
+import rx.subjects.PublishSubject
+import rx.subjects.Subject
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Outbox with one queue per drop server. Each queue encrypts and sends up to maxSendsPerServer
+ * messages at once on the scheduler, so a message to many contacts is not sent one after another.
+ * Failed sends are retried with exponential backoff. After maxAttempts the message stays PENDING
+ * until [resumePending] is called again.
+ */
+class MainChatOutbox @JvmOverloads constructor(
+    private val dropConnector: DropConnector,
+    private val identityRepository: IdentityRepository,
+    private val contactRepository: ContactRepository,
+    private val chatDropMessageRepository: ChatDropMessageRepository,
+    private val maxSendsPerServer: Int = DropHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+    private val maxAttempts: Int = DEFAULT_MAX_ATTEMPTS,
+    private val initialBackoffMillis: Long = DEFAULT_INITIAL_BACKOFF_MILLIS,
+    private val maxBackoffMillis: Long = DEFAULT_MAX_BACKOFF_MILLIS,
+    private val scheduler: Scheduler = Schedulers.io()
+) : ChatOutbox {
+
+    companion object {
+        const val DEFAULT_MAX_ATTEMPTS = 6
+        const val DEFAULT_INITIAL_BACKOFF_MILLIS = 1000L
+        const val DEFAULT_MAX_BACKOFF_MILLIS = 300000L
+
+        private val logger = LoggerFactory.getLogger(MainChatOutbox::class.java)
+    }
+
+    private class Delivery(val message: ChatDropMessage, val server: String, val attempt: Int)
+
+    private val sent = PublishSubject.create<ChatDropMessage>().toSerialized()
+    private val queues = HashMap<String, Subject<Delivery, Delivery>>()
+    private val queued: MutableSet<Int> = Collections.newSetFromMap(ConcurrentHashMap<Int, Boolean>())
+
+    override val sentMessages: Observable<ChatDropMessage> = sent.asObservable()
+
+    override fun enqueue(messages: Collection<ChatDropMessage>) {
+        messages.forEach { message ->
+            if (message.id == 0) {
+                chatDropMessageRepository.persist(message)
+            }
+            if (queued.add(message.id)) {
+                try {
+                    val server = contactRepository.find(message.contactId).dropUrls.first().uri.authority
+                    queue(server).onNext(Delivery(message, server, 0))
+                } catch (e: Exception) {
+                    queued.remove(message.id)
+                    logger.warn("Cannot enqueue message {}", message.id, e)
+                }
+            }
+        }
+    }
+
+    override fun resumePending() = enqueue(chatDropMessageRepository.findPending())
+
+    override fun send(message: ChatDropMessage) {
+        val sender = identityRepository.find(message.identityId)
+        val receiver = contactRepository.find(message.contactId)
+
+        val dropMessage = DropMessage(sender, message.payload.toString(), message.messageType.type)
+        var email = ""
+        var phone = ""
+        if (receiver.status != Contact.ContactStatus.UNKNOWN) {
+            email = sender.email ?: ""
+            phone = sender.phone ?: ""
+        }
+        dropMessage.dropMessageMetadata = DropMessageMetadata(sender.alias, sender.ecPublicKey,
+            sender.dropUrls.first(), email, phone)
+
+        if (message.id == 0) {
+            chatDropMessageRepository.persist(message)
+        }
+
+        logger.info("Send DropMessage...")
+        dropConnector.sendDropMessage(sender, receiver, dropMessage, receiver.dropUrls.first())
+        logger.info("DropMessage sent")
+        message.status = Status.SENT
+        chatDropMessageRepository.update(message)
+    }
+
+    private fun queue(server: String): Subject<Delivery, Delivery> = synchronized(queues) {
+        queues.getOrPut(server) {
+            PublishSubject.create<Delivery>().toSerialized().apply {
+                onBackpressureBuffer()
+                    .flatMap({ deliver(it) }, maxSendsPerServer)
+                    .subscribe({ sent.onNext(it) }, { logger.error("Outbox of {} failed", server, it) })
+            }
+        }
+    }
+
+    private fun deliver(delivery: Delivery): Observable<ChatDropMessage> =
+        Observable.fromCallable {
+            send(delivery.message)
+            delivery.message
+        }.subscribeOn(scheduler)
+            .doOnNext { queued.remove(it.id) }
+            .onErrorResumeNext(Func1<Throwable, Observable<ChatDropMessage>> { error ->
+                retry(delivery, error)
+                Observable.empty()
+            })
+
+    private fun retry(delivery: Delivery, error: Throwable) {
+        val attempt = delivery.attempt + 1
+        if (attempt >= maxAttempts) {
+            logger.warn("Giving up sending message {} after {} attempts", delivery.message.id, attempt, error)
+            queued.remove(delivery.message.id)
+            return
+        }
+        val backoff = Math.min(maxBackoffMillis, initialBackoffMillis shl Math.min(delivery.attempt, 30))
+        logger.info("Sending message {} failed, retry in {}ms", delivery.message.id, backoff, error)
+        val worker = scheduler.createWorker()
+        worker.schedule(Action0 {
+            worker.unsubscribe()
+            queue(delivery.server).onNext(Delivery(delivery.message, delivery.server, attempt))
+        }, backoff, TimeUnit.MILLISECONDS)
+    }
+}
@@ -7,37 +7,53 @@ import de.qabel.chat.repository.entities.ChatDropMessage
 import de.qabel.chat.repository.entities.ChatDropMessage.*
 import de.qabel.core.config.Contact
 import de.qabel.core.config.Identity
+import de.qabel.core.contacts.ContactData
+import de.qabel.core.contacts.SenderContactResolver
 import de.qabel.core.drop.DropConnector
 import de.qabel.core.drop.DropMessage
-import de.qabel.core.drop.DropMessageMetadata
+import de.qabel.core.drop.DropPoller
 import de.qabel.core.repository.ContactRepository
 import de.qabel.core.repository.DropStateRepository
 import de.qabel.core.repository.IdentityRepository
+import de.qabel.core.repository.TransactionManager
 import de.qabel.core.repository.entities.DropState
-import de.qabel.core.repository.exception.EntityNotFoundException
+import de.qabel.core.repository.exception.PersistenceException
 import de.qabel.core.util.DefaultHashMap
 import org.slf4j.LoggerFactory
 import rx.Observable
 import rx.Scheduler
 import rx.lang.kotlin.observable
+import java.util.*
+import java.util.concurrent.Callable
 
 
 open class MainChatService(val dropConnector: DropConnector, val identityRepository: IdentityRepository, val contactRepository: ContactRepository,
                            val chatDropMessageRepository: ChatDropMessageRepository, val dropStateRepository: DropStateRepository,
-                           val sharingService: SharingService, val ioScheduler : Scheduler) : ChatService {
+                           val sharingService: SharingService, val ioScheduler : Scheduler,
+                           val transactionManager: TransactionManager,
+                           val dropPoller: DropPoller = DropPoller(dropConnector, dropStateRepository),
+                           val outbox: ChatOutbox = MainChatOutbox(dropConnector, identityRepository,
+                               contactRepository, chatDropMessageRepository),
+                           val senderResolver: SenderContactResolver = SenderContactResolver(contactRepository,
+                               identityRepository)) : ChatService {
 
     companion object {
         private val logger = LoggerFactory.getLogger(MainChatService::class.java)
     }
 
     override fun sendTextMessage(text: String, identity: Identity, contact: Contact): Observable<ChatDropMessage> =
-        observable<ChatDropMessage> { subscriber ->
-            val textMessage = createOutgoingMessage(identity, contact,
-                MessageType.BOX_MESSAGE, MessagePayload.TextMessage(text))
-            chatDropMessageRepository.persist(textMessage)
+        sendTextMessage(text, identity, listOf(contact))
 
-            subscriber.onNext(textMessage)
-            sendMessage(textMessage)
+    override fun sendTextMessage(text: String, identity: Identity, contacts: List<Contact>): Observable<ChatDropMessage> =
+        observable<ChatDropMessage> { subscriber ->
+            val textMessages = contacts.map {
+                createOutgoingMessage(identity, it, MessageType.BOX_MESSAGE, MessagePayload.TextMessage(text))
+            }
+            textMessages.forEach {
+                chatDropMessageRepository.persist(it)
+                subscriber.onNext(it)
+            }
+            outbox.enqueue(textMessages)
             subscriber.onCompleted()
         }.subscribeOn(ioScheduler)
 
@@ -48,7 +64,7 @@ open class MainChatService(val dropConnector: DropConnector, val identityReposit
                 MessagePayload.ShareMessage(text, boxShare))
             chatDropMessageRepository.persist(shareMessage)
             subscriber.onNext(shareMessage)
-            sendMessage(shareMessage)
+            outbox.enqueue(listOf(shareMessage))
             subscriber.onCompleted()
         }.subscribeOn(ioScheduler)
 
@@ -60,99 +76,132 @@ open class MainChatService(val dropConnector: DropConnector, val identityReposit
             System.currentTimeMillis())
 
 
-    override fun sendMessage(message: ChatDropMessage) {
-        val sender = identityRepository.find(message.identityId)
-        val receiver = contactRepository.find(message.contactId)
+    override fun sendMessage(message: ChatDropMessage) = outbox.send(message)
 
-        val dropMessage = message.toDropMessage(sender)
-        var email = ""
-        var phone = ""
-        if (receiver.status != Contact.ContactStatus.UNKNOWN) {
-            email = sender.email ?: ""
-            phone = sender.phone ?: ""
-        }
-        dropMessage.dropMessageMetadata = DropMessageMetadata(sender.alias, sender.ecPublicKey,
-            sender.dropUrls.first(), email, phone)
-
-        if (message.id == 0) {
-            chatDropMessageRepository.persist(message)
-        }
-
-        logger.info("Send DropMessage...")
-        dropConnector.sendDropMessage(sender, receiver, dropMessage, receiver.dropUrls.first())
-        logger.info("DropMessage sent")
-        message.status = Status.SENT
-        chatDropMessageRepository.update(message)
-    }
+    override fun resumePendingMessages() = outbox.resumePending()
 
     override fun refreshMessages(): Map<String, List<ChatDropMessage>> {
         val resultMap = DefaultHashMap<String, MutableList<ChatDropMessage>>({ mutableListOf() })
-        identityRepository.findAll().entities.forEach { identity ->
-            identity.dropUrls.forEach { dropUrl ->
-                val dropState = dropStateRepository.getDropState(dropUrl)
-                logger.info("Fetching DropMessages from {} with eTag {}", dropState.drop, dropState.eTag)
-                try {
-                    val dropResult = dropConnector.receiveDropMessages(identity, dropUrl, dropState)
-                    val newMessages = handleDropUpdate(identity, dropResult.dropState, dropResult.dropMessages)
-
-                    resultMap.getOrDefault(identity.keyIdentifier).addAll(newMessages)
-                } catch(ex: Throwable) {
-                    logger.warn("Cannot receive messages from {}", dropState.drop, ex)
-                }
+        try {
+            receiveMessages(true).toBlocking().forEach {
+                resultMap.getOrDefault(it.first.keyIdentifier).addAll(it.second)
             }
+        } catch(ex: Throwable) {
+            logger.warn("Cannot refresh messages", ex)
         }
         return resultMap.filter { !it.value.isEmpty() }
     }
 
+    override fun pollMessages(): Observable<List<ChatDropMessage>> = receiveMessages(false).map { it.second }
+
+    /**
+     * Messages are persisted while the drops are still downloaded and decrypted,
+     * the messages of each drop response in one transaction.
+     * The drop states are saved once all drops have been handled.
+     */
+    private fun receiveMessages(force: Boolean): Observable<Pair<Identity, List<ChatDropMessage>>> =
+        Observable.defer {
+            val drops = identityRepository.findAll().entities.flatMap { identity ->
+                identity.dropUrls.map { Pair(identity, it) }
+            }
+            dropPoller.pollBatches(drops, force) { identity, dropMessages ->
+                handleMessages(identity, dropMessages).let { if (it.isEmpty()) null else Pair(identity, it) }
+            }
+        }.subscribeOn(ioScheduler)
+
     override fun handleDropUpdate(identity: Identity, dropState: DropState, messages: List<DropMessage>): List<ChatDropMessage> {
-        val resultList = mutableListOf<ChatDropMessage>()
-        messages.forEach {
-            getMessageContact(it, identity)?.apply {
-                try {
-                    val message = it.toChatDropMessage(identity, this)
-                    if (!chatDropMessageRepository.exists(message)) {
-                        if (message.payload is MessagePayload.ShareMessage) {
-                            message.payload.apply {
-                                shareData = sharingService.getOrCreateIncomingShare(identity, message, message.payload)
-                            }
+        val resultList = handleMessages(identity, messages) { dropStateRepository.setDropState(dropState) }
+        logger.info("Handle DropMessages ({}) from {} with eTag {}", messages.size,
+            dropState.drop, dropState.eTag)
+        return resultList
+    }
+
+    override fun handleMessages(identity: Identity, messages: List<DropMessage>): List<ChatDropMessage> =
+        handleMessages(identity, messages, {})
+
+    /**
+     * Persists the new messages, contacts and shares of one drop response in a single transaction.
+     * If that fails, the messages are handled one by one so a single broken message does not drop the others.
+     *
+     * @param afterPersist is called after the messages have been persisted, in the same transaction
+     * @return the persisted messages
+     */
+    private fun handleMessages(identity: Identity, dropMessages: List<DropMessage>,
+                               afterPersist: () -> Unit = {}): List<ChatDropMessage> =
+        try {
+            transactionManager.transactional(Callable<List<ChatDropMessage>> {
+                val contentHashes = HashSet<String>()
+                val senders = senderResolver.resolve(dropMessages.map { it.senderKeyId })
+                val messages = dropMessages.map { prepareMessage(identity, it, senders) }.filterNotNull()
+                    .filter { contentHashes.add(it.contentHash) }
+                chatDropMessageRepository.persistAll(messages)
+                afterPersist()
+                messages
+            })
+        } catch (ex: PersistenceException) {
+            logger.warn("Cannot persist {} DropMessages at once, handling them one by one", dropMessages.size, ex)
+            dropMessages.map { handleMessage(identity, it) }.filterNotNull().apply { afterPersist() }
+        }
+
+    /**
+     * @return the persisted message or null if it has been ignored
+     */
+    private fun handleMessage(identity: Identity, dropMessage: DropMessage): ChatDropMessage? =
+        prepareMessage(identity, dropMessage, senderResolver.resolve(listOf(dropMessage.senderKeyId)))?.apply {
+            chatDropMessageRepository.persist(this)
+        }
+
+    /**
+     * @return the new message with its share, or null if it is a duplicate or cannot be parsed
+     */
+    private fun prepareMessage(identity: Identity, dropMessage: DropMessage,
+                               senders: MutableMap<String, ContactData>): ChatDropMessage? =
+        getMessageContact(dropMessage, identity, senders)?.let { contact ->
+            try {
+                val message = dropMessage.toChatDropMessage(identity, contact)
+                if (!chatDropMessageRepository.exists(message)) {
+                    if (message.payload is MessagePayload.ShareMessage) {
+                        message.payload.apply {
+                            shareData = sharingService.getOrCreateIncomingShare(identity, message, message.payload)
                         }
-                        chatDropMessageRepository.persist(message)
-                        resultList.add(message)
-                    } else {
-                        logger.debug("Ignoring duplicated msg to " + identity.keyIdentifier)
                     }
-                } catch (ex: Throwable) {
-                    logger.error("Error parsing DropMessage ${it.dropPayloadType}${it.dropPayload}")
+                    message
+                } else {
+                    logger.debug("Ignoring duplicated msg to " + identity.keyIdentifier)
+                    null
                 }
+            } catch (ex: Throwable) {
+                logger.error("Error parsing DropMessage ${dropMessage.dropPayloadType}${dropMessage.dropPayload}")
+                null
             }
         }
-        dropStateRepository.setDropState(dropState)
-        logger.info("Handle DropMessages ({}) from {} with eTag {}", messages.size,
-            dropState.drop, dropState.eTag)
-        return resultList
-    }
 
-    private fun getMessageContact(dropMessage: DropMessage, identity: Identity): Contact? = try {
-        val contactDetails = contactRepository.findContactWithIdentities(dropMessage.senderKeyId)
+    /**
+     * @param senders resolved senders of the messages, updated with the contacts created here
+     */
+    private fun getMessageContact(dropMessage: DropMessage, identity: Identity,
+                                  senders: MutableMap<String, ContactData>): Contact? {
+        val contactDetails = senders[dropMessage.senderKeyId] ?:
+            //If DropMessageMetadata is given, we create a new unknown contact
+            return dropMessage.dropMessageMetadata?.let {
+                val contact = it.toContact()
+                contact.status = Contact.ContactStatus.UNKNOWN
+                contactRepository.save(contact, identity)
+                senders.put(contact.keyIdentifier, ContactData(contact, listOf(identity), false))
+                contact
+            }
         //Filter ignored
-        if (contactDetails.contact.isIgnored) null
+        return if (contactDetails.contact.isIgnored) null
         //Dont receive messages from known identities
         else if (contactDetails.isIdentity) null
         //Add connection if required, TODO currently in discussion #629
         else if (!contactDetails.identities.contains(identity)) {
             contactRepository.save(contactDetails.contact, identity)
+            senders.put(dropMessage.senderKeyId, contactDetails.copy(identities = contactDetails.identities + identity))
             contactDetails.contact
         } else {
             contactDetails.contact
         }
-    } catch (ex: EntityNotFoundException) {
-        //If DropMessageMetadata is given, we create a new unknown contact
-        dropMessage.dropMessageMetadata?.let {
-            val contact = it.toContact()
-            contact.status = Contact.ContactStatus.UNKNOWN
-            contactRepository.save(contact, identity)
-            contact
-        }
     }
 
     fun ChatDropMessage.toDropMessage(identity: Identity): DropMessage =
@@ -2,6 +2,7 @@ package de.qabel.chat.service
 
 import de.qabel.box.storage.*
 import de.qabel.box.storage.exceptions.QblStorageException
+import de.qabel.box.storage.exceptions.QblStorageInvalidKey
 import de.qabel.box.storage.exceptions.QblStorageNotFound
 import de.qabel.chat.repository.ChatShareRepository
 import de.qabel.chat.repository.entities.BoxFileChatShare
@@ -12,6 +13,7 @@ import de.qabel.core.config.Identity
 import de.qabel.core.config.SymmetricKey
 import de.qabel.core.crypto.CryptoUtils
 import de.qabel.core.repository.ContactRepository
+import org.spongycastle.crypto.InvalidCipherTextException
 import org.spongycastle.crypto.params.KeyParameter
 import java.io.File
 import java.io.IOException
@@ -23,7 +25,7 @@ class MainSharingService(private val chatShareRepository: ChatShareRepository,
                          private val contactRepository: ContactRepository,
                          private val tmpDir: File,
                          private val fileMetadataFactory: FileMetadataFactory,
-                         private val cryptoUtils: CryptoUtils = CryptoUtils()
+                         private val cryptoUtils: CryptoUtils = CryptoUtils.getInstance()
                          ) : SharingService {
 
     override fun getOrCreateOutgoingShare(identity: Identity, contact: Contact,
@@ -122,11 +124,15 @@ class MainSharingService(private val chatShareRepository: ChatShareRepository,
             identity.id)
 
     private fun downloadFileMetadata(share: BoxFileChatShare, boxReadBackend: StorageReadBackend): BoxExternalFile {
-        val tmpFile = createTempFile("tmp_", "_fm", tmpDir)
-        boxReadBackend.download(share.metaUrl, null).use({ download ->
-            cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(download.inputStream,
-                tmpFile, KeyParameter(share.metaKey.toByteArray()))
-        })
+        val plaintext = try {
+            boxReadBackend.download(share.metaUrl, null).use { download ->
+                cryptoUtils.decryptAuthenticatedSymmetric(download.inputStream,
+                    KeyParameter(share.metaKey.toByteArray()), tmpDir)
+            }
+        } catch (e: InvalidCipherTextException) {
+            throw QblStorageInvalidKey(e)
+        }
+        val tmpFile = plaintext.use { createTempFile("tmp_", "_fm", tmpDir).apply { it.writeTo(this) } }
         return fileMetadataFactory.open(tmpFile).file
     }
 }
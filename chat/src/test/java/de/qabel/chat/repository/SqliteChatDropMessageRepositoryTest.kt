@@ -29,6 +29,7 @@ import org.hamcrest.Matchers.*
 import org.junit.Assert.*
 import org.junit.Test
 import java.sql.Connection
+import java.sql.SQLException
 import java.util.*
 
 class SqliteChatDropMessageRepositoryTest : AbstractSqliteRepositoryTest<ChatDropMessageRepository>() {
@@ -164,7 +165,7 @@ class SqliteChatDropMessageRepositoryTest : AbstractSqliteRepositoryTest<ChatDro
 
     @Test
     fun testFindNew() {
-        val msgA = message.copy(status = Status.NEW)
+        val msgA = message.copy(status = Status.NEW, createdOn = now + 1)
         val msgB = message.copy(status = Status.NEW, contactId = contactB.id)
         dropRepo.persist(msgA)
         dropRepo.persist(msgB)
@@ -175,10 +176,22 @@ class SqliteChatDropMessageRepositoryTest : AbstractSqliteRepositoryTest<ChatDro
         assertThat(result, containsInAnyOrder(msgA, msgB))
     }
 
+    @Test
+    fun testFindPending() {
+        val later = message.copy(direction = Direction.OUTGOING, status = Status.PENDING, createdOn = now + 1)
+        val earlier = message.copy(direction = Direction.OUTGOING, status = Status.PENDING, contactId = contactB.id)
+        dropRepo.persist(later)
+        dropRepo.persist(earlier)
+        dropRepo.persist(message.copy(direction = Direction.OUTGOING, status = Status.SENT))
+        dropRepo.persist(message)
+
+        assertThat(dropRepo.findPending(), contains(earlier, later))
+    }
+
     @Test
     fun testMarkAsRead() {
-        val msgA = message.copy(status = Status.NEW)
-        val msgB = message.copy(status = Status.NEW)
+        val msgA = message.copy(status = Status.NEW, createdOn = now + 1)
+        val msgB = message.copy(status = Status.NEW, createdOn = now + 2)
         dropRepo.persist(msgA)
         dropRepo.persist(msgB)
         dropRepo.persist(message)
@@ -198,6 +211,67 @@ class SqliteChatDropMessageRepositoryTest : AbstractSqliteRepositoryTest<ChatDro
         assertFalse(dropRepo.exists(message))
     }
 
+    @Test
+    fun testExistsIgnoresStatus() {
+        dropRepo.persist(message)
+        assertTrue(dropRepo.exists(message.copy(status = Status.NEW, id = 0)))
+        assertFalse(dropRepo.exists(message.copy(createdOn = now + 1)))
+        assertFalse(dropRepo.exists(message.copy(payload = createTextPayload("other"))))
+    }
+
+    @Test
+    fun testExistsAfterUpdate() {
+        dropRepo.persist(message)
+        assertFalse(dropRepo.exists(message.copy(payload = createTextPayload("barfoo"))))
+
+        message = message.copy(payload = createTextPayload("barfoo"))
+        dropRepo.update(message)
+
+        assertTrue(dropRepo.exists(message))
+    }
+
+    @Test
+    fun testExistsWithReloadedRepository() {
+        dropRepo.persist(message)
+        val reloaded = SqliteChatDropMessageRepository(clientDatabase, EntityManager())
+        assertTrue(reloaded.exists(message))
+    }
+
+    @Test(expected = SQLException::class)
+    fun testPreventsDuplicateIncomingMessages() {
+        dropRepo.persist(message)
+        dropRepo.persist(message.copy(id = 0))
+    }
+
+    @Test
+    fun testAllowsDuplicateOutgoingMessages() {
+        val outgoing = message.copy(direction = Direction.OUTGOING, status = Status.PENDING)
+        dropRepo.persist(outgoing)
+        dropRepo.persist(outgoing.copy(id = 0))
+        assertThat(dropRepo.findPending(), hasSize(2))
+    }
+
+    @Test
+    fun testPersistAll() {
+        val messages = (0 until 3).map { message.copy(payload = createTextPayload("msg" + it)) }
+        dropRepo.persistAll(messages)
+
+        messages.forEach { assertMessageEquals(it, dropRepo.findById(it.id)) }
+        assertThat(messages.map { it.id }.toSet(), hasSize(3))
+        assertTrue(dropRepo.exists(messages.last()))
+    }
+
+    @Test
+    fun testPersistAllIsAtomic() {
+        dropRepo.persist(message)
+        try {
+            dropRepo.persistAll(listOf(message.copy(createdOn = now + 1, id = 0), message.copy(id = 0)))
+            fail("duplicate message persisted")
+        } catch (expected: Exception) {
+        }
+        assertThat(dropRepo.findByContact(contactA.id, identityA.id), hasSize(1))
+    }
+
     @Test
     fun testFindWithShare(){
         dropRepo.persist(message)
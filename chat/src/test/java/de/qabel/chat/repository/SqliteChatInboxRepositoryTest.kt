@@ -0,0 +1,64 @@
+package de.qabel.chat.repository
+
+import de.qabel.chat.repository.entities.ChatInboxMessage
+import de.qabel.chat.repository.sqlite.ChatClientDatabase
+import de.qabel.chat.repository.sqlite.SqliteChatInboxRepository
+import de.qabel.core.config.Identity
+import de.qabel.core.extensions.CoreTestCase
+import de.qabel.core.extensions.createIdentity
+import de.qabel.core.repository.AbstractSqliteRepositoryTest
+import de.qabel.core.repository.EntityManager
+import de.qabel.core.repository.sqlite.ClientDatabase
+import de.qabel.core.repository.sqlite.SqliteIdentityRepository
+import org.hamcrest.Matchers.*
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertThat
+import org.junit.Test
+import java.sql.Connection
+
+class SqliteChatInboxRepositoryTest : AbstractSqliteRepositoryTest<ChatInboxRepository>(), CoreTestCase {
+
+    val identity: Identity = createIdentity("Bob")
+
+    override fun createDatabase(connection: Connection): ClientDatabase = ChatClientDatabase(connection)
+
+    override fun createRepo(clientDatabase: ClientDatabase, em: EntityManager): ChatInboxRepository {
+        SqliteIdentityRepository(clientDatabase, em).save(identity)
+        return SqliteChatInboxRepository(clientDatabase, em)
+    }
+
+    private fun createMessage(content: String) =
+        ChatInboxMessage(identity.id, identity.helloDropUrl.toString(), "etag", content.toByteArray(), 1000L)
+
+    @Test
+    fun testPersist() {
+        val message = createMessage("encrypted")
+        repo.persist(message)
+
+        val loaded = repo.findById(message.id)
+        assertThat(loaded.identityId, equalTo(identity.id))
+        assertThat(loaded.dropUrl, equalTo(message.dropUrl))
+        assertThat(loaded.eTag, equalTo("etag"))
+        assertArrayEquals(message.message, loaded.message)
+        assertThat(loaded.receivedOn, equalTo(1000L))
+    }
+
+    @Test
+    fun testPersistAll() {
+        val messages = (0 until 3).map { createMessage("encrypted$it") }
+        repo.persistAll(messages)
+
+        assertThat(messages.map { it.id }, not(hasItem(0)))
+        assertThat(repo.findQueuedIds(), equalTo(messages.map { it.id }))
+    }
+
+    @Test
+    fun testDeleteAll() {
+        val messages = (0 until 3).map { createMessage("encrypted$it") }
+        repo.persistAll(messages)
+
+        repo.deleteAll(messages.take(2).map { it.id })
+
+        assertThat(repo.findQueuedIds(), contains(messages.last().id))
+    }
+}
@@ -7,23 +7,28 @@ import de.qabel.chat.repository.entities.BoxFileChatShare
 import de.qabel.chat.repository.entities.ChatDropMessage
 import de.qabel.core.repository.exception.EntityNotFoundException
 import de.qabel.core.repository.framework.PagingResult
+import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
 
 open class InMemoryChatDropMessageRepository : ChatDropMessageRepository {
 
-    val messages = mutableListOf<ChatDropMessage>()
+    val messages: MutableList<ChatDropMessage> = Collections.synchronizedList(mutableListOf<ChatDropMessage>())
+    private val nextId = AtomicInteger(1)
+
     override fun findByIds(ids: List<Int>): List<ChatDropMessage> =
         messages.filter { ids.contains(it.id) }
 
-    override fun findById(id: Int): ChatDropMessage = messages.find { it.id == id } ?: throw EntityNotFoundException("ChatDropMessage not found")
+    override fun findById(id: Int): ChatDropMessage = messages.toList().find { it.id == id } ?: throw EntityNotFoundException("ChatDropMessage not found")
 
     override fun persist(model: ChatDropMessage) {
-        model.id = messages.size + 1
+        model.id = nextId.getAndIncrement()
         messages.add(model)
     }
 
     override fun update(model: ChatDropMessage) {
-        delete(model.id)
-        persist(model)
+        synchronized(messages) {
+            messages[messages.indexOf(findById(model.id))] = model
+        }
     }
 
     override fun delete(id: Int) {
@@ -42,6 +47,10 @@ open class InMemoryChatDropMessageRepository : ChatDropMessageRepository {
     override fun findNew(identityId: Int): List<ChatDropMessage> =
         messages.filter { it.identityId == identityId && it.status == ChatDropMessage.Status.NEW }
 
+    override fun findPending(): List<ChatDropMessage> =
+        messages.toList().filter { it.direction == ChatDropMessage.Direction.OUTGOING && it.status == ChatDropMessage.Status.PENDING }
+            .sortedBy { it.createdOn }
+
     override fun findLatest(identityId: Int): List<ChatDropMessage> {
         val latest = mutableMapOf<Int, ChatDropMessage>()
         messages.forEach {
@@ -0,0 +1,38 @@
+package de.qabel.chat.repository.inmemory
+
+import de.qabel.chat.repository.ChatInboxRepository
+import de.qabel.chat.repository.entities.ChatInboxMessage
+import de.qabel.core.repository.exception.EntityNotFoundException
+import java.util.*
+
+class InMemoryChatInboxRepository : ChatInboxRepository {
+
+    private val messages = TreeMap<Int, ChatInboxMessage>()
+    private var nextId = 1
+
+    @Synchronized override fun findById(id: Int): ChatInboxMessage =
+        messages[id] ?: throw EntityNotFoundException("ChatInboxMessage $id not found")
+
+    @Synchronized override fun findByIds(ids: List<Int>): List<ChatInboxMessage> =
+        ids.map { messages[it] }.filterNotNull()
+
+    @Synchronized override fun persist(model: ChatInboxMessage) {
+        model.id = nextId++
+        messages.put(model.id, model)
+    }
+
+    @Synchronized override fun persistAll(messages: Collection<ChatInboxMessage>) = messages.forEach { persist(it) }
+
+    @Synchronized override fun update(model: ChatInboxMessage) {
+        findById(model.id)
+        messages.put(model.id, model)
+    }
+
+    @Synchronized override fun delete(id: Int) {
+        messages.remove(id)
+    }
+
+    @Synchronized override fun findQueuedIds(): List<Int> = messages.keys.toList()
+
+    @Synchronized override fun deleteAll(ids: Collection<Int>) = ids.forEach { delete(it) }
+}
@@ -0,0 +1,70 @@
+package de.qabel.chat.repository.sqlite.migration
+
+import de.qabel.chat.repository.entities.ChatDropMessage
+import de.qabel.chat.repository.sqlite.ChatClientDatabase
+import de.qabel.core.repository.sqlite.migration.AbstractMigrationTest
+import org.junit.Assert.*
+import org.junit.Test
+import java.sql.Connection
+import java.sql.SQLException
+
+class Migration1487001200ChatDropMessageContentHashTest : AbstractMigrationTest() {
+    override fun createMigration(connection: Connection) = Migration1487001200ChatDropMessageContentHash(connection)
+
+    override fun initialVersion() = 0L
+
+    override fun setUp() {
+        super.setUp()
+        ChatClientDatabase(connection).migrateTo(migration.version - 1)
+        execute("INSERT INTO contact (id, alias, publicKey) VALUES (2, 'alias', 'pub')")
+        execute("INSERT INTO identity (id, contact_id, privateKey) VALUES (1, 2, 'priv')")
+        insertMessage(1, 0, "{\"msg\":\"hello\"}")
+        insertMessage(2, 0, "{\"msg\":\"hello\"}")
+        insertMessage(3, 1, "{\"msg\":\"hello\"}")
+        insertMessage(4, 1, "{\"msg\":\"hello\"}")
+        insertMessage(5, 0, "{\"msg\":\"other\"}")
+    }
+
+    private fun insertMessage(id: Int, direction: Int, payload: String) =
+        execute("INSERT INTO chat_drop_message (id, contact_id, identity_id, status, direction, payload_type, " +
+            "payload, created_on) VALUES ($id, 2, 1, 0, $direction, 'box_message', '$payload', 1000)")
+
+    @Test
+    fun backfillsContentHash() {
+        migration.up()
+        query("SELECT content_hash FROM chat_drop_message WHERE id = 5") { result ->
+            assertTrue("no result found", result.next())
+            assertEquals(ChatDropMessage.contentHash(1, 2, 0, "box_message", "{\"msg\":\"other\"}", 1000),
+                result.getString(1))
+        }
+    }
+
+    @Test
+    fun removesDuplicateIncomingMessages() {
+        migration.up()
+        val ids = mutableListOf<Int>()
+        query("SELECT id FROM chat_drop_message ORDER BY id") { result ->
+            while (result.next()) {
+                ids.add(result.getInt(1))
+            }
+        }
+        assertEquals(listOf(1, 3, 4, 5), ids)
+    }
+
+    @Test(expected = SQLException::class)
+    fun preventsDuplicateIncomingMessages() {
+        migration.up()
+        execute("INSERT INTO chat_drop_message (contact_id, identity_id, status, direction, payload_type, " +
+            "payload, created_on, content_hash) SELECT contact_id, identity_id, status, direction, payload_type, " +
+            "payload, created_on, content_hash FROM chat_drop_message WHERE id = 5")
+    }
+
+    @Test
+    fun downRemovesIndexes() {
+        migration.up()
+        migration.down()
+        insertMessage(6, 0, "{\"msg\":\"other\"}")
+        execute("UPDATE chat_drop_message SET content_hash = (SELECT content_hash FROM chat_drop_message WHERE id = 5) " +
+            "WHERE id = 6")
+    }
+}
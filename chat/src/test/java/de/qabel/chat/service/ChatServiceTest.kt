@@ -10,6 +10,7 @@ import de.qabel.core.config.Identity
 import de.qabel.core.crypto.CryptoUtils
 import de.qabel.core.drop.DropConnector
 import de.qabel.core.drop.DropMessage
+import de.qabel.core.drop.DropMessageMetadata
 import de.qabel.core.drop.MainDropConnector
 import de.qabel.core.extensions.CoreTestCase
 import de.qabel.core.extensions.createContact
@@ -20,6 +21,7 @@ import de.qabel.core.repository.entities.DropState
 import de.qabel.core.repository.inmemory.InMemoryContactRepository
 import de.qabel.core.repository.inmemory.InMemoryDropStateRepository
 import de.qabel.core.repository.inmemory.InMemoryIdentityRepository
+import de.qabel.core.repository.inmemory.InMemoryTransactionManager
 import org.hamcrest.Matchers.*
 import org.junit.Assert.assertThat
 import org.junit.Before
@@ -40,7 +42,8 @@ class ChatServiceTest : CoreTestCase {
     val chatDropRepoA = de.qabel.chat.repository.inmemory.InMemoryChatDropMessageRepository()
     val chatServiceA = MainChatService(dropConnector, identityARepository,
         contactARepository, chatDropRepoA, dropStateRepo, MainSharingService(
-        InMemoryChatShareRepository(), contactARepository, createTempDir(), fileMetadataFactory), Schedulers.immediate())
+        InMemoryChatShareRepository(), contactARepository, createTempDir(), fileMetadataFactory), Schedulers.immediate(),
+        InMemoryTransactionManager())
 
     val identityB: Identity = createIdentity("Identity B")
     val contactB: Contact = createContact(identityB.alias, identityB.helloDropUrl, identityB.ecPublicKey)
@@ -49,7 +52,8 @@ class ChatServiceTest : CoreTestCase {
     val chatDropRepoB = InMemoryChatDropMessageRepository()
     val chatServiceB = MainChatService(dropConnector, identityBRepository,
         contactBRepository, chatDropRepoB, dropStateRepo, MainSharingService(
-        InMemoryChatShareRepository(), contactBRepository, createTempDir(), fileMetadataFactory), Schedulers.immediate())
+        InMemoryChatShareRepository(), contactBRepository, createTempDir(), fileMetadataFactory), Schedulers.immediate(),
+        InMemoryTransactionManager())
 
 
     @Before
@@ -154,6 +158,22 @@ class ChatServiceTest : CoreTestCase {
         assertThat(unknownContact.phone, equalTo(someone.phone))
     }
 
+    @Test
+    fun testHandleMessagesFromUnknownCreatesOneContact() {
+        contactARepository.delete(contactB, identityA)
+        val messages = (0 until 3).map {
+            createMessage(identityB, contactA, "msg $it").toDropMessage(identityB).apply {
+                dropMessageMetadata = DropMessageMetadata(identityB)
+            }
+        }
+
+        val result = chatServiceA.handleDropUpdate(identityA, DropState(identityA.helloDropUrl.toString()), messages)
+
+        assertThat(result, hasSize(3))
+        assertThat(result.map { it.contactId }.toSet(), hasSize(1))
+        assertThat(contactARepository.find(identityA).contacts, hasSize(1))
+    }
+
     @Test
     fun testHandleMessageFromIgnored() {
         contactB.isIgnored = true
@@ -189,6 +209,17 @@ class ChatServiceTest : CoreTestCase {
         assertThat(result2, hasSize(0))
     }
 
+    @Test
+    fun testHandleDuplicatesWithinUpdate() {
+        val message = createMessage(identityA, contactB, "Blub blub").toDropMessage(identityA)
+
+        val result = chatServiceB.handleDropUpdate(identityB, DropState(identityB.helloDropUrl.toString()),
+            listOf(message, message))
+
+        assertThat(result, hasSize(1))
+        assertThat(chatDropRepoB.findByContact(contactA.id, identityB.id), hasSize(1))
+    }
+
     @Test
     fun testReceiveMessageFromOwnIdentity() {
         contactARepository.save(contactB, identityB)
@@ -221,6 +252,18 @@ class ChatServiceTest : CoreTestCase {
         assertThat(result.identityId, equalTo(identityA.id))
     }
 
+    @Test
+    fun testSendTxtMsgToContacts() {
+        val contactC = createContact("Contact C")
+        contactARepository.save(contactC, identityA)
+
+        val result = chatServiceA.sendTextMessage("Hello", identityA, listOf(contactB, contactC))
+            .toList().toBlocking().single()
+
+        assertThat(result.map { it.contactId }, contains(contactB.id, contactC.id))
+        result.forEach { assertThat(chatDropRepoA.findById(it.id), equalTo(it)) }
+    }
+
     @Test
     fun testSendShareMsg() {
         val (navigationA, boxFile) = prepareShareFileEnv()
@@ -0,0 +1,122 @@
+package de.qabel.chat.service
+
+import de.qabel.box.storage.jdbc.JdbcFileMetadataFactory
+import de.qabel.chat.repository.entities.ChatDropMessage
+import de.qabel.chat.repository.entities.ChatInboxMessage
+import de.qabel.chat.repository.inmemory.InMemoryChatDropMessageRepository
+import de.qabel.chat.repository.inmemory.InMemoryChatInboxRepository
+import de.qabel.chat.repository.inmemory.InMemoryChatShareRepository
+import de.qabel.core.config.Contact
+import de.qabel.core.config.Identity
+import de.qabel.core.drop.DropMessage
+import de.qabel.core.drop.DropPoller
+import de.qabel.core.drop.MainDropConnector
+import de.qabel.core.extensions.CoreTestCase
+import de.qabel.core.extensions.createContact
+import de.qabel.core.extensions.createIdentity
+import de.qabel.core.http.MockDropServer
+import de.qabel.core.repository.inmemory.InMemoryContactRepository
+import de.qabel.core.repository.inmemory.InMemoryDropStateRepository
+import de.qabel.core.repository.inmemory.InMemoryIdentityRepository
+import de.qabel.core.repository.inmemory.InMemoryTransactionManager
+import org.hamcrest.Matchers.*
+import org.junit.Assert.assertThat
+import org.junit.Before
+import org.junit.Test
+import rx.schedulers.Schedulers
+import java.util.concurrent.TimeUnit
+
+class MainChatInboxTest : CoreTestCase {
+
+    val dropConnector = MainDropConnector(MockDropServer())
+    val dropStateRepository = InMemoryDropStateRepository()
+
+    val sender: Identity = createIdentity("sender")
+    val receiver: Identity = createIdentity("receiver")
+    val senderContact: Contact = createContact(sender.alias, sender.helloDropUrl, sender.ecPublicKey)
+    val receiverContact: Contact = createContact(receiver.alias, receiver.helloDropUrl, receiver.ecPublicKey)
+
+    val identityRepository = InMemoryIdentityRepository()
+    val contactRepository = InMemoryContactRepository()
+    val messageRepository = InMemoryChatDropMessageRepository()
+    val inboxRepository = InMemoryChatInboxRepository()
+    val transactionManager = InMemoryTransactionManager()
+    val dropPoller = DropPoller(dropConnector, dropStateRepository)
+    val chatService = MainChatService(dropConnector, identityRepository, contactRepository, messageRepository,
+        dropStateRepository, MainSharingService(InMemoryChatShareRepository(), contactRepository, createTempDir(),
+        JdbcFileMetadataFactory(createTempDir())), Schedulers.immediate(), transactionManager, dropPoller)
+
+    @Before
+    fun setUp() {
+        identityRepository.save(receiver)
+        contactRepository.save(senderContact, receiver)
+    }
+
+    private fun createInbox(batchSize: Int = 2) = MainChatInbox(chatService, dropConnector, dropPoller,
+        identityRepository, inboxRepository, dropStateRepository, transactionManager, 2, batchSize)
+
+    private fun send(text: String) = dropConnector.sendDropMessage(sender, receiverContact,
+        DropMessage(sender, "{\"msg\": \"$text\"}", ChatDropMessage.MessageType.BOX_MESSAGE.type),
+        receiver.helloDropUrl)
+
+    private fun awaitReceived(inbox: ChatInbox, count: Int, receive: () -> Unit): List<ChatDropMessage> {
+        val received = inbox.receivedMessages.flatMapIterable { it }.take(count).toList().toBlocking().toFuture()
+        receive()
+        return received.get(5, TimeUnit.SECONDS)
+    }
+
+    @Test
+    fun queuesEncryptedMessagesAndHandlesThemInBatches() {
+        (0 until 5).forEach { send("message$it") }
+        val inbox = createInbox()
+
+        val received = awaitReceived(inbox, 5) {
+            assertThat(inbox.poll(true).toList().toBlocking().single(), contains(5))
+        }
+
+        assertThat(received.map { it.payload.toString() }.toSet(), hasSize(5))
+        assertThat(messageRepository.findByContact(senderContact.id, receiver.id), hasSize(5))
+        assertThat(dropStateRepository.getDropState(receiver.helloDropUrl).eTag, not(isEmptyString()))
+        waitUntilEmpty()
+    }
+
+    @Test
+    fun resumesQueuedMessages() {
+        send("queued")
+        dropPoller.pollEncrypted(listOf(Pair(receiver, receiver.helloDropUrl)), true) { identity, dropUrl, dropState, messages ->
+            inboxRepository.persistAll(messages.map {
+                ChatInboxMessage(identity.id, dropUrl.toString(),
+                    dropState.eTag, it, System.currentTimeMillis())
+            })
+        }.toBlocking().subscribe()
+        assertThat(inboxRepository.findQueuedIds(), hasSize(1))
+
+        val inbox = createInbox()
+        val received = awaitReceived(inbox, 1) { inbox.resumeQueued() }
+
+        assertThat(received, hasSize(1))
+        waitUntilEmpty()
+    }
+
+    @Test
+    fun ignoresMessagesHandledTwice() {
+        send("twice")
+        val inbox = createInbox()
+        awaitReceived(inbox, 1) { inbox.poll(true).toBlocking().subscribe() }
+        waitUntilEmpty()
+
+        dropStateRepository.setDropState(dropStateRepository.getDropState(receiver.helloDropUrl).apply { eTag = "" })
+        inbox.poll(true).toBlocking().subscribe()
+        waitUntilEmpty()
+
+        assertThat(messageRepository.findByContact(senderContact.id, receiver.id), hasSize(1))
+    }
+
+    private fun waitUntilEmpty() {
+        val deadline = System.currentTimeMillis() + 5000
+        while (!inboxRepository.findQueuedIds().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        assertThat(inboxRepository.findQueuedIds(), empty())
+    }
+}
@@ -0,0 +1,150 @@
+package de.qabel.chat.service
+
+import de.qabel.chat.repository.entities.ChatDropMessage
+import de.qabel.chat.repository.entities.ChatDropMessage.*
+import de.qabel.chat.repository.inmemory.InMemoryChatDropMessageRepository
+import de.qabel.core.config.Contact
+import de.qabel.core.config.Identity
+import de.qabel.core.drop.DropConnector
+import de.qabel.core.drop.DropMessage
+import de.qabel.core.drop.DropURL
+import de.qabel.core.drop.http.DropServerHttp
+import de.qabel.core.extensions.CoreTestCase
+import de.qabel.core.extensions.createContact
+import de.qabel.core.extensions.createIdentity
+import de.qabel.core.repository.entities.DropState
+import de.qabel.core.repository.inmemory.InMemoryContactRepository
+import de.qabel.core.repository.inmemory.InMemoryIdentityRepository
+import org.hamcrest.Matchers.*
+import org.junit.Assert.assertThat
+import org.junit.Before
+import org.junit.Test
+import rx.Observable
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class MainChatOutboxTest : CoreTestCase {
+
+    val identity: Identity = createIdentity("sender")
+    val contacts: List<Contact> = (0 until 6).map { createContact("contact$it") }
+    val identityRepository = InMemoryIdentityRepository()
+    val contactRepository = InMemoryContactRepository()
+    val messageRepository = InMemoryChatDropMessageRepository()
+    val connector = RecordingDropConnector()
+
+    @Before
+    fun setUp() {
+        identityRepository.save(identity)
+        contacts.forEach { contactRepository.save(it, identity) }
+    }
+
+    private fun createOutbox(maxAttempts: Int = 3) = MainChatOutbox(connector, identityRepository,
+        contactRepository, messageRepository, 4, maxAttempts, 1, 10)
+
+    private fun createMessage(contact: Contact, text: String = "hello") =
+        ChatDropMessage(contact.id, identity.id, Direction.OUTGOING, Status.PENDING,
+            MessageType.BOX_MESSAGE, MessagePayload.TextMessage(text), System.currentTimeMillis())
+
+    private fun awaitSent(outbox: ChatOutbox, count: Int, send: () -> Unit): List<ChatDropMessage> {
+        val sent = outbox.sentMessages.take(count).toList().toBlocking().toFuture()
+        send()
+        return sent.get(5, TimeUnit.SECONDS)
+    }
+
+    @Test
+    fun sendsEnqueuedMessagesInParallel() {
+        val outbox = createOutbox()
+        connector.delayMillis = 100
+        val messages = contacts.map { createMessage(it) }
+
+        val sent = awaitSent(outbox, messages.size) { outbox.enqueue(messages) }
+
+        assertThat(sent, containsInAnyOrder(*messages.toTypedArray()))
+        assertThat(connector.sent, hasSize(messages.size))
+        assertThat(connector.maxConcurrent.get(), allOf(greaterThan(1), lessThanOrEqualTo(4)))
+        messages.forEach {
+            assertThat(it.id, not(0))
+            assertThat(messageRepository.findById(it.id).status, equalTo(Status.SENT))
+        }
+    }
+
+    @Test
+    fun retriesFailedSends() {
+        val outbox = createOutbox()
+        connector.failures = 2
+        val message = createMessage(contacts.first())
+
+        awaitSent(outbox, 1) { outbox.enqueue(listOf(message)) }
+
+        assertThat(connector.attempts.get(), equalTo(3))
+        assertThat(message.status, equalTo(Status.SENT))
+    }
+
+    @Test
+    fun keepsMessagePendingAfterLastAttempt() {
+        val outbox = createOutbox(2)
+        connector.failures = 2
+        val message = createMessage(contacts.first())
+        outbox.enqueue(listOf(message))
+
+        val deadline = System.currentTimeMillis() + 5000
+        while (connector.attempts.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        Thread.sleep(50)
+        assertThat(messageRepository.findPending(), contains(message))
+
+        awaitSent(outbox, 1) { outbox.resumePending() }
+        assertThat(messageRepository.findPending(), empty())
+    }
+
+    @Test
+    fun resumesPendingMessagesOfRepository() {
+        val pending = createMessage(contacts.first(), "pending")
+        messageRepository.persist(pending)
+        messageRepository.persist(createMessage(contacts.last(), "sent").apply { status = Status.SENT })
+
+        val outbox = createOutbox()
+        val sent = awaitSent(outbox, 1) { outbox.resumePending() }
+
+        assertThat(sent, contains(pending))
+        assertThat(connector.sent, hasSize(1))
+    }
+
+    class RecordingDropConnector : DropConnector {
+        val sent: MutableList<DropMessage> = Collections.synchronizedList(mutableListOf<DropMessage>())
+        val attempts = AtomicInteger()
+        val maxConcurrent = AtomicInteger()
+        private val running = AtomicInteger()
+        @Volatile var failures = 0
+        @Volatile var delayMillis = 0L
+
+        override fun sendDropMessage(identity: Identity, contact: Contact, message: DropMessage, server: DropURL) {
+            if (attempts.incrementAndGet() <= failures) {
+                throw IllegalStateException("drop server not reachable")
+            }
+            val current = running.incrementAndGet()
+            synchronized(maxConcurrent) {
+                maxConcurrent.set(Math.max(maxConcurrent.get(), current))
+            }
+            try {
+                Thread.sleep(delayMillis)
+                sent.add(message)
+            } finally {
+                running.decrementAndGet()
+            }
+        }
+
+        override fun receiveDropMessages(identity: Identity, dropUrl: DropURL, dropState: DropState)
+            : DropServerHttp.DropServerResponse<DropMessage> = throw UnsupportedOperationException()
+
+        override fun receiveDropMessageStream(identity: Identity, dropUrl: DropURL, dropState: DropState)
+            : Observable<DropMessage> = Observable.empty()
+
+        override fun receiveEncryptedMessageStream(dropUrl: DropURL, dropState: DropState)
+            : Observable<ByteArray> = Observable.empty()
+
+        override fun decryptDropMessage(identity: Identity, message: ByteArray): DropMessage? = null
+    }
+}
@@ -11,6 +11,7 @@ import de.qabel.core.crypto.CryptoUtils
 import de.qabel.core.extensions.letApply
 import de.qabel.core.logging.QabelLog
 import de.qabel.core.repository.exception.EntityNotFoundException
+import org.spongycastle.crypto.InvalidCipherTextException
 import org.spongycastle.crypto.params.KeyParameter
 import org.spongycastle.util.encoders.Hex
 import java.io.File
@@ -87,12 +88,14 @@ class BoxLocalStorage(private val storageFolder: File,
         if (entry.ref == identifier.currentRef &&
             (identifier.modifiedTag.isBlank() || identifier.modifiedTag == entry.modifiedTag)) {
             if (file.exists()) {
-                val tmp = targetFile()
-                if (cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(file.inputStream(), tmp, identifier.key)) {
-                    return readFile(tmp)
-                } else {
+                val plaintext = try {
+                    file.inputStream().use { cryptoUtils.decryptAuthenticatedSymmetric(it, identifier.key, tmpFolder) }
+                } catch (e: InvalidCipherTextException) {
                     throw QblStorageNotFound("Invalid key")
                 }
+                // the target is only created for verified plaintext
+                val tmp = plaintext.use { targetFile().apply { it.writeTo(this) } }
+                return readFile(tmp)
             }
         }
         //File is outdated
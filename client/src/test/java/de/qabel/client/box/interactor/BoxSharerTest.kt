@@ -31,6 +31,7 @@ import de.qabel.core.http.MockDropServer
 import de.qabel.core.repository.inmemory.InMemoryContactRepository
 import de.qabel.core.repository.inmemory.InMemoryDropStateRepository
 import de.qabel.core.repository.inmemory.InMemoryIdentityRepository
+import de.qabel.core.repository.inmemory.InMemoryTransactionManager
 import org.junit.Before
 import org.junit.Test
 import rx.schedulers.Schedulers
@@ -51,7 +52,8 @@ class BoxSharerTest : CoreTestCase {
     val chatDropRepo = InMemoryChatDropMessageRepository()
     val chatService = MainChatService(dropConnector, identityRepository,
         contactRepository, chatDropRepo, dropStateRepo, MainSharingService(
-        InMemoryChatShareRepository(), contactRepository, createTempDir(), fileMetadataFactory), boxSchedulers.io)
+        InMemoryChatShareRepository(), contactRepository, createTempDir(), fileMetadataFactory), boxSchedulers.io,
+        InMemoryTransactionManager())
 
     val identity = createIdentity("identity").letApply {
         identityRepository.save(it)
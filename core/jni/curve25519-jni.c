@@ -4,34 +4,43 @@
 #include "curve25519-jni.h"
 #include "curve25519.h"
 
+/*
+ * The single calls keep the names of earlier versions, the arrays are passed as Object to tell them apart
+ * from the public Java methods.
+ */
 JNIEXPORT jbyteArray JNICALL
-Java_de_qabel_core_crypto_Curve25519_cryptoScalarmult(JNIEnv * env, jobject obj, jbyteArray n, jbyteArray p)
+Java_de_qabel_core_crypto_Curve25519_cryptoScalarmult(JNIEnv * env, jobject obj, jobject n, jobject p)
 {
-	jboolean qIsCopy, pIsCopy;
 	jbyte *_n, *_p;
 	jbyteArray result;
 	jsize length;
 
-	length = (*env)->GetArrayLength(env, n);
+	length = (*env)->GetArrayLength(env, (jbyteArray) n);
 	jbyte _result[length];
 	result = (*env)->NewByteArray(env, length);
+	if (result == NULL) {
+		return NULL;
+	}
 
-	_n = (*env)->GetByteArrayElements(env, n, &qIsCopy);
-	_p = (*env)->GetByteArrayElements(env, p, &pIsCopy);
+	_n = (*env)->GetByteArrayElements(env, (jbyteArray) n, NULL);
+	_p = (*env)->GetByteArrayElements(env, (jbyteArray) p, NULL);
 
 	if (_n == NULL || _p == NULL) {
 		jclass Exception = (*env)->FindClass(env, "java/lang/RuntimeException");
 		(*env)->ThrowNew(env, Exception, "Could not get byte array elements!");
+		if (_n != NULL) {
+			(*env)->ReleaseByteArrayElements(env, (jbyteArray) n, _n, JNI_ABORT);
+		}
+		if (_p != NULL) {
+			(*env)->ReleaseByteArrayElements(env, (jbyteArray) p, _p, JNI_ABORT);
+		}
+		return NULL;
 	}
 
 	crypto_scalarmult((unsigned char *) _result, (unsigned char *) _n, (unsigned char *) _p);
 
-	if (qIsCopy) {
-		(*env)->ReleaseByteArrayElements(env, n, _n, JNI_ABORT);
-	}
-	if (pIsCopy) {
-		(*env)->ReleaseByteArrayElements(env, p, _p, JNI_ABORT);
-	}
+	(*env)->ReleaseByteArrayElements(env, (jbyteArray) n, _n, JNI_ABORT);
+	(*env)->ReleaseByteArrayElements(env, (jbyteArray) p, _p, JNI_ABORT);
 
 	(*env)->SetByteArrayRegion(env, result, 0, length, _result);
 
@@ -39,31 +48,123 @@ Java_de_qabel_core_crypto_Curve25519_cryptoScalarmult(JNIEnv * env, jobject obj,
 }
 
 JNIEXPORT jbyteArray JNICALL
-Java_de_qabel_core_crypto_Curve25519_cryptoScalarmultBase(JNIEnv * env, jobject obj, jbyteArray n)
+Java_de_qabel_core_crypto_Curve25519_cryptoScalarmultBase(JNIEnv * env, jobject obj, jobject n)
 {
-	jboolean qIsCopy;
 	jbyte *_n;
 	jbyteArray result;
 	jsize length;
 
-	length = (*env)->GetArrayLength(env, n);
+	length = (*env)->GetArrayLength(env, (jbyteArray) n);
 	jbyte _result[length];
 	result = (*env)->NewByteArray(env, length);
+	if (result == NULL) {
+		return NULL;
+	}
 
-	_n = (*env)->GetByteArrayElements(env, n, &qIsCopy);
+	_n = (*env)->GetByteArrayElements(env, (jbyteArray) n, NULL);
 
 	if (_n == NULL) {
 		jclass Exception = (*env)->FindClass(env, "java/lang/RuntimeException");
 		(*env)->ThrowNew(env, Exception, "Could not get byte array elements!");
+		return NULL;
 	}
 
 	crypto_scalarmult_base((unsigned char *) _result, (unsigned char *) _n);
 
-	if (qIsCopy) {
-		(*env)->ReleaseByteArrayElements(env, n, _n, JNI_ABORT);
+	(*env)->ReleaseByteArrayElements(env, (jbyteArray) n, _n, JNI_ABORT);
+
+	(*env)->SetByteArrayRegion(env, result, 0, length, _result);
+
+	return result;
+}
+
+JNIEXPORT jbyteArray JNICALL
+Java_de_qabel_core_crypto_Curve25519_nativeScalarmultBatch(JNIEnv * env, jobject obj, jbyteArray n, jbyteArray p)
+{
+	jbyte *_n, *_p, *_result;
+	jbyteArray result;
+	jsize length, offset;
+
+	length = (*env)->GetArrayLength(env, n);
+	if (length % CURVE25519_KEY_SIZE != 0 || length != (*env)->GetArrayLength(env, p)) {
+		jclass Exception = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+		(*env)->ThrowNew(env, Exception, "Scalars and points must be concatenated 32 byte values of equal count!");
+		return NULL;
+	}
+	result = (*env)->NewByteArray(env, length);
+	if (result == NULL) {
+		return NULL;
 	}
+	_result = malloc(length > 0 ? length : 1);
+
+	_n = (*env)->GetByteArrayElements(env, n, NULL);
+	_p = (*env)->GetByteArrayElements(env, p, NULL);
+
+	if (_result == NULL || _n == NULL || _p == NULL) {
+		jclass Exception = (*env)->FindClass(env, "java/lang/RuntimeException");
+		(*env)->ThrowNew(env, Exception, "Could not get byte array elements!");
+		if (_n != NULL) {
+			(*env)->ReleaseByteArrayElements(env, n, _n, JNI_ABORT);
+		}
+		if (_p != NULL) {
+			(*env)->ReleaseByteArrayElements(env, p, _p, JNI_ABORT);
+		}
+		free(_result);
+		return NULL;
+	}
+
+	for (offset = 0; offset < length; offset += CURVE25519_KEY_SIZE) {
+		crypto_scalarmult((unsigned char *) _result + offset, (unsigned char *) _n + offset, (unsigned char *) _p + offset);
+	}
+
+	(*env)->ReleaseByteArrayElements(env, n, _n, JNI_ABORT);
+	(*env)->ReleaseByteArrayElements(env, p, _p, JNI_ABORT);
+
+	(*env)->SetByteArrayRegion(env, result, 0, length, _result);
+	free(_result);
+
+	return result;
+}
+
+JNIEXPORT jbyteArray JNICALL
+Java_de_qabel_core_crypto_Curve25519_nativeScalarmultBaseBatch(JNIEnv * env, jobject obj, jbyteArray n)
+{
+	jbyte *_n, *_result;
+	jbyteArray result;
+	jsize length, offset;
+
+	length = (*env)->GetArrayLength(env, n);
+	if (length % CURVE25519_KEY_SIZE != 0) {
+		jclass Exception = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+		(*env)->ThrowNew(env, Exception, "Scalars must be concatenated 32 byte values!");
+		return NULL;
+	}
+	result = (*env)->NewByteArray(env, length);
+	if (result == NULL) {
+		return NULL;
+	}
+	_result = malloc(length > 0 ? length : 1);
+
+	_n = (*env)->GetByteArrayElements(env, n, NULL);
+
+	if (_result == NULL || _n == NULL) {
+		jclass Exception = (*env)->FindClass(env, "java/lang/RuntimeException");
+		(*env)->ThrowNew(env, Exception, "Could not get byte array elements!");
+		if (_n != NULL) {
+			(*env)->ReleaseByteArrayElements(env, n, _n, JNI_ABORT);
+		}
+		free(_result);
+		return NULL;
+	}
+
+	for (offset = 0; offset < length; offset += CURVE25519_KEY_SIZE) {
+		crypto_scalarmult_base((unsigned char *) _result + offset, (unsigned char *) _n + offset);
+	}
+
+	(*env)->ReleaseByteArrayElements(env, n, _n, JNI_ABORT);
 
 	(*env)->SetByteArrayRegion(env, result, 0, length, _result);
+	free(_result);
 
 	return result;
 }
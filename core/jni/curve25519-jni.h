@@ -10,17 +10,33 @@ extern "C" {
 /*
  * Class:     de_qabel_core_crypto_Curve25519
  * Method:    cryptoScalarmult
- * Signature: ([B[B)[B
+ * Signature: (Ljava/lang/Object;Ljava/lang/Object;)[B
  */
 JNIEXPORT jbyteArray JNICALL Java_de_qabel_core_crypto_Curve25519_cryptoScalarmult
-  (JNIEnv *, jobject, jbyteArray, jbyteArray);
+  (JNIEnv *, jobject, jobject, jobject);
 
 /*
  * Class:     de_qabel_core_crypto_Curve25519
  * Method:    cryptoScalarmultBase
- * Signature: ([B)[B
+ * Signature: (Ljava/lang/Object;)[B
  */
 JNIEXPORT jbyteArray JNICALL Java_de_qabel_core_crypto_Curve25519_cryptoScalarmultBase
+  (JNIEnv *, jobject, jobject);
+
+/*
+ * Class:     de_qabel_core_crypto_Curve25519
+ * Method:    nativeScalarmultBatch
+ * Signature: ([B[B)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_de_qabel_core_crypto_Curve25519_nativeScalarmultBatch
+  (JNIEnv *, jobject, jbyteArray, jbyteArray);
+
+/*
+ * Class:     de_qabel_core_crypto_Curve25519
+ * Method:    nativeScalarmultBaseBatch
+ * Signature: ([B)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_de_qabel_core_crypto_Curve25519_nativeScalarmultBaseBatch
   (JNIEnv *, jobject, jbyteArray);
 
 #ifdef __cplusplus
@@ -2,6 +2,8 @@
 * Source: TweetNaCl (http://tweetnacl.cr.yp.to/20140427/tweetnacl.c)
 */
 
+#ifndef CURVE25519_DONNA_C64
+
 #include "curve25519.h"
 
 typedef unsigned char u8;
@@ -161,4 +163,6 @@ int crypto_scalarmult(u8 *q,const u8 *n,const u8 *p)
 int crypto_scalarmult_base(u8 *q,const u8 *n)
 { 
   return crypto_scalarmult(q,n,_9);
-}
\ No newline at end of file
+}
+
+#endif /* CURVE25519_DONNA_C64 */
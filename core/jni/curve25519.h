@@ -1,2 +1,4 @@
+#define CURVE25519_KEY_SIZE 32
+
 extern int crypto_scalarmult(unsigned char *,const unsigned char *,const unsigned char *);
 extern int crypto_scalarmult_base(unsigned char *,const unsigned char *);
\ No newline at end of file
@@ -0,0 +1,56 @@
+package de.qabel.core.contacts
+
+import de.qabel.core.config.EntityObserver
+import de.qabel.core.config.Identities
+import de.qabel.core.repository.ContactRepository
+import de.qabel.core.repository.IdentityRepository
+import de.qabel.core.repository.exception.PersistenceException
+
+/**
+ * Resolves the senders of received drop messages to their contacts.
+ * The identities are loaded once and cached until the identity repository notifies a change,
+ * the contacts of a whole batch of senders are looked up with one query.
+ */
+class SenderContactResolver(private val contactRepository: ContactRepository,
+                            private val identityRepository: IdentityRepository) : EntityObserver {
+
+    @Volatile private var identities: Identities? = null
+    private var changes = 0
+
+    init {
+        identityRepository.attach(this)
+    }
+
+    @Synchronized override fun update() {
+        identities = null
+        changes++
+    }
+
+    /**
+     * @return cached snapshot of all identities
+     */
+    @Throws(PersistenceException::class)
+    fun identities(): Identities {
+        identities?.let { return it }
+        val changesBefore = synchronized(this) { changes }
+        val loaded = identityRepository.findAll()
+        synchronized(this) {
+            // do not cache a snapshot that was loaded while the identities changed
+            if (changes == changesBefore) {
+                identities = loaded
+            }
+        }
+        return loaded
+    }
+
+    /**
+     * @return contact details by key id for the known senders
+     */
+    @Throws(PersistenceException::class)
+    fun resolve(senderKeyIds: Collection<String>): MutableMap<String, ContactData> =
+        if (senderKeyIds.isEmpty()) {
+            mutableMapOf()
+        } else {
+            contactRepository.findContactsWithIdentities(senderKeyIds, identities()).toMutableMap()
+        }
+}
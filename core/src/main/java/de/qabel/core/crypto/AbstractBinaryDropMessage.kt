@@ -4,13 +4,12 @@ import com.google.gson.JsonParseException
 import de.qabel.core.config.Contact
 import de.qabel.core.config.Identity
 import de.qabel.core.drop.DropMessage
-import de.qabel.core.drop.DropMessageGson
+import de.qabel.core.drop.DropMessageCodec
 import de.qabel.core.exceptions.QblDropInvalidMessageSizeException
 import de.qabel.core.exceptions.QblDropPayloadSizeException
 import de.qabel.core.exceptions.QblSpoofedSenderException
 import de.qabel.core.exceptions.QblVersionMismatchException
 import org.slf4j.LoggerFactory
-import java.nio.charset.Charset
 import java.util.*
 
 /**
@@ -76,16 +75,21 @@ abstract class AbstractBinaryDropMessage {
      * * was wrong or the message verification failed.
      */
     @Throws(QblSpoofedSenderException::class)
-    fun disassembleMessage(identity: Identity): DropMessage? {
-        val decryptedPlaintext = disassembleRawMessage(identity) ?: return null
+    fun disassembleMessage(identity: Identity): DropMessage? = verifiedMessage(disassembleRawMessage(identity))
 
-        val plainJson = String(discardPaddingBytes(decryptedPlaintext.plaintext), Charset.forName("UTF-8"))
-        val dropMessage = deserialize(plainJson)
-        if (dropMessage == null) {
-            logger.debug("Message could not be deserialized. Msg: " + plainJson)
+    /**
+     * Deserializes the decrypted message and checks that it has been sent by the owner of the sender key.
+
+     * @return drop message or null if there is no plaintext or it cannot be deserialized
+     */
+    @Throws(QblSpoofedSenderException::class)
+    protected fun verifiedMessage(decryptedPlaintext: DecryptedPlaintext?): DropMessage? {
+        if (decryptedPlaintext == null) {
             return null
         }
 
+        val dropMessage = deserialize(decryptedPlaintext.plaintext) ?: return null
+
         if (dropMessage.senderKeyId != decryptedPlaintext.senderKey.readableKeyIdentifier) {
             logger.info("Spoofing of sender information detected."
                     + " Expected: " + dropMessage.senderKeyId
@@ -99,35 +103,52 @@ abstract class AbstractBinaryDropMessage {
     companion object {
         private val logger = LoggerFactory.getLogger(AbstractBinaryDropMessage::class.java.name)
 
-        private fun serializeMessage(dropMessage: DropMessage): ByteArray {
-            val gson = DropMessageGson.create()
-            return gson.toJson(dropMessage).toByteArray()
+        /**
+         * Version that is sent unless the version 1 tag is enabled explicitly.
+         * Receivers before version 1 reject messages of other versions.
+         */
+        const val DEFAULT_SEND_VERSION = 0
+
+        /**
+         * Prepares a message for sending in the format of the version
+         *
+         * @throws QblDropPayloadSizeException if the payload does not fit into a message
+         */
+        @JvmStatic
+        @Throws(QblDropPayloadSizeException::class)
+        fun forVersion(version: Int, dropMessage: DropMessage): AbstractBinaryDropMessage = when (version) {
+            0 -> BinaryDropMessageV0(dropMessage)
+            1 -> BinaryDropMessageV1(dropMessage)
+            else -> throw IllegalArgumentException("Unsupported drop message version $version")
         }
 
+        /**
+         * Reads a received binary message in the format of its version byte
+
+         * @throws QblVersionMismatchException        if the version is not supported.
+         * @throws QblDropInvalidMessageSizeException if size does not match the version requirement.
+         */
+        @JvmStatic
+        @Throws(QblVersionMismatchException::class, QblDropInvalidMessageSizeException::class)
+        fun fromBytes(binaryMessage: ByteArray): AbstractBinaryDropMessage =
+            if (binaryMessage.isNotEmpty() && binaryMessage[0] == 1.toByte()) BinaryDropMessageV1(binaryMessage)
+            else BinaryDropMessageV0(binaryMessage)
+
+        private fun serializeMessage(dropMessage: DropMessage): ByteArray = DropMessageCodec.encode(dropMessage)
+
         /**
          * Deserializes the message
 
-         * @param plainJson plain Json String
+         * @param paddedPlaintext plain Json bytes, padded with zero bytes
          * @return deserialized Dropmessage or null if deserialization error occurred.
          */
-        private fun deserialize(plainJson: String): DropMessage? {
-            val gson = DropMessageGson.create()
+        private fun deserialize(paddedPlaintext: ByteArray): DropMessage? {
             try {
-                return gson.fromJson(plainJson, DropMessage::class.java)
+                return DropMessageCodec.decode(paddedPlaintext)
             } catch (e: JsonParseException) {
                 logger.debug("Deserialization failed due to invalid json syntax", e)
                 return null
             }
-
-        }
-
-        private fun discardPaddingBytes(paddedMessage: ByteArray): ByteArray {
-            var paddingLen = 0
-            var pos = paddedMessage.size - 1
-            while (pos >= 0 && paddedMessage[pos--].toInt() == 0) {
-                paddingLen++
-            }
-            return Arrays.copyOf(paddedMessage, paddedMessage.size - paddingLen)
         }
     }
 }
@@ -0,0 +1,39 @@
+package de.qabel.core.crypto;
+
+import org.spongycastle.crypto.params.KeyParameter;
+
+/**
+ * Provider of AES GCM ciphers. All backends produce byte identical output
+ * for the same key, nonce and associated data.
+ *
+ * @see AeadBackends
+ */
+public interface AeadBackend {
+
+    /**
+     * @return name which selects this backend in {@link AeadBackends#get(String)}
+     */
+    String getName();
+
+    /**
+     * Creates an initialized cipher.
+     *
+     * @param forEncryption  true for encryption, false for decryption
+     * @param key            encryption key
+     * @param nonce          nonce for encryption
+     * @param associatedData additionally associated data, may be null
+     * @param macSizeBit     size of the authentication tag in bit
+     * @return cipher for an en- or decryption
+     * @throws IllegalArgumentException if the parameters are not supported
+     */
+    AeadCipher createCipher(boolean forEncryption, KeyParameter key, byte[] nonce, byte[] associatedData,
+                            int macSizeBit);
+
+    /**
+     * Some implementations hold back all plaintext until the tag has been validated on decryption.
+     * Those must not be used to decrypt large streams.
+     *
+     * @return true if decryption outputs plaintext before doFinal
+     */
+    boolean supportsIncrementalDecryption();
+}
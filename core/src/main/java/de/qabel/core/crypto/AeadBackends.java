@@ -0,0 +1,79 @@
+package de.qabel.core.crypto;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the available {@link AeadBackend}s.
+ * The default backend is selected by the system property {@value #BACKEND_PROPERTY}
+ * ("jca" or "spongycastle"). Without the property the JCA backend is used if the
+ * platform supports AES GCM with 256 bit keys, SpongyCastle otherwise.
+ */
+public class AeadBackends {
+    public static final String BACKEND_PROPERTY = "qabel.crypto.backend";
+
+    private static final Logger logger = LoggerFactory.getLogger(AeadBackends.class.getName());
+
+    private static volatile AeadBackend defaultBackend;
+
+    private AeadBackends() {
+    }
+
+    /**
+     * @param name name of the backend
+     * @return backend with the given name
+     * @throws IllegalArgumentException if the backend is unknown or not available on this platform
+     */
+    public static AeadBackend get(String name) {
+        if (SpongyCastleAeadBackend.NAME.equals(name)) {
+            return new SpongyCastleAeadBackend();
+        }
+        if (JcaAeadBackend.NAME.equals(name)) {
+            if (!JcaAeadBackend.isAvailable()) {
+                throw new IllegalArgumentException("AES GCM is not available in the JCA of this platform");
+            }
+            return new JcaAeadBackend();
+        }
+        throw new IllegalArgumentException("Unknown crypto backend: " + name);
+    }
+
+    /**
+     * @return backend that is used by default
+     */
+    public static AeadBackend getDefault() {
+        AeadBackend backend = defaultBackend;
+        if (backend == null) {
+            synchronized (AeadBackends.class) {
+                if (defaultBackend == null) {
+                    defaultBackend = detectDefault();
+                }
+                backend = defaultBackend;
+            }
+        }
+        return backend;
+    }
+
+    /**
+     * Replaces the default backend at runtime. Only affects CryptoUtils that are created afterwards.
+     *
+     * @param backend new default backend
+     */
+    public static void setDefault(AeadBackend backend) {
+        defaultBackend = backend;
+    }
+
+    private static AeadBackend detectDefault() {
+        String name = System.getProperty(BACKEND_PROPERTY);
+        if (name != null) {
+            try {
+                return get(name);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Crypto backend " + name + " cannot be used, detecting default", e);
+            }
+        }
+        if (JcaAeadBackend.isAvailable()) {
+            return new JcaAeadBackend();
+        }
+        return new SpongyCastleAeadBackend();
+    }
+}
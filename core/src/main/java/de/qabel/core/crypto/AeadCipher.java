@@ -0,0 +1,57 @@
+package de.qabel.core.crypto;
+
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Initialized AES GCM cipher of an {@link AeadBackend}.
+ * Instances are not thread safe. After a finished en- or decryption they can be reused
+ * with {@link #init(boolean, KeyParameter, byte[], byte[], int)}.
+ */
+public interface AeadCipher {
+
+    /**
+     * Re-initializes the cipher for another en- or decryption.
+     *
+     * @see AeadBackend#createCipher(boolean, KeyParameter, byte[], byte[], int)
+     * @throws IllegalArgumentException if the parameters are not supported
+     */
+    void init(boolean forEncryption, KeyParameter key, byte[] nonce, byte[] associatedData, int macSizeBit);
+
+    /**
+     * @param length number of input bytes that are still to be processed
+     * @return maximum number of output bytes of the remaining update and final calls
+     */
+    int getOutputSize(int length);
+
+    /**
+     * Processes a part of the input.
+     *
+     * @return number of bytes written to the output
+     */
+    int processBytes(byte[] in, int inOff, int length, byte[] out, int outOff);
+
+    /**
+     * Processes all remaining bytes of the input buffer.
+     * Direct buffers are passed to the cipher implementation without copying if it supports them.
+     *
+     * @return number of bytes written to the output
+     */
+    int processBytes(ByteBuffer in, ByteBuffer out);
+
+    /**
+     * Finishes the en-/decryption. On encryption the authentication tag is written,
+     * on decryption the tag is validated.
+     *
+     * @return number of bytes written to the output
+     * @throws InvalidCipherTextException if the authentication tag is invalid
+     */
+    int doFinal(byte[] out, int outOff) throws InvalidCipherTextException;
+
+    /**
+     * @see #doFinal(byte[], int)
+     */
+    int doFinal(ByteBuffer out) throws InvalidCipherTextException;
+}
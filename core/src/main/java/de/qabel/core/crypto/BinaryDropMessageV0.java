@@ -6,13 +6,12 @@ import de.qabel.core.drop.DropMessage;
 import de.qabel.core.exceptions.QblDropInvalidMessageSizeException;
 import de.qabel.core.exceptions.QblDropPayloadSizeException;
 import de.qabel.core.exceptions.QblVersionMismatchException;
-import org.apache.commons.lang3.ArrayUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.InvalidCipherTextException;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
-import java.util.Arrays;
 
 /**
  * Drop message in binary transport format version 0
@@ -57,32 +56,29 @@ public class BinaryDropMessageV0 extends AbstractBinaryDropMessage {
         return PAYLOAD_SIZE + HEADER_SIZE + BOX_HEADER_SIZE;
     }
 
-    private byte[] buildBody(Contact recipient, Identity sender) {
-        CryptoUtils cu = new CryptoUtils();
-        byte[] box;
+    @Override
+    public byte[] assembleMessageFor(Contact recipient, Identity sender) {
+        byte[] paddedMessage = getPaddedMessage();
+        byte[] message = new byte[HEADER_SIZE + NoiseBoxEngine.boxSize(paddedMessage.length, 0)];
+        message[0] = VERSION;
         try {
-            box = cu.createBox(sender.getPrimaryKeyPair(),
-                recipient.getEcPublicKey(), getPaddedMessage(), 0);
+            CryptoUtils.getInstance().getNoiseBoxEngine().createBox(sender.getPrimaryKeyPair(), recipient.getEcPublicKey(),
+                ByteBuffer.wrap(paddedMessage), 0, ByteBuffer.wrap(message, HEADER_SIZE, message.length - HEADER_SIZE));
         } catch (InvalidKeyException e) {
             // should not happen
             logger.error("Invalid key", e);
             throw new RuntimeException(e);
         }
-        return box;
-    }
-
-    @Override
-    public byte[] assembleMessageFor(Contact recipient, Identity sender) {
-        return ArrayUtils.addAll(getHeader(), buildBody(recipient, sender));
+        return message;
     }
 
     @Override
     public DecryptedPlaintext disassembleRawMessage(Identity identity) {
-        CryptoUtils cu = new CryptoUtils();
+        CryptoUtils cu = CryptoUtils.getInstance();
         DecryptedPlaintext decryptedPlaintext = null;
         try {
             decryptedPlaintext = cu.readBox(identity.getPrimaryKeyPair(),
-                Arrays.copyOfRange(binaryMessage, HEADER_SIZE, binaryMessage.length));
+                binaryMessage, HEADER_SIZE, binaryMessage.length - HEADER_SIZE);
         } catch (InvalidKeyException e) {
             logger.debug("Message invalid or not meant for this recipient");
         } catch (InvalidCipherTextException e) {
@@ -0,0 +1,131 @@
+package de.qabel.core.crypto;
+
+import de.qabel.core.config.Contact;
+import de.qabel.core.config.Identity;
+import de.qabel.core.drop.DropMessage;
+import de.qabel.core.exceptions.QblDropInvalidMessageSizeException;
+import de.qabel.core.exceptions.QblDropPayloadSizeException;
+import de.qabel.core.exceptions.QblSpoofedSenderException;
+import de.qabel.core.exceptions.QblVersionMismatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.InvalidCipherTextException;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+
+/**
+ * Drop message in binary transport format version 1.
+ * Like version 0, but the box is prefixed with a recipient tag derived from the ephemeral DH,
+ * so identities the message is not meant for are rejected without decrypting the box.
+ */
+public class BinaryDropMessageV1 extends AbstractBinaryDropMessage {
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 1 + NoiseBoxEngine.RECIPIENT_TAG_BYTE;
+    private static final int BOX_HEADER_SIZE = NoiseBoxEngine.OVERHEAD_BYTE;
+    private static final int PAYLOAD_SIZE = 2048;
+    private byte[] binaryMessage;
+
+    private static final Logger logger = LoggerFactory
+        .getLogger(BinaryDropMessageV1.class.getName());
+
+    public BinaryDropMessageV1(DropMessage dropMessage)
+        throws QblDropPayloadSizeException {
+        super(dropMessage);
+    }
+
+    public BinaryDropMessageV1(byte[] binaryMessage)
+        throws QblVersionMismatchException, QblDropInvalidMessageSizeException {
+        super(binaryMessage);
+        this.binaryMessage = binaryMessage;
+    }
+
+    @Override
+    public byte getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    protected int getPayloadSize() {
+        return PAYLOAD_SIZE;
+    }
+
+    @Override
+    protected int getTotalSize() {
+        return PAYLOAD_SIZE + HEADER_SIZE + BOX_HEADER_SIZE;
+    }
+
+    @Override
+    public byte[] assembleMessageFor(Contact recipient, Identity sender) {
+        byte[] paddedMessage = getPaddedMessage();
+        byte[] message = new byte[1 + NoiseBoxEngine.taggedBoxSize(paddedMessage.length, 0)];
+        message[0] = VERSION;
+        try {
+            CryptoUtils.getInstance().getNoiseBoxEngine().createTaggedBox(sender.getPrimaryKeyPair(),
+                recipient.getEcPublicKey(), ByteBuffer.wrap(paddedMessage), 0,
+                ByteBuffer.wrap(message, 1, message.length - 1));
+        } catch (InvalidKeyException e) {
+            // should not happen
+            logger.error("Invalid key", e);
+            throw new RuntimeException(e);
+        }
+        return message;
+    }
+
+    /**
+     * @return true if the recipient tag matches the identity, the box may still be invalid
+     */
+    public boolean isTaggedFor(Identity identity) {
+        return CryptoUtils.getInstance().getNoiseBoxEngine().hasRecipientTag(identity.getPrimaryKeyPair(),
+            ByteBuffer.wrap(binaryMessage, 1, binaryMessage.length - 1));
+    }
+
+    /**
+     * @return ephemeral key of the box, the ECDH secret of an identity and this key can be passed to
+     * {@link #disassembleMessage(Identity, byte[])}
+     */
+    public QblECPublicKey getEphemeralKey() {
+        return NoiseBoxEngine.ephemeralKey(ByteBuffer.wrap(binaryMessage, 1, binaryMessage.length - 1));
+    }
+
+    /**
+     * Like {@link #disassembleMessage(Identity)} with the ECDH secret of the identity and the
+     * {@link #getEphemeralKey()} calculated beforehand, e.g. for several messages at once.
+     *
+     * @param identity   Identity to decrypt message with.
+     * @param ecdhSecret ECDH secret of the primary key pair of identity and the ephemeral key
+     * @return Disassembled drop message or null if either the sender assumption
+     * was wrong or the message verification failed.
+     */
+    public DropMessage disassembleMessage(Identity identity, byte[] ecdhSecret) throws QblSpoofedSenderException {
+        return verifiedMessage(disassembleRawMessage(identity, ecdhSecret));
+    }
+
+    @Override
+    public DecryptedPlaintext disassembleRawMessage(Identity identity) {
+        return disassembleRawMessage(identity, null);
+    }
+
+    private DecryptedPlaintext disassembleRawMessage(Identity identity, byte[] ecdhSecret) {
+        CryptoUtils cu = CryptoUtils.getInstance();
+        DecryptedPlaintext decryptedPlaintext = null;
+        try {
+            if (ecdhSecret == null) {
+                decryptedPlaintext = cu.readTaggedBox(identity.getPrimaryKeyPair(),
+                    binaryMessage, 1, binaryMessage.length - 1);
+            } else {
+                decryptedPlaintext = cu.readTaggedBox(identity.getPrimaryKeyPair(), ecdhSecret,
+                    binaryMessage, 1, binaryMessage.length - 1);
+            }
+            if (decryptedPlaintext == null) {
+                logger.debug("Message not meant for this recipient");
+            }
+        } catch (InvalidKeyException e) {
+            logger.debug("Message invalid or not meant for this recipient");
+        } catch (InvalidCipherTextException e) {
+            logger.debug("Message invalid or not meant for this recipient: " + e.getMessage());
+        }
+        return decryptedPlaintext;
+    }
+
+}
@@ -0,0 +1,432 @@
+package de.qabel.core.crypto;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chunked authenticated encryption format (version 1).
+ * The plaintext is split into chunks of a fixed size which are sealed independently with AES GCM,
+ * so chunks can be en-/decrypted in parallel and any byte range can be read and verified
+ * without touching the rest of the ciphertext. Schematic:
+ * header = MAGIC || version || chunk size || nonce prefix
+ * c = header || enc(nonce_0, m_0, header) || ... || enc(nonce_n, m_n, header)
+ * nonce_i = nonce prefix || i || final flag
+ * The final flag is only set for the last chunk, which prevents truncation and extension of the ciphertext.
+ */
+public class ChunkedAuthenticatedCipher {
+    public static final byte VERSION = 1;
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    /**
+     * Largest accepted chunk size, a chunk is buffered in memory before it is authenticated
+     */
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    public static final int NONCE_PREFIX_SIZE_BYTE = 7;
+    public static final int TAG_SIZE_BYTE = 16;
+
+    private static final byte[] MAGIC = "QblChnk".getBytes();
+    public static final int HEADER_SIZE_BYTE = MAGIC.length + 1 + 4 + NONCE_PREFIX_SIZE_BYTE;
+
+    private static final int NONCE_SIZE_BYTE = 12;
+    private static final int MAC_BIT = TAG_SIZE_BYTE * 8;
+    private static final byte FINAL_CHUNK = 1;
+
+    private static final Logger logger = LoggerFactory.getLogger(ChunkedAuthenticatedCipher.class.getName());
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final AeadBackend backend;
+
+    /**
+     * Creates a cipher that distributes the chunks over the shared chunk executor,
+     * using one worker per available processor.
+     */
+    public ChunkedAuthenticatedCipher() {
+        this(AeadBackends.getDefault());
+    }
+
+    /**
+     * Creates a cipher that distributes the chunks over the shared chunk executor,
+     * using one worker per available processor.
+     *
+     * @param backend backend which seals and opens the chunks
+     */
+    public ChunkedAuthenticatedCipher(AeadBackend backend) {
+        this(SharedExecutor.INSTANCE, Runtime.getRuntime().availableProcessors(), backend);
+    }
+
+    /**
+     * @param executor    executor that en-/decrypts the chunks, null to process them on the calling thread
+     * @param parallelism number of chunks that are processed concurrently
+     */
+    public ChunkedAuthenticatedCipher(ExecutorService executor, int parallelism) {
+        this(executor, parallelism, AeadBackends.getDefault());
+    }
+
+    /**
+     * @param executor    executor that en-/decrypts the chunks, null to process them on the calling thread
+     * @param parallelism number of chunks that are processed concurrently
+     * @param backend     backend which seals and opens the chunks
+     */
+    public ChunkedAuthenticatedCipher(ExecutorService executor, int parallelism, AeadBackend backend) {
+        this.executor = executor;
+        this.parallelism = executor == null ? 1 : Math.max(1, parallelism);
+        this.backend = backend;
+    }
+
+    /**
+     * Checks whether the given bytes start with a header of the chunked format.
+     *
+     * @param head at least the first HEADER_SIZE_BYTE bytes of a ciphertext
+     * @return true if the ciphertext is in the chunked format
+     */
+    public static boolean isChunked(byte[] head) {
+        if (head == null || head.length < HEADER_SIZE_BYTE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (head[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return head[MAGIC.length] == VERSION;
+    }
+
+    /**
+     * Calculates the exact ciphertext size for a plaintext of the given size.
+     *
+     * @param plaintextSize size of the plaintext in bytes
+     * @param chunkSize     plaintext size of each chunk
+     * @return size of the ciphertext including the header
+     */
+    public static long ciphertextSize(long plaintextSize, int chunkSize) {
+        long chunks = Math.max(1, (plaintextSize + chunkSize - 1) / chunkSize);
+        return HEADER_SIZE_BYTE + plaintextSize + chunks * TAG_SIZE_BYTE;
+    }
+
+    /**
+     * Calculates the plaintext size of a ciphertext with the given size.
+     *
+     * @param ciphertextSize size of the ciphertext including the header
+     * @param chunkSize      plaintext size of each chunk
+     * @return size of the plaintext
+     * @throws InvalidCipherTextException if no valid ciphertext can have this size
+     */
+    public static long plaintextSize(long ciphertextSize, int chunkSize) throws InvalidCipherTextException {
+        long body = ciphertextSize - HEADER_SIZE_BYTE;
+        long encryptedChunkSize = chunkSize + TAG_SIZE_BYTE;
+        long chunks = (body + encryptedChunkSize - 1) / encryptedChunkSize;
+        long lastChunk = body - (chunks - 1) * encryptedChunkSize;
+        if (body < TAG_SIZE_BYTE || lastChunk < TAG_SIZE_BYTE || (lastChunk == TAG_SIZE_BYTE && chunks > 1)) {
+            throw new InvalidCipherTextException("Invalid ciphertext length!");
+        }
+        return body - chunks * TAG_SIZE_BYTE;
+    }
+
+    /**
+     * Encrypts an InputStream to an OutputStream in chunks of the given size.
+     *
+     * @param inputStream  InputStream that will be encrypted
+     * @param outputStream OutputStream where ciphertext is streamed to
+     * @param key          Key which is used to en-/decrypt
+     * @param noncePrefix  random prefix of NONCE_PREFIX_SIZE_BYTE bytes for all chunk nonces
+     * @param chunkSize    plaintext size of each chunk
+     * @throws IOException if the streams cannot be read or written
+     */
+    public void encrypt(InputStream inputStream, OutputStream outputStream, KeyParameter key,
+                        byte[] noncePrefix, int chunkSize) throws IOException {
+        if (noncePrefix.length != NONCE_PREFIX_SIZE_BYTE) {
+            throw new IllegalArgumentException("Invalid nonce prefix length: " + noncePrefix.length);
+        }
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        byte[] header = ByteBuffer.allocate(HEADER_SIZE_BYTE)
+            .put(MAGIC).put(VERSION).putInt(chunkSize).put(noncePrefix).array();
+        outputStream.write(header);
+
+        int index = 0;
+        byte[] pending = readChunk(inputStream, chunkSize);
+        while (pending != null) {
+            List<Callable<byte[]>> batch = new ArrayList<>(parallelism);
+            while (batch.size() < parallelism && pending != null) {
+                byte[] chunk = pending;
+                pending = chunk.length == chunkSize ? readChunk(inputStream, chunkSize) : null;
+                if (pending != null && pending.length == 0) {
+                    pending = null;
+                }
+                batch.add(new ChunkTask(backend, true, key, header, index++, pending == null, chunk));
+            }
+            try {
+                for (byte[] sealed : run(batch)) {
+                    outputStream.write(sealed);
+                }
+            } catch (InvalidCipherTextException e) {
+                // Should not happen
+                throw new IllegalStateException("Encryption: Block size of cipher was illegal => code mistake.", e);
+            }
+        }
+    }
+
+    /**
+     * Decrypts a chunked ciphertext from an InputStream to an OutputStream. Every chunk is
+     * written to the OutputStream only after its authentication tag has been validated.
+     * If validation fails the OutputStream may already contain the verified leading chunks.
+     *
+     * @param inputStream  InputStream from where the ciphertext is read
+     * @param outputStream OutputStream where the plaintext is streamed to
+     * @param key          Key which is used to en-/decrypt
+     * @throws IOException                if the streams cannot be read or written
+     * @throws InvalidCipherTextException if the header is invalid, a tag validation failed or the ciphertext was truncated
+     */
+    public void decrypt(InputStream inputStream, OutputStream outputStream, KeyParameter key)
+        throws IOException, InvalidCipherTextException {
+        byte[] header = new byte[HEADER_SIZE_BYTE];
+        if (readFully(inputStream, header, 0, header.length) != header.length || !isChunked(header)) {
+            throw new InvalidCipherTextException("Invalid chunked ciphertext header!");
+        }
+        int chunkSize = chunkSize(header);
+        int encryptedChunkSize = chunkSize + TAG_SIZE_BYTE;
+
+        int index = 0;
+        byte[] pending = readChunk(inputStream, encryptedChunkSize);
+        while (pending != null) {
+            List<Callable<byte[]>> batch = new ArrayList<>(parallelism);
+            while (batch.size() < parallelism && pending != null) {
+                byte[] chunk = pending;
+                pending = chunk.length == encryptedChunkSize ? readChunk(inputStream, encryptedChunkSize) : null;
+                if (pending != null && pending.length == 0) {
+                    pending = null;
+                }
+                if (chunk.length < TAG_SIZE_BYTE || (chunk.length == TAG_SIZE_BYTE && index > 0)) {
+                    throw new InvalidCipherTextException("Invalid chunk length!");
+                }
+                batch.add(new ChunkTask(backend, false, key, header, index++, pending == null, chunk));
+            }
+            for (byte[] plaintext : run(batch)) {
+                outputStream.write(plaintext);
+            }
+        }
+    }
+
+    /**
+     * Reads and verifies a range of the plaintext from a chunked ciphertext file.
+     * Only the chunks covering the requested range are read and decrypted.
+     *
+     * @param channel ciphertext to read from
+     * @param key     Key which is used to en-/decrypt
+     * @param offset  plaintext offset of the range
+     * @param length  maximum length of the range, the result is shorter if the plaintext ends earlier
+     * @return verified plaintext of the range
+     * @throws IOException                if the channel cannot be read
+     * @throws InvalidCipherTextException if the header is invalid or a tag validation failed
+     */
+    public byte[] decryptRange(FileChannel channel, KeyParameter key, long offset, int length)
+        throws IOException, InvalidCipherTextException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range " + offset + "+" + length);
+        }
+        byte[] header = new byte[HEADER_SIZE_BYTE];
+        if (readFully(channel, ByteBuffer.wrap(header), 0) != header.length || !isChunked(header)) {
+            throw new InvalidCipherTextException("Invalid chunked ciphertext header!");
+        }
+        int chunkSize = chunkSize(header);
+        long encryptedChunkSize = chunkSize + TAG_SIZE_BYTE;
+        long ciphertextSize = channel.size();
+        long plaintextSize = plaintextSize(ciphertextSize, chunkSize);
+        long end = Math.min(plaintextSize, offset + length);
+        if (offset >= end) {
+            return new byte[0];
+        }
+        int firstChunk = (int) (offset / chunkSize);
+        int lastChunk = (int) ((end - 1) / chunkSize);
+        int finalChunk = (int) (Math.max(plaintextSize - 1, 0) / chunkSize);
+
+        ByteBuffer result = ByteBuffer.allocate((int) (end - offset));
+        for (int batchStart = firstChunk; batchStart <= lastChunk; batchStart += parallelism) {
+            List<Callable<byte[]>> batch = new ArrayList<>(parallelism);
+            for (int index = batchStart; index <= lastChunk && index < batchStart + parallelism; index++) {
+                long position = HEADER_SIZE_BYTE + index * encryptedChunkSize;
+                byte[] chunk = new byte[(int) Math.min(encryptedChunkSize, ciphertextSize - position)];
+                if (readFully(channel, ByteBuffer.wrap(chunk), position) != chunk.length) {
+                    throw new EOFException("Ciphertext ended unexpectedly");
+                }
+                batch.add(new ChunkTask(backend, false, key, header, index, index == finalChunk, chunk));
+            }
+            int index = batchStart;
+            for (byte[] plaintext : run(batch)) {
+                long chunkStart = (long) index++ * chunkSize;
+                int from = (int) Math.max(0, offset - chunkStart);
+                int to = (int) Math.min(plaintext.length, end - chunkStart);
+                result.put(plaintext, from, to - from);
+            }
+        }
+        return result.array();
+    }
+
+    /**
+     * Reads the plaintext chunk size from a chunked ciphertext header.
+     *
+     * @param header header of a chunked ciphertext
+     * @return plaintext size of each chunk
+     * @throws InvalidCipherTextException if the header contains an invalid chunk size
+     */
+    public static int chunkSize(byte[] header) throws InvalidCipherTextException {
+        int chunkSize = ByteBuffer.wrap(header, MAGIC.length + 1, 4).getInt();
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new InvalidCipherTextException("Invalid chunk size!");
+        }
+        return chunkSize;
+    }
+
+    private List<byte[]> run(List<Callable<byte[]>> batch) throws IOException, InvalidCipherTextException {
+        List<byte[]> results = new ArrayList<>(batch.size());
+        if (batch.size() == 1 || executor == null) {
+            try {
+                for (Callable<byte[]> task : batch) {
+                    results.add(task.call());
+                }
+            } catch (InvalidCipherTextException | IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return results;
+        }
+
+        List<Future<byte[]>> futures = new ArrayList<>(batch.size());
+        for (Callable<byte[]> task : batch) {
+            futures.add(executor.submit(task));
+        }
+        try {
+            for (Future<byte[]> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing chunks", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InvalidCipherTextException) {
+                throw (InvalidCipherTextException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<byte[]> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    private static byte[] readChunk(InputStream inputStream, int size) throws IOException {
+        byte[] chunk = new byte[size];
+        int read = readFully(inputStream, chunk, 0, size);
+        return read == size ? chunk : Arrays.copyOf(chunk, read);
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends.
+     *
+     * @return number of bytes read
+     */
+    static int readFully(InputStream inputStream, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = inputStream.read(buffer, offset + total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static byte[] chunkNonce(byte[] header, int index, boolean isFinal) {
+        return ByteBuffer.allocate(NONCE_SIZE_BYTE)
+            .put(header, HEADER_SIZE_BYTE - NONCE_PREFIX_SIZE_BYTE, NONCE_PREFIX_SIZE_BYTE)
+            .putInt(index)
+            .put(isFinal ? FINAL_CHUNK : 0)
+            .array();
+    }
+
+    private static class ChunkTask implements Callable<byte[]> {
+        private final AeadBackend backend;
+        private final boolean encrypt;
+        private final KeyParameter key;
+        private final byte[] header;
+        private final int index;
+        private final boolean isFinal;
+        private final byte[] input;
+
+        ChunkTask(AeadBackend backend, boolean encrypt, KeyParameter key, byte[] header, int index, boolean isFinal,
+                  byte[] input) {
+            this.backend = backend;
+            this.encrypt = encrypt;
+            this.key = key;
+            this.header = header;
+            this.index = index;
+            this.isFinal = isFinal;
+            this.input = input;
+        }
+
+        @Override
+        public byte[] call() throws InvalidCipherTextException {
+            AeadCipher gcm = backend.createCipher(encrypt, key, chunkNonce(header, index, isFinal), header, MAC_BIT);
+            byte[] output = new byte[gcm.getOutputSize(input.length)];
+            int offOut = gcm.processBytes(input, 0, input.length, output, 0);
+            try {
+                gcm.doFinal(output, offOut);
+            } catch (InvalidCipherTextException e) {
+                logger.debug("Decryption: authentication tag of chunk " + index + " is invalid");
+                throw e;
+            }
+            return output;
+        }
+    }
+
+    private static class SharedExecutor {
+        static final ExecutorService INSTANCE = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "qabel-chunk-cipher-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+}
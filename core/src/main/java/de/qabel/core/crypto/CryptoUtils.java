@@ -2,51 +2,99 @@ package de.qabel.core.crypto;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.spongycastle.crypto.CipherKeyGenerator;
 import org.spongycastle.crypto.InvalidCipherTextException;
-import org.spongycastle.crypto.KeyGenerationParameters;
-import org.spongycastle.crypto.digests.SHA512Digest;
-import org.spongycastle.crypto.engines.AESEngine;
-import org.spongycastle.crypto.macs.HMac;
-import org.spongycastle.crypto.modes.GCMBlockCipher;
-import org.spongycastle.crypto.params.AEADParameters;
 import org.spongycastle.crypto.params.KeyParameter;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.InvalidKeyException;
-import java.security.SecureRandom;
 import java.util.Arrays;
 
 public class CryptoUtils {
     // https://github.com/Qabel/qabel-doc/wiki/Components-Crypto
-    private static final int SYMM_GCM_READ_SIZE_BYTE = 4096; // Should be multiple of 4096 byte due to flash block size.
+    public static final int DEFAULT_SYMM_GCM_READ_SIZE_BYTE = 64 * 1024; // Should be multiple of 4096 byte due to flash block size.
     private static final int SYMM_NONCE_SIZE_BYTE = 12;
     private static final int AES_KEY_SIZE_BYTE = 32;
-    private static final int AES_KEY_SIZE_BIT = AES_KEY_SIZE_BYTE * 8;
 
-    private static byte[] SUITE_NAME = "Noise255/AES256-GCM\0\0\0\0\0".getBytes();
-    private static final int H_LEN = 64;
-    private static final int CV_LEN_BYTE = 48;
-    private static final int SYMM_KEY_LEN_BYTE = 32;
-    private static final int NONCE_LEN_BYTE = 12;
     private static final int MAC_BIT = 128;
-    private static final int HEADER_CIPHER_TEXT_LEN_BYTE = 48;
-    private static final int PADDING_LEN_BYTES = 4;
     public static final int ASYM_KEY_SIZE_BYTE = 32;
+    // most directory metadata files are a few KB
+    public static final long DEFAULT_MEMORY_BUFFER_THRESHOLD_BYTE = 1024 * 1024;
 
     private static final Logger logger = LoggerFactory.getLogger(CryptoUtils.class
         .getName());
 
-    private SecureRandom secRandom;
-    private CipherKeyGenerator keyGenerator;
+    private final AeadBackend aeadBackend;
+    private final EcdhCache ecdhCache;
+    private final ChunkedAuthenticatedCipher chunkedCipher;
+    private final NoiseBoxEngine noiseBoxEngine;
+    private int streamBufferSize = DEFAULT_SYMM_GCM_READ_SIZE_BYTE;
 
+    /**
+     * Creates an own instance. Prefer the shared {@link #getInstance()} unless another backend, cache
+     * or stream buffer size is required.
+     */
     public CryptoUtils() {
-        secRandom = new SecureRandom();
+        this(AeadBackends.getDefault());
+    }
+
+    /**
+     * @param aeadBackend backend for all AES GCM operations
+     */
+    public CryptoUtils(AeadBackend aeadBackend) {
+        this(aeadBackend, EcdhCache.getInstance());
+    }
+
+    /**
+     * @param aeadBackend backend for all AES GCM operations
+     * @param ecdhCache   cache for the static-static ECDH secrets of noise boxes
+     */
+    public CryptoUtils(AeadBackend aeadBackend, EcdhCache ecdhCache) {
+        this.aeadBackend = aeadBackend;
+        this.ecdhCache = ecdhCache;
+        chunkedCipher = new ChunkedAuthenticatedCipher(aeadBackend);
+        noiseBoxEngine = new NoiseBoxEngine(aeadBackend, ecdhCache);
+    }
+
+    /**
+     * Returns the instance shared by core, box and chat. It is thread safe, random bytes and keys
+     * are taken from the DRBG of the calling thread (see {@link SecureRandoms}).
+     * The shared instance must not be reconfigured with {@link #setStreamBufferSize(int)}.
+     *
+     * @return shared instance with the default backend and the shared ECDH cache
+     */
+    public static CryptoUtils getInstance() {
+        return SharedInstance.INSTANCE;
+    }
+
+    public AeadBackend getAeadBackend() {
+        return aeadBackend;
+    }
+
+    /**
+     * @return engine to create and read noise boxes in caller supplied buffers
+     */
+    public NoiseBoxEngine getNoiseBoxEngine() {
+        return noiseBoxEngine;
+    }
+
+    /**
+     * Sets the size of the buffers used by the stream en-/decryption.
+     *
+     * @param streamBufferSize buffer size in bytes, should be a multiple of 4096
+     */
+    public void setStreamBufferSize(int streamBufferSize) {
+        if (streamBufferSize <= 0) {
+            throw new IllegalArgumentException("Invalid buffer size: " + streamBufferSize);
+        }
+        this.streamBufferSize = streamBufferSize;
+    }
 
-        //New key generator needs random for initialization
-        keyGenerator = new CipherKeyGenerator();
-        keyGenerator.init(new KeyGenerationParameters(secRandom, AES_KEY_SIZE_BIT));
+    public int getStreamBufferSize() {
+        return streamBufferSize;
     }
 
     /**
@@ -56,9 +104,7 @@ public class CryptoUtils {
      * @return byte[ ] with random bytes
      */
     public byte[] getRandomBytes(int numBytes) {
-        byte[] ranBytes = new byte[numBytes];
-        secRandom.nextBytes(ranBytes);
-        return ranBytes;
+        return SecureRandoms.nextBytes(numBytes);
     }
 
     /**
@@ -94,13 +140,22 @@ public class CryptoUtils {
     public boolean encryptFileAuthenticatedSymmetric(File file, OutputStream outputStream, KeyParameter key, byte[] nonce)
         throws InvalidKeyException, FileNotFoundException {
         FileInputStream fileInputStream = new FileInputStream(file);
-        return encryptStreamAuthenticatedSymmetric(fileInputStream, outputStream, key, nonce);
+        try {
+            return encryptChannelAuthenticatedSymmetric(fileInputStream.getChannel(),
+                Channels.newChannel(outputStream), key, nonce);
+        } finally {
+            try {
+                fileInputStream.close();
+            } catch (IOException e) {
+                logger.debug("Encryption: Input file cannot be closed.", e);
+            }
+        }
     }
 
     /**
      * Encrypts an InputStream to an OutputStream. The OutputStream gets the result
      * immediately while encrypting. The step size of every separate decryption
-     * step is defined in SYMM_GCM_READ_SIZE_BYTE. Nonce of size
+     * step is defined by the stream buffer size. Nonce of size
      * SYMM_NONCE_SIZE_BIT is taken as nonce directly, else a random nonce is
      * generated.
      *
@@ -114,21 +169,21 @@ public class CryptoUtils {
     public boolean encryptStreamAuthenticatedSymmetric(InputStream inputStream, OutputStream outputStream,
                                                        KeyParameter key, byte[] nonce) throws InvalidKeyException {
         DataOutputStream cipherText = new DataOutputStream(outputStream);
-        byte[] tempIn = new byte[SYMM_GCM_READ_SIZE_BYTE];
-        byte[] tempOut = new byte[SYMM_GCM_READ_SIZE_BYTE];
         int usedBytes;
 
         if (nonce == null || nonce.length != SYMM_NONCE_SIZE_BYTE) {
             nonce = getRandomBytes(SYMM_NONCE_SIZE_BYTE);
         }
 
-        GCMBlockCipher gcmCipher = new GCMBlockCipher(new AESEngine());
+        AeadCipher gcmCipher;
         try {
-            gcmCipher.init(true, new AEADParameters(key, MAC_BIT, nonce, null));
+            gcmCipher = aeadBackend.createCipher(true, key, nonce, null, MAC_BIT);
         } catch (IllegalArgumentException e) {
             logger.debug("Encryption: Wrong parameters for file encryption cipher.", e);
             return false;
         }
+        byte[] tempIn = new byte[streamBufferSize];
+        byte[] tempOut = new byte[gcmCipher.getOutputSize(streamBufferSize) + MAC_BIT / 8];
 
         try {
             cipherText.write(nonce);
@@ -149,11 +204,131 @@ public class CryptoUtils {
         return true;
     }
 
+    /**
+     * Encrypts a ReadableByteChannel to a WritableByteChannel in the same format as
+     * {@link #encryptStreamAuthenticatedSymmetric(InputStream, OutputStream, KeyParameter, byte[])}.
+     * Uses direct buffers of the stream buffer size, so file channels can be processed by the
+     * cipher backend without copying into the Java heap.
+     *
+     * @param input  channel that will be encrypted
+     * @param output channel where ciphertext is written to
+     * @param key    Key which is used to en-/decrypt
+     * @param nonce  Random value which is concatenated to a counter
+     * @return true if encryption worked as expected, else false
+     * @throws InvalidKeyException if key is invalid
+     */
+    public boolean encryptChannelAuthenticatedSymmetric(ReadableByteChannel input, WritableByteChannel output,
+                                                        KeyParameter key, byte[] nonce) throws InvalidKeyException {
+        if (nonce == null || nonce.length != SYMM_NONCE_SIZE_BYTE) {
+            nonce = getRandomBytes(SYMM_NONCE_SIZE_BYTE);
+        }
+
+        AeadCipher gcmCipher;
+        try {
+            gcmCipher = aeadBackend.createCipher(true, key, nonce, null, MAC_BIT);
+        } catch (IllegalArgumentException e) {
+            logger.debug("Encryption: Wrong parameters for file encryption cipher.", e);
+            return false;
+        }
+        ByteBuffer tempIn = ByteBuffer.allocateDirect(streamBufferSize);
+        ByteBuffer tempOut = ByteBuffer.allocateDirect(gcmCipher.getOutputSize(streamBufferSize) + MAC_BIT / 8);
+
+        try {
+            writeFully(output, ByteBuffer.wrap(nonce));
+            while (input.read(tempIn) >= 0) {
+                tempIn.flip();
+                gcmCipher.processBytes(tempIn, tempOut);
+                tempIn.clear();
+                tempOut.flip();
+                writeFully(output, tempOut);
+                tempOut.clear();
+            }
+            gcmCipher.doFinal(tempOut);
+            tempOut.flip();
+            writeFully(output, tempOut);
+        } catch (InvalidCipherTextException e) {
+            // Should not happen
+            logger.debug("Encryption: Block size of cipher was illegal => code mistake.", e);
+        } catch (IOException e) {
+            logger.debug("Encryption: Input/output channel cannot be written/read to/from.", e);
+            return false;
+        }
+        return true;
+    }
+
+    private static void writeFully(WritableByteChannel output, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+        }
+    }
+
+    /**
+     * Encrypts an InputStream to an OutputStream in the chunked format of
+     * {@link ChunkedAuthenticatedCipher}. Every chunk of chunkSize bytes gets its own
+     * nonce and authentication tag, which allows parallel en-/decryption and verified
+     * random access reads.
+     *
+     * @param inputStream  InputStream that will be encrypted
+     * @param outputStream OutputStream where ciphertext is streamed to
+     * @param key          Key which is used to en-/decrypt
+     * @param chunkSize    plaintext size of each chunk
+     * @return true if encryption worked as expected, else false
+     */
+    public boolean encryptStreamAuthenticatedSymmetricChunked(InputStream inputStream, OutputStream outputStream,
+                                                              KeyParameter key, int chunkSize) {
+        try {
+            chunkedCipher.encrypt(inputStream, outputStream, key,
+                getRandomBytes(ChunkedAuthenticatedCipher.NONCE_PREFIX_SIZE_BYTE), chunkSize);
+            inputStream.close();
+        } catch (IllegalArgumentException e) {
+            logger.debug("Encryption: Wrong parameters for chunked encryption.", e);
+            return false;
+        } catch (IOException e) {
+            logger.debug("Encryption: Input/output Stream cannot be written/read to/from.", e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Encrypts an InputStream to an OutputStream in the chunked format with the default chunk size.
+     *
+     * @param inputStream  InputStream that will be encrypted
+     * @param outputStream OutputStream where ciphertext is streamed to
+     * @param key          Key which is used to en-/decrypt
+     * @return true if encryption worked as expected, else false
+     */
+    public boolean encryptStreamAuthenticatedSymmetricChunked(InputStream inputStream, OutputStream outputStream,
+                                                              KeyParameter key) {
+        return encryptStreamAuthenticatedSymmetricChunked(inputStream, outputStream, key,
+            ChunkedAuthenticatedCipher.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Reads and verifies a range of the plaintext of a file encrypted in the chunked format.
+     * Only the chunks covering the range are read and decrypted.
+     *
+     * @param file   file with the chunked ciphertext
+     * @param key    Key which is used to en-/decrypt the file
+     * @param offset plaintext offset of the range
+     * @param length maximum length of the range
+     * @return verified plaintext of the range, shorter than length if the plaintext ends earlier
+     * @throws IOException                if the file cannot be read
+     * @throws InvalidCipherTextException if the file is not in the chunked format or authentication failed
+     */
+    public byte[] decryptRangeAuthenticatedSymmetric(File file, KeyParameter key, long offset, int length)
+        throws IOException, InvalidCipherTextException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            return chunkedCipher.decryptRange(input.getChannel(), key, offset, length);
+        }
+    }
+
     /**
      * Decrypts ciphertext from an InputStream to a file. The decrypted content
      * is written to the file immediately. If decryption was successful true
      * is returned, if authentication tag validation fails or another error
      * occurs false is returned.
+     * Both the single tag format and the chunked format are supported.
      *
      * @param inputStream InputStream from where the ciphertext is read
      * @param file        File in which the decrypted stream is stored
@@ -164,51 +339,101 @@ public class CryptoUtils {
      */
     public boolean decryptFileAuthenticatedSymmetricAndValidateTag(InputStream inputStream, File file, KeyParameter key)
         throws InvalidKeyException, IOException {
+        FileOutputStream fileOutput = new FileOutputStream(file);
+        try {
+            decryptStreamAuthenticatedSymmetric(inputStream, fileOutput, key);
+        } catch (InvalidCipherTextException e) {
+            logger.error("Decryption: Either cipher text is too short or an authentication tag is invalid!", e);
+            // truncate file to avoid leakage of incomplete or unauthenticated data
+            fileOutput.getChannel().truncate(0);
+            return false;
+        } finally {
+            fileOutput.close();
+        }
+        return true;
+    }
+
+    /**
+     * Decrypts ciphertext from an InputStream into a {@link DecryptedBuffer} with the default memory threshold.
+     *
+     * @see #decryptAuthenticatedSymmetric(InputStream, KeyParameter, File, long)
+     */
+    public DecryptedBuffer decryptAuthenticatedSymmetric(InputStream inputStream, KeyParameter key, File spillDir)
+        throws IOException, InvalidCipherTextException {
+        return decryptAuthenticatedSymmetric(inputStream, key, spillDir, DEFAULT_MEMORY_BUFFER_THRESHOLD_BYTE);
+    }
+
+    /**
+     * Decrypts ciphertext from an InputStream into a {@link DecryptedBuffer}. Plaintext up to memoryThreshold
+     * bytes is kept in pooled memory, larger plaintext is spilled to a temporary file in spillDir.
+     * The buffer is only returned after the authentication tag has been verified.
+     * Both the single tag format and the chunked format are supported.
+     *
+     * @param inputStream     InputStream from where the ciphertext is read
+     * @param key             Key which is used to en-/decrypt
+     * @param spillDir        directory for the temporary file of large plaintexts
+     * @param memoryThreshold maximum number of plaintext bytes held in memory
+     * @return verified plaintext, must be closed by the caller
+     * @throws IOException                if the ciphertext cannot be read or the spill file cannot be written
+     * @throws InvalidCipherTextException if the ciphertext is too short or authentication failed
+     */
+    public DecryptedBuffer decryptAuthenticatedSymmetric(InputStream inputStream, KeyParameter key, File spillDir,
+                                                         long memoryThreshold)
+        throws IOException, InvalidCipherTextException {
+        DecryptedBuffer buffer = new DecryptedBuffer(spillDir, memoryThreshold);
+        try {
+            decryptStreamAuthenticatedSymmetric(inputStream, buffer.asOutputStream(), key);
+            buffer.finish();
+            return buffer;
+        } catch (IOException | InvalidCipherTextException | RuntimeException e) {
+            buffer.close();
+            throw e;
+        }
+    }
+
+    private void decryptStreamAuthenticatedSymmetric(InputStream inputStream, OutputStream output, KeyParameter key)
+        throws IOException, InvalidCipherTextException {
         byte[] nonce = new byte[SYMM_NONCE_SIZE_BYTE];
-        byte[] tempIn = new byte[SYMM_GCM_READ_SIZE_BYTE];
-        byte[] tempOut = new byte[SYMM_GCM_READ_SIZE_BYTE];
-        BufferedInputStream bufferedInput = new BufferedInputStream(inputStream);
+        byte[] tempIn = new byte[streamBufferSize];
+        byte[] tempOut = new byte[streamBufferSize];
+        BufferedInputStream bufferedInput = new BufferedInputStream(inputStream, streamBufferSize);
         int usedBytes;
 
         try {
+            byte[] head = new byte[ChunkedAuthenticatedCipher.HEADER_SIZE_BYTE];
+            bufferedInput.mark(head.length);
+            int headLength = ChunkedAuthenticatedCipher.readFully(bufferedInput, head, 0, head.length);
+            bufferedInput.reset();
+            if (headLength == head.length && ChunkedAuthenticatedCipher.isChunked(head)) {
+                chunkedCipher.decrypt(bufferedInput, output, key);
+                return;
+            }
             bufferedInput.read(nonce);
         } catch (IOException e) {
             logger.debug("Decryption: Ciphertext (in this case the nonce) can not be read.", e);
             throw e;
         }
 
-        GCMBlockCipher gcmCipher = new GCMBlockCipher(new AESEngine());
+        // the whole stream must not be held back until the tag is validated
+        AeadBackend backend = aeadBackend.supportsIncrementalDecryption() ? aeadBackend : new SpongyCastleAeadBackend();
+        AeadCipher gcmCipher;
         try {
-            gcmCipher.init(false, new AEADParameters(key, MAC_BIT, nonce, null));
+            gcmCipher = backend.createCipher(false, key, nonce, null, MAC_BIT);
         } catch (IllegalArgumentException e) {
             throw new RuntimeException("Decryption: Wrong parameters for file decryption.", e);
         }
 
-        FileOutputStream fileOutput = new FileOutputStream(file);
-        try {
-            while ((usedBytes = bufferedInput.read(tempIn, 0,
-                SYMM_GCM_READ_SIZE_BYTE)) > 0) {
-                /*
-				 * reading from a buffered input stream ensures that enough bytes
-				 * are read to fulfill the block cipher min. length requirements.
-				 */
-                usedBytes = gcmCipher.processBytes(tempIn, 0, usedBytes, tempOut, 0);
-                fileOutput.write(tempOut, 0, usedBytes);
-            }
-            try {
-                usedBytes = gcmCipher.doFinal(tempOut, 0);
-                fileOutput.write(tempOut, 0, usedBytes);
-            } catch (InvalidCipherTextException e) {
-                logger.error("Decryption: Either cipher text is too short or authentication tag is invalid!", e);
-                // truncate file to avoid leakage of incomplete or unauthenticated data
-                fileOutput.getChannel().truncate(0);
-                return false;
-            }
-        } finally {
-            fileOutput.close();
+        while ((usedBytes = bufferedInput.read(tempIn, 0,
+            streamBufferSize)) > 0) {
+            /*
+             * reading from a buffered input stream ensures that enough bytes
+             * are read to fulfill the block cipher min. length requirements.
+             */
+            usedBytes = gcmCipher.processBytes(tempIn, 0, usedBytes, tempOut, 0);
+            output.write(tempOut, 0, usedBytes);
         }
-
-        return true;
+        usedBytes = gcmCipher.doFinal(tempOut, 0);
+        output.write(tempOut, 0, usedBytes);
     }
 
     /**
@@ -217,49 +442,7 @@ public class CryptoUtils {
      * @return new symmetric key.
      */
     public KeyParameter generateSymmetricKey() {
-        return new KeyParameter(keyGenerator.generateKey());
-    }
-
-    /**
-     * Noise Key derivation function. Outputs a byte sequence that the caller typically splits into multiple variables
-     * such as a chain variable and cipher context, or two cipher contexts.
-     *
-     * @param secret      secret for key derivation
-     * @param extraSecret is used to pass a chaining variable to mix into the KDF.
-     * @param info        ensures that applying the KDF to the same secret values will produce independent output,
-     *                    provided 'info' is different.
-     * @param outputLen   length out the output
-     * @return derived key or null on unexpected errors
-     * @throws InvalidKeyException if secret cannot be used as a HMAC secret
-     */
-    byte[] kdf(byte[] secret, byte[] extraSecret, byte[] info, int outputLen) throws InvalidKeyException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        byte[] t = new byte[H_LEN];
-
-        // Not required to init the ByteArrayOutputStream with the
-        // expected length, but it might improve the performance
-        KeyParameter key = new KeyParameter(secret);
-        ByteArrayOutputStream bs = new ByteArrayOutputStream(info.length + 1 + 32 + extraSecret.length);
-        HMac hmac = new HMac(new SHA512Digest());
-        for (int c = 0; c <= Math.ceil((double) outputLen / H_LEN) - 1; c++) {
-            try {
-                bs.write(info);
-                bs.write(c);
-                bs.write(t, 0, 32);
-                bs.write(extraSecret);
-
-                hmac.init(key);
-                hmac.update(bs.toByteArray(), 0, bs.size());
-                hmac.doFinal(t, 0);
-                outputStream.write(t);
-                bs.reset();
-            } catch (IOException e) {
-                // Should never occur
-                logger.error("Cannot write to ByteArrayOutputStream!", e);
-                return null;
-            }
-        }
-        return Arrays.copyOfRange(outputStream.toByteArray(), 0, outputLen);
+        return new KeyParameter(SecureRandoms.nextBytes(AES_KEY_SIZE_BYTE));
     }
 
     /**
@@ -279,71 +462,9 @@ public class CryptoUtils {
         if (appData == null) {
             appData = new byte[0];
         }
-
-        QblECKeyPair ephKey = new QblECKeyPair();
-        ByteArrayInputStream key1, key2;
-        ByteArrayOutputStream header = new ByteArrayOutputStream();
-        ByteArrayOutputStream body = new ByteArrayOutputStream();
-        ByteArrayOutputStream noiseBox = new ByteArrayOutputStream();
-        ByteArrayOutputStream authtext = new ByteArrayOutputStream();
-        ByteArrayOutputStream paddedPlaintext = new ByteArrayOutputStream(appData.length + PADDING_LEN_BYTES);
-        byte[] cv1 = new byte[CV_LEN_BYTE];
-        byte[] symmKey1 = new byte[SYMM_KEY_LEN_BYTE];
-        byte[] nonce1 = new byte[NONCE_LEN_BYTE];
-        byte[] symmKey2 = new byte[SYMM_KEY_LEN_BYTE];
-        byte[] nonce2 = new byte[NONCE_LEN_BYTE];
-        byte[] dh1 = ephKey.ECDH(targetPubKey);
-        byte[] dh2 = senderKey.ECDH(targetPubKey);
-        byte[] info = Arrays.copyOf(SUITE_NAME, SUITE_NAME.length + 1);
-        try {
-            // disable negative padding
-            if (padLen < 0) {
-                padLen = 0;
-            }
-            byte[] encryptedPaddingLen = ByteBuffer.allocate(PADDING_LEN_BYTES).putInt(padLen).array();
-            paddedPlaintext.write(appData);
-            if (padLen > 0) {
-                paddedPlaintext.write(getRandomBytes(padLen));
-            }
-            paddedPlaintext.write(encryptedPaddingLen);
-
-            // kdf
-            key1 = new ByteArrayInputStream(kdf(dh1, new byte[CV_LEN_BYTE], info, CV_LEN_BYTE + SYMM_KEY_LEN_BYTE + NONCE_LEN_BYTE));
-            key1.read(cv1);
-            key1.read(symmKey1);
-            key1.read(nonce1);
-            info[info.length - 1] += (byte) 0x01;
-
-            // header = eph_key.pub || ENCRYPT(cc1, sender_key.pub, target_pubkey || eph_key.pub)
-            authtext.write(targetPubKey.getKey());
-            authtext.write(ephKey.getPub().getKey());
-
-            header.write(ephKey.getPub().getKey());
-            header.write(encrypt(new KeyParameter(symmKey1), nonce1, senderKey.getPub().getKey(), authtext.toByteArray()));
-
-            // body = noise_body(cc2, appData, target_pubkey || header)
-            key2 = new ByteArrayInputStream(kdf(dh2, cv1, info, CV_LEN_BYTE + SYMM_KEY_LEN_BYTE + NONCE_LEN_BYTE));
-            key2.skip(CV_LEN_BYTE);    // Not used, so discarded
-            key2.read(symmKey2);
-            key2.read(nonce2);
-            authtext.reset();
-            authtext.write(targetPubKey.getKey());
-            header.writeTo(authtext);
-            body.write(encrypt(new KeyParameter(symmKey2), nonce2, paddedPlaintext.toByteArray(), authtext.toByteArray()));
-
-            // noise box = header || body
-            header.writeTo(noiseBox);
-            body.writeTo(noiseBox);
-        } catch (IOException e) {
-            // Should never occur
-            logger.error("Cannot write to ByteArrayOutputStream!", e);
-            throw new RuntimeException(e);
-        } catch (InvalidCipherTextException e) {
-            // Should never occur
-            logger.error("Unknown encryption error!", e);
-            throw new RuntimeException(e);
-        }
-        return noiseBox.toByteArray();
+        byte[] noiseBox = new byte[NoiseBoxEngine.boxSize(appData.length, padLen)];
+        noiseBoxEngine.createBox(senderKey, targetPubKey, ByteBuffer.wrap(appData), padLen, ByteBuffer.wrap(noiseBox));
+        return noiseBox;
     }
 
     /**
@@ -356,90 +477,77 @@ public class CryptoUtils {
      * @throws InvalidCipherTextException on decryption errors
      */
     public DecryptedPlaintext readBox(QblECKeyPair targetKey, byte[] noiseBox) throws InvalidKeyException, InvalidCipherTextException {
-        ByteArrayInputStream key1, key2;
-        ByteArrayInputStream cipherStream = new ByteArrayInputStream(noiseBox);
-        ByteArrayOutputStream authtext = new ByteArrayOutputStream();
-        QblECPublicKey senderKey;
-        int encryptedPaddingLength;
-        byte[] ephRawKey = new byte[QblECPublicKey.KEY_SIZE_BYTE];
-        byte[] cv1 = new byte[CV_LEN_BYTE];
-        byte[] symmKey1 = new byte[SYMM_KEY_LEN_BYTE];
-        byte[] nonce1 = new byte[NONCE_LEN_BYTE];
-        byte[] symmKey2 = new byte[SYMM_KEY_LEN_BYTE];
-        byte[] nonce2 = new byte[NONCE_LEN_BYTE];
-        byte[] headerCipherText = new byte[HEADER_CIPHER_TEXT_LEN_BYTE];
-        byte[] paddedPlaintext;
-        byte[] bodyCipherText;
-        byte[] info = Arrays.copyOf(SUITE_NAME, SUITE_NAME.length + 1);
-        try {
-            // read ephKey
-            if (cipherStream.read(ephRawKey) != ASYM_KEY_SIZE_BYTE) {
-                throw new InvalidCipherTextException("Invalid ephKey length!");
-            }
-            QblECPublicKey ephKey = new QblECPublicKey(ephRawKey);
-
-            // first kdf
-            byte[] dh1 = targetKey.ECDH(ephKey);
-            key1 = new ByteArrayInputStream(kdf(dh1, new byte[CV_LEN_BYTE], info, CV_LEN_BYTE + SYMM_KEY_LEN_BYTE + NONCE_LEN_BYTE));
-            if (key1.read(cv1) != CV_LEN_BYTE) {
-                throw new InvalidCipherTextException("Invalid cv1 length!");
-            }
-            if (key1.read(symmKey1) != SYMM_KEY_LEN_BYTE) {
-                throw new InvalidCipherTextException("Invalid symmKey length!");
-            }
-            if (key1.read(nonce1) != NONCE_LEN_BYTE) {
-                throw new InvalidCipherTextException("Invalid nonce1 length!");
-            }
-
-            // sender_key.pub = DECRYPT(cc1, header_cipher_text, target_pubkey || eph_key.pub)
-            authtext.write(targetKey.getPub().getKey());
-            authtext.write(ephRawKey);
-            if (cipherStream.read(headerCipherText) != HEADER_CIPHER_TEXT_LEN_BYTE) {
-                throw new InvalidCipherTextException("Invalid headerCipherText length!");
-            }
-
-            byte[] senderRawKey = decrypt(new KeyParameter(symmKey1), nonce1, headerCipherText, authtext.toByteArray());
-            senderKey = new QblECPublicKey(senderRawKey);
-
-            // second kdf
-            byte[] dh2 = targetKey.ECDH(senderKey);
-            info[info.length - 1] += (byte) 0x01;
-            key2 = new ByteArrayInputStream(kdf(dh2, cv1, info, CV_LEN_BYTE + SYMM_KEY_LEN_BYTE + NONCE_LEN_BYTE));
-            if (key2.skip(CV_LEN_BYTE) != CV_LEN_BYTE) {
-                throw new InvalidCipherTextException("Invalid cv2 length!");
-            }
-            if (key2.read(symmKey2) != SYMM_KEY_LEN_BYTE) {
-                throw new InvalidCipherTextException("Invalid symmKey2 length!");
-            }
-            if (key2.read(nonce2) != NONCE_LEN_BYTE) {
-                throw new InvalidCipherTextException("Invalid nonce2 length!");
-            }
+        return readBox(targetKey, noiseBox, 0, noiseBox.length);
+    }
 
-            // plaintext = noise_body^-1(cc2, body, target_pubkey || header)
-            authtext.reset();
-            authtext.write(targetKey.getPub().getKey());
-            authtext.write(ephRawKey);
-            authtext.write(headerCipherText);
-            bodyCipherText = new byte[cipherStream.available()];
-            cipherStream.read(bodyCipherText);
+    /**
+     * Gets the plain content from a noise box which is part of a larger buffer.
+     *
+     * @param targetKey receivers EC key pair
+     * @param buffer    buffer containing the received noise box
+     * @param offset    offset of the noise box in buffer
+     * @param length    length of the noise box
+     * @return plaintext which is the content of the received noise box
+     * @throws InvalidKeyException        if kdf cannot distribute a key from DH of given EC keys
+     * @throws InvalidCipherTextException on decryption errors
+     */
+    public DecryptedPlaintext readBox(QblECKeyPair targetKey, byte[] buffer, int offset, int length)
+        throws InvalidKeyException, InvalidCipherTextException {
+        byte[] paddedPlaintext = new byte[NoiseBoxEngine.readBufferSize(length)];
+        ByteBuffer plaintext = ByteBuffer.wrap(paddedPlaintext);
+        QblECPublicKey senderKey = noiseBoxEngine.readBox(targetKey, ByteBuffer.wrap(buffer, offset, length), plaintext);
+        return new DecryptedPlaintext(senderKey, Arrays.copyOf(paddedPlaintext, plaintext.position()));
+    }
 
-        } catch (IOException e) {
-            throw new InvalidCipherTextException("Invalid ciphertext!");
+    /**
+     * Gets the plain content from a tagged noise box which is part of a larger buffer.
+     *
+     * @param targetKey receivers EC key pair
+     * @param buffer    buffer containing the received recipient tag and noise box
+     * @param offset    offset of the recipient tag in buffer
+     * @param length    length of the recipient tag and the noise box
+     * @return plaintext which is the content of the received noise box or null if it is not tagged for targetKey
+     * @throws InvalidKeyException        if kdf cannot distribute a key from DH of given EC keys
+     * @throws InvalidCipherTextException on decryption errors
+     */
+    public DecryptedPlaintext readTaggedBox(QblECKeyPair targetKey, byte[] buffer, int offset, int length)
+        throws InvalidKeyException, InvalidCipherTextException {
+        byte[] paddedPlaintext = new byte[NoiseBoxEngine.readBufferSize(length - NoiseBoxEngine.RECIPIENT_TAG_BYTE)];
+        ByteBuffer plaintext = ByteBuffer.wrap(paddedPlaintext);
+        QblECPublicKey senderKey = noiseBoxEngine.readTaggedBox(targetKey, ByteBuffer.wrap(buffer, offset, length),
+            plaintext);
+        if (senderKey == null) {
+            return null;
         }
+        return new DecryptedPlaintext(senderKey, Arrays.copyOf(paddedPlaintext, plaintext.position()));
+    }
 
-        paddedPlaintext = decrypt(new KeyParameter(symmKey2), nonce2, bodyCipherText, authtext.toByteArray());
-        encryptedPaddingLength = ByteBuffer.wrap(
-            Arrays.copyOfRange(paddedPlaintext, paddedPlaintext.length - PADDING_LEN_BYTES, paddedPlaintext.length)).getInt();
-
-        // Validate padding length
-        if (encryptedPaddingLength < 0 || encryptedPaddingLength > paddedPlaintext.length - PADDING_LEN_BYTES) {
-            throw new InvalidCipherTextException("Invalid padding length!");
+    /**
+     * Like {@link #readTaggedBox(QblECKeyPair, byte[], int, int)} with an ECDH secret that has been calculated
+     * beforehand.
+     *
+     * @param targetKey  receivers EC key pair
+     * @param ecdhSecret ECDH secret of targetKey and the ephemeral key of the box, see
+     *                   {@link NoiseBoxEngine#ephemeralKey(ByteBuffer)}
+     * @param buffer     buffer containing the received recipient tag and noise box
+     * @param offset     offset of the recipient tag in buffer
+     * @param length     length of the recipient tag and the noise box
+     * @return plaintext which is the content of the received noise box or null if it is not tagged for targetKey
+     * @throws InvalidKeyException        if kdf cannot distribute a key from DH of given EC keys
+     * @throws InvalidCipherTextException on decryption errors
+     */
+    public DecryptedPlaintext readTaggedBox(QblECKeyPair targetKey, byte[] ecdhSecret, byte[] buffer, int offset,
+                                            int length) throws InvalidKeyException, InvalidCipherTextException {
+        byte[] paddedPlaintext = new byte[NoiseBoxEngine.readBufferSize(length - NoiseBoxEngine.RECIPIENT_TAG_BYTE)];
+        ByteBuffer plaintext = ByteBuffer.wrap(paddedPlaintext);
+        QblECPublicKey senderKey = noiseBoxEngine.readTaggedBox(targetKey, ecdhSecret,
+            ByteBuffer.wrap(buffer, offset, length), plaintext);
+        if (senderKey == null) {
+            return null;
         }
-        return new DecryptedPlaintext(senderKey,
-            Arrays.copyOfRange(paddedPlaintext, 0, paddedPlaintext.length - PADDING_LEN_BYTES - encryptedPaddingLength));
+        return new DecryptedPlaintext(senderKey, Arrays.copyOf(paddedPlaintext, plaintext.position()));
     }
 
-
     /**
      * Encrypts a plaintext with associated data with AES GCM
      *
@@ -451,9 +559,7 @@ public class CryptoUtils {
      * @throws InvalidCipherTextException on encryption errors
      */
     public byte[] encrypt(KeyParameter key, byte[] nonce, byte[] plaintext, byte[] associatedData) throws InvalidCipherTextException {
-        AEADParameters params = new AEADParameters(key, MAC_BIT, nonce, associatedData);
-        GCMBlockCipher gcm = new GCMBlockCipher(new AESEngine());
-        gcm.init(true, params);
+        AeadCipher gcm = aeadBackend.createCipher(true, key, nonce, associatedData, MAC_BIT);
 
         byte[] output = new byte[gcm.getOutputSize(plaintext.length)];
         int offOut = gcm.processBytes(plaintext, 0, plaintext.length, output, 0);
@@ -472,13 +578,15 @@ public class CryptoUtils {
      * @throws InvalidCipherTextException on decryption errors
      */
     public byte[] decrypt(KeyParameter key, byte[] nonce, byte[] ciphertext, byte[] associatedData) throws InvalidCipherTextException {
-        AEADParameters params = new AEADParameters(key, MAC_BIT, nonce, associatedData);
-        GCMBlockCipher gcm = new GCMBlockCipher(new AESEngine());
-        gcm.init(false, params);
+        AeadCipher gcm = aeadBackend.createCipher(false, key, nonce, associatedData, MAC_BIT);
 
         byte[] output = new byte[gcm.getOutputSize(ciphertext.length)];
         int offOut = gcm.processBytes(ciphertext, 0, ciphertext.length, output, 0);
         gcm.doFinal(output, offOut);
         return output;
     }
+
+    private static class SharedInstance {
+        private static final CryptoUtils INSTANCE = new CryptoUtils();
+    }
 }
@@ -1,20 +1,116 @@
 package de.qabel.core.crypto
 
+import org.slf4j.LoggerFactory
 import java.io.File
 import java.io.Serializable
 import java.util.*
 
+/**
+ * Curve25519 scalar multiplication backed by the native curve25519 library.
+ * If the library cannot be loaded, the pure Java implementation [JavaCurve25519] is used.
+ *
+ * The batch variants process all scalars/points with a single JNI call.
+ */
 class Curve25519 : Serializable {
 
-    external fun cryptoScalarmult(n: ByteArray, p: ByteArray): ByteArray
+    fun cryptoScalarmult(n: ByteArray, p: ByteArray): ByteArray =
+        if (isNativeAvailable) cryptoScalarmult(n as Any, p as Any) else JavaCurve25519.scalarmult(n, p)
 
-    external fun cryptoScalarmultBase(n: ByteArray): ByteArray
+    fun cryptoScalarmultBase(n: ByteArray): ByteArray =
+        if (isNativeAvailable) cryptoScalarmultBase(n as Any) else JavaCurve25519.scalarmultBase(n)
+
+    /**
+     * Multiplies each scalar with the point at the same index.
+     */
+    fun cryptoScalarmultBatch(n: List<ByteArray>, p: List<ByteArray>): List<ByteArray> {
+        if (n.size != p.size) {
+            throw IllegalArgumentException("Got ${n.size} scalars but ${p.size} points")
+        }
+        if (!isNativeBatchAvailable) {
+            return n.zip(p).map { cryptoScalarmult(it.first, it.second) }
+        }
+        return split(nativeScalarmultBatch(concat(n), concat(p)))
+    }
+
+    /**
+     * Multiplies each scalar with the base point.
+     */
+    fun cryptoScalarmultBaseBatch(n: List<ByteArray>): List<ByteArray> {
+        if (!isNativeBatchAvailable) {
+            return n.map { cryptoScalarmultBase(it) }
+        }
+        return split(nativeScalarmultBaseBatch(concat(n)))
+    }
+
+    /*
+     * The single calls keep the JNI names of the public methods of earlier versions, so libraries built before the
+     * batch calls still work. The parameters are declared as Any to tell them apart from the public methods.
+     */
+    private external fun cryptoScalarmult(n: Any, p: Any): ByteArray
+
+    private external fun cryptoScalarmultBase(n: Any): ByteArray
+
+    private external fun nativeScalarmultBatch(n: ByteArray, p: ByteArray): ByteArray
+
+    private external fun nativeScalarmultBaseBatch(n: ByteArray): ByteArray
 
     companion object {
+        private val logger = LoggerFactory.getLogger(Curve25519::class.java)
+
+        /**
+         * true if the native library has been loaded, false if the Java fallback is used
+         */
+        @JvmStatic
+        val isNativeAvailable: Boolean
+
+        /**
+         * true if the native library supports the batch calls, otherwise the single calls are repeated
+         */
+        @JvmStatic
+        val isNativeBatchAvailable: Boolean
+
         init {
-            loadLibraryIfNeccessary("curve25519")
+            isNativeAvailable = loadNative()
+            isNativeBatchAvailable = isNativeAvailable && probeBatch()
         }
 
+        private fun loadNative(): Boolean {
+            try {
+                loadLibraryIfNeccessary("curve25519")
+                Curve25519().cryptoScalarmultBase(ByteArray(JavaCurve25519.KEY_SIZE) as Any)
+                return true
+            } catch (e: UnsatisfiedLinkError) {
+                logger.warn("Native curve25519 library not available, using Java implementation: " + e.message)
+                return false
+            }
+        }
+
+        private fun probeBatch(): Boolean {
+            try {
+                Curve25519().nativeScalarmultBaseBatch(ByteArray(JavaCurve25519.KEY_SIZE))
+                return true
+            } catch (e: UnsatisfiedLinkError) {
+                logger.info("Native curve25519 library does not support batches: " + e.message)
+                return false
+            }
+        }
+
+        private fun concat(values: List<ByteArray>): ByteArray {
+            val result = ByteArray(values.size * JavaCurve25519.KEY_SIZE)
+            values.forEachIndexed { i, value ->
+                if (value.size != JavaCurve25519.KEY_SIZE) {
+                    throw IllegalArgumentException("Invalid key size ${value.size}")
+                }
+                System.arraycopy(value, 0, result, i * JavaCurve25519.KEY_SIZE, JavaCurve25519.KEY_SIZE)
+            }
+            return result
+        }
+
+        private fun split(values: ByteArray): List<ByteArray> =
+            (0 until values.size / JavaCurve25519.KEY_SIZE).map {
+                Arrays.copyOfRange(values, it * JavaCurve25519.KEY_SIZE, (it + 1) * JavaCurve25519.KEY_SIZE)
+            }
+
         private fun loadLibraryIfNeccessary(libname: String) {
             if (!isLoaded(libname)) {
                 System.loadLibrary(libname)
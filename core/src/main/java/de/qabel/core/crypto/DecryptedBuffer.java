@@ -0,0 +1,263 @@
+package de.qabel.core.crypto;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verified plaintext of a decrypted stream. It is held in pooled memory chunks up to a threshold
+ * and spilled to a temporary file beyond it.
+ * Instances are only handed out by {@link CryptoUtils} after the authentication tag has been verified.
+ * Closing the buffer wipes the memory chunks and deletes the spill file.
+ */
+public class DecryptedBuffer implements Closeable {
+    public static final int CHUNK_SIZE_BYTE = 16 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 256;
+
+    private static final Logger logger = LoggerFactory.getLogger(DecryptedBuffer.class);
+    private static final Queue<byte[]> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledChunks = new AtomicInteger();
+
+    private final File spillDir;
+    private final long memoryThreshold;
+    private final List<byte[]> chunks = new ArrayList<>();
+    private long size;
+    private File spillFile;
+    private OutputStream spillOutput;
+    private boolean closed;
+
+    /**
+     * @param spillDir        directory for the spill file
+     * @param memoryThreshold maximum number of bytes held in memory
+     */
+    DecryptedBuffer(File spillDir, long memoryThreshold) {
+        this.spillDir = spillDir;
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * @return size of the plaintext in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return false if the plaintext has been spilled to disk
+     */
+    public boolean isInMemory() {
+        return spillFile == null;
+    }
+
+    /**
+     * Returns the plaintext. Closing the stream closes the buffer, so it can be read only once.
+     *
+     * @return stream of the plaintext
+     * @throws IOException if the spill file cannot be opened
+     */
+    public InputStream getInputStream() throws IOException {
+        checkOpen();
+        if (spillFile != null) {
+            return new FileInputStream(spillFile) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        DecryptedBuffer.this.close();
+                    }
+                }
+            };
+        }
+        return new ChunkInputStream();
+    }
+
+    /**
+     * Writes the plaintext to the target file. A spill file is moved to the target if possible.
+     * The buffer is closed afterwards.
+     *
+     * @param target file to (over)write
+     * @throws IOException if the target cannot be written
+     */
+    public void writeTo(File target) throws IOException {
+        checkOpen();
+        try {
+            if (spillFile != null && moveSpillFile(target)) {
+                return;
+            }
+            try (InputStream input = spillFile != null ? new FileInputStream(spillFile) : new ChunkInputStream();
+                 OutputStream output = new FileOutputStream(target)) {
+                byte[] buffer = new byte[CHUNK_SIZE_BYTE];
+                int read;
+                while ((read = input.read(buffer)) > 0) {
+                    output.write(buffer, 0, read);
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (byte[] chunk : chunks) {
+            release(chunk);
+        }
+        chunks.clear();
+        if (spillOutput != null) {
+            try {
+                spillOutput.close();
+            } catch (IOException e) {
+                logger.debug("Spill file cannot be closed.", e);
+            }
+        }
+        if (spillFile != null && !spillFile.delete()) {
+            logger.warn("Spill file " + spillFile + " cannot be deleted.");
+        }
+    }
+
+    /**
+     * Appends plaintext, called while decrypting
+     */
+    void write(byte[] data, int offset, int length) throws IOException {
+        if (spillOutput == null && size + length > memoryThreshold) {
+            spill();
+        }
+        if (spillOutput != null) {
+            spillOutput.write(data, offset, length);
+            size += length;
+            return;
+        }
+        while (length > 0) {
+            int chunkOffset = (int) (size % CHUNK_SIZE_BYTE);
+            if (chunkOffset == 0) {
+                chunks.add(acquire());
+            }
+            int count = Math.min(length, CHUNK_SIZE_BYTE - chunkOffset);
+            System.arraycopy(data, offset, chunks.get(chunks.size() - 1), chunkOffset, count);
+            offset += count;
+            length -= count;
+            size += count;
+        }
+    }
+
+    /**
+     * Called after the authentication tag has been verified
+     */
+    void finish() throws IOException {
+        if (spillOutput != null) {
+            spillOutput.close();
+            spillOutput = null;
+        }
+    }
+
+    /**
+     * @return stream which appends to this buffer
+     */
+    OutputStream asOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                DecryptedBuffer.this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                DecryptedBuffer.this.write(b, off, len);
+            }
+        };
+    }
+
+    private void spill() throws IOException {
+        spillFile = File.createTempFile("dec", "spill", spillDir);
+        spillFile.deleteOnExit();
+        spillOutput = new FileOutputStream(spillFile);
+        long remaining = size;
+        for (byte[] chunk : chunks) {
+            int count = (int) Math.min(remaining, CHUNK_SIZE_BYTE);
+            spillOutput.write(chunk, 0, count);
+            remaining -= count;
+            release(chunk);
+        }
+        chunks.clear();
+    }
+
+    private boolean moveSpillFile(File target) {
+        if (target.exists() && !target.delete() || !spillFile.renameTo(target)) {
+            return false;
+        }
+        spillFile = null;
+        return true;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Buffer is closed");
+        }
+    }
+
+    private static byte[] acquire() {
+        byte[] chunk = pool.poll();
+        if (chunk == null) {
+            return new byte[CHUNK_SIZE_BYTE];
+        }
+        pooledChunks.decrementAndGet();
+        return chunk;
+    }
+
+    private static void release(byte[] chunk) {
+        Arrays.fill(chunk, (byte) 0);
+        if (pooledChunks.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+            pool.offer(chunk);
+        } else {
+            pooledChunks.decrementAndGet();
+        }
+    }
+
+    private class ChunkInputStream extends InputStream {
+        private final byte[] single = new byte[1];
+        private long position;
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkOpen();
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= size) {
+                return -1;
+            }
+            int chunkOffset = (int) (position % CHUNK_SIZE_BYTE);
+            int count = (int) Math.min(Math.min(len, CHUNK_SIZE_BYTE - chunkOffset), size - position);
+            System.arraycopy(chunks.get((int) (position / CHUNK_SIZE_BYTE)), chunkOffset, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, size - position);
+        }
+
+        @Override
+        public void close() {
+            DecryptedBuffer.this.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package de.qabel.core.crypto;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of static-static ECDH secrets.
+ * The shared secret of a key pair and a peer public key never changes, so the
+ * scalar multiplication for a known identity/contact pair can be skipped.
+ * Entries are keyed by the public key of the own key pair and the peer public key.
+ * Entries of deleted keys must be removed with {@link #invalidate(QblECPublicKey)}.
+ */
+public class EcdhCache {
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private static final EcdhCache INSTANCE = new EcdhCache(DEFAULT_MAX_ENTRIES);
+
+    private final Map<Pair, byte[]> secrets;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxEntries maximum number of cached secrets, least recently used entries are evicted first
+     */
+    public EcdhCache(final int maxEntries) {
+        secrets = new LinkedHashMap<Pair, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Pair, byte[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return cache shared by all CryptoUtils
+     */
+    public static EcdhCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the ECDH secret of the key pair and the peer key, calculating it on a cache miss.
+     *
+     * @param keyPair own key pair
+     * @param peerKey public key of the peer
+     * @return shared secret between keyPair and peerKey
+     */
+    public byte[] ecdh(QblECKeyPair keyPair, QblECPublicKey peerKey) {
+        Pair pair = new Pair(keyPair.getPub(), peerKey);
+        byte[] secret;
+        synchronized (secrets) {
+            secret = secrets.get(pair);
+        }
+        if (secret != null) {
+            hits.incrementAndGet();
+            return secret.clone();
+        }
+        misses.incrementAndGet();
+        secret = keyPair.ECDH(peerKey);
+        synchronized (secrets) {
+            secrets.put(pair, secret);
+        }
+        return secret.clone();
+    }
+
+    /**
+     * Removes all secrets the given key is part of, either as own key or as peer key.
+     *
+     * @param key public key of a deleted identity or contact
+     */
+    public void invalidate(QblECPublicKey key) {
+        synchronized (secrets) {
+            Iterator<Pair> iterator = secrets.keySet().iterator();
+            while (iterator.hasNext()) {
+                Pair pair = iterator.next();
+                if (pair.ownKey.equals(key) || pair.peerKey.equals(key)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (secrets) {
+            secrets.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (secrets) {
+            return secrets.size();
+        }
+    }
+
+    /**
+     * @return number of lookups that were served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups that required a scalar multiplication
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static class Pair {
+        private final QblECPublicKey ownKey;
+        private final QblECPublicKey peerKey;
+
+        Pair(QblECPublicKey ownKey, QblECPublicKey peerKey) {
+            this.ownKey = ownKey;
+            this.peerKey = peerKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Pair pair = (Pair) o;
+            return ownKey.equals(pair.ownKey) && peerKey.equals(pair.peerKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * ownKey.hashCode() + peerKey.hashCode();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package de.qabel.core.crypto;
+
+/**
+ * Pure Java port of the TweetNaCl Curve25519 scalar multiplication in core/jni/curve25519.c.
+ * Used by {@link Curve25519} if the native library is not available on the current platform.
+ */
+final class JavaCurve25519 {
+    static final int KEY_SIZE = 32;
+
+    private static final long[] _121665 = {0xDB41, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    private static final byte[] _9 = new byte[KEY_SIZE];
+
+    static {
+        _9[0] = 9;
+    }
+
+    private JavaCurve25519() {
+    }
+
+    static byte[] scalarmultBase(byte[] n) {
+        return scalarmult(n, _9);
+    }
+
+    static byte[] scalarmult(byte[] n, byte[] p) {
+        return scalarmult(n, 0, p, 0);
+    }
+
+    /**
+     * @param n       buffer containing the 32 byte scalar at nOffset
+     * @param nOffset offset of the scalar
+     * @param p       buffer containing the 32 byte point at pOffset
+     * @param pOffset offset of the point
+     * @return 32 byte result of the scalar multiplication
+     */
+    static byte[] scalarmult(byte[] n, int nOffset, byte[] p, int pOffset) {
+        byte[] z = new byte[KEY_SIZE];
+        long[] x = new long[16];
+        long[] a = new long[16];
+        long[] b = new long[16];
+        long[] c = new long[16];
+        long[] d = new long[16];
+        long[] e = new long[16];
+        long[] f = new long[16];
+
+        System.arraycopy(n, nOffset, z, 0, KEY_SIZE);
+        z[31] = (byte) ((z[31] & 127) | 64);
+        z[0] &= 248;
+        unpack(x, p, pOffset);
+        for (int i = 0; i < 16; i++) {
+            b[i] = x[i];
+        }
+        a[0] = d[0] = 1;
+        for (int i = 254; i >= 0; --i) {
+            int r = ((z[i >>> 3] & 0xff) >>> (i & 7)) & 1;
+            select(a, b, r);
+            select(c, d, r);
+            add(e, a, c);
+            sub(a, a, c);
+            add(c, b, d);
+            sub(b, b, d);
+            mul(d, e, e);
+            mul(f, a, a);
+            mul(a, c, a);
+            mul(c, b, e);
+            add(e, a, c);
+            sub(a, a, c);
+            mul(b, a, a);
+            sub(c, d, f);
+            mul(a, c, _121665);
+            add(a, a, d);
+            mul(c, c, a);
+            mul(a, d, f);
+            mul(d, b, x);
+            mul(b, e, e);
+            select(a, b, r);
+            select(c, d, r);
+        }
+        invert(c, c);
+        mul(a, a, c);
+        byte[] q = new byte[KEY_SIZE];
+        pack(q, a);
+        return q;
+    }
+
+    private static void carry(long[] o) {
+        for (int i = 0; i < 16; i++) {
+            o[i] += 1L << 16;
+            long c = o[i] >> 16;
+            o[i < 15 ? i + 1 : 0] += c - 1 + (i == 15 ? 37 * (c - 1) : 0);
+            o[i] -= c << 16;
+        }
+    }
+
+    private static void select(long[] p, long[] q, int b) {
+        long c = ~(b - 1);
+        for (int i = 0; i < 16; i++) {
+            long t = c & (p[i] ^ q[i]);
+            p[i] ^= t;
+            q[i] ^= t;
+        }
+    }
+
+    private static void pack(byte[] o, long[] n) {
+        long[] m = new long[16];
+        long[] t = n.clone();
+        carry(t);
+        carry(t);
+        carry(t);
+        for (int j = 0; j < 2; j++) {
+            m[0] = t[0] - 0xffed;
+            for (int i = 1; i < 15; i++) {
+                m[i] = t[i] - 0xffff - ((m[i - 1] >> 16) & 1);
+                m[i - 1] &= 0xffff;
+            }
+            m[15] = t[15] - 0x7fff - ((m[14] >> 16) & 1);
+            int b = (int) ((m[15] >> 16) & 1);
+            m[14] &= 0xffff;
+            select(t, m, 1 - b);
+        }
+        for (int i = 0; i < 16; i++) {
+            o[2 * i] = (byte) t[i];
+            o[2 * i + 1] = (byte) (t[i] >> 8);
+        }
+    }
+
+    private static void unpack(long[] o, byte[] n, int offset) {
+        for (int i = 0; i < 16; i++) {
+            o[i] = (n[offset + 2 * i] & 0xff) + ((long) (n[offset + 2 * i + 1] & 0xff) << 8);
+        }
+        o[15] &= 0x7fff;
+    }
+
+    private static void add(long[] o, long[] a, long[] b) {
+        for (int i = 0; i < 16; i++) {
+            o[i] = a[i] + b[i];
+        }
+    }
+
+    private static void sub(long[] o, long[] a, long[] b) {
+        for (int i = 0; i < 16; i++) {
+            o[i] = a[i] - b[i];
+        }
+    }
+
+    private static void mul(long[] o, long[] a, long[] b) {
+        long[] t = new long[31];
+        for (int i = 0; i < 16; i++) {
+            for (int j = 0; j < 16; j++) {
+                t[i + j] += a[i] * b[j];
+            }
+        }
+        for (int i = 0; i < 15; i++) {
+            t[i] += 38 * t[i + 16];
+        }
+        System.arraycopy(t, 0, o, 0, 16);
+        carry(o);
+        carry(o);
+    }
+
+    private static void invert(long[] o, long[] i) {
+        long[] c = i.clone();
+        for (int a = 253; a >= 0; a--) {
+            mul(c, c, c);
+            if (a != 2 && a != 4) {
+                mul(c, c, i);
+            }
+        }
+        System.arraycopy(c, 0, o, 0, 16);
+    }
+}
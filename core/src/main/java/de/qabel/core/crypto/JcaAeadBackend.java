@@ -0,0 +1,134 @@
+package de.qabel.core.crypto;
+
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * AES GCM of the Java Cryptography Architecture. On HotSpot the JDK implementation
+ * uses the AES-NI and CLMUL intrinsics of the CPU.
+ * Decryption holds back the plaintext until the tag has been validated.
+ */
+public class JcaAeadBackend implements AeadBackend {
+    public static final String NAME = "jca";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Checks whether the platform provides AES GCM with 256 bit keys.
+     *
+     * @return true if this backend can be used
+     */
+    public static boolean isAvailable() {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[32], "AES"),
+                new GCMParameterSpec(128, new byte[12]));
+            cipher.doFinal(new byte[16]);
+            return true;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public AeadCipher createCipher(boolean forEncryption, KeyParameter key, byte[] nonce, byte[] associatedData,
+                                   int macSizeBit) {
+        try {
+            JcaCipher cipher = new JcaCipher(Cipher.getInstance(TRANSFORMATION));
+            cipher.init(forEncryption, key, nonce, associatedData, macSizeBit);
+            return cipher;
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IllegalStateException(TRANSFORMATION + " is not available", e);
+        }
+    }
+
+    @Override
+    public boolean supportsIncrementalDecryption() {
+        return false;
+    }
+
+    private static class JcaCipher implements AeadCipher {
+        private final Cipher cipher;
+
+        JcaCipher(Cipher cipher) {
+            this.cipher = cipher;
+        }
+
+        @Override
+        public void init(boolean forEncryption, KeyParameter key, byte[] nonce, byte[] associatedData,
+                         int macSizeBit) {
+            try {
+                cipher.init(forEncryption ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE,
+                    new SecretKeySpec(key.getKey(), "AES"), new GCMParameterSpec(macSizeBit, nonce));
+                if (associatedData != null) {
+                    cipher.updateAAD(associatedData);
+                }
+            } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+                throw new IllegalArgumentException("Invalid parameters for AES GCM", e);
+            }
+        }
+
+        @Override
+        public int getOutputSize(int length) {
+            return cipher.getOutputSize(length);
+        }
+
+        @Override
+        public int processBytes(byte[] in, int inOff, int length, byte[] out, int outOff) {
+            try {
+                return cipher.update(in, inOff, length, out, outOff);
+            } catch (ShortBufferException e) {
+                throw new IllegalStateException("Output buffer too short", e);
+            }
+        }
+
+        @Override
+        public int processBytes(ByteBuffer in, ByteBuffer out) {
+            try {
+                return cipher.update(in, out);
+            } catch (ShortBufferException e) {
+                throw new IllegalStateException("Output buffer too short", e);
+            }
+        }
+
+        @Override
+        public int doFinal(byte[] out, int outOff) throws InvalidCipherTextException {
+            try {
+                return cipher.doFinal(out, outOff);
+            } catch (AEADBadTagException e) {
+                throw new InvalidCipherTextException("mac check in GCM failed");
+            } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+                throw new InvalidCipherTextException(e.getMessage());
+            }
+        }
+
+        @Override
+        public int doFinal(ByteBuffer out) throws InvalidCipherTextException {
+            try {
+                return cipher.doFinal(ByteBuffer.allocate(0), out);
+            } catch (AEADBadTagException e) {
+                throw new InvalidCipherTextException("mac check in GCM failed");
+            } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+                throw new InvalidCipherTextException(e.getMessage());
+            }
+        }
+    }
+}
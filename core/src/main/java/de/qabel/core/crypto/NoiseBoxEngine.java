@@ -0,0 +1,446 @@
+package de.qabel.core.crypto;
+
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.digests.SHA512Digest;
+import org.spongycastle.crypto.macs.HMac;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+/**
+ * Creates and reads noise boxes (see {@link CryptoUtils#createBox(QblECKeyPair, QblECPublicKey, byte[], int)})
+ * directly from and into caller supplied buffers.
+ * The HMAC, the AES GCM cipher and all intermediate key material are kept per thread and reused
+ * for every box, so only the ephemeral key pair and the resulting public keys are allocated.
+ * Instances are thread safe.
+ */
+public class NoiseBoxEngine {
+    private static final byte[] SUITE_NAME = "Noise255/AES256-GCM\0\0\0\0\0".getBytes();
+    private static final int H_LEN = 64;
+    private static final int CV_LEN_BYTE = 48;
+    private static final int SYMM_KEY_LEN_BYTE = 32;
+    private static final int NONCE_LEN_BYTE = 12;
+    private static final int KDF_LEN_BYTE = CV_LEN_BYTE + SYMM_KEY_LEN_BYTE + NONCE_LEN_BYTE;
+    private static final int MAC_BIT = 128;
+    private static final int MAC_BYTE = MAC_BIT / 8;
+    private static final int KEY_LEN_BYTE = QblECPublicKey.KEY_SIZE_BYTE;
+    private static final int HEADER_CIPHER_TEXT_LEN_BYTE = KEY_LEN_BYTE + MAC_BYTE;
+    private static final int PADDING_LEN_BYTES = 4;
+    private static final byte[] RECIPIENT_TAG_LABEL = "QabelRecipientTag".getBytes();
+
+    /**
+     * Size of a box without the application data and the padding
+     */
+    public static final int OVERHEAD_BYTE = KEY_LEN_BYTE + HEADER_CIPHER_TEXT_LEN_BYTE + PADDING_LEN_BYTES + MAC_BYTE;
+
+    /**
+     * Size of the recipient tag in front of a tagged box
+     */
+    public static final int RECIPIENT_TAG_BYTE = 16;
+
+    private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    private final AeadBackend aeadBackend;
+    private final EcdhCache ecdhCache;
+
+    /**
+     * @param aeadBackend backend for the AES GCM operations
+     * @param ecdhCache   cache for the static-static ECDH secrets
+     */
+    public NoiseBoxEngine(AeadBackend aeadBackend, EcdhCache ecdhCache) {
+        this.aeadBackend = aeadBackend;
+        this.ecdhCache = ecdhCache;
+    }
+
+    /**
+     * @param appDataLength length of the application data
+     * @param padLen        length of the padding, negative values are ignored
+     * @return size of the resulting box
+     */
+    public static int boxSize(int appDataLength, int padLen) {
+        return OVERHEAD_BYTE + appDataLength + Math.max(padLen, 0);
+    }
+
+    /**
+     * @param appDataLength length of the application data
+     * @param padLen        length of the padding, negative values are ignored
+     * @return size of the resulting box including its recipient tag
+     */
+    public static int taggedBoxSize(int appDataLength, int padLen) {
+        return RECIPIENT_TAG_BYTE + boxSize(appDataLength, padLen);
+    }
+
+    /**
+     * @param boxLength length of a received box
+     * @return size of the output buffer {@link #readBox(QblECKeyPair, ByteBuffer, ByteBuffer)} requires
+     */
+    public static int readBufferSize(int boxLength) {
+        return Math.max(boxLength - OVERHEAD_BYTE + PADDING_LEN_BYTES, 0);
+    }
+
+    /**
+     * Encrypts the remaining bytes of appData into a noise box which is written to out.
+     * The position of appData is advanced to its limit, the position of out by the size of the box.
+     *
+     * @param senderKey    senders key pair
+     * @param targetPubKey receivers public key
+     * @param appData      application data
+     * @param padLen       length of padding added to the box. Negative values are ignored.
+     * @param out          buffer with at least {@link #boxSize(int, int)} remaining bytes
+     * @return number of bytes written to out
+     * @throws InvalidKeyException if kdf cannot distribute a key from DH of given EC keys
+     */
+    public int createBox(QblECKeyPair senderKey, QblECPublicKey targetPubKey, ByteBuffer appData, int padLen,
+                         ByteBuffer out) throws InvalidKeyException {
+        return createBox(senderKey, targetPubKey, appData, padLen, out, false);
+    }
+
+    /**
+     * Like {@link #createBox(QblECKeyPair, QblECPublicKey, ByteBuffer, int, ByteBuffer)}, but the box is
+     * prefixed with a recipient tag, so receivers can check with {@link #hasRecipientTag(QblECKeyPair, ByteBuffer)}
+     * whether the box is meant for them before decrypting it.
+     *
+     * @param out buffer with at least {@link #taggedBoxSize(int, int)} remaining bytes
+     * @return number of bytes written to out
+     * @throws InvalidKeyException if kdf cannot distribute a key from DH of given EC keys
+     */
+    public int createTaggedBox(QblECKeyPair senderKey, QblECPublicKey targetPubKey, ByteBuffer appData, int padLen,
+                               ByteBuffer out) throws InvalidKeyException {
+        return createBox(senderKey, targetPubKey, appData, padLen, out, true);
+    }
+
+    private int createBox(QblECKeyPair senderKey, QblECPublicKey targetPubKey, ByteBuffer appData, int padLen,
+                          ByteBuffer out, boolean tagged) throws InvalidKeyException {
+        if (padLen < 0) {
+            padLen = 0;
+        }
+        int boxSize = tagged ? taggedBoxSize(appData.remaining(), padLen) : boxSize(appData.remaining(), padLen);
+        if (out.remaining() < boxSize) {
+            throw new IllegalArgumentException("Output buffer too small for box of " + boxSize + " bytes");
+        }
+        State state = STATE.get();
+        QblECKeyPair ephKey = new QblECKeyPair();
+        byte[] ephRawKey = ephKey.getPub().getKey();
+        byte[] dh1 = ephKey.ECDH(targetPubKey);
+        byte[] dh2 = ecdhCache.ecdh(senderKey, targetPubKey);
+        if (tagged) {
+            state.recipientTag(dh1, targetPubKey.getKey(), ephRawKey);
+            out.put(state.t, 0, RECIPIENT_TAG_BYTE);
+        }
+
+        try {
+            // header = eph_key.pub || ENCRYPT(cc1, sender_key.pub, target_pubkey || eph_key.pub)
+            state.kdf(dh1, state.zeroCv, (byte) 0);
+            System.arraycopy(state.okm, 0, state.cv1, 0, CV_LEN_BYTE);
+            System.arraycopy(targetPubKey.getKey(), 0, state.headerAad, 0, KEY_LEN_BYTE);
+            System.arraycopy(ephRawKey, 0, state.headerAad, KEY_LEN_BYTE, KEY_LEN_BYTE);
+            AeadCipher cipher = state.cipher(aeadBackend, true, state.headerAad);
+            int length = cipher.processBytes(senderKey.getPub().getKey(), 0, KEY_LEN_BYTE, state.headerCipherText, 0);
+            cipher.doFinal(state.headerCipherText, length);
+
+            // body = noise_body(cc2, appData, target_pubkey || header)
+            state.kdf(dh2, state.cv1, (byte) 1);
+            System.arraycopy(state.headerAad, 0, state.bodyAad, 0, 2 * KEY_LEN_BYTE);
+            System.arraycopy(state.headerCipherText, 0, state.bodyAad, 2 * KEY_LEN_BYTE, HEADER_CIPHER_TEXT_LEN_BYTE);
+            out.put(ephRawKey);
+            out.put(state.headerCipherText);
+            cipher = state.cipher(aeadBackend, true, state.bodyAad);
+            cipher.processBytes(appData, out);
+            byte[] padding = state.padding(padLen + PADDING_LEN_BYTES);
+            SecureRandoms.get().nextBytes(padding);
+            ByteBuffer.wrap(padding).putInt(padLen, padLen);
+            cipher.processBytes(ByteBuffer.wrap(padding, 0, padLen + PADDING_LEN_BYTES), out);
+            cipher.doFinal(out);
+        } catch (InvalidCipherTextException e) {
+            // Should never occur
+            throw new IllegalStateException("Unknown encryption error!", e);
+        }
+        return boxSize;
+    }
+
+    /**
+     * Checks the recipient tag of a box created by
+     * {@link #createTaggedBox(QblECKeyPair, QblECPublicKey, ByteBuffer, int, ByteBuffer)}.
+     * This costs one ECDH and one HMAC instead of the key derivations and AES GCM operations of
+     * {@link #readBox(QblECKeyPair, ByteBuffer, ByteBuffer)}. The position of taggedBox is not changed.
+     *
+     * @param targetKey possible receivers EC key pair
+     * @param taggedBox recipient tag followed by the box
+     * @return true if the box has been tagged for targetKey
+     */
+    public boolean hasRecipientTag(QblECKeyPair targetKey, ByteBuffer taggedBox) {
+        if (taggedBox.remaining() < RECIPIENT_TAG_BYTE + OVERHEAD_BYTE) {
+            return false;
+        }
+        byte[] ephRawKey = ephemeralRawKey(taggedBox);
+        byte[] dh1 = targetKey.ECDH(new QblECPublicKey(ephRawKey));
+        return recipientTagMatches(STATE.get(), targetKey, taggedBox, ephRawKey, dh1);
+    }
+
+    /**
+     * Ephemeral key of a box created by
+     * {@link #createTaggedBox(QblECKeyPair, QblECPublicKey, ByteBuffer, int, ByteBuffer)}, to calculate the
+     * ECDH secrets of several boxes at once with {@link QblECKeyPair#ECDH(java.util.List)}.
+     * The position of taggedBox is not changed.
+     *
+     * @param taggedBox recipient tag followed by the box
+     * @return ephemeral public key of the box
+     */
+    public static QblECPublicKey ephemeralKey(ByteBuffer taggedBox) {
+        if (taggedBox.remaining() < RECIPIENT_TAG_BYTE + OVERHEAD_BYTE) {
+            throw new IllegalArgumentException("Invalid tagged box length " + taggedBox.remaining());
+        }
+        return new QblECPublicKey(ephemeralRawKey(taggedBox));
+    }
+
+    /**
+     * Decrypts the noise box in the remaining bytes of box into out.
+     * On success the position of out is advanced by the length of the application data. The padding is
+     * written behind it. On failure nothing of the plaintext remains in out.
+     *
+     * @param targetKey receivers EC key pair
+     * @param box       received box, its position is advanced to the limit
+     * @param out       buffer with at least {@link #readBufferSize(int)} remaining bytes
+     * @return public key of the sender
+     * @throws InvalidKeyException        if kdf cannot distribute a key from DH of given EC keys
+     * @throws InvalidCipherTextException on decryption errors
+     */
+    public QblECPublicKey readBox(QblECKeyPair targetKey, ByteBuffer box, ByteBuffer out)
+        throws InvalidKeyException, InvalidCipherTextException {
+        if (box.remaining() < OVERHEAD_BYTE) {
+            throw new InvalidCipherTextException("Invalid ciphertext length!");
+        }
+        int paddedLength = checkReadBuffer(box.remaining(), out);
+        byte[] ephRawKey = new byte[KEY_LEN_BYTE];
+        box.get(ephRawKey);
+        byte[] dh1 = targetKey.ECDH(new QblECPublicKey(ephRawKey));
+        return readBody(STATE.get(), targetKey, ephRawKey, dh1, box, out, paddedLength);
+    }
+
+    /**
+     * Checks the recipient tag like {@link #hasRecipientTag(QblECKeyPair, ByteBuffer)} and decrypts the box
+     * behind it like {@link #readBox(QblECKeyPair, ByteBuffer, ByteBuffer)}. The ECDH of the tag check is
+     * reused for the header, so a matching box costs no more than an untagged one.
+     *
+     * @param targetKey receivers EC key pair
+     * @param taggedBox recipient tag followed by the box, its position is advanced to the limit if the tag matches
+     * @param out       buffer with at least {@link #readBufferSize(int)} of the box length remaining bytes
+     * @return public key of the sender or null if the box has not been tagged for targetKey
+     * @throws InvalidKeyException        if kdf cannot distribute a key from DH of given EC keys
+     * @throws InvalidCipherTextException on decryption errors
+     */
+    public QblECPublicKey readTaggedBox(QblECKeyPair targetKey, ByteBuffer taggedBox, ByteBuffer out)
+        throws InvalidKeyException, InvalidCipherTextException {
+        if (taggedBox.remaining() < RECIPIENT_TAG_BYTE + OVERHEAD_BYTE) {
+            return null;
+        }
+        byte[] ephRawKey = ephemeralRawKey(taggedBox);
+        byte[] dh1 = targetKey.ECDH(new QblECPublicKey(ephRawKey));
+        return readTaggedBox(targetKey, ephRawKey, dh1, taggedBox, out);
+    }
+
+    /**
+     * Like {@link #readTaggedBox(QblECKeyPair, ByteBuffer, ByteBuffer)} with an ECDH secret that has been
+     * calculated beforehand.
+     *
+     * @param targetKey  receivers EC key pair
+     * @param ecdhSecret ECDH secret of targetKey and the {@link #ephemeralKey(ByteBuffer)} of taggedBox
+     * @param taggedBox  recipient tag followed by the box, its position is advanced to the limit if the tag matches
+     * @param out        buffer with at least {@link #readBufferSize(int)} of the box length remaining bytes
+     * @return public key of the sender or null if the box has not been tagged for targetKey
+     * @throws InvalidKeyException        if kdf cannot distribute a key from DH of given EC keys
+     * @throws InvalidCipherTextException on decryption errors
+     */
+    public QblECPublicKey readTaggedBox(QblECKeyPair targetKey, byte[] ecdhSecret, ByteBuffer taggedBox,
+                                        ByteBuffer out) throws InvalidKeyException, InvalidCipherTextException {
+        if (taggedBox.remaining() < RECIPIENT_TAG_BYTE + OVERHEAD_BYTE) {
+            return null;
+        }
+        return readTaggedBox(targetKey, ephemeralRawKey(taggedBox), ecdhSecret, taggedBox, out);
+    }
+
+    private QblECPublicKey readTaggedBox(QblECKeyPair targetKey, byte[] ephRawKey, byte[] dh1,
+                                         ByteBuffer taggedBox, ByteBuffer out)
+        throws InvalidKeyException, InvalidCipherTextException {
+        int paddedLength = checkReadBuffer(taggedBox.remaining() - RECIPIENT_TAG_BYTE, out);
+        State state = STATE.get();
+        if (!recipientTagMatches(state, targetKey, taggedBox, ephRawKey, dh1)) {
+            return null;
+        }
+        taggedBox.position(taggedBox.position() + RECIPIENT_TAG_BYTE + KEY_LEN_BYTE);
+        return readBody(state, targetKey, ephRawKey, dh1, taggedBox, out, paddedLength);
+    }
+
+    private static int checkReadBuffer(int boxLength, ByteBuffer out) {
+        int paddedLength = readBufferSize(boxLength);
+        if (out.remaining() < paddedLength) {
+            throw new IllegalArgumentException("Output buffer too small for " + paddedLength + " bytes");
+        }
+        return paddedLength;
+    }
+
+    /**
+     * Reads the ephemeral key behind the recipient tag without moving the position of taggedBox
+     */
+    private static byte[] ephemeralRawKey(ByteBuffer taggedBox) {
+        byte[] ephRawKey = new byte[KEY_LEN_BYTE];
+        ByteBuffer box = taggedBox.duplicate();
+        box.position(box.position() + RECIPIENT_TAG_BYTE);
+        box.get(ephRawKey);
+        return ephRawKey;
+    }
+
+    /**
+     * Compares the recipient tag at the position of taggedBox in constant time
+     */
+    private static boolean recipientTagMatches(State state, QblECKeyPair targetKey, ByteBuffer taggedBox,
+                                               byte[] ephRawKey, byte[] dh1) {
+        byte[] tag = new byte[RECIPIENT_TAG_BYTE];
+        taggedBox.duplicate().get(tag);
+        state.recipientTag(dh1, targetKey.getPub().getKey(), ephRawKey);
+        int difference = 0;
+        for (int i = 0; i < RECIPIENT_TAG_BYTE; i++) {
+            difference |= tag[i] ^ state.t[i];
+        }
+        return difference == 0;
+    }
+
+    /**
+     * Decrypts the header and body that follow the ephemeral key
+     */
+    private QblECPublicKey readBody(State state, QblECKeyPair targetKey, byte[] ephRawKey, byte[] dh1,
+                                    ByteBuffer box, ByteBuffer out, int paddedLength)
+        throws InvalidKeyException, InvalidCipherTextException {
+        // sender_key.pub = DECRYPT(cc1, header_cipher_text, target_pubkey || eph_key.pub)
+        state.kdf(dh1, state.zeroCv, (byte) 0);
+        System.arraycopy(state.okm, 0, state.cv1, 0, CV_LEN_BYTE);
+        System.arraycopy(targetKey.getPub().getKey(), 0, state.headerAad, 0, KEY_LEN_BYTE);
+        System.arraycopy(ephRawKey, 0, state.headerAad, KEY_LEN_BYTE, KEY_LEN_BYTE);
+        box.get(state.headerCipherText);
+        AeadCipher cipher = state.cipher(aeadBackend, false, state.headerAad);
+        byte[] senderRawKey = new byte[KEY_LEN_BYTE];
+        int length = cipher.processBytes(state.headerCipherText, 0, HEADER_CIPHER_TEXT_LEN_BYTE, senderRawKey, 0);
+        cipher.doFinal(senderRawKey, length);
+        QblECPublicKey senderKey = new QblECPublicKey(senderRawKey);
+
+        // plaintext = noise_body^-1(cc2, body, target_pubkey || header)
+        byte[] dh2 = ecdhCache.ecdh(targetKey, senderKey);
+        state.kdf(dh2, state.cv1, (byte) 1);
+        System.arraycopy(state.headerAad, 0, state.bodyAad, 0, 2 * KEY_LEN_BYTE);
+        System.arraycopy(state.headerCipherText, 0, state.bodyAad, 2 * KEY_LEN_BYTE, HEADER_CIPHER_TEXT_LEN_BYTE);
+        cipher = state.cipher(aeadBackend, false, state.bodyAad);
+        int start = out.position();
+        try {
+            cipher.processBytes(box, out);
+            cipher.doFinal(out);
+        } catch (InvalidCipherTextException e) {
+            wipe(out, start, paddedLength);
+            throw e;
+        }
+
+        int padLen = out.getInt(start + paddedLength - PADDING_LEN_BYTES);
+        if (padLen < 0 || padLen > paddedLength - PADDING_LEN_BYTES) {
+            wipe(out, start, paddedLength);
+            throw new InvalidCipherTextException("Invalid padding length!");
+        }
+        out.position(start + paddedLength - PADDING_LEN_BYTES - padLen);
+        return senderKey;
+    }
+
+    /**
+     * Noise key derivation with the state of the current thread, visible for benchmarks.
+     *
+     * @param secret      ECDH secret
+     * @param extraSecret chaining variable to mix into the kdf
+     * @param info        last byte of the info, 0 for the header and 1 for the body key
+     * @return chaining variable || symmetric key || nonce
+     */
+    static byte[] kdf(byte[] secret, byte[] extraSecret, byte info) {
+        State state = STATE.get();
+        state.kdf(secret, extraSecret, info);
+        return Arrays.copyOf(state.okm, KDF_LEN_BYTE);
+    }
+
+    private static void wipe(ByteBuffer buffer, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer.position(start);
+    }
+
+    /**
+     * Reusable state of the current thread
+     */
+    private static class State {
+        private final HMac hmac = new HMac(new SHA512Digest());
+        private final byte[] t = new byte[H_LEN];
+        private final byte[] okm = new byte[2 * H_LEN];
+        private final byte[] zeroCv = new byte[CV_LEN_BYTE];
+        private final byte[] cv1 = new byte[CV_LEN_BYTE];
+        private final byte[] nonce = new byte[NONCE_LEN_BYTE];
+        private final byte[] headerAad = new byte[2 * KEY_LEN_BYTE];
+        private final byte[] bodyAad = new byte[2 * KEY_LEN_BYTE + HEADER_CIPHER_TEXT_LEN_BYTE];
+        private final byte[] headerCipherText = new byte[HEADER_CIPHER_TEXT_LEN_BYTE];
+        private byte[] padding = new byte[PADDING_LEN_BYTES];
+        private AeadBackend cipherBackend;
+        private AeadCipher cipher;
+
+        /**
+         * Noise key derivation, see {@link CryptoUtils#createBox(QblECKeyPair, QblECPublicKey, byte[], int)}.
+         * The chaining variable, the symmetric key and the nonce are written to okm.
+         */
+        void kdf(byte[] secret, byte[] extraSecret, byte info) {
+            Arrays.fill(t, (byte) 0);
+            hmac.init(new KeyParameter(secret));
+            for (int c = 0; c * H_LEN < KDF_LEN_BYTE; c++) {
+                hmac.update(SUITE_NAME, 0, SUITE_NAME.length);
+                hmac.update(info);
+                hmac.update((byte) c);
+                hmac.update(t, 0, 32);
+                hmac.update(extraSecret, 0, extraSecret.length);
+                hmac.doFinal(t, 0);
+                System.arraycopy(t, 0, okm, c * H_LEN, H_LEN);
+            }
+        }
+
+        /**
+         * Writes HMAC(dh1, label || target_pubkey || eph_key.pub) to t, its first bytes are the recipient tag
+         */
+        void recipientTag(byte[] dh1, byte[] targetRawKey, byte[] ephRawKey) {
+            hmac.init(new KeyParameter(dh1));
+            hmac.update(RECIPIENT_TAG_LABEL, 0, RECIPIENT_TAG_LABEL.length);
+            hmac.update(targetRawKey, 0, KEY_LEN_BYTE);
+            hmac.update(ephRawKey, 0, KEY_LEN_BYTE);
+            hmac.doFinal(t, 0);
+        }
+
+        /**
+         * @return cipher initialized with the symmetric key and nonce of the last kdf
+         */
+        AeadCipher cipher(AeadBackend backend, boolean forEncryption, byte[] associatedData) {
+            KeyParameter key = new KeyParameter(okm, CV_LEN_BYTE, SYMM_KEY_LEN_BYTE);
+            System.arraycopy(okm, CV_LEN_BYTE + SYMM_KEY_LEN_BYTE, nonce, 0, NONCE_LEN_BYTE);
+            if (cipher == null || cipherBackend != backend) {
+                cipher = backend.createCipher(forEncryption, key, nonce, associatedData, MAC_BIT);
+                cipherBackend = backend;
+            } else {
+                cipher.init(forEncryption, key, nonce, associatedData, MAC_BIT);
+            }
+            return cipher;
+        }
+
+        byte[] padding(int length) {
+            if (padding.length < length) {
+                padding = new byte[length];
+            }
+            return padding;
+        }
+    }
+}
@@ -3,8 +3,9 @@ package de.qabel.core.crypto;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.Serializable;
-import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Elliptic curve key pair
@@ -42,11 +43,7 @@ public class QblECKeyPair implements Serializable {
      * @return random private key
      */
     private static byte[] generatePrivateKey() {
-        SecureRandom random = new SecureRandom();
-        byte[] randomBytes = new byte[KEY_SIZE_BYTE];
-        random.nextBytes(randomBytes);
-
-        return randomBytes;
+        return SecureRandoms.nextBytes(KEY_SIZE_BYTE);
     }
 
     /**
@@ -59,6 +56,22 @@ public class QblECKeyPair implements Serializable {
         return curve25519.cryptoScalarmult(privateKey, contactsPubKey.getKey());
     }
 
+    /**
+     * Elliptic curve diffie hellman with several public keys in a single call of the native library.
+     *
+     * @param contactsPubKeys Public keys of contacts
+     * @return shared secrets in the order of the public keys
+     */
+    public List<byte[]> ECDH(List<QblECPublicKey> contactsPubKeys) {
+        List<byte[]> scalars = new ArrayList<>(contactsPubKeys.size());
+        List<byte[]> points = new ArrayList<>(contactsPubKeys.size());
+        for (QblECPublicKey contactsPubKey : contactsPubKeys) {
+            scalars.add(privateKey);
+            points.add(contactsPubKey.getKey());
+        }
+        return curve25519.cryptoScalarmultBatch(scalars, points);
+    }
+
     /**
      * Get public part of key pair
      *
@@ -0,0 +1,97 @@
+package de.qabel.core.crypto;
+
+import org.spongycastle.crypto.digests.SHA512Digest;
+import org.spongycastle.crypto.prng.SP800SecureRandomBuilder;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+/**
+ * Per-thread SP 800-90A Hash DRBGs (SHA-512).
+ * Only the platform SecureRandom which seeds the DRBGs is shared. It is created once, so the
+ * seeding cost and the possible wait for entropy are paid once per process instead of per use.
+ * The DRBGs reseed themselves from it.
+ */
+public final class SecureRandoms {
+    private static final int SECURITY_STRENGTH_BIT = 256;
+    // SP 800-90A limits a single Hash DRBG request to 2^19 bits, SpongyCastle to 2^18
+    private static final int MAX_REQUEST_BYTE = (1 << 18) / 8;
+
+    private static final SecureRandom SEED_SOURCE = new SecureRandom();
+
+    private static final ThreadLocal<SecureRandom> DRBG = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            Thread thread = Thread.currentThread();
+            byte[] nonce = ByteBuffer.allocate(16).putLong(thread.getId()).putLong(System.nanoTime()).array();
+            return new Drbg(new SP800SecureRandomBuilder(SEED_SOURCE, false)
+                .setPersonalizationString(thread.getName().getBytes())
+                .setSecurityStrength(SECURITY_STRENGTH_BIT)
+                .buildHash(new SHA512Digest(), nonce, false));
+        }
+    };
+
+    private SecureRandoms() {
+    }
+
+    /**
+     * @return DRBG of the current thread, must not be passed to other threads
+     */
+    public static SecureRandom get() {
+        return DRBG.get();
+    }
+
+    /**
+     * @param numBytes number of random bytes
+     * @return random bytes from the DRBG of the current thread
+     */
+    public static byte[] nextBytes(int numBytes) {
+        byte[] bytes = new byte[numBytes];
+        DRBG.get().nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Splits large requests into requests the DRBG accepts
+     */
+    private static class Drbg extends SecureRandom {
+        private static final long serialVersionUID = -4859165290351577497L;
+        private final SecureRandom drbg;
+
+        Drbg(SecureRandom drbg) {
+            super(null, null);
+            this.drbg = drbg;
+        }
+
+        @Override
+        public void setSeed(long seed) {
+            // called by the SecureRandom constructor before drbg is set
+            if (drbg != null) {
+                drbg.setSeed(seed);
+            }
+        }
+
+        @Override
+        public void setSeed(byte[] seed) {
+            drbg.setSeed(seed);
+        }
+
+        @Override
+        public void nextBytes(byte[] bytes) {
+            if (bytes.length <= MAX_REQUEST_BYTE) {
+                drbg.nextBytes(bytes);
+                return;
+            }
+            byte[] chunk = new byte[MAX_REQUEST_BYTE];
+            for (int offset = 0; offset < bytes.length; offset += MAX_REQUEST_BYTE) {
+                drbg.nextBytes(chunk);
+                System.arraycopy(chunk, 0, bytes, offset, Math.min(MAX_REQUEST_BYTE, bytes.length - offset));
+            }
+        }
+
+        @Override
+        public byte[] generateSeed(int numBytes) {
+            return drbg.generateSeed(numBytes);
+        }
+    }
+}
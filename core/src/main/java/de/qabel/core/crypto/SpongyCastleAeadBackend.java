@@ -0,0 +1,94 @@
+package de.qabel.core.crypto;
+
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.engines.AESEngine;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
+import org.spongycastle.crypto.params.AEADParameters;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pure Java AES GCM implementation of SpongyCastle. Available on every platform.
+ */
+public class SpongyCastleAeadBackend implements AeadBackend {
+    public static final String NAME = "spongycastle";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public AeadCipher createCipher(boolean forEncryption, KeyParameter key, byte[] nonce, byte[] associatedData,
+                                   int macSizeBit) {
+        Cipher cipher = new Cipher(new GCMBlockCipher(new AESEngine()));
+        cipher.init(forEncryption, key, nonce, associatedData, macSizeBit);
+        return cipher;
+    }
+
+    @Override
+    public boolean supportsIncrementalDecryption() {
+        return true;
+    }
+
+    private static class Cipher implements AeadCipher {
+        private final GCMBlockCipher gcm;
+
+        Cipher(GCMBlockCipher gcm) {
+            this.gcm = gcm;
+        }
+
+        @Override
+        public void init(boolean forEncryption, KeyParameter key, byte[] nonce, byte[] associatedData,
+                         int macSizeBit) {
+            gcm.init(forEncryption, new AEADParameters(key, macSizeBit, nonce, associatedData));
+        }
+
+        @Override
+        public int getOutputSize(int length) {
+            return gcm.getOutputSize(length);
+        }
+
+        @Override
+        public int processBytes(byte[] in, int inOff, int length, byte[] out, int outOff) {
+            return gcm.processBytes(in, inOff, length, out, outOff);
+        }
+
+        @Override
+        public int processBytes(ByteBuffer in, ByteBuffer out) {
+            int length = in.remaining();
+            if (in.hasArray() && out.hasArray()) {
+                int processed = gcm.processBytes(in.array(), in.arrayOffset() + in.position(), length,
+                    out.array(), out.arrayOffset() + out.position());
+                in.position(in.limit());
+                out.position(out.position() + processed);
+                return processed;
+            }
+            byte[] input = new byte[length];
+            in.get(input);
+            byte[] output = new byte[gcm.getUpdateOutputSize(length)];
+            int processed = gcm.processBytes(input, 0, length, output, 0);
+            out.put(output, 0, processed);
+            return processed;
+        }
+
+        @Override
+        public int doFinal(byte[] out, int outOff) throws InvalidCipherTextException {
+            return gcm.doFinal(out, outOff);
+        }
+
+        @Override
+        public int doFinal(ByteBuffer out) throws InvalidCipherTextException {
+            if (out.hasArray()) {
+                int processed = gcm.doFinal(out.array(), out.arrayOffset() + out.position());
+                out.position(out.position() + processed);
+                return processed;
+            }
+            byte[] output = new byte[gcm.getOutputSize(0)];
+            int processed = gcm.doFinal(output, 0);
+            out.put(output, 0, processed);
+            return processed;
+        }
+    }
+}
@@ -2,19 +2,30 @@ package de.qabel.core.drop
 
 import de.qabel.core.config.Identities
 import de.qabel.core.config.Identity
-import de.qabel.core.crypto.BinaryDropMessageV0
+import de.qabel.core.crypto.AbstractBinaryDropMessage
+import de.qabel.core.crypto.BinaryDropMessageV1
 import de.qabel.core.exceptions.*
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
 
-class DefaultDropParser: DropParser {
+/**
+ * Parses drop messages by trial decryption with every receiving identity.
+ * Messages of version 1 are only decrypted with the identity their recipient tag matches.
+ * Batches are spread over a fork join pool. Each task parses up to [MAX_TASK_SIZE] messages and calculates
+ * the ECDH secrets of their version 1 tags with one call of the curve per identity.
+ */
+class DefaultDropParser @JvmOverloads constructor(
+    private val pool: ForkJoinPool = sharedPool
+) : DropParser {
 
     @Throws(QblException::class)
-    override fun parse(message: ByteArray, receivers: Identities): Pair<Identity, DropMessage> {
-        val binaryFormatVersion = message[0]
-        if (binaryFormatVersion != 0.toByte()) {
-            throw QblUnkownVersionException()
-        }
-        val binaryMessage = BinaryDropMessageV0(message)
-        receivers.identities.forEach { identity ->
+    override fun parse(message: ByteArray, receivers: Identities): Pair<Identity, DropMessage>
+        = parse(message, receivers.identities)
+
+    @Throws(QblException::class)
+    private fun parse(message: ByteArray, receivers: Collection<Identity>): Pair<Identity, DropMessage> {
+        val binaryMessage = read(message)
+        receivers.forEach { identity ->
            binaryMessage.disassembleMessage(identity)?.let {
                return Pair(identity, it)
            }
@@ -22,6 +33,108 @@ class DefaultDropParser: DropParser {
         throw QblDropParseException()
     }
 
-}
+    @Throws(QblException::class)
+    private fun read(message: ByteArray): AbstractBinaryDropMessage {
+        val binaryFormatVersion = message[0]
+        if (binaryFormatVersion != 0.toByte() && binaryFormatVersion != 1.toByte()) {
+            throw QblUnkownVersionException()
+        }
+        return AbstractBinaryDropMessage.fromBytes(message)
+    }
+
+    /**
+     * Parses the messages concurrently. The trial decryption of a message stops with the first
+     * identity that is able to decrypt it.
+     */
+    override fun parseAll(messages: Collection<ByteArray>, receivers: Identities): List<DropParseResult> {
+        if (messages.isEmpty()) {
+            return emptyList()
+        }
+        val identities = receivers.identities.toList()
+        val results = arrayOfNulls<DropParseResult>(messages.size)
+        // small batches still use every worker
+        val taskSize = Math.max(1, Math.min(MAX_TASK_SIZE, messages.size / pool.parallelism))
+        pool.invoke(ParseTask(messages.toList(), identities, results, 0, messages.size, taskSize))
+        return results.map { it!! }
+    }
+
+    private fun parseBatch(messages: List<ByteArray>, receivers: List<Identity>, results: Array<DropParseResult?>,
+                           offset: Int) {
+        val binaryMessages = messages.map { message ->
+            try {
+                read(message)
+            } catch (e: Exception) {
+                e
+            }
+        }
+        val tagged = binaryMessages.filterIsInstance<BinaryDropMessageV1>()
+        val secrets = if (tagged.isEmpty()) emptyList() else receivers.map { identity ->
+            identity.primaryKeyPair.ECDH(tagged.map { it.ephemeralKey })
+        }
+        var taggedIndex = 0
+        binaryMessages.forEachIndexed { i, binaryMessage ->
+            results[offset + i] = try {
+                when (binaryMessage) {
+                    is Exception -> throw binaryMessage
+                    is BinaryDropMessageV1 -> disassemble(binaryMessage, receivers, secrets, taggedIndex++)
+                    else -> disassemble(binaryMessage as AbstractBinaryDropMessage, receivers)
+                }
+            } catch (e: Exception) {
+                DropParseResult.Failure(e)
+            }
+        }
+    }
 
+    @Throws(QblException::class)
+    private fun disassemble(binaryMessage: AbstractBinaryDropMessage, receivers: List<Identity>): DropParseResult {
+        receivers.forEach { identity ->
+            binaryMessage.disassembleMessage(identity)?.let {
+                return DropParseResult.Success(identity, it)
+            }
+        }
+        throw QblDropParseException()
+    }
 
+    /**
+     * @param secrets ECDH secrets of every receiver and the ephemeral keys of the version 1 messages
+     */
+    @Throws(QblException::class)
+    private fun disassemble(binaryMessage: BinaryDropMessageV1, receivers: List<Identity>,
+                            secrets: List<List<ByteArray>>, taggedIndex: Int): DropParseResult {
+        receivers.forEachIndexed { i, identity ->
+            binaryMessage.disassembleMessage(identity, secrets[i][taggedIndex])?.let {
+                return DropParseResult.Success(identity, it)
+            }
+        }
+        throw QblDropParseException()
+    }
+
+    private inner class ParseTask(
+        val messages: List<ByteArray>,
+        val receivers: List<Identity>,
+        val results: Array<DropParseResult?>,
+        val from: Int,
+        val to: Int,
+        val taskSize: Int
+    ) : RecursiveAction() {
+        override fun compute() {
+            if (to - from <= taskSize) {
+                parseBatch(messages.subList(from, to), receivers, results, from)
+                return
+            }
+            val middle = (from + to) ushr 1
+            invokeAll(
+                ParseTask(messages, receivers, results, from, middle, taskSize),
+                ParseTask(messages, receivers, results, middle, to, taskSize))
+        }
+    }
+
+    companion object {
+        /**
+         * Maximum number of messages of a task, their ECDH secrets are calculated in one batch
+         */
+        const val MAX_TASK_SIZE = 16
+
+        private val sharedPool by lazy { ForkJoinPool(Runtime.getRuntime().availableProcessors()) }
+    }
+}
@@ -6,10 +6,28 @@ import de.qabel.core.drop.DropMessage
 import de.qabel.core.drop.DropURL
 import de.qabel.core.drop.http.DropServerHttp
 import de.qabel.core.repository.entities.DropState
+import rx.Observable
 
 interface DropConnector {
 
     fun sendDropMessage(identity: Identity, contact: Contact, message: DropMessage, server: DropURL)
     fun receiveDropMessages(identity: Identity, dropUrl: DropURL, dropState: DropState): DropServerHttp.DropServerResponse<DropMessage>
 
+    /**
+     * Receives and decrypts the messages of a drop while they are downloaded.
+     * The eTag of dropState is updated as soon as the drop server responded.
+     */
+    fun receiveDropMessageStream(identity: Identity, dropUrl: DropURL, dropState: DropState): Observable<DropMessage>
+
+    /**
+     * Receives the messages of a drop as they are downloaded, without decrypting them.
+     * The eTag of dropState is updated as soon as the drop server responded.
+     */
+    fun receiveEncryptedMessageStream(dropUrl: DropURL, dropState: DropState): Observable<ByteArray>
+
+    /**
+     * @return the decrypted message or null if it is invalid or not addressed to the identity
+     */
+    fun decryptDropMessage(identity: Identity, message: ByteArray): DropMessage?
+
 }
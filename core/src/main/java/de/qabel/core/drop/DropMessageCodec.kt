@@ -0,0 +1,196 @@
+package de.qabel.core.drop
+
+import com.google.gson.JsonParseException
+import com.google.gson.JsonSyntaxException
+import com.google.gson.stream.JsonReader
+import com.google.gson.stream.JsonToken
+import com.google.gson.stream.JsonWriter
+import de.qabel.core.crypto.QblECPublicKey
+import org.spongycastle.util.encoders.Hex
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStreamReader
+import java.io.OutputStream
+import java.io.OutputStreamWriter
+import java.util.*
+
+/**
+ * Streaming JSON codec for [DropMessage] and its [DropMessageMetadata].
+ * Writes the same JSON as the [DropMessageGson] adapters, but without building a Gson instance
+ * or a JSON tree per message. Messages are read directly from the padded plaintext.
+ */
+object DropMessageCodec {
+
+    private const val VERSION = "version"
+    private const val TIME_STAMP = "time_stamp"
+    private const val SENDER = "sender"
+    private const val PAYLOAD_TYPE = "drop_payload_type"
+    private const val PAYLOAD = "drop_payload"
+    private const val ACK_ID = "acknowledge_id"
+    private const val META_DATA = DropSerializer.META_DATA
+
+    private const val ALIAS = "alias"
+    private const val PUBLIC_KEY = "public_key"
+    private const val DROP_URL = "drop_url"
+    private const val EMAIL = "email"
+    private const val PHONE = "phone"
+
+    private val UTF_8 = Charsets.UTF_8
+
+    fun encode(message: DropMessage): ByteArray =
+        ByteArrayOutputStream(256).apply { encode(message, this) }.toByteArray()
+
+    fun encode(message: DropMessage, out: OutputStream) {
+        val writer = OutputStreamWriter(out, UTF_8)
+        JsonWriter(writer).apply {
+            isHtmlSafe = true
+            serializeNulls = false
+            writeMessage(message)
+            flush()
+        }
+    }
+
+    /**
+     * Decodes a message from the plaintext, trailing zero bytes are ignored as padding
+     *
+     * @throws JsonParseException if the plaintext is no valid drop message
+     */
+    @Throws(JsonParseException::class)
+    @JvmOverloads
+    fun decode(plaintext: ByteArray, length: Int = unpaddedLength(plaintext)): DropMessage {
+        val reader = JsonReader(InputStreamReader(ByteArrayInputStream(plaintext, 0, length), UTF_8))
+        reader.isLenient = true
+        try {
+            val message = reader.readMessage()
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw JsonSyntaxException("JSON document was not fully consumed.")
+            }
+            return message
+        } catch (e: JsonParseException) {
+            throw e
+        } catch (e: IOException) {
+            throw JsonSyntaxException(e)
+        } catch (e: IllegalStateException) {
+            throw JsonSyntaxException(e)
+        } catch (e: NumberFormatException) {
+            throw JsonSyntaxException(e)
+        } catch (e: Exception) {
+            throw JsonParseException(e)
+        }
+    }
+
+    /**
+     * @return length of the plaintext without the zero bytes padding it
+     */
+    fun unpaddedLength(plaintext: ByteArray): Int {
+        var length = plaintext.size
+        while (length > 0 && plaintext[length - 1].toInt() == 0) {
+            length--
+        }
+        return length
+    }
+
+    private fun JsonWriter.writeMessage(message: DropMessage) {
+        beginObject()
+        name(VERSION).value(DropMessage.getVersion().toLong())
+        name(TIME_STAMP).value(message.creationDate.time)
+        name(SENDER).value(message.sender.keyIdentifier)
+        name(PAYLOAD).value(message.dropPayload)
+        name(PAYLOAD_TYPE).value(message.dropPayloadType)
+        name(ACK_ID).value(message.acknowledgeID)
+        message.dropMessageMetadata?.let {
+            name(META_DATA)
+            writeMetadata(it)
+        }
+        endObject()
+    }
+
+    private fun JsonWriter.writeMetadata(metadata: DropMessageMetadata) {
+        beginObject()
+        name(ALIAS).value(metadata.alias)
+        name(DROP_URL).value(metadata.dropUrl.toString())
+        name(PUBLIC_KEY).beginObject()
+            .name(PUBLIC_KEY).value(Hex.toHexString(metadata.publicKey.key))
+            .endObject()
+        name(PHONE).value(metadata.phone)
+        name(EMAIL).value(metadata.email)
+        endObject()
+    }
+
+    private fun JsonReader.readMessage(): DropMessage {
+        var version: Int? = null
+        var time: Long? = null
+        var sender: String? = null
+        var payload: String? = null
+        var payloadType: String? = null
+        var metadata: DropMessageMetadata? = null
+
+        beginObject()
+        while (hasNext()) {
+            when (nextName()) {
+                VERSION -> version = nextInt()
+                TIME_STAMP -> time = nextLong()
+                SENDER -> sender = nextString()
+                PAYLOAD -> payload = nextString()
+                PAYLOAD_TYPE -> payloadType = nextString()
+                META_DATA -> metadata = if (peek() == JsonToken.NULL) {
+                    nextNull()
+                    null
+                } else {
+                    readMetadata()
+                }
+                else -> skipValue()
+            }
+        }
+        endObject()
+
+        if (version == null) {
+            throw JsonSyntaxException("Missing property " + VERSION)
+        }
+        if (version != DropMessage.getVersion()) {
+            throw JsonParseException("Unexpected version: " + version)
+        }
+        return DropMessage(required(sender, SENDER), required(payload, PAYLOAD), required(payloadType, PAYLOAD_TYPE),
+            Date(required(time, TIME_STAMP)), DropMessage.NOACK, metadata)
+    }
+
+    private fun JsonReader.readMetadata(): DropMessageMetadata {
+        var alias: String? = null
+        var publicKey: QblECPublicKey? = null
+        var dropUrl: DropURL? = null
+        var email = ""
+        var phone = ""
+
+        beginObject()
+        while (hasNext()) {
+            when (nextName()) {
+                ALIAS -> alias = nextString()
+                PUBLIC_KEY -> publicKey = readPublicKey()
+                DROP_URL -> dropUrl = DropURL(nextString())
+                EMAIL -> email = nextString()
+                PHONE -> phone = nextString()
+                else -> skipValue()
+            }
+        }
+        endObject()
+        return DropMessageMetadata(required(alias, ALIAS), required(publicKey, PUBLIC_KEY),
+            required(dropUrl, DROP_URL), email, phone)
+    }
+
+    private fun JsonReader.readPublicKey(): QblECPublicKey? {
+        var key: QblECPublicKey? = null
+        beginObject()
+        while (hasNext()) {
+            if (nextName() == PUBLIC_KEY) {
+                key = QblECPublicKey(Hex.decode(nextString()))
+            } else {
+                skipValue()
+            }
+        }
+        endObject()
+        return key
+    }
+
+    private fun <T> required(value: T?, key: String): T = value ?: throw JsonSyntaxException("Missing property " + key)
+}
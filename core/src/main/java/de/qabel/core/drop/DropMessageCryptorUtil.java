@@ -2,7 +2,7 @@ package de.qabel.core.drop;
 
 import de.qabel.core.config.Contact;
 import de.qabel.core.config.Identity;
-import de.qabel.core.crypto.BinaryDropMessageV0;
+import de.qabel.core.crypto.AbstractBinaryDropMessage;
 import de.qabel.core.exceptions.QblDropInvalidMessageSizeException;
 import de.qabel.core.exceptions.QblDropPayloadSizeException;
 import de.qabel.core.exceptions.QblSpoofedSenderException;
@@ -24,8 +24,25 @@ public class DropMessageCryptorUtil {
      */
     public static byte[] createEncryptedDropMessage(String payload, String dropMessageType,
                                                     Identity sender, Contact recipient) throws QblDropPayloadSizeException {
+        return createEncryptedDropMessage(payload, dropMessageType, sender, recipient,
+            AbstractBinaryDropMessage.DEFAULT_SEND_VERSION);
+    }
+
+    /**
+     * Creates an encrypted {@link DropMessage} for a recipient in the given binary version.
+     *
+     * @param payload         Payload for the encrypted {@link DropMessage}
+     * @param dropMessageType Type of the {@link DropMessage} payload.
+     * @param sender          {@link Identity} to use as sender for the {@link DropMessage}.
+     * @param recipient       {@link Contact} to encrypt the {@link DropMessage} for.
+     * @param version         Binary version, the recipient has to support it.
+     * @return Encrypted {@link DropMessage} for recipient.
+     */
+    public static byte[] createEncryptedDropMessage(String payload, String dropMessageType,
+                                                    Identity sender, Contact recipient, int version)
+        throws QblDropPayloadSizeException {
         DropMessage dropMessage = new DropMessage(sender, payload, dropMessageType);
-        BinaryDropMessageV0 binaryMessage = new BinaryDropMessageV0(dropMessage);
+        AbstractBinaryDropMessage binaryMessage = AbstractBinaryDropMessage.forVersion(version, dropMessage);
         return binaryMessage.assembleMessageFor(recipient, sender);
     }
 
@@ -39,7 +56,7 @@ public class DropMessageCryptorUtil {
      */
     public static DropMessage decryptDropMessage(Identity identity, byte[] encryptedDropMessage)
         throws QblDropInvalidMessageSizeException, QblVersionMismatchException, QblSpoofedSenderException {
-        BinaryDropMessageV0 binaryMessage = new BinaryDropMessageV0(encryptedDropMessage);
+        AbstractBinaryDropMessage binaryMessage = AbstractBinaryDropMessage.fromBytes(encryptedDropMessage);
         return binaryMessage.disassembleMessage(identity);
     }
 }
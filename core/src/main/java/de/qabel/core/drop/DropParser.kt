@@ -5,6 +5,16 @@ import de.qabel.core.config.Identity
 
 interface DropParser {
     fun parse(message: ByteArray, receivers: Identities): Pair<Identity, DropMessage>
-}
 
+    /**
+     * Parses a batch of raw drop messages.
+     *
+     * @return one result per message, in the order of the given messages
+     */
+    fun parseAll(messages: Collection<ByteArray>, receivers: Identities): List<DropParseResult>
+}
 
+sealed class DropParseResult {
+    class Success(val identity: Identity, val message: DropMessage) : DropParseResult()
+    class Failure(val error: Exception) : DropParseResult()
+}
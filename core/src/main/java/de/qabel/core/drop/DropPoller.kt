@@ -0,0 +1,144 @@
+package de.qabel.core.drop
+
+import de.qabel.core.config.Identity
+import de.qabel.core.repository.DropStateRepository
+import de.qabel.core.repository.entities.DropState
+import org.slf4j.LoggerFactory
+import rx.Observable
+import rx.functions.Func1
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * Polls drops concurrently, at most maxPollsPerServer at once per drop server.
+ *
+ * The interval of every drop adapts to the changes of its X-Qabel-Latest header:
+ * it is halved when a poll received a new eTag and grows by half when the drop was unchanged,
+ * bounded by minIntervalMillis and maxIntervalMillis. Drops that have never been polled are due immediately.
+ */
+class DropPoller @JvmOverloads constructor(
+    private val dropConnector: DropConnector,
+    private val dropStateRepository: DropStateRepository,
+    private val maxPollsPerServer: Int = DEFAULT_MAX_POLLS_PER_SERVER,
+    val minIntervalMillis: Long = DEFAULT_MIN_INTERVAL_MILLIS,
+    val maxIntervalMillis: Long = DEFAULT_MAX_INTERVAL_MILLIS,
+    private val clock: () -> Long = { System.currentTimeMillis() }
+) {
+
+    companion object {
+        const val DEFAULT_MAX_POLLS_PER_SERVER = 4
+        const val DEFAULT_MIN_INTERVAL_MILLIS = 10000L
+        const val DEFAULT_MAX_INTERVAL_MILLIS = 600000L
+
+        private val logger = LoggerFactory.getLogger(DropPoller::class.java)
+    }
+
+    private class Schedule(var intervalMillis: Long, var nextPollMillis: Long)
+
+    private val schedules = ConcurrentHashMap<String, Schedule>()
+
+    /**
+     * Polls the drops that are due, or all drops if force is set, and emits the results of the handler.
+     * The handler is called serialized, but on the threads the messages are received on.
+     * The drop states of all successfully polled drops are saved together after the last message has been handled.
+     * Drops that fail are logged and retried after their current interval.
+     *
+     * @param handler handles a received message, null results are not emitted
+     */
+    fun <T> poll(drops: Collection<Pair<Identity, DropURL>>, force: Boolean,
+                 handler: (Identity, DropMessage) -> T?): Observable<T> =
+        pollDrops(drops, force, { identity, dropUrl, dropState ->
+            dropConnector.receiveDropMessageStream(identity, dropUrl, dropState).map { Pair(identity, it) }
+        }) {
+            handler(it.first, it.second)
+        }
+
+    /**
+     * Like [poll], but the handler is called once per drop response with all its received messages,
+     * e.g. to persist them in one transaction. Responses without new messages are skipped.
+     */
+    fun <T> pollBatches(drops: Collection<Pair<Identity, DropURL>>, force: Boolean,
+                        handler: (Identity, List<DropMessage>) -> T?): Observable<T> =
+        pollDrops(drops, force, { identity, dropUrl, dropState ->
+            dropConnector.receiveDropMessageStream(identity, dropUrl, dropState).toList()
+                .filter { !it.isEmpty() }.map { Pair(identity, it) }
+        }) {
+            handler(it.first, it.second)
+        }
+
+    /**
+     * Like [pollBatches], but the messages are not decrypted.
+     * The handler gets the drop state with the eTag of the response, so it can be saved together with the messages.
+     */
+    fun <T> pollEncrypted(drops: Collection<Pair<Identity, DropURL>>, force: Boolean,
+                          handler: (Identity, DropURL, DropState, List<ByteArray>) -> T?): Observable<T> =
+        pollDrops(drops, force, { identity, dropUrl, dropState ->
+            dropConnector.receiveEncryptedMessageStream(dropUrl, dropState).toList()
+                .filter { !it.isEmpty() }.map { Triple(identity, dropUrl, Pair(dropState, it)) }
+        }) {
+            handler(it.first, it.second, it.third.first, it.third.second)
+        }
+
+    private fun <R, T> pollDrops(drops: Collection<Pair<Identity, DropURL>>, force: Boolean,
+                                 receive: (Identity, DropURL, DropState) -> Observable<R>,
+                                 handler: (R) -> T?): Observable<T> = Observable.defer {
+        val now = clock()
+        val polledStates = ConcurrentLinkedQueue<DropState>()
+        val servers = drops.filter { force || nextPollMillis(it.second) <= now }
+            .map { Triple(it.first, it.second, dropStateRepository.getDropState(it.second)) }
+            .groupBy { it.second.uri.authority }.values
+
+        Observable.from(servers).flatMap { serverDrops ->
+            Observable.from(serverDrops).flatMap({
+                poll(it.second, it.third, polledStates, receive(it.first, it.second, it.third))
+            }, maxPollsPerServer)
+        }.map { handler(it) }
+            .filter { it != null }
+            .map { it!! }
+            .doOnCompleted {
+                if (!polledStates.isEmpty()) {
+                    dropStateRepository.setDropStates(polledStates.toList())
+                }
+            }
+    }
+
+    /**
+     * @return time in millis the drop is due to be polled again, 0 if it has not been polled yet
+     */
+    fun nextPollMillis(dropUrl: DropURL): Long = schedules[dropUrl.toString()]?.let {
+        synchronized(it) { it.nextPollMillis }
+    } ?: 0L
+
+    /**
+     * @return current poll interval of the drop
+     */
+    fun intervalMillis(dropUrl: DropURL): Long = schedules[dropUrl.toString()]?.let {
+        synchronized(it) { it.intervalMillis }
+    } ?: minIntervalMillis
+
+    private fun <R> poll(dropUrl: DropURL, dropState: DropState, polledStates: MutableCollection<DropState>,
+                         received: Observable<R>): Observable<R> {
+        val previousETag = dropState.eTag
+        return received
+            .doOnCompleted {
+                val changed = dropState.eTag != previousETag
+                reschedule(dropUrl) {
+                    if (changed) Math.max(minIntervalMillis, it / 2) else Math.min(maxIntervalMillis, it + it / 2)
+                }
+                polledStates.add(dropState)
+            }
+            .onErrorResumeNext(Func1<Throwable, Observable<R>> { error ->
+                logger.warn("Cannot receive messages from {}", dropUrl, error)
+                reschedule(dropUrl) { it }
+                Observable.empty()
+            })
+    }
+
+    private fun reschedule(dropUrl: DropURL, nextInterval: (Long) -> Long) {
+        val schedule = schedules.getOrPut(dropUrl.toString()) { Schedule(minIntervalMillis, 0L) }
+        synchronized(schedule) {
+            schedule.intervalMillis = nextInterval(schedule.intervalMillis)
+            schedule.nextPollMillis = clock() + schedule.intervalMillis
+        }
+    }
+}
@@ -3,7 +3,7 @@ package de.qabel.core.drop
 import de.qabel.core.config.Contact
 import de.qabel.core.config.Identities
 import de.qabel.core.config.Identity
-import de.qabel.core.crypto.BinaryDropMessageV0
+import de.qabel.core.crypto.AbstractBinaryDropMessage
 import de.qabel.core.drop.DefaultDropParser
 import de.qabel.core.drop.DropConnector
 import de.qabel.core.drop.DropMessage
@@ -16,19 +16,35 @@ import de.qabel.core.exceptions.QblVersionMismatchException
 import de.qabel.core.drop.http.DropServerHttp.DropServerResponse
 import de.qabel.core.repository.entities.DropState
 import org.slf4j.LoggerFactory
+import rx.Observable
+import rx.Scheduler
+import rx.schedulers.Schedulers
 
-class MainDropConnector(val dropServer: DropServerHttp):
+/**
+ * @param networkScheduler scheduler the drop responses are read on
+ * @param decryptionScheduler scheduler the received messages are decrypted on
+ * @param messageVersion binary version of sent messages, version 1 is rejected by receivers that do not know it yet
+ */
+class MainDropConnector @JvmOverloads constructor(
+    val dropServer: DropServerHttp,
+    private val networkScheduler: Scheduler = Schedulers.io(),
+    private val decryptionScheduler: Scheduler = Schedulers.computation(),
+    private val messageVersion: Int = AbstractBinaryDropMessage.DEFAULT_SEND_VERSION) :
     DropConnector {
 
     private val parser = DefaultDropParser()
 
     companion object {
         private val logger = LoggerFactory.getLogger(MainDropConnector::class.java)
+        /**
+         * Number of downloaded messages waiting for decryption
+         */
+        const val STREAM_BUFFER_SIZE = 16
     }
 
     override fun sendDropMessage(identity: Identity, contact: Contact,
                                  message: DropMessage, server: DropURL) {
-        val messageBytes = BinaryDropMessageV0(message)
+        val messageBytes = AbstractBinaryDropMessage.forVersion(messageVersion, message)
             .assembleMessageFor(contact, identity)
         dropServer.sendBytes(server.uri, messageBytes)
     }
@@ -39,26 +55,56 @@ class MainDropConnector(val dropServer: DropServerHttp):
             dropState.eTag = eTag
         }
         val receivers = Identities().apply { put(identity) }
-        val messages = byteMessages.map { byteMessage ->
-            try {
-                parser.parse(byteMessage, receivers).second
-            } catch (e: QblVersionMismatchException) {
-                logger.warn("Received DropMessage with version mismatch")
-                null
-            } catch (e: QblDropInvalidMessageSizeException) {
-                // Invalid message uploads may happen with malicious intent
-                // or by broken clients. Skip.
-                logger.warn("Received DropMessage with invalid size")
-                null
-            } catch(ex: QblSpoofedSenderException) {
-                logger.warn("QblSpoofedSenderException while disassembling message")
-                null
-            } catch (ex: QblException) {
-                logger.warn("Another QblException while parsing the message", ex)
-                null
+        val messages = parser.parseAll(byteMessages, receivers).map { result ->
+            when (result) {
+                is DropParseResult.Success -> result.message
+                is DropParseResult.Failure -> {
+                    logFailure(result.error)
+                    null
+                }
             }
         }.filterNotNull()
         return DropServerResponse(status, dropState, messages)
     }
 
+    override fun receiveDropMessageStream(identity: Identity, dropUrl: DropURL, dropState: DropState): Observable<DropMessage> {
+        val receivers = Identities().apply { put(identity) }
+        return receiveEncryptedMessageStream(dropUrl, dropState)
+            .observeOn(decryptionScheduler, STREAM_BUFFER_SIZE)
+            .map { parse(it, receivers) }
+            .filter { it != null }
+            .map { it!! }
+    }
+
+    override fun receiveEncryptedMessageStream(dropUrl: DropURL, dropState: DropState): Observable<ByteArray> =
+        dropServer.receiveMessageStream(dropUrl.uri, dropState.eTag) { statusCode, latestETag ->
+            logger.debug("Drop {} responded with status {}", dropUrl, statusCode)
+            if (!latestETag.isEmpty()) {
+                dropState.eTag = latestETag
+            }
+        }.subscribeOn(networkScheduler)
+
+    override fun decryptDropMessage(identity: Identity, message: ByteArray): DropMessage? =
+        parse(message, Identities().apply { put(identity) })
+
+    private fun parse(message: ByteArray, receivers: Identities): DropMessage? =
+        try {
+            parser.parse(message, receivers).second
+        } catch (error: Exception) {
+            logFailure(error)
+            null
+        }
+
+    private fun logFailure(error: Exception) {
+        when (error) {
+            is QblVersionMismatchException -> logger.warn("Received DropMessage with version mismatch")
+            // Invalid message uploads may happen with malicious intent
+            // or by broken clients. Skip.
+            is QblDropInvalidMessageSizeException -> logger.warn("Received DropMessage with invalid size")
+            is QblSpoofedSenderException -> logger.warn("QblSpoofedSenderException while disassembling message")
+            is QblException -> logger.warn("Another QblException while parsing the message", error)
+            else -> throw error
+        }
+    }
+
 }
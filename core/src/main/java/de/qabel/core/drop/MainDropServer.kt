@@ -1,82 +1,157 @@
 package de.qabel.core.drop
 
+import de.qabel.core.drop.http.DropHttpClient
 import de.qabel.core.drop.http.DropServerHttp
 import de.qabel.core.exceptions.QblDropInvalidMessageSizeException
 import de.qabel.core.exceptions.QblDropInvalidURL
 import de.qabel.core.drop.http.DropServerHttp.QblHeaders
 import de.qabel.core.drop.http.DropServerHttp.QblStatusCodes
 import org.apache.commons.io.IOUtils
+import org.apache.http.client.methods.CloseableHttpResponse
+import org.apache.http.client.methods.HttpGet
+import org.apache.http.client.methods.HttpPost
+import org.apache.http.entity.ByteArrayEntity
+import org.apache.http.entity.ContentType
+import org.apache.http.util.EntityUtils
 import org.apache.james.mime4j.stream.EntityState
 import org.apache.james.mime4j.stream.MimeTokenStream
-import java.io.DataOutputStream
-import java.net.HttpURLConnection
+import rx.Observable
+import rx.Observer
+import rx.functions.Action1
+import rx.functions.Action2
+import rx.functions.Func0
+import rx.observables.SyncOnSubscribe
+import java.io.Closeable
 import java.net.URI
 
-class MainDropServer : DropServerHttp {
+/**
+ * Drop server access over keep-alive connections of a [DropHttpClient].
+ * Each response is consumed completely, so its connection returns to the pool.
+ */
+class MainDropServer @JvmOverloads constructor(
+    private val client: DropHttpClient = DropHttpClient.shared
+) : DropServerHttp {
 
     companion object {
         const val DROP_CONTENT_TYPE_KEY = "Content-Type"
         const val DROP_CONTENT_TYPE = "application/octet-stream"
     }
 
-    override fun sendBytes(uri: URI, messageBytes: ByteArray) =
-        connect(uri).use {
-            it.doOutput = true // indicates POST method
-            it.setRequestProperty(DROP_CONTENT_TYPE_KEY, DROP_CONTENT_TYPE)
-            it.setRequestProperty(QblHeaders.AUTHORIZATION, DropServerHttp.DEFAULT_AUTH_TOKEN)
-
-            DataOutputStream(it.outputStream).use {
-                it.write(messageBytes)
-            }
-            when (it.responseCode) {
+    override fun sendBytes(uri: URI, messageBytes: ByteArray) {
+        val request = HttpPost(uri).apply {
+            setHeader(QblHeaders.AUTHORIZATION, DropServerHttp.DEFAULT_AUTH_TOKEN)
+            entity = ByteArrayEntity(messageBytes, ContentType.create(DROP_CONTENT_TYPE))
+        }
+        client.httpClient.execute(request).use { response ->
+            EntityUtils.consume(response.entity)
+            val statusCode = response.statusLine.statusCode
+            when (statusCode) {
                 QblStatusCodes.OK -> Unit
                 QblStatusCodes.INVALID -> throw QblDropInvalidURL()
                 QblStatusCodes.INVALID_SIZE -> throw QblDropInvalidMessageSizeException()
-                else -> throw RuntimeException("Received unknown statusCode $it.statusLine.statusCode")
+                else -> throw RuntimeException("Received unknown statusCode $statusCode")
             }
         }
+    }
 
     override fun receiveMessageBytes(uri: URI, eTag: String): Triple<Int, String, Collection<ByteArray>> =
-        connect(uri).use {
-            if (!eTag.isEmpty()) {
-                it.addRequestProperty(QblHeaders.X_QABEL_NEW_SINCE, eTag)
+        receive(uri, eTag).use {
+            val messages = mutableListOf<ByteArray>()
+            var message = it.next()
+            while (message != null) {
+                messages.add(message)
+                message = it.next()
             }
+            Triple(it.statusCode, it.eTag, messages)
+        }
 
-            val statusCode = it.responseCode
-            val messages: List<ByteArray> = when (statusCode) {
-                QblStatusCodes.OK -> {
-                    it.inputStream.use { inputStream ->
-                        val stream = MimeTokenStream()
-                        stream.parseHeadless(inputStream, it.contentType)
-                        val messages = mutableListOf<ByteArray>()
-                        var state = stream.state
-                        while (state != EntityState.T_END_OF_STREAM) {
-                            if (state == EntityState.T_BODY) {
-                                val bytes = IOUtils.toByteArray(stream.inputStream)
-                                messages.add(bytes)
-                            }
-                            state = stream.next()
-                        }
-                        messages
-                    }
+    /**
+     * Parses the multipart response while the subscriber requests messages, so at most the
+     * requested messages are held in memory. Unsubscribing early closes the connection.
+     */
+    override fun receiveMessageStream(uri: URI, eTag: String, onResponse: (statusCode: Int, latestETag: String) -> Unit)
+        : Observable<ByteArray> = Observable.create(SyncOnSubscribe.createSingleState(
+        Func0 { StreamState() },
+        Action2<StreamState, Observer<in ByteArray>> { state, observer ->
+            try {
+                val messages = state.messages ?: receive(uri, eTag).apply {
+                    state.messages = this
+                    onResponse(statusCode, this.eTag)
                 }
-                QblStatusCodes.NOT_MODIFIED -> emptyList()
-                QblStatusCodes.EMPTY_DROP -> emptyList()
-                QblStatusCodes.INVALID -> throw QblDropInvalidURL()
-                else -> throw RuntimeException("Received unknown statusCode")
+                val message = messages.next()
+                if (message != null) {
+                    observer.onNext(message)
+                } else {
+                    observer.onCompleted()
+                }
+            } catch (e: Exception) {
+                observer.onError(e)
             }
-            val responseETag = it.getHeaderField(QblHeaders.X_QABEL_LATEST) ?: ""
+        },
+        Action1<StreamState> { it.messages?.close() }))
 
-            Triple(statusCode, responseETag, messages)
+    private fun receive(uri: URI, eTag: String): ResponseMessages {
+        val request = HttpGet(uri)
+        if (!eTag.isEmpty()) {
+            request.addHeader(QblHeaders.X_QABEL_NEW_SINCE, eTag)
+        }
+        val response = client.httpClient.execute(request)
+        try {
+            return ResponseMessages(response)
+        } catch (e: Exception) {
+            response.close()
+            throw e
         }
+    }
 
-    private fun connect(url: URI) = url.toURL().openConnection() as HttpURLConnection
+    private class StreamState(var messages: ResponseMessages? = null)
 
-    fun <X> HttpURLConnection.use(block: (HttpURLConnection) -> X): X {
-        try {
-            return block(this)
-        } finally {
-            disconnect()
+    /**
+     * Message bodies of a drop response, read from the connection one at a time
+     */
+    private class ResponseMessages(private val response: CloseableHttpResponse) : Closeable {
+        val statusCode = response.statusLine.statusCode
+        val eTag = response.getFirstHeader(QblHeaders.X_QABEL_LATEST)?.value ?: ""
+        private val tokens: MimeTokenStream? = when (statusCode) {
+            QblStatusCodes.OK -> MimeTokenStream().apply {
+                parseHeadless(response.entity.content, response.entity.contentType?.value)
+            }
+            QblStatusCodes.NOT_MODIFIED -> null
+            QblStatusCodes.EMPTY_DROP -> null
+            QblStatusCodes.INVALID -> throw QblDropInvalidURL()
+            else -> throw RuntimeException("Received unknown statusCode $statusCode")
+        }
+        private var finished = tokens == null
+
+        /**
+         * @return next message body or null if all messages have been read
+         */
+        fun next(): ByteArray? {
+            if (tokens == null || finished) {
+                return null
+            }
+            var state = tokens.next()
+            while (state != EntityState.T_BODY && state != EntityState.T_END_OF_STREAM) {
+                state = tokens.next()
+            }
+            if (state == EntityState.T_END_OF_STREAM) {
+                finished = true
+                return null
+            }
+            return IOUtils.toByteArray(tokens.inputStream)
+        }
+
+        /**
+         * Returns the connection to the pool if the response has been read completely, closes it otherwise
+         */
+        override fun close() {
+            try {
+                if (finished) {
+                    EntityUtils.consume(response.entity)
+                }
+            } finally {
+                response.close()
+            }
         }
     }
 }
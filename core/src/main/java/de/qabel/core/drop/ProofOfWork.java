@@ -2,11 +2,13 @@ package de.qabel.core.drop;
 
 import de.qabel.core.crypto.CryptoUtils;
 import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.util.Pack;
 import org.spongycastle.util.encoders.Base64;
 
 import java.nio.ByteBuffer;
 import java.util.Calendar;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ProofOfWork {
     /**
@@ -21,6 +23,10 @@ public class ProofOfWork {
     private byte[] pow;
     static final int longLength = Long.SIZE / Byte.SIZE;
     static final int hashLength = 256 / 8; //SHA-256
+    static final int ivClientLength = 16;
+    static final long NOT_FOUND = -1;
+    // attempts between two checks of the stop flag
+    private static final int CHECK_INTERVAL = 1 << 12;
 
     /**
      * Initializes PoW
@@ -66,28 +72,44 @@ public class ProofOfWork {
      * @param initVectorServer Server IV which is part of the PoW
      * @param messageHash      hash of message to be sent
      * @return byte[][]: byte[0]=plain parameters byte[1]=PoW hash
+     * @throws IllegalStateException if the current thread was interrupted, the interrupt flag stays set
      */
     public static ProofOfWork calculate(int leadingZeros, byte[] initVectorServer, byte[] messageHash) {
-        long time;
-        long counter;
-        byte[] initVectorClient;
+        long time = currentTime();
+        byte[] initVectorClient = CryptoUtils.getInstance().getRandomBytes(ivClientLength);
         byte[] pow = new byte[hashLength];
-        CryptoUtils cryptoUtils = new CryptoUtils();
-        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-
-        //time in seconds since epoch UTC
-        time = calendar.getTimeInMillis() / 1000L;
-        byte[] timeBytes = toByteArray(time);
-        initVectorClient = cryptoUtils.getRandomBytes(16);
-
-        byte[] fix = composeFixParts(initVectorServer, initVectorClient, timeBytes, messageHash);
+        SHA256Digest midstate = midstate(initVectorServer, initVectorClient, time, messageHash);
 
         //Find counter which fulfills pattern
-        counter = calculatePow(pow, fix, leadingZeros);
+        long counter = search(midstate, leadingZeros, 0, 1, pow, new AtomicBoolean());
+        if (counter == NOT_FOUND) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new IllegalStateException("PoW calculation interrupted");
+            }
+            throw new IllegalStateException("Counter space exhausted without PoW");
+        }
 
         return new ProofOfWork(leadingZeros, initVectorServer, initVectorClient, time, messageHash, counter, pow);
     }
 
+    /**
+     * @return time in seconds since epoch UTC
+     */
+    static long currentTime() {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        return calendar.getTimeInMillis() / 1000L;
+    }
+
+    /**
+     * Hashes the fix part of the proof of work once, the returned digest state is copied for every counter
+     */
+    static SHA256Digest midstate(byte[] initVectorServer, byte[] initVectorClient, long time, byte[] messageHash) {
+        byte[] fix = composeFixParts(initVectorServer, initVectorClient, toByteArray(time), messageHash);
+        SHA256Digest digest = new SHA256Digest();
+        digest.update(fix, 0, fix.length);
+        return digest;
+    }
+
     private static byte[] composeFixParts(byte[] initVectorServer, byte[] initVectorClient, byte[] time, byte[] messageHash) {
         byte[] fix = new byte[initVectorServer.length + initVectorClient.length + time.length + messageHash.length];
         int offset = 0;
@@ -102,50 +124,53 @@ public class ProofOfWork {
     }
 
     /**
-     * Checks whether hash starts with required leading zero bits
+     * Checks whether hash starts with required leading zero bits.
+     * Bit i of the hash is bit i % 8 of byte i / 8, so the hash is checked in little endian words.
      *
      * @param hash         hash to be verified
      * @param leadingZeros required leading zeros
      * @return true of hash starts with required leading zero bits
      */
-    private static boolean enoughZeros(byte[] hash, int leadingZeros) {
-        for (int i = 0; i < leadingZeros; i++) {
-            //check whether i-th bit is zero
-            if ((hash[i / 8] >> i % 8 & 1) != 0) {
+    static boolean enoughZeros(byte[] hash, int leadingZeros) {
+        int offset = 0;
+        for (; leadingZeros >= Long.SIZE; leadingZeros -= Long.SIZE, offset += longLength) {
+            if (Pack.littleEndianToLong(hash, offset) != 0) {
                 return false;
             }
         }
-        return true;
+        return leadingZeros == 0 || (Pack.littleEndianToLong(hash, offset) & ((1L << leadingZeros) - 1)) == 0;
     }
 
     /**
-     * Finds a valid proof of work hash with leading zeros
+     * Tries the counters start, start + step, start + 2 * step, ... until a hash with enough leading zeros is found.
+     * Stops with {@link #NOT_FOUND} if stop is set or the current thread is interrupted.
      *
-     * @param pow          result of the calculation
-     * @param fix          fix part of the proof of work
+     * @param midstate     digest state after hashing the fix part, is not modified
      * @param leadingZeros required leading zeros
-     * @return counter for the valid hash
+     * @param start        first counter
+     * @param step         distance between two counters
+     * @param pow          result of the calculation
+     * @param stop         set by other threads to stop the search
+     * @return counter for the valid hash or {@link #NOT_FOUND}
      */
-    private static long calculatePow(byte[] pow, byte[] fix, int leadingZeros) {
-        SHA256Digest digest = new SHA256Digest();
-        long counter = 0;
-        if (pow.length == hashLength) {
-            digest.update(fix, 0, fix.length);
-            digest.update(toByteArray(counter), 0, longLength);
+    static long search(SHA256Digest midstate, int leadingZeros, long start, long step, byte[] pow, AtomicBoolean stop) {
+        SHA256Digest digest = new SHA256Digest(midstate);
+        byte[] counterBytes = new byte[longLength];
+        int attempts = 0;
+        for (long counter = start; counter >= 0; counter += step) {
+            if ((++attempts & (CHECK_INTERVAL - 1)) == 0
+                && (stop.get() || Thread.currentThread().isInterrupted())) {
+                return NOT_FOUND;
+            }
+            digest.reset(midstate);
+            Pack.longToBigEndian(counter, counterBytes, 0);
+            digest.update(counterBytes, 0, longLength);
             digest.doFinal(pow, 0);
-
-            while (!enoughZeros(pow, leadingZeros)) {
-                counter++;
-                digest.reset();
-                digest.update(fix, 0, fix.length);
-                digest.update(toByteArray(counter), 0, longLength);
-                digest.doFinal(pow, 0);
+            if (enoughZeros(pow, leadingZeros)) {
+                return counter;
             }
-            digest.reset();
-            return counter;
-        } else {
-            return 0;
         }
+        return NOT_FOUND;
     }
 
     static byte[] toByteArray(long number) {
@@ -0,0 +1,154 @@
+package de.qabel.core.drop;
+
+import de.qabel.core.crypto.CryptoUtils;
+import org.spongycastle.crypto.digests.SHA256Digest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calculates proofs of work on multiple threads.
+ * Worker i of n tries the counters i, i + n, i + 2n, ... starting from a shared digest state of the fix part.
+ * The search is cancelled by interrupting the thread calling {@link #solve}.
+ */
+public class ProofOfWorkSolver {
+    private static final int MAX_LEADING_ZEROS = ProofOfWork.hashLength * 8;
+
+    private static final ExecutorService sharedExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "pow-solver-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final int threads;
+    private final ExecutorService executor;
+
+    public ProofOfWorkSolver() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ProofOfWorkSolver(int threads) {
+        this(threads, sharedExecutor);
+    }
+
+    /**
+     * @param threads  number of workers
+     * @param executor executor running the workers, must be able to run all of them at the same time
+     */
+    public ProofOfWorkSolver(int threads, ExecutorService executor) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread required, got " + threads);
+        }
+        this.threads = threads;
+        this.executor = executor;
+    }
+
+    /**
+     * Calculates the PoW for given parameters without time limit
+     *
+     * @see #solve(int, byte[], byte[], long, TimeUnit)
+     */
+    public ProofOfWork solve(int leadingZeros, byte[] initVectorServer, byte[] messageHash)
+        throws InterruptedException {
+        try {
+            return solve(leadingZeros, initVectorServer, messageHash, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("PoW timed out without time limit", e);
+        }
+    }
+
+    /**
+     * Calculates the PoW for given parameters
+     *
+     * @param leadingZeros     Number of leading zero bits of PoW hash
+     * @param initVectorServer Server IV which is part of the PoW
+     * @param messageHash      hash of message to be sent
+     * @param timeout          maximum time to search
+     * @param unit             unit of the timeout
+     * @return PoW with the first counter found by any worker
+     * @throws InterruptedException if the calling thread was interrupted, all workers are stopped
+     * @throws TimeoutException     if no counter was found in time, all workers are stopped
+     */
+    public ProofOfWork solve(int leadingZeros, byte[] initVectorServer, byte[] messageHash, long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException {
+        if (leadingZeros < 0 || leadingZeros > MAX_LEADING_ZEROS) {
+            throw new IllegalArgumentException("Invalid number of leading zeros: " + leadingZeros);
+        }
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        long time = ProofOfWork.currentTime();
+        byte[] initVectorClient = CryptoUtils.getInstance().getRandomBytes(ProofOfWork.ivClientLength);
+        SHA256Digest midstate = ProofOfWork.midstate(initVectorServer, initVectorClient, time, messageHash);
+
+        AtomicBoolean stop = new AtomicBoolean();
+        CompletionService<Worker> completion = new ExecutorCompletionService<>(executor);
+        List<Future<Worker>> futures = new ArrayList<>(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                futures.add(completion.submit(new Worker(midstate, leadingZeros, i, threads, stop)));
+            }
+            for (int i = 0; i < threads; i++) {
+                Future<Worker> done = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    throw new TimeoutException("No PoW with " + leadingZeros + " leading zeros found in time");
+                }
+                Worker worker = done.get();
+                if (worker.counter != ProofOfWork.NOT_FOUND) {
+                    return new ProofOfWork(leadingZeros, initVectorServer, initVectorClient, time, messageHash,
+                        worker.counter, worker.pow);
+                }
+            }
+            throw new IllegalStateException("Counter space exhausted without PoW");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("PoW worker failed", e.getCause());
+        } finally {
+            stop.set(true);
+            for (Future<Worker> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static class Worker implements Callable<Worker> {
+        private final SHA256Digest midstate;
+        private final int leadingZeros;
+        private final long start;
+        private final long step;
+        private final AtomicBoolean stop;
+        final byte[] pow = new byte[ProofOfWork.hashLength];
+        long counter = ProofOfWork.NOT_FOUND;
+
+        Worker(SHA256Digest midstate, int leadingZeros, long start, long step, AtomicBoolean stop) {
+            this.midstate = midstate;
+            this.leadingZeros = leadingZeros;
+            this.start = start;
+            this.step = step;
+            this.stop = stop;
+        }
+
+        @Override
+        public Worker call() {
+            counter = ProofOfWork.search(midstate, leadingZeros, start, step, pow, stop);
+            if (counter != ProofOfWork.NOT_FOUND) {
+                stop.set(true);
+            }
+            return this;
+        }
+    }
+}
@@ -2,17 +2,22 @@ package de.qabel.core.drop.http;
 
 import de.qabel.core.http.HTTPResult;
 import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
 import org.apache.james.mime4j.MimeException;
 import org.apache.james.mime4j.stream.EntityState;
 import org.apache.james.mime4j.stream.MimeTokenStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.URI;
-import java.net.URLConnection;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -20,30 +25,33 @@ import java.util.Date;
 
 
 public class DropHTTP {
+    private static final Logger logger = LoggerFactory.getLogger(DropHTTP.class);
+
+    private final DropHttpClient client;
+
+    public DropHTTP() {
+        this(DropHttpClient.getShared());
+    }
+
+    /**
+     * @param client pooled client, requests to the same drop server reuse its connections
+     */
+    public DropHTTP(DropHttpClient client) {
+        this.client = client;
+    }
 
     public HTTPResult<?> send(URI uri, byte[] message) {
         HTTPResult<?> result = new HTTPResult<>();
-        HttpURLConnection conn = (HttpURLConnection) setupConnection(uri);
-        conn.setDoOutput(true); // indicates POST method
-        conn.setDoInput(true);
-        conn.setRequestProperty("Content-Type", "application/octet-stream");
-        conn.setRequestProperty("Authorization", "Client Qabel");
+        HttpPost request = new HttpPost(uri);
+        request.setHeader("Authorization", "Client Qabel");
+        request.setEntity(new ByteArrayEntity(message, ContentType.APPLICATION_OCTET_STREAM));
 
-        // conn.setFixedLengthStreamingMode();
-        DataOutputStream out;
-        try {
-            out = new DataOutputStream(conn.getOutputStream());
-            out.write(message);
-            out.flush();
-            out.close();
-            result.setResponseCode(conn.getResponseCode());
-            result.setOk(conn.getResponseCode() == 200);
+        try (CloseableHttpResponse response = client.getHttpClient().execute(request)) {
+            EntityUtils.consume(response.getEntity());
+            result.setResponseCode(response.getStatusLine().getStatusCode());
+            result.setOk(result.getResponseCode() == 200);
         } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } finally {
-            conn.disconnect();
-
+            logger.warn("Sending drop message failed: " + e.getMessage(), e);
         }
         return result;
     }
@@ -54,36 +62,36 @@ public class DropHTTP {
 
     public HTTPResult<Collection<byte[]>> receiveMessages(URI uri, long sinceDate) throws IOException {
         HTTPResult<Collection<byte[]>> result = new HTTPResult<>();
-        HttpURLConnection conn = (HttpURLConnection) setupConnection(uri);
-        conn.setIfModifiedSince(sinceDate);
         Collection<byte[]> messages = new ArrayList<>();
-        try {
-            conn.setRequestMethod("GET");
-            result.setResponseCode(conn.getResponseCode());
-            result.setOk(conn.getResponseCode() == 200);
-            if (result.isOk()) {
-                if (conn.getHeaderField("Last-Modified") != null) {
-                    try {
-                        result.setLastModified(parseDate(conn.getHeaderField("Last-Modified")));
-                    } catch (ParseException ignored) {
+        try (CloseableHttpResponse response = client.getHttpClient().execute(get(uri, sinceDate))) {
+            HttpEntity entity = response.getEntity();
+            try {
+                result.setResponseCode(response.getStatusLine().getStatusCode());
+                result.setOk(result.getResponseCode() == 200);
+                if (result.isOk()) {
+                    if (response.getFirstHeader("Last-Modified") != null) {
+                        try {
+                            result.setLastModified(parseDate(response.getFirstHeader("Last-Modified").getValue()));
+                        } catch (ParseException ignored) {
+                        }
                     }
-                }
-                InputStream inputstream = conn.getInputStream();
-                MimeTokenStream stream = new MimeTokenStream();
-                stream.parseHeadless(inputstream, conn.getContentType());
-                for (EntityState state = stream.getState();
-                     state != EntityState.T_END_OF_STREAM;
-                     state = stream.next()) {
-                    if (state == EntityState.T_BODY) {
-                        byte[] message = IOUtils.toByteArray(stream.getInputStream());
-                        messages.add(message);
+                    MimeTokenStream stream = new MimeTokenStream();
+                    stream.parseHeadless(entity.getContent(),
+                        entity.getContentType() == null ? null : entity.getContentType().getValue());
+                    for (EntityState state = stream.getState();
+                         state != EntityState.T_END_OF_STREAM;
+                         state = stream.next()) {
+                        if (state == EntityState.T_BODY) {
+                            byte[] message = IOUtils.toByteArray(stream.getInputStream());
+                            messages.add(message);
+                        }
                     }
                 }
+            } finally {
+                EntityUtils.consume(entity);
             }
         } catch (MimeException e) {
             throw new IllegalStateException("error while parsing mime response: " + e.getMessage(), e);
-        } finally {
-            conn.disconnect();
         }
         result.setData(messages);
         return result;
@@ -99,26 +107,19 @@ public class DropHTTP {
 
     public HTTPResult<?> head(URI uri, long sinceDate) throws IOException {
         HTTPResult<?> result = new HTTPResult<>();
-        HttpURLConnection conn = (HttpURLConnection) setupConnection(uri);
-        conn.setIfModifiedSince(sinceDate);
-        try {
-            conn.setRequestMethod("GET");
-            result.setResponseCode(conn.getResponseCode());
-            result.setOk(conn.getResponseCode() == 200);
-        } finally {
-            conn.disconnect();
+        try (CloseableHttpResponse response = client.getHttpClient().execute(get(uri, sinceDate))) {
+            EntityUtils.consume(response.getEntity());
+            result.setResponseCode(response.getStatusLine().getStatusCode());
+            result.setOk(result.getResponseCode() == 200);
         }
         return result;
     }
 
-    private URLConnection setupConnection(URI uri) {
-        URLConnection conn = null;
-        try {
-            conn = uri.toURL().openConnection();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+    private static HttpGet get(URI uri, long sinceDate) {
+        HttpGet request = new HttpGet(uri);
+        if (sinceDate > 0) {
+            request.setHeader("If-Modified-Since", DateUtils.formatDate(new Date(sinceDate)));
         }
-        return conn;
+        return request;
     }
 }
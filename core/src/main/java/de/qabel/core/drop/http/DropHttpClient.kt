@@ -0,0 +1,73 @@
+package de.qabel.core.drop.http
+
+import org.apache.http.client.config.RequestConfig
+import org.apache.http.impl.client.CloseableHttpClient
+import org.apache.http.impl.client.HttpClients
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager
+import org.apache.http.pool.PoolStats
+import java.io.Closeable
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keep-alive HTTP client for drop servers.
+ * Connections are pooled per host, so all drop URLs of a drop server share the same connections
+ * and the TCP and TLS handshakes are only paid once per connection.
+ * Connections idle for longer than idleTimeoutMillis are closed by a background task.
+ */
+class DropHttpClient @JvmOverloads constructor(
+    maxConnectionsPerHost: Int = DEFAULT_MAX_CONNECTIONS_PER_HOST,
+    maxConnections: Int = DEFAULT_MAX_CONNECTIONS,
+    val idleTimeoutMillis: Long = DEFAULT_IDLE_TIMEOUT_MILLIS
+) : Closeable {
+
+    private val connectionManager = PoolingHttpClientConnectionManager().apply {
+        maxTotal = maxConnections
+        defaultMaxPerRoute = maxConnectionsPerHost
+    }
+
+    val httpClient: CloseableHttpClient = HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        // pooled connections may have been closed by the server in the meantime
+        .setDefaultRequestConfig(RequestConfig.custom().setStaleConnectionCheckEnabled(true).build())
+        .build()
+
+    private val eviction: ScheduledFuture<*> = evictor.scheduleWithFixedDelay(
+        { closeIdleConnections() }, idleTimeoutMillis, idleTimeoutMillis, TimeUnit.MILLISECONDS)
+
+    /**
+     * Statistics of all pooled connections, leased ones are currently used by requests
+     */
+    val poolStats: PoolStats
+        get() = connectionManager.totalStats
+
+    /**
+     * Closes expired connections and connections idle for longer than the idle timeout
+     */
+    fun closeIdleConnections() {
+        connectionManager.closeExpiredConnections()
+        connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS)
+    }
+
+    override fun close() {
+        eviction.cancel(false)
+        httpClient.close()
+    }
+
+    companion object {
+        const val DEFAULT_MAX_CONNECTIONS_PER_HOST = 8
+        const val DEFAULT_MAX_CONNECTIONS = 32
+        const val DEFAULT_IDLE_TIMEOUT_MILLIS = 30000L
+
+        private val evictor = Executors.newSingleThreadScheduledExecutor { runnable ->
+            Thread(runnable, "drop-http-eviction").apply { isDaemon = true }
+        }
+
+        /**
+         * Client shared by all drop server connections of the process
+         */
+        @JvmStatic
+        val shared by lazy { DropHttpClient() }
+    }
+}
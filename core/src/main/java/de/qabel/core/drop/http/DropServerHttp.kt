@@ -1,6 +1,7 @@
 package de.qabel.core.drop.http
 
 import de.qabel.core.repository.entities.DropState
+import rx.Observable
 import java.net.URI
 
 interface DropServerHttp {
@@ -30,4 +31,24 @@ interface DropServerHttp {
 
     fun sendBytes(uri: URI, messageBytes: ByteArray)
     fun receiveMessageBytes(uri: URI, eTag: String): Triple<Int, String, Collection<ByteArray>>
+
+    /**
+     * Receives the messages of a drop one by one. The request is sent on subscription and
+     * onResponse gets the status code and the latest eTag before the first message is emitted.
+     * Messages are only read from the response when they are requested by the subscriber.
+     */
+    fun receiveMessageStream(uri: URI, eTag: String,
+                             onResponse: (statusCode: Int, latestETag: String) -> Unit = ::ignoreResponse)
+        : Observable<ByteArray> = Observable.defer {
+        val (statusCode, latestETag, messages) = receiveMessageBytes(uri, eTag)
+        onResponse(statusCode, latestETag)
+        Observable.from(messages)
+    }
+}
+
+/**
+ * Default onResponse of [DropServerHttp.receiveMessageStream]
+ */
+@Suppress("UNUSED_PARAMETER")
+private fun ignoreResponse(statusCode: Int, latestETag: String) {
 }
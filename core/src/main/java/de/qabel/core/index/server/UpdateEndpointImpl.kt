@@ -13,7 +13,8 @@ import org.apache.http.entity.ByteArrayEntity
 
 internal class UpdateEndpointImpl(
     val location: IndexHTTPLocation,
-    val gson: Gson = createGson()
+    val gson: Gson = createGson(),
+    private val cryptoUtils: CryptoUtils = CryptoUtils.getInstance()
 ): UpdateEndpoint {
 
     internal data class UpdateRequest(
@@ -30,7 +31,7 @@ internal class UpdateEndpointImpl(
     }
 
     fun encryptJson(json: String, senderKeyPair: QblECKeyPair, serverPublicKey: QblECPublicKey): ByteArray {
-        val box = CryptoUtils().createBox(senderKeyPair, serverPublicKey, json.toByteArray(), 0)
+        val box = cryptoUtils.createBox(senderKeyPair, serverPublicKey, json.toByteArray(), 0)
         return box
     }
 
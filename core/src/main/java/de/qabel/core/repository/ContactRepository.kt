@@ -3,6 +3,7 @@ package de.qabel.core.repository
 import de.qabel.core.config.Contact
 import de.qabel.core.config.Contacts
 import de.qabel.core.config.EntityObservable
+import de.qabel.core.config.Identities
 import de.qabel.core.config.Identity
 import de.qabel.core.contacts.ContactData
 import de.qabel.core.repository.exception.EntityExistsException
@@ -54,6 +55,22 @@ interface ContactRepository: EntityObservable {
     @Throws(PersistenceException::class, EntityNotFoundException::class)
     fun findContactWithIdentities(keyId: String): ContactData
 
+    /**
+     * Finds the contacts of all given key ids at once, unknown key ids are missing in the result.
+     *
+     * @param identities all identities, e.g. a cached snapshot, to assign the contacts to
+     * @return contact details by key id
+     */
+    @Throws(PersistenceException::class)
+    fun findContactsWithIdentities(keyIds: Collection<String>, identities: Identities): Map<String, ContactData> =
+        keyIds.distinct().map {
+            try {
+                findContactWithIdentities(it)
+            } catch (ex: EntityNotFoundException) {
+                null
+            }
+        }.filterNotNull().associateBy { it.contact.keyIdentifier }
+
     @Throws(PersistenceException::class)
     fun findWithIdentities(searchString: String = "",
                            status: List<Contact.ContactStatus> = listOf(Contact.ContactStatus.NORMAL, Contact.ContactStatus.VERIFIED),
@@ -20,4 +20,9 @@ interface DropStateRepository {
     fun getDropState(dropUrl : DropURL) : DropState
     fun setDropState(dropState : DropState)
 
+    /**
+     * Saves the states of multiple drops at once, in a single transaction if supported
+     */
+    fun setDropStates(dropStates: Collection<DropState>) = dropStates.forEach { setDropState(it) }
+
 }
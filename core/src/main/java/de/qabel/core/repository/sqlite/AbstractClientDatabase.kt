@@ -11,11 +11,10 @@ import java.sql.PreparedStatement
 import java.sql.SQLException
 
 abstract class AbstractClientDatabase(protected val connection: Connection) : ClientDatabase {
-    var transactionManager: TransactionManager
+    override var transactionManager: TransactionManager = SqliteTransactionManager(connection)
         protected set
 
     init {
-        transactionManager = SqliteTransactionManager(connection)
         //Enable foreign keys
         connection.createStatement().use { statement -> statement.execute("PRAGMA FOREIGN_KEYS = ON") }
     }
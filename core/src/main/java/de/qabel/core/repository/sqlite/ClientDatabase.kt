@@ -1,5 +1,6 @@
 package de.qabel.core.repository.sqlite
 
+import de.qabel.core.repository.TransactionManager
 import de.qabel.core.repository.sqlite.builder.QueryBuilder
 
 import java.sql.PreparedStatement
@@ -7,6 +8,8 @@ import java.sql.SQLException
 
 interface ClientDatabase: HasVersion {
 
+    val transactionManager: TransactionManager
+
     /**
      * migrate from the current version to the maximum known version
      */
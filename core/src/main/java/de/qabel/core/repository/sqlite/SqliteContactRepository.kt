@@ -2,6 +2,7 @@ package de.qabel.core.repository.sqlite
 
 import de.qabel.core.config.*
 import de.qabel.core.contacts.ContactData
+import de.qabel.core.crypto.EcdhCache
 import de.qabel.core.extensions.findById
 import de.qabel.core.logging.QabelLog
 import de.qabel.core.repository.ContactRepository
@@ -33,6 +34,13 @@ class SqliteContactRepository @JvmOverloads constructor(
     QabelLog,
     EntityObservable by SimpleEntityObservable() {
 
+    companion object {
+        /**
+         * Stays below the default SQLITE_MAX_VARIABLE_NUMBER of 999
+         */
+        private const val MAX_QUERY_PARAMETERS = 500
+    }
+
     override fun find(id: Int): Contact = findById(id)
 
     override fun find(identity: Identity): Contacts =
@@ -116,6 +124,7 @@ class SqliteContactRepository @JvmOverloads constructor(
         removeIdentityConnections(contact)
         dropAllManyToMany(ContactDropUrls.CONTACT_ID, id)
         super.delete(id)
+        EcdhCache.getInstance().invalidate(contact.ecPublicKey)
         info("Contact ${contact.alias} ($id) deleted")
         notifyObservers()
     }
@@ -169,6 +178,28 @@ class SqliteContactRepository @JvmOverloads constructor(
             identities.contains(contact.keyIdentifier))
     }
 
+    override fun findContactsWithIdentities(keyIds: Collection<String>, identities: Identities): Map<String, ContactData> {
+        val keys = keyIds.distinct()
+        val result = HashMap<String, ContactData>()
+        for (start in 0 until keys.size step MAX_QUERY_PARAMETERS) {
+            val contacts = with(createEntityQuery()) {
+                whereAndIn(ContactDB.PUBLIC_KEY, keys.subList(start, Math.min(keys.size, start + MAX_QUERY_PARAMETERS)))
+                getResultList<Contact>(this)
+            }
+            if (contacts.isEmpty()) {
+                continue
+            }
+            val identityIds = findIdentityIds(contacts)
+            contacts.forEach { contact ->
+                val contactIdentities = identityIds[contact.id] ?: emptyList<Int>()
+                result.put(contact.keyIdentifier, ContactData(contact,
+                    identities.entities.filter { contactIdentities.contains(it.id) },
+                    identities.contains(contact.keyIdentifier)))
+            }
+        }
+        return result
+    }
+
     private fun findIdentityIds(contacts: List<Contact>): Map<Int, List<Int>>
         = DefaultHashMap<Int, MutableList<Int>>({ LinkedList<Int>() }).apply {
 
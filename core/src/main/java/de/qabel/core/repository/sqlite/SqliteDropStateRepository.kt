@@ -42,5 +42,10 @@ class SqliteDropStateRepository(database: ClientDatabase,
         if (dropState.id == 0) persist(dropState) else update(dropState)
     }
 
+    override fun setDropStates(dropStates: Collection<DropState>) =
+        client.transactionManager.transactional {
+            dropStates.forEach { setDropState(it) }
+        }
+
 }
 
@@ -1,6 +1,7 @@
 package de.qabel.core.repository.sqlite
 
 import de.qabel.core.config.*
+import de.qabel.core.crypto.EcdhCache
 import de.qabel.core.repository.ContactRepository
 import de.qabel.core.repository.DropUrlRepository
 import de.qabel.core.repository.EntityManager
@@ -124,6 +125,7 @@ class SqliteIdentityRepository(
         contactRepository.findByKeyId(identity.keyIdentifier).let {
             contactRepository.delete(it)
         }
+        EcdhCache.getInstance().invalidate(identity.ecPublicKey)
         notifyObservers()
     }
 }
@@ -9,12 +9,11 @@ import de.qabel.core.repository.exception.TransactionException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.concurrent.Callable;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 
 public class SqliteTransactionManager implements TransactionManager {
-    private final Lock lock = new ReentrantLock(true);
+    private final ReentrantLock lock = new ReentrantLock(true);
     private final Connection connection;
 
     public SqliteTransactionManager(Connection connection) {
@@ -37,28 +36,49 @@ public class SqliteTransactionManager implements TransactionManager {
         }
     }
 
+    /**
+     * Calls nested in a transaction of the same thread join the outer transaction,
+     * transactions of other threads wait until it is finished.
+     */
     @Override
     public <T> T transactional(Callable<T> transactionBasedCallback) throws PersistenceException {
-        Transaction transaction = beginTransaction();
+        lock.lock();
         try {
-            T result = transactionBasedCallback.call();
-            transaction.commit();
-            return result;
-        } catch (Exception e) {
-            transaction.rollback();
-            throw new TransactionException(e.getMessage(), e);
+            if (lock.getHoldCount() > 1) {
+                return joinTransaction(transactionBasedCallback);
+            }
+            Transaction transaction = beginTransaction();
+            try {
+                T result = transactionBasedCallback.call();
+                transaction.commit();
+                return result;
+            } catch (Exception e) {
+                transaction.rollback();
+                throw new TransactionException(e.getMessage(), e);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
-    @Override
-    public void transactional(RunnableTransaction runnable) throws PersistenceException {
-        Transaction transaction = beginTransaction();
+    private <T> T joinTransaction(Callable<T> transactionBasedCallback) throws PersistenceException {
         try {
-            runnable.run();
-            transaction.commit();
+            return transactionBasedCallback.call();
+        } catch (PersistenceException e) {
+            throw e;
         } catch (Exception e) {
-            transaction.rollback();
             throw new TransactionException(e.getMessage(), e);
         }
     }
+
+    @Override
+    public void transactional(final RunnableTransaction runnable) throws PersistenceException {
+        transactional(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                runnable.run();
+                return null;
+            }
+        });
+    }
 }
@@ -0,0 +1,73 @@
+package de.qabel.core.util
+
+import java.nio.ByteBuffer
+
+/**
+ * Bloom filter for cryptographic digests like SHA-256 hashes.
+ * The bit positions are derived from the first 16 bytes of the digest by double hashing,
+ * so the elements need to be uniformly distributed already.
+ *
+ * [mightContain] never returns false for a digest that was put, and returns true for
+ * a digest that was not put with about the given false positive rate, as long as no more
+ * than [expectedInsertions] digests have been put.
+ */
+class BloomFilter @JvmOverloads constructor(val expectedInsertions: Int, falsePositiveRate: Double = 0.01) {
+
+    private val bitCount: Int
+    private val hashCount: Int
+    private val bits: LongArray
+
+    /**
+     * Number of digests put into the filter
+     */
+    var size = 0
+        private set
+
+    init {
+        if (expectedInsertions <= 0) {
+            throw IllegalArgumentException("expectedInsertions must be positive: " + expectedInsertions)
+        }
+        if (falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0) {
+            throw IllegalArgumentException("falsePositiveRate must be between 0 and 1: " + falsePositiveRate)
+        }
+        val ln2 = Math.log(2.0)
+        val optimalBits = Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2))
+        bitCount = Math.max(64.0, Math.min(optimalBits, Int.MAX_VALUE.toDouble())).toInt()
+        hashCount = Math.max(1, Math.round(bitCount.toDouble() / expectedInsertions * ln2).toInt())
+        bits = LongArray((bitCount + 63) / 64)
+    }
+
+    fun put(digest: ByteArray) {
+        val buffer = wrap(digest)
+        val h1 = buffer.getLong(0)
+        val h2 = buffer.getLong(8)
+        for (i in 0 until hashCount) {
+            val index = index(h1, h2, i)
+            bits[index ushr 6] = bits[index ushr 6] or (1L shl index)
+        }
+        size++
+    }
+
+    fun mightContain(digest: ByteArray): Boolean {
+        val buffer = wrap(digest)
+        val h1 = buffer.getLong(0)
+        val h2 = buffer.getLong(8)
+        for (i in 0 until hashCount) {
+            val index = index(h1, h2, i)
+            if (bits[index ushr 6] and (1L shl index) == 0L) {
+                return false
+            }
+        }
+        return true
+    }
+
+    private fun wrap(digest: ByteArray): ByteBuffer {
+        if (digest.size < 16) {
+            throw IllegalArgumentException("digest needs at least 16 bytes, got " + digest.size)
+        }
+        return ByteBuffer.wrap(digest)
+    }
+
+    private fun index(h1: Long, h2: Long, i: Int): Int =
+        ((h1 + i * h2) and Long.MAX_VALUE).rem(bitCount.toLong()).toInt()
+}
@@ -0,0 +1,60 @@
+package de.qabel.core.contacts
+
+import de.qabel.core.config.Identities
+import de.qabel.core.extensions.CoreTestCase
+import de.qabel.core.extensions.createContact
+import de.qabel.core.extensions.createIdentity
+import de.qabel.core.repository.inmemory.InMemoryContactRepository
+import de.qabel.core.repository.inmemory.InMemoryIdentityRepository
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+
+class SenderContactResolverTest : CoreTestCase {
+
+    val identity = createIdentity("identity")
+    val contact = createContact("contact")
+    val identityRepository = CountingIdentityRepository()
+    val contactRepository = InMemoryContactRepository()
+    val resolver = SenderContactResolver(contactRepository, identityRepository)
+
+    @Before
+    fun setUp() {
+        identityRepository.save(identity)
+        contactRepository.save(contact, identity)
+    }
+
+    @Test
+    fun resolvesKnownSenders() {
+        val senders = resolver.resolve(listOf(contact.keyIdentifier, contact.keyIdentifier, "unknown"))
+
+        assertEquals(setOf(contact.keyIdentifier), senders.keys)
+        assertEquals(contact, senders[contact.keyIdentifier]!!.contact)
+        assertEquals(listOf(identity), senders[contact.keyIdentifier]!!.identities)
+    }
+
+    @Test
+    fun cachesIdentities() {
+        (0 until 10).forEach { resolver.resolve(listOf(contact.keyIdentifier)) }
+
+        assertEquals(1, identityRepository.loads)
+    }
+
+    @Test
+    fun reloadsIdentitiesAfterChange() {
+        resolver.identities()
+        identityRepository.save(createIdentity("other"))
+
+        assertEquals(2, resolver.identities().identities.size)
+        assertEquals(2, identityRepository.loads)
+    }
+
+    class CountingIdentityRepository : InMemoryIdentityRepository() {
+        var loads = 0
+
+        override fun findAll(): Identities {
+            loads++
+            return super.findAll()
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package de.qabel.core.crypto;
+
+import org.junit.Test;
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.util.encoders.Hex;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class AeadBackendTest {
+    private final KeyParameter key = new KeyParameter(Hex.decode("feffe9928665731c6d6a8f9467308308feffe9928665731c6d6a8f9467308308"));
+    private final byte[] nonce = Hex.decode("cafebabefacedbaddecaf888");
+    private final CryptoUtils spongy = new CryptoUtils(new SpongyCastleAeadBackend());
+    private final CryptoUtils jca = new CryptoUtils(AeadBackends.get(JcaAeadBackend.NAME));
+
+    @Test
+    public void backendsProduceIdenticalCiphertext() throws Exception {
+        byte[] plaintext = spongy.getRandomBytes(1000);
+        byte[] aad = spongy.getRandomBytes(64);
+
+        byte[] expected = spongy.encrypt(key, nonce, plaintext, aad);
+        assertArrayEquals(expected, jca.encrypt(key, nonce, plaintext, aad));
+        assertArrayEquals(plaintext, jca.decrypt(key, nonce, expected, aad));
+        assertArrayEquals(plaintext, spongy.decrypt(key, nonce, jca.encrypt(key, nonce, plaintext, aad), aad));
+    }
+
+    @Test(expected = InvalidCipherTextException.class)
+    public void jcaDetectsInvalidTag() throws Exception {
+        byte[] ciphertext = jca.encrypt(key, nonce, "plaintext".getBytes(), null);
+        ciphertext[0] ^= 0x01;
+        jca.decrypt(key, nonce, ciphertext, null);
+    }
+
+    @Test
+    public void streamEncryptionIsIdentical() throws Exception {
+        byte[] plaintext = spongy.getRandomBytes(100000);
+        spongy.setStreamBufferSize(4096);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        spongy.encryptStreamAuthenticatedSymmetric(new ByteArrayInputStream(plaintext), expected, key, nonce);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        jca.encryptStreamAuthenticatedSymmetric(new ByteArrayInputStream(plaintext), actual, key, nonce);
+
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    @Test
+    public void fileEncryptionWithDirectBuffersIsIdentical() throws Exception {
+        byte[] plaintext = spongy.getRandomBytes(100000);
+        File plainFile = File.createTempFile("plain", "txt");
+        File decrypted = File.createTempFile("plain", "dec");
+        try {
+            Files.write(plainFile.toPath(), plaintext);
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            spongy.encryptStreamAuthenticatedSymmetric(new ByteArrayInputStream(plaintext), expected, key, nonce);
+            for (CryptoUtils cu : new CryptoUtils[]{spongy, jca}) {
+                ByteArrayOutputStream actual = new ByteArrayOutputStream();
+                assertTrue(cu.encryptFileAuthenticatedSymmetric(plainFile, actual, key, nonce));
+                assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+            }
+
+            assertTrue(jca.decryptFileAuthenticatedSymmetricAndValidateTag(
+                new ByteArrayInputStream(expected.toByteArray()), decrypted, key));
+            assertArrayEquals(plaintext, Files.readAllBytes(decrypted.toPath()));
+        } finally {
+            plainFile.delete();
+            decrypted.delete();
+        }
+    }
+
+    @Test
+    public void chunkedEncryptionIsIdentical() throws Exception {
+        byte[] plaintext = spongy.getRandomBytes(10000);
+        byte[] noncePrefix = spongy.getRandomBytes(ChunkedAuthenticatedCipher.NONCE_PREFIX_SIZE_BYTE);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new ChunkedAuthenticatedCipher(new SpongyCastleAeadBackend())
+            .encrypt(new ByteArrayInputStream(plaintext), expected, key, noncePrefix, 1024);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        new ChunkedAuthenticatedCipher(new JcaAeadBackend())
+            .encrypt(new ByteArrayInputStream(plaintext), actual, key, noncePrefix, 1024);
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        new ChunkedAuthenticatedCipher(new JcaAeadBackend())
+            .decrypt(new ByteArrayInputStream(expected.toByteArray()), decrypted, key);
+        assertArrayEquals(plaintext, decrypted.toByteArray());
+    }
+
+    @Test
+    public void noiseBoxWorksAcrossBackends() throws Exception {
+        QblECKeyPair alice = new QblECKeyPair();
+        QblECKeyPair bob = new QblECKeyPair();
+        byte[] box = jca.createBox(alice, bob.getPub(), "n0i$e".getBytes(), 10);
+        assertEquals("n0i$e", new String(spongy.readBox(bob, box).getPlaintext()));
+    }
+
+    @Test
+    public void selectsBackendByName() {
+        assertEquals(SpongyCastleAeadBackend.NAME, AeadBackends.get("spongycastle").getName());
+        assertEquals(JcaAeadBackend.NAME, AeadBackends.get("jca").getName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownBackend() {
+        AeadBackends.get("rot13");
+    }
+}
@@ -7,9 +7,11 @@ import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.util.encoders.Hex;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.InvalidKeyException;
+import java.util.Arrays;
 
 import static org.junit.Assert.*;
 
@@ -118,6 +120,134 @@ public class CryptoUtilsTest {
         assertFalse(result);
     }
 
+    @Test
+    public void chunkedFileDecryptionTest() throws IOException, InvalidKeyException {
+        KeyParameter key = new KeyParameter(Hex.decode("feffe9928665731c6d6a8f9467308308feffe9928665731c6d6a8f9467308308"));
+        byte[] plaintext = cu.getRandomBytes(10000);
+        File testFileDec = new File(testFileName + ".dec");
+
+        ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+        assertTrue(cu.encryptStreamAuthenticatedSymmetricChunked(new ByteArrayInputStream(plaintext), cipherText, key, 1024));
+        assertEquals(ChunkedAuthenticatedCipher.ciphertextSize(plaintext.length, 1024), cipherText.size());
+
+        try {
+            assertTrue(cu.decryptFileAuthenticatedSymmetricAndValidateTag(
+                new ByteArrayInputStream(cipherText.toByteArray()), testFileDec, key));
+            assertArrayEquals(plaintext, Files.readAllBytes(testFileDec.toPath()));
+        } finally {
+            testFileDec.delete();
+        }
+    }
+
+    @Test
+    public void chunkedEmptyFileDecryptionTest() throws IOException, InvalidKeyException {
+        KeyParameter key = cu.generateSymmetricKey();
+        File testFileDec = new File(testFileName + ".dec");
+
+        ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+        assertTrue(cu.encryptStreamAuthenticatedSymmetricChunked(new ByteArrayInputStream(new byte[0]), cipherText, key, 1024));
+
+        try {
+            assertTrue(cu.decryptFileAuthenticatedSymmetricAndValidateTag(
+                new ByteArrayInputStream(cipherText.toByteArray()), testFileDec, key));
+            assertEquals(0, testFileDec.length());
+        } finally {
+            testFileDec.delete();
+        }
+    }
+
+    @Test
+    public void chunkedTruncationIsDetected() throws IOException, InvalidKeyException {
+        KeyParameter key = cu.generateSymmetricKey();
+        File testFileDec = new File(testFileName + ".dec");
+
+        ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+        cu.encryptStreamAuthenticatedSymmetricChunked(new ByteArrayInputStream(new byte[4096]), cipherText, key, 1024);
+        byte[] truncated = Arrays.copyOf(cipherText.toByteArray(),
+            ChunkedAuthenticatedCipher.HEADER_SIZE_BYTE + 2 * (1024 + ChunkedAuthenticatedCipher.TAG_SIZE_BYTE));
+
+        try {
+            assertFalse(cu.decryptFileAuthenticatedSymmetricAndValidateTag(
+                new ByteArrayInputStream(truncated), testFileDec, key));
+            assertEquals(0, testFileDec.length());
+        } finally {
+            testFileDec.delete();
+        }
+    }
+
+    @Test
+    public void chunkedFailingDecryptionTest() throws IOException, InvalidKeyException {
+        KeyParameter key = cu.generateSymmetricKey();
+        File testFileDec = new File(testFileName + ".dec");
+
+        ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+        cu.encryptStreamAuthenticatedSymmetricChunked(new ByteArrayInputStream(new byte[4096]), cipherText, key, 1024);
+        byte[] modified = cipherText.toByteArray();
+        modified[modified.length - 100] ^= 0x01;
+
+        try {
+            assertFalse(cu.decryptFileAuthenticatedSymmetricAndValidateTag(
+                new ByteArrayInputStream(modified), testFileDec, key));
+            assertEquals(0, testFileDec.length());
+        } finally {
+            testFileDec.delete();
+        }
+    }
+
+    @Test
+    public void chunkedOversizedChunkIsRejected() throws IOException, InvalidKeyException {
+        KeyParameter key = cu.generateSymmetricKey();
+        File testFileDec = new File(testFileName + ".dec");
+
+        ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+        cu.encryptStreamAuthenticatedSymmetricChunked(new ByteArrayInputStream(new byte[4096]), cipherText, key, 1024);
+        byte[] modified = cipherText.toByteArray();
+        ByteBuffer.wrap(modified, ChunkedAuthenticatedCipher.HEADER_SIZE_BYTE
+            - ChunkedAuthenticatedCipher.NONCE_PREFIX_SIZE_BYTE - 4, 4).putInt(Integer.MAX_VALUE);
+
+        try {
+            assertFalse(cu.decryptFileAuthenticatedSymmetricAndValidateTag(
+                new ByteArrayInputStream(modified), testFileDec, key));
+            assertEquals(0, testFileDec.length());
+        } finally {
+            testFileDec.delete();
+        }
+    }
+
+    @Test
+    public void chunkedRangeDecryptionTest() throws Exception {
+        KeyParameter key = cu.generateSymmetricKey();
+        byte[] plaintext = cu.getRandomBytes(5000);
+        File testFileEnc = new File(testFileName + ".enc");
+
+        try {
+            cu.encryptStreamAuthenticatedSymmetricChunked(new ByteArrayInputStream(plaintext),
+                new FileOutputStream(testFileEnc), key, 1024);
+
+            assertArrayEquals(Arrays.copyOfRange(plaintext, 1000, 3100),
+                cu.decryptRangeAuthenticatedSymmetric(testFileEnc, key, 1000, 2100));
+            assertArrayEquals(Arrays.copyOfRange(plaintext, 4096, 5000),
+                cu.decryptRangeAuthenticatedSymmetric(testFileEnc, key, 4096, 2000));
+            assertEquals(0, cu.decryptRangeAuthenticatedSymmetric(testFileEnc, key, 6000, 10).length);
+        } finally {
+            testFileEnc.delete();
+        }
+    }
+
+    @Test
+    public void chunkedEncryptionIsIndependentOfParallelism() throws Exception {
+        KeyParameter key = cu.generateSymmetricKey();
+        byte[] plaintext = cu.getRandomBytes(10000);
+        byte[] noncePrefix = cu.getRandomBytes(ChunkedAuthenticatedCipher.NONCE_PREFIX_SIZE_BYTE);
+
+        ByteArrayOutputStream serial = new ByteArrayOutputStream();
+        new ChunkedAuthenticatedCipher(null, 1).encrypt(new ByteArrayInputStream(plaintext), serial, key, noncePrefix, 1000);
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        new ChunkedAuthenticatedCipher().encrypt(new ByteArrayInputStream(plaintext), parallel, key, noncePrefix, 1000);
+
+        assertArrayEquals(serial.toByteArray(), parallel.toByteArray());
+    }
+
     /**
      * Test data from "Cryptography in NaCl" paper (http://cr.yp.to/highspeed/naclcrypto-20090310.pdf)
      */
@@ -234,4 +364,106 @@ public class CryptoUtilsTest {
 
         assertArrayEquals(expectedPlainText, plainText);
     }
+
+    @Test
+    public void sharedInstanceWorksAcrossThreads() throws Exception {
+        final CryptoUtils shared = CryptoUtils.getInstance();
+        assertSame(shared, CryptoUtils.getInstance());
+        final QblECKeyPair bob = new QblECKeyPair();
+        final byte[][] boxes = new byte[4][];
+        Thread[] threads = new Thread[boxes.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        boxes[index] = shared.createBox(new QblECKeyPair(), bob.getPub(), ("box" + index).getBytes(), 5);
+                    } catch (InvalidKeyException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertEquals("box" + i, new String(shared.readBox(bob, boxes[i]).getPlaintext()));
+        }
+    }
+
+    @Test
+    public void largeRandomRequests() {
+        byte[] random = cu.getRandomBytes(100000);
+        assertEquals(100000, random.length);
+        assertFalse(Arrays.equals(Arrays.copyOfRange(random, 0, 32768), Arrays.copyOfRange(random, 32768, 65536)));
+    }
+
+    @Test
+    public void decryptsSmallPlaintextInMemory() throws Exception {
+        KeyParameter key = cu.generateSymmetricKey();
+        byte[] plaintext = cu.getRandomBytes(50000);
+        File spillDir = Files.createTempDirectory("spill").toFile();
+        ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+        cu.encryptStreamAuthenticatedSymmetric(new ByteArrayInputStream(plaintext), cipherText, key, null);
+
+        DecryptedBuffer buffer = cu.decryptAuthenticatedSymmetric(
+            new ByteArrayInputStream(cipherText.toByteArray()), key, spillDir);
+        assertTrue(buffer.isInMemory());
+        assertEquals(plaintext.length, buffer.size());
+        assertEquals(0, spillDir.list().length);
+        try (InputStream input = buffer.getInputStream()) {
+            assertArrayEquals(plaintext, readAll(input));
+        }
+        spillDir.delete();
+    }
+
+    @Test
+    public void spillsLargePlaintextToDisk() throws Exception {
+        KeyParameter key = cu.generateSymmetricKey();
+        byte[] plaintext = cu.getRandomBytes(50000);
+        File spillDir = Files.createTempDirectory("spill").toFile();
+        ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+        cu.encryptStreamAuthenticatedSymmetricChunked(new ByteArrayInputStream(plaintext), cipherText, key, 1024);
+
+        DecryptedBuffer buffer = cu.decryptAuthenticatedSymmetric(
+            new ByteArrayInputStream(cipherText.toByteArray()), key, spillDir, 20000);
+        assertFalse(buffer.isInMemory());
+        assertEquals(1, spillDir.list().length);
+        File target = new File(spillDir, "target");
+        buffer.writeTo(target);
+
+        assertArrayEquals(plaintext, Files.readAllBytes(target.toPath()));
+        assertTrue(target.delete());
+        assertEquals(0, spillDir.list().length);
+        spillDir.delete();
+    }
+
+    @Test
+    public void decryptionIntoBufferFailsOnInvalidTag() throws Exception {
+        KeyParameter key = cu.generateSymmetricKey();
+        File spillDir = Files.createTempDirectory("spill").toFile();
+        ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+        cu.encryptStreamAuthenticatedSymmetric(new ByteArrayInputStream(new byte[50000]), cipherText, key, null);
+        byte[] modified = cipherText.toByteArray();
+        modified[modified.length - 1] ^= 0x01;
+
+        try {
+            cu.decryptAuthenticatedSymmetric(new ByteArrayInputStream(modified), key, spillDir, 1000);
+            fail("modified ciphertext was accepted");
+        } catch (InvalidCipherTextException ignored) {
+        }
+        assertEquals(0, spillDir.list().length);
+        spillDir.delete();
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int read;
+        while ((read = input.read(buffer)) > 0) {
+            result.write(buffer, 0, read);
+        }
+        return result.toByteArray();
+    }
 }
@@ -2,7 +2,14 @@ package de.qabel.core.crypto;
 
 import org.junit.Test;
 
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class Curve25519Test {
 
@@ -35,4 +42,65 @@ public class Curve25519Test {
         alicepk = curve.cryptoScalarmultBase(alicesk);
         assertArrayEquals(alicepk, expectedpk);
     }
+
+    @Test
+    public void usesNativeLibraryOfTheBuild() {
+        assertTrue(Curve25519.isNativeAvailable());
+        assertTrue(Curve25519.isNativeBatchAvailable());
+    }
+
+    @Test
+    public void javaImplementationMatchesTestVector() {
+        assertArrayEquals(expectedpk, JavaCurve25519.scalarmultBase(alicesk));
+    }
+
+    @Test
+    public void javaImplementationMatchesNative() {
+        Curve25519 curve = new Curve25519();
+        SecureRandom random = new SecureRandom();
+        for (int i = 0; i < 20; i++) {
+            byte[] n = new byte[32];
+            byte[] p = new byte[32];
+            random.nextBytes(n);
+            random.nextBytes(p);
+            assertArrayEquals(curve.cryptoScalarmult(n, p), JavaCurve25519.scalarmult(n, p));
+            assertArrayEquals(curve.cryptoScalarmultBase(n), JavaCurve25519.scalarmultBase(n));
+        }
+    }
+
+    @Test
+    public void batchMatchesSingleCalls() {
+        Curve25519 curve = new Curve25519();
+        SecureRandom random = new SecureRandom();
+        List<byte[]> scalars = new ArrayList<>();
+        List<byte[]> points = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            byte[] n = new byte[32];
+            random.nextBytes(n);
+            scalars.add(n);
+            points.add(curve.cryptoScalarmultBase(n));
+        }
+        scalars.set(0, alicesk);
+
+        List<byte[]> publicKeys = curve.cryptoScalarmultBaseBatch(scalars);
+        List<byte[]> secrets = curve.cryptoScalarmultBatch(scalars, points);
+
+        assertEquals(10, publicKeys.size());
+        assertArrayEquals(expectedpk, publicKeys.get(0));
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(curve.cryptoScalarmultBase(scalars.get(i)), publicKeys.get(i));
+            assertArrayEquals(curve.cryptoScalarmult(scalars.get(i), points.get(i)), secrets.get(i));
+        }
+    }
+
+    @Test
+    public void emptyBatch() {
+        Curve25519 curve = new Curve25519();
+        assertEquals(0, curve.cryptoScalarmultBaseBatch(new ArrayList<byte[]>()).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batchRejectsUnequalCounts() {
+        new Curve25519().cryptoScalarmultBatch(Arrays.asList(alicesk, alicesk), Arrays.asList(expectedpk));
+    }
 }
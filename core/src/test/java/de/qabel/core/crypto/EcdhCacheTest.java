@@ -0,0 +1,63 @@
+package de.qabel.core.crypto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EcdhCacheTest {
+    private final EcdhCache cache = new EcdhCache(2);
+    private final QblECKeyPair alice = new QblECKeyPair();
+    private final QblECKeyPair bob = new QblECKeyPair();
+    private final QblECKeyPair carol = new QblECKeyPair();
+
+    @Test
+    public void cachesSecrets() {
+        byte[] expected = alice.ECDH(bob.getPub());
+
+        assertArrayEquals(expected, cache.ecdh(alice, bob.getPub()));
+        assertArrayEquals(expected, cache.ecdh(alice, bob.getPub()));
+
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void returnsCopies() {
+        cache.ecdh(alice, bob.getPub())[0] ^= 0x01;
+        assertArrayEquals(alice.ECDH(bob.getPub()), cache.ecdh(alice, bob.getPub()));
+    }
+
+    @Test
+    public void isBounded() {
+        cache.ecdh(alice, bob.getPub());
+        cache.ecdh(alice, carol.getPub());
+        cache.ecdh(bob, carol.getPub());
+
+        assertEquals(2, cache.size());
+        cache.ecdh(alice, bob.getPub());
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void invalidatesOwnAndPeerKeys() {
+        cache.ecdh(alice, bob.getPub());
+        cache.ecdh(bob, alice.getPub());
+
+        cache.invalidate(alice.getPub());
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void noiseBoxUsesCache() throws Exception {
+        CryptoUtils cu = new CryptoUtils(AeadBackends.getDefault(), cache);
+
+        byte[] box = cu.createBox(alice, bob.getPub(), "n0i$e".getBytes(), 0);
+        DecryptedPlaintext plaintext = cu.readBox(bob, box);
+        cu.readBox(bob, box);
+
+        assertEquals("n0i$e", new String(plaintext.getPlaintext()));
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+}
@@ -0,0 +1,171 @@
+package de.qabel.core.crypto;
+
+import org.junit.Test;
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.util.encoders.Hex;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NoiseBoxEngineTest {
+    private final QblECKeyPair alice = new QblECKeyPair();
+    private final QblECKeyPair bob = new QblECKeyPair();
+    private final NoiseBoxEngine spongy = new NoiseBoxEngine(new SpongyCastleAeadBackend(), new EcdhCache(10));
+    private final NoiseBoxEngine jca = new NoiseBoxEngine(AeadBackends.get(JcaAeadBackend.NAME), new EcdhCache(10));
+
+    @Test
+    public void roundTripWithOffsets() throws Exception {
+        byte[] appData = "n0i$e".getBytes();
+        byte[] buffer = new byte[10 + NoiseBoxEngine.boxSize(appData.length, 20)];
+        ByteBuffer out = ByteBuffer.wrap(buffer, 10, buffer.length - 10);
+
+        int size = spongy.createBox(alice, bob.getPub(), ByteBuffer.wrap(appData), 20, out);
+        assertEquals(buffer.length - 10, size);
+        assertEquals(buffer.length, out.position());
+
+        ByteBuffer plaintext = ByteBuffer.allocate(5 + NoiseBoxEngine.readBufferSize(size));
+        plaintext.position(5);
+        QblECPublicKey sender = spongy.readBox(bob, ByteBuffer.wrap(buffer, 10, size), plaintext);
+        assertEquals(alice.getPub(), sender);
+        assertEquals(10, plaintext.position());
+        assertArrayEquals(appData, Arrays.copyOfRange(plaintext.array(), 5, 10));
+    }
+
+    @Test
+    public void directBuffersAcrossBackends() throws Exception {
+        byte[] appData = new CryptoUtils().getRandomBytes(2048);
+        ByteBuffer input = ByteBuffer.allocateDirect(appData.length);
+        input.put(appData).flip();
+        ByteBuffer box = ByteBuffer.allocateDirect(NoiseBoxEngine.boxSize(appData.length, 0));
+
+        jca.createBox(alice, bob.getPub(), input, 0, box);
+        box.flip();
+
+        ByteBuffer plaintext = ByteBuffer.allocateDirect(NoiseBoxEngine.readBufferSize(box.remaining()));
+        assertEquals(alice.getPub(), spongy.readBox(bob, box, plaintext));
+        plaintext.flip();
+        byte[] result = new byte[plaintext.remaining()];
+        plaintext.get(result);
+        assertArrayEquals(appData, result);
+    }
+
+    @Test
+    public void readsBoxesOfCryptoUtils() throws Exception {
+        byte[] box = new CryptoUtils().createBox(alice, bob.getPub(), "n0i$e".getBytes(), 3);
+        for (NoiseBoxEngine engine : new NoiseBoxEngine[]{spongy, jca, spongy}) {
+            ByteBuffer plaintext = ByteBuffer.allocate(NoiseBoxEngine.readBufferSize(box.length));
+            engine.readBox(bob, ByteBuffer.wrap(box), plaintext);
+            assertEquals("n0i$e", new String(plaintext.array(), 0, plaintext.position()));
+        }
+    }
+
+    @Test
+    public void noiseBoxFromGoImplementation() throws Exception {
+        byte[] box = Hex.decode("539edb6df8541fb8e56c97c6a8cd061fe1c6c874a374d8501f8a285ed5ec092244178f74e77071918e3f2c3e3d2a256916c33a85f409844bbd1b749719b2f2e71e210f763928d856479e7078cb0413e1e25f3e6685caaee9d10b2a0756d7c1769ccad1ee13bcbaf1186cec727a94b01e2be042da07");
+        QblECKeyPair bobKey = new QblECKeyPair(Hex.decode("782e3b1ea317f7f808e1156d1282b4e7d0e60e4b7c0f205a5ce804f0a1a3a155"));
+        ByteBuffer plaintext = ByteBuffer.allocate(NoiseBoxEngine.readBufferSize(box.length));
+        jca.readBox(bobKey, ByteBuffer.wrap(box), plaintext);
+        assertEquals("yellow submarines", new String(plaintext.array(), 0, plaintext.position()));
+    }
+
+    @Test
+    public void invalidBoxLeavesNoPlaintext() throws Exception {
+        byte[] appData = "secret plaintext".getBytes();
+        byte[] box = new byte[NoiseBoxEngine.boxSize(appData.length, 0)];
+        spongy.createBox(alice, bob.getPub(), ByteBuffer.wrap(appData), 0, ByteBuffer.wrap(box));
+        box[box.length - 1] ^= 0x01;
+
+        ByteBuffer plaintext = ByteBuffer.allocate(NoiseBoxEngine.readBufferSize(box.length));
+        try {
+            spongy.readBox(bob, ByteBuffer.wrap(box), plaintext);
+            fail("tampered box was accepted");
+        } catch (InvalidCipherTextException ignored) {
+        }
+        assertEquals(0, plaintext.position());
+        assertArrayEquals(new byte[plaintext.capacity()], plaintext.array());
+    }
+
+    @Test(expected = InvalidCipherTextException.class)
+    public void wrongRecipient() throws Exception {
+        byte[] box = new CryptoUtils().createBox(alice, bob.getPub(), "n0i$e".getBytes(), 0);
+        jca.readBox(new QblECKeyPair(), ByteBuffer.wrap(box), ByteBuffer.allocate(box.length));
+    }
+
+    @Test
+    public void taggedBoxMatchesOnlyRecipient() throws Exception {
+        byte[] appData = "n0i$e".getBytes();
+        byte[] taggedBox = new byte[NoiseBoxEngine.taggedBoxSize(appData.length, 0)];
+        int size = spongy.createTaggedBox(alice, bob.getPub(), ByteBuffer.wrap(appData), 0, ByteBuffer.wrap(taggedBox));
+        assertEquals(taggedBox.length, size);
+
+        ByteBuffer tagged = ByteBuffer.wrap(taggedBox);
+        assertTrue(jca.hasRecipientTag(bob, tagged));
+        assertEquals(0, tagged.position());
+        assertFalse(jca.hasRecipientTag(alice, tagged));
+        assertFalse(jca.hasRecipientTag(new QblECKeyPair(), tagged));
+
+        int boxSize = taggedBox.length - NoiseBoxEngine.RECIPIENT_TAG_BYTE;
+        ByteBuffer plaintext = ByteBuffer.allocate(NoiseBoxEngine.readBufferSize(boxSize));
+        jca.readBox(bob, ByteBuffer.wrap(taggedBox, NoiseBoxEngine.RECIPIENT_TAG_BYTE, boxSize), plaintext);
+        assertEquals("n0i$e", new String(plaintext.array(), 0, plaintext.position()));
+    }
+
+    @Test
+    public void readsTaggedBoxOnlyForRecipient() throws Exception {
+        byte[] taggedBox = new byte[NoiseBoxEngine.taggedBoxSize(5, 3)];
+        spongy.createTaggedBox(alice, bob.getPub(), ByteBuffer.wrap("n0i$e".getBytes()), 3, ByteBuffer.wrap(taggedBox));
+        int boxSize = taggedBox.length - NoiseBoxEngine.RECIPIENT_TAG_BYTE;
+
+        ByteBuffer tagged = ByteBuffer.wrap(taggedBox);
+        assertNull(jca.readTaggedBox(alice, tagged, ByteBuffer.allocate(NoiseBoxEngine.readBufferSize(boxSize))));
+        assertNull(jca.readTaggedBox(new QblECKeyPair(), tagged, ByteBuffer.allocate(NoiseBoxEngine.readBufferSize(boxSize))));
+        assertEquals(0, tagged.position());
+
+        ByteBuffer plaintext = ByteBuffer.allocate(NoiseBoxEngine.readBufferSize(boxSize));
+        QblECPublicKey sender = jca.readTaggedBox(bob, tagged, plaintext);
+        assertEquals(alice.getPub(), sender);
+        assertEquals("n0i$e", new String(plaintext.array(), 0, plaintext.position()));
+        assertFalse(tagged.hasRemaining());
+    }
+
+    @Test
+    public void readsTaggedBoxesWithBatchedSecrets() throws Exception {
+        List<byte[]> taggedBoxes = new ArrayList<>();
+        List<QblECPublicKey> ephemeralKeys = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            byte[] taggedBox = new byte[NoiseBoxEngine.taggedBoxSize(6, 0)];
+            spongy.createTaggedBox(alice, bob.getPub(), ByteBuffer.wrap(("n0i$e" + i).getBytes()), 0,
+                ByteBuffer.wrap(taggedBox));
+            taggedBoxes.add(taggedBox);
+            ephemeralKeys.add(NoiseBoxEngine.ephemeralKey(ByteBuffer.wrap(taggedBox)));
+        }
+        List<byte[]> secrets = bob.ECDH(ephemeralKeys);
+        int boxSize = taggedBoxes.get(0).length - NoiseBoxEngine.RECIPIENT_TAG_BYTE;
+
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer plaintext = ByteBuffer.allocate(NoiseBoxEngine.readBufferSize(boxSize));
+            assertEquals(alice.getPub(), jca.readTaggedBox(bob, secrets.get(i), ByteBuffer.wrap(taggedBoxes.get(i)),
+                plaintext));
+            assertEquals("n0i$e" + i, new String(plaintext.array(), 0, plaintext.position()));
+        }
+        assertNull(jca.readTaggedBox(bob, secrets.get(1), ByteBuffer.wrap(taggedBoxes.get(0)),
+            ByteBuffer.allocate(NoiseBoxEngine.readBufferSize(boxSize))));
+    }
+
+    @Test
+    public void tamperedTagDoesNotMatch() throws Exception {
+        byte[] taggedBox = new byte[NoiseBoxEngine.taggedBoxSize(5, 0)];
+        spongy.createTaggedBox(alice, bob.getPub(), ByteBuffer.wrap("n0i$e".getBytes()), 0, ByteBuffer.wrap(taggedBox));
+        taggedBox[0] ^= 0x01;
+        assertFalse(spongy.hasRecipientTag(bob, ByteBuffer.wrap(taggedBox)));
+    }
+
+    @Test(expected = InvalidCipherTextException.class)
+    public void tooShortBox() throws Exception {
+        spongy.readBox(bob, ByteBuffer.allocate(NoiseBoxEngine.OVERHEAD_BYTE - 1), ByteBuffer.allocate(100));
+    }
+}
@@ -3,7 +3,12 @@ package de.qabel.core.drop
 import de.qabel.core.config.Identities
 import de.qabel.core.config.IdentityTestFactory
 import de.qabel.core.crypto.BinaryDropMessageV0
+import de.qabel.core.crypto.BinaryDropMessageV1
+import de.qabel.core.exceptions.QblDropInvalidMessageSizeException
+import de.qabel.core.exceptions.QblDropParseException
+import de.qabel.core.exceptions.QblUnkownVersionException
 import org.junit.Test
+import java.util.concurrent.ForkJoinPool
 
 import org.junit.Assert.*
 
@@ -23,4 +28,112 @@ class DefaultDropParserTest {
         assertEquals(dropMessage.dropPayload, parsedMessage.dropPayload)
     }
 
+    @Test
+    fun parseAllKeepsOrder() {
+        val sender = IdentityTestFactory().create()
+        val receiver = IdentityTestFactory().create()
+        val otherReceiver = IdentityTestFactory().create()
+        val stranger = IdentityTestFactory().create()
+        val messages = (0..9).map {
+            val recipient = if (it % 3 == 0) stranger else if (it % 2 == 0) receiver else otherReceiver
+            BinaryDropMessageV0(DropMessage(sender, "payload $it", "text"))
+                .assembleMessageFor(recipient.toContact(), sender)
+        }
+
+        val results = DefaultDropParser().parseAll(messages,
+            Identities().apply { put(receiver); put(otherReceiver) })
+
+        assertEquals(10, results.size)
+        results.forEachIndexed { i, result ->
+            if (i % 3 == 0) {
+                assertTrue((result as DropParseResult.Failure).error is QblDropParseException)
+            } else {
+                val success = result as DropParseResult.Success
+                assertEquals("payload $i", success.message.dropPayload)
+                val expected = if (i % 2 == 0) receiver else otherReceiver
+                assertEquals(expected.keyIdentifier, success.identity.keyIdentifier)
+            }
+        }
+    }
+
+    @Test
+    fun parseTaggedMessage() {
+        val sender = IdentityTestFactory().create()
+        val receiver = IdentityTestFactory().create()
+        val otherReceiver = IdentityTestFactory().create()
+        val msg = BinaryDropMessageV1(DropMessage(sender, "payload", "text"))
+            .assembleMessageFor(receiver.toContact(), sender)
+        assertEquals(1.toByte(), msg[0])
+
+        val (identity, parsedMessage) = DefaultDropParser().parse(msg,
+            Identities().apply { put(otherReceiver); put(receiver) })
+        assertEquals(receiver.keyIdentifier, identity.keyIdentifier)
+        assertEquals("payload", parsedMessage.dropPayload)
+    }
+
+    @Test
+    fun taggedMessageIsOnlyForTaggedRecipient() {
+        val sender = IdentityTestFactory().create()
+        val receiver = IdentityTestFactory().create()
+        val stranger = IdentityTestFactory().create()
+        val msg = BinaryDropMessageV1(DropMessage(sender, "payload", "text"))
+            .assembleMessageFor(receiver.toContact(), sender)
+
+        assertTrue(BinaryDropMessageV1(msg).isTaggedFor(receiver))
+        assertFalse(BinaryDropMessageV1(msg).isTaggedFor(stranger))
+        val result = DefaultDropParser().parseAll(listOf(msg), Identities().apply { put(stranger) }).single()
+        assertTrue((result as DropParseResult.Failure).error is QblDropParseException)
+    }
+
+    @Test
+    fun parseAllMixedVersions() {
+        val sender = IdentityTestFactory().create()
+        val receiver = IdentityTestFactory().create()
+        val messages = listOf(
+            BinaryDropMessageV0(DropMessage(sender, "v0", "text")).assembleMessageFor(receiver.toContact(), sender),
+            BinaryDropMessageV1(DropMessage(sender, "v1", "text")).assembleMessageFor(receiver.toContact(), sender))
+
+        val results = DefaultDropParser().parseAll(messages, Identities().apply { put(receiver) })
+
+        assertEquals(listOf("v0", "v1"), results.map { (it as DropParseResult.Success).message.dropPayload })
+    }
+
+    @Test
+    fun parseAllTaggedMessagesInBatches() {
+        val sender = IdentityTestFactory().create()
+        val receiver = IdentityTestFactory().create()
+        val otherReceiver = IdentityTestFactory().create()
+        val messages = (0..39).map {
+            val recipient = if (it % 2 == 0) receiver else otherReceiver
+            val message = DropMessage(sender, "payload $it", "text")
+            when (it % 5) {
+                0 -> BinaryDropMessageV0(message).assembleMessageFor(recipient.toContact(), sender)
+                1 -> ByteArray(10).apply { this[0] = 1 }
+                else -> BinaryDropMessageV1(message).assembleMessageFor(recipient.toContact(), sender)
+            }
+        }
+
+        val results = DefaultDropParser(ForkJoinPool(1)).parseAll(messages,
+            Identities().apply { put(receiver); put(otherReceiver) })
+
+        assertEquals(40, results.size)
+        results.forEachIndexed { i, result ->
+            if (i % 5 == 1) {
+                assertTrue((result as DropParseResult.Failure).error is QblDropInvalidMessageSizeException)
+            } else {
+                val success = result as DropParseResult.Success
+                assertEquals("payload $i", success.message.dropPayload)
+                val expected = if (i % 2 == 0) receiver else otherReceiver
+                assertEquals(expected.keyIdentifier, success.identity.keyIdentifier)
+            }
+        }
+    }
+
+    @Test
+    fun parseAllReportsUnknownVersions() {
+        val message = ByteArray(2149).apply { this[0] = 42 }
+        val results = DefaultDropParser().parseAll(listOf(message), Identities())
+        assertTrue((results.single() as DropParseResult.Failure).error is QblUnkownVersionException)
+    }
+
 }
@@ -0,0 +1,103 @@
+package de.qabel.core.drop
+
+import com.google.gson.JsonParseException
+import de.qabel.core.config.Contact
+import de.qabel.core.config.Identity
+import de.qabel.core.config.factory.DropUrlGenerator
+import de.qabel.core.crypto.QblECKeyPair
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+
+class DropMessageCodecTest {
+
+    private val dropUrl = DropUrlGenerator("http://drop.qabel.de").generateUrl()
+    private val bernd = Identity("Bernd", listOf(dropUrl), QblECKeyPair()).apply {
+        email = "bernd@example.com"
+        phone = "+49 123"
+    }
+    private val gson = DropMessageGson.create()
+
+    private fun gsonJson(message: DropMessage) = gson.toJson(message)
+
+    private fun codecJson(message: DropMessage) = String(DropMessageCodec.encode(message), Charsets.UTF_8)
+
+    @Test
+    fun encodesLikeGson() {
+        val message = DropMessage(bernd, "{\"msg\": \"hello\"}", "box_message")
+        assertEquals(gsonJson(message), codecJson(message))
+    }
+
+    @Test
+    fun encodesMetadataLikeGson() {
+        val message = DropMessage(bernd, "payload", "box_message").apply {
+            dropMessageMetadata = DropMessageMetadata(bernd)
+        }
+        assertEquals(gsonJson(message), codecJson(message))
+    }
+
+    @Test
+    fun encodesSpecialCharactersLikeGson() {
+        val message = DropMessage(bernd, "<a href='x'>&amp;</a> = \"\\\n\t  äöü 😀", "type\u0000").apply {
+            dropMessageMetadata = DropMessageMetadata("<Bernd & \"Co\">", bernd.ecPublicKey, dropUrl, "", "")
+        }
+        assertEquals(gsonJson(message), codecJson(message))
+    }
+
+    @Test
+    fun encodesWithoutPayloadLikeGson() {
+        val contact = Contact("Bernd", listOf(dropUrl), QblECKeyPair().pub)
+        val message = DropMessage(contact, null, "box_message")
+        assertEquals(gsonJson(message), codecJson(message))
+    }
+
+    @Test
+    fun decodesPaddedPlaintext() {
+        val message = DropMessage(bernd, "payload äöü", "box_message").apply {
+            dropMessageMetadata = DropMessageMetadata(bernd)
+        }
+        val plaintext = Arrays.copyOf(DropMessageCodec.encode(message), 2048)
+
+        val decoded = DropMessageCodec.decode(plaintext)
+
+        assertEquals(message.senderKeyId, decoded.senderKeyId)
+        assertEquals(message.dropPayload, decoded.dropPayload)
+        assertEquals(message.dropPayloadType, decoded.dropPayloadType)
+        assertEquals(message.creationDate, decoded.creationDate)
+        assertEquals(DropMessage.NOACK, decoded.acknowledgeID)
+        assertEquals(message.dropMessageMetadata, decoded.dropMessageMetadata)
+    }
+
+    @Test
+    fun decodesLikeGson() {
+        val json = "{\"version\":1,\"time_stamp\":\"1234\",\"sender\":\"abc\",\"drop_payload\":\"p\"," +
+            "\"drop_payload_type\":\"t\",\"unknown\":{\"a\":[1,2]},\"meta_data\":null}"
+
+        val decoded = DropMessageCodec.decode(json.toByteArray())
+        val expected = gson.fromJson(json, DropMessage::class.java)
+
+        assertEquals(expected.creationDate, decoded.creationDate)
+        assertEquals(expected.senderKeyId, decoded.senderKeyId)
+        assertEquals(expected.dropPayload, decoded.dropPayload)
+        assertEquals(expected.dropPayloadType, decoded.dropPayloadType)
+        assertNull(decoded.dropMessageMetadata)
+    }
+
+    @Test
+    fun rejectsInvalidMessages() {
+        val valid = "\"time_stamp\":1,\"sender\":\"abc\",\"drop_payload\":\"p\",\"drop_payload_type\":\"t\""
+        listOf("{\"version\":2,$valid}",
+            "{\"version\":1,$valid}}",
+            "{\"version\":1,\"time_stamp\":\"asdf\",\"sender\":\"abc\",\"drop_payload\":\"p\",\"drop_payload_type\":\"t\"}",
+            "{\"version\":1,\"time_stamp\":1,\"drop_payload\":\"p\",\"drop_payload_type\":\"t\"}",
+            "{\"version\":1,$valid,\"meta_data\":{\"alias\":\"a\"}}",
+            "[]",
+            "").forEach {
+            try {
+                DropMessageCodec.decode(it.toByteArray())
+                fail("Decoded invalid message $it")
+            } catch (expected: JsonParseException) {
+            }
+        }
+    }
+}
@@ -4,9 +4,9 @@ import de.qabel.core.config.Contact;
 import de.qabel.core.config.Identity;
 import de.qabel.core.config.factory.DropUrlGenerator;
 import de.qabel.core.crypto.QblECKeyPair;
+import org.junit.Before;
 import org.junit.Test;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 
 import static org.junit.Assert.assertEquals;
@@ -20,20 +20,42 @@ public class DropMessageCryptorUtilTest {
     private static final String RECIPIENT = "Recipient";
     private static final String RECIPIENT_CONTACT = "Recipient Contact";
 
-    @Test
-    public void encryptDecryptDropMessageTest() throws Exception {
+    private Identity senderIdentity;
+    private Identity recipient;
+    private Contact recipientContact;
+
+    @Before
+    public void setUp() throws Exception {
         DropUrlGenerator dropUrlGenerator = new DropUrlGenerator("http://drop.qabel.de//");
         QblECKeyPair senderKey = new QblECKeyPair();
-        Identity senderIdentity = new Identity(SENDER, Arrays.asList(dropUrlGenerator.generateUrl()), senderKey);
+        senderIdentity = new Identity(SENDER, Arrays.asList(dropUrlGenerator.generateUrl()), senderKey);
 
         QblECKeyPair recipientKey = new QblECKeyPair();
-        Identity recipient = new Identity(RECIPIENT, Arrays.asList(dropUrlGenerator.generateUrl()), recipientKey);
+        recipient = new Identity(RECIPIENT, Arrays.asList(dropUrlGenerator.generateUrl()), recipientKey);
 
-        Contact recipientContact = new Contact(RECIPIENT_CONTACT, null, recipientKey.getPub());
+        recipientContact = new Contact(RECIPIENT_CONTACT, null, recipientKey.getPub());
+    }
 
+    @Test
+    public void encryptDecryptDropMessageTest() throws Exception {
         byte[] encryptedDropMessage = DropMessageCryptorUtil
             .createEncryptedDropMessage(DROP_MESSAGE_PAYLOAD, DROP_MESSAGE_PAYLOAD_TYPE, senderIdentity, recipientContact);
 
+        assertEquals(0, encryptedDropMessage[0]);
+        assertDecrypts(encryptedDropMessage);
+    }
+
+    @Test
+    public void encryptDecryptVersion1DropMessage() throws Exception {
+        byte[] encryptedDropMessage = DropMessageCryptorUtil
+            .createEncryptedDropMessage(DROP_MESSAGE_PAYLOAD, DROP_MESSAGE_PAYLOAD_TYPE, senderIdentity,
+                recipientContact, 1);
+
+        assertEquals(1, encryptedDropMessage[0]);
+        assertDecrypts(encryptedDropMessage);
+    }
+
+    private void assertDecrypts(byte[] encryptedDropMessage) throws Exception {
         DropMessage decryptedDropMessage = DropMessageCryptorUtil
             .decryptDropMessage(recipient, encryptedDropMessage);
 
@@ -0,0 +1,206 @@
+package de.qabel.core.drop
+
+import de.qabel.core.config.Contact
+import de.qabel.core.config.Identity
+import de.qabel.core.config.factory.DropUrlGenerator
+import de.qabel.core.drop.http.DropServerHttp
+import de.qabel.core.extensions.CoreTestCase
+import de.qabel.core.extensions.createIdentity
+import de.qabel.core.repository.entities.DropState
+import de.qabel.core.repository.inmemory.InMemoryDropStateRepository
+import org.junit.Assert.*
+import org.junit.Test
+import rx.Observable
+import rx.schedulers.Schedulers
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+class DropPollerTest : CoreTestCase {
+
+    private val serverA = DropUrlGenerator("http://drop-a.example")
+    private val serverB = DropUrlGenerator("http://drop-b.example")
+    private val identity: Identity = createIdentity("poller")
+    private val connector = FakeDropConnector()
+    private val stateRepository = CountingDropStateRepository()
+    private var now = 1000L
+    private val poller = DropPoller(connector, stateRepository, 2, 100, 1000, { now })
+
+    @Test
+    fun pollsAllDropsAndSavesStatesOnce() {
+        val drops = (0 until 3).map { Pair(identity, serverA.generateUrl()) } +
+            (0 until 3).map { Pair(identity, serverB.generateUrl()) }
+        drops.forEach { connector.messages[it.second] = listOf("${it.second}/1", "${it.second}/2") }
+
+        val received = poller.poll(drops, false) { identity, message -> message.dropPayload }
+            .toList().toBlocking().single()
+
+        assertEquals(drops.flatMap { listOf("${it.second}/1", "${it.second}/2") }.sorted(), received.sorted())
+        assertEquals(1, stateRepository.batches)
+        drops.forEach { assertEquals("etag1", stateRepository.getDropState(it.second).eTag) }
+    }
+
+    @Test
+    fun handlesEachDropResponseAsBatch() {
+        val full = serverA.generateUrl()
+        val empty = serverB.generateUrl()
+        connector.messages[full] = listOf("1", "2", "3")
+
+        val batches = poller.pollBatches(listOf(Pair(identity, full), Pair(identity, empty)), false) { identity, messages ->
+            messages.map { it.dropPayload }
+        }.toList().toBlocking().single()
+
+        assertEquals(listOf(listOf("1", "2", "3")), batches)
+        assertEquals(1, stateRepository.batches)
+        assertEquals("etag1", stateRepository.getDropState(empty).eTag)
+    }
+
+    @Test
+    fun passesEncryptedMessagesWithDropState() {
+        val dropUrl = serverA.generateUrl()
+        connector.messages[dropUrl] = listOf("1", "2")
+
+        val eTags = poller.pollEncrypted(listOf(Pair(identity, dropUrl)), false) { identity, url, dropState, messages ->
+            assertEquals(dropUrl, url)
+            assertEquals(listOf("1", "2"), messages.map { String(it) })
+            dropState.eTag
+        }.toList().toBlocking().single()
+
+        assertEquals(listOf("etag1"), eTags)
+    }
+
+    @Test
+    fun limitsConcurrentPollsPerServer() {
+        val drops = (0 until 8).map { Pair(identity, serverA.generateUrl()) } +
+            (0 until 8).map { Pair(identity, serverB.generateUrl()) }
+        connector.delayMillis = 50
+
+        poller.poll(drops, false) { identity, message -> message }.toBlocking().lastOrDefault(null)
+
+        assertEquals(16, connector.polls.get())
+        assertEquals(2, connector.maxConcurrent["drop-a.example"]!!.get())
+        assertEquals(2, connector.maxConcurrent["drop-b.example"]!!.get())
+    }
+
+    @Test
+    fun adaptsIntervalToChanges() {
+        val quiet = serverA.generateUrl()
+        val hot = serverA.generateUrl()
+        val drops = listOf(Pair(identity, quiet), Pair(identity, hot))
+
+        poller.poll(drops, true) { identity, message -> message }.toBlocking().lastOrDefault(null)
+        assertEquals(100, poller.intervalMillis(hot))
+        assertEquals(100, poller.intervalMillis(quiet))
+
+        connector.changes[hot] = 1
+        poller.poll(drops, true) { identity, message -> message }.toBlocking().lastOrDefault(null)
+        assertEquals(100, poller.intervalMillis(hot))
+        assertEquals(150, poller.intervalMillis(quiet))
+
+        poller.poll(drops, true) { identity, message -> message }.toBlocking().lastOrDefault(null)
+        assertEquals(100, poller.intervalMillis(hot))
+        assertEquals(225, poller.intervalMillis(quiet))
+
+        for (i in 0 until 10) {
+            poller.poll(drops, true) { identity, message -> message }.toBlocking().lastOrDefault(null)
+        }
+        assertEquals(1000, poller.intervalMillis(quiet))
+        assertEquals(now + 1000, poller.nextPollMillis(quiet))
+    }
+
+    @Test
+    fun pollsOnlyDueDrops() {
+        val quiet = serverA.generateUrl()
+        val fresh = serverA.generateUrl()
+        poller.poll(listOf(Pair(identity, quiet)), false) { identity, message -> message }
+            .toBlocking().lastOrDefault(null)
+        connector.polls.set(0)
+
+        now += 50
+        poller.poll(listOf(Pair(identity, quiet), Pair(identity, fresh)), false) { identity, message -> message }
+            .toBlocking().lastOrDefault(null)
+        assertEquals(1, connector.polls.get())
+
+        now += 100
+        poller.poll(listOf(Pair(identity, quiet), Pair(identity, fresh)), false) { identity, message -> message }
+            .toBlocking().lastOrDefault(null)
+        assertEquals(3, connector.polls.get())
+    }
+
+    @Test
+    fun failedDropIsNotSaved() {
+        val failing = serverA.generateUrl()
+        val working = serverA.generateUrl()
+        connector.failing.add(failing)
+        connector.messages[working] = listOf("message")
+
+        val received = poller.poll(listOf(Pair(identity, failing), Pair(identity, working)), false) {
+            identity, message -> message.dropPayload
+        }.toList().toBlocking().single()
+
+        assertEquals(listOf("message"), received)
+        assertEquals("", stateRepository.getDropState(failing).eTag)
+        assertEquals("etag1", stateRepository.getDropState(working).eTag)
+        assertEquals(now + 100, poller.nextPollMillis(failing))
+    }
+
+    private class CountingDropStateRepository : InMemoryDropStateRepository() {
+        var batches = 0
+        private val saved = mutableMapOf<String, String>()
+
+        override fun getDropState(dropUrl: DropURL) = DropState(dropUrl.toString(), saved[dropUrl.toString()] ?: "")
+
+        override fun setDropStates(dropStates: Collection<DropState>) {
+            batches++
+            dropStates.forEach { saved[it.drop] = it.eTag }
+        }
+    }
+
+    /**
+     * Emits the configured messages after delayMillis and increments the eTag of a drop by its configured change
+     */
+    private class FakeDropConnector : DropConnector {
+        val messages = ConcurrentHashMap<DropURL, List<String>>()
+        val changes = ConcurrentHashMap<DropURL, Int>()
+        val failing = mutableSetOf<DropURL>()
+        val polls = AtomicInteger()
+        val maxConcurrent = ConcurrentHashMap<String, AtomicInteger>()
+        private val running = ConcurrentHashMap<String, AtomicInteger>()
+        var delayMillis = 0L
+
+        override fun receiveDropMessageStream(identity: Identity, dropUrl: DropURL, dropState: DropState): Observable<DropMessage> =
+            receiveEncryptedMessageStream(dropUrl, dropState).map { decryptDropMessage(identity, it) }
+
+        override fun receiveEncryptedMessageStream(dropUrl: DropURL, dropState: DropState): Observable<ByteArray> =
+            Observable.defer {
+                polls.incrementAndGet()
+                val server = dropUrl.uri.host
+                val current = running.getOrPut(server) { AtomicInteger() }.incrementAndGet()
+                val max = maxConcurrent.getOrPut(server) { AtomicInteger() }
+                synchronized(max) {
+                    max.set(Math.max(max.get(), current))
+                }
+                try {
+                    Thread.sleep(delayMillis)
+                } finally {
+                    running[server]!!.decrementAndGet()
+                }
+                if (dropUrl in failing) {
+                    throw IllegalStateException("drop server not reachable")
+                }
+                dropState.eTag = when {
+                    dropState.eTag.isEmpty() -> "etag1"
+                    else -> "etag" + (dropState.eTag.removePrefix("etag").toInt() + (changes[dropUrl] ?: 0))
+                }
+                Observable.from(messages[dropUrl] ?: emptyList()).map { it.toByteArray() }
+            }.subscribeOn(Schedulers.io())
+
+        override fun decryptDropMessage(identity: Identity, message: ByteArray) =
+            DropMessage(identity, String(message), "test")
+
+        override fun sendDropMessage(identity: Identity, contact: Contact, message: DropMessage, server: DropURL) =
+            throw UnsupportedOperationException()
+
+        override fun receiveDropMessages(identity: Identity, dropUrl: DropURL, dropState: DropState)
+            : DropServerHttp.DropServerResponse<DropMessage> = throw UnsupportedOperationException()
+    }
+}
@@ -0,0 +1,109 @@
+package de.qabel.core.drop;
+
+import org.junit.Test;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.util.encoders.Base64;
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ProofOfWorkSolverTest {
+    private final ProofOfWorkSolver solver = new ProofOfWorkSolver(4);
+
+    @Test
+    public void solvesValidProofOfWork() throws Exception {
+        ProofOfWork pow = solver.solve(16, Hex.decode("257157de4b0551"), Hex.decode("abcdef"), 1, TimeUnit.MINUTES);
+
+        SHA256Digest digest = new SHA256Digest();
+        byte[] hash = new byte[ProofOfWork.hashLength];
+        for (byte[] part : new byte[][]{
+            Base64.decode(pow.getIVserverB64()),
+            Base64.decode(pow.getIVclientB64()),
+            ProofOfWork.toByteArray(pow.getTime()),
+            Base64.decode(pow.getMessageHashB64()),
+            ProofOfWork.toByteArray(pow.getCounter())}) {
+            digest.update(part, 0, part.length);
+        }
+        digest.doFinal(hash, 0);
+
+        assertArrayEquals(hash, Base64.decode(pow.getProofOfWorkHashB64()));
+        assertEquals(0, hash[0]);
+        assertEquals(0, hash[1]);
+    }
+
+    @Test
+    public void singleThreadFindsSameCounterAsCalculate() throws Exception {
+        byte[] iv = Hex.decode("257157de4b0551");
+        ProofOfWork pow = new ProofOfWorkSolver(1).solve(8, iv, Hex.decode("abcdef"));
+        byte[] hash = new byte[ProofOfWork.hashLength];
+        SHA256Digest midstate = ProofOfWork.midstate(
+            iv, Base64.decode(pow.getIVclientB64()), pow.getTime(), Hex.decode("abcdef"));
+
+        assertEquals(pow.getCounter(), ProofOfWork.search(midstate, 8, 0, 1, hash, new AtomicBoolean()));
+        assertArrayEquals(hash, Base64.decode(pow.getProofOfWorkHashB64()));
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void timeout() throws Exception {
+        solver.solve(ProofOfWork.hashLength * 8, new byte[16], new byte[32], 100, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void interruptCancels() throws Exception {
+        final AtomicReference<Throwable> result = new AtomicReference<>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    solver.solve(ProofOfWork.hashLength * 8, new byte[16], new byte[32]);
+                } catch (Throwable e) {
+                    result.set(e);
+                }
+            }
+        };
+        thread.start();
+        Thread.sleep(100);
+        thread.interrupt();
+        thread.join(5000);
+
+        assertFalse(thread.isAlive());
+        assertTrue(result.get() instanceof InterruptedException);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyLeadingZeros() throws Exception {
+        solver.solve(ProofOfWork.hashLength * 8 + 1, new byte[16], new byte[32]);
+    }
+
+    @Test
+    public void wordwiseZeroCheckMatchesBitwiseCheck() {
+        Random random = new Random(42);
+        byte[] hash = new byte[ProofOfWork.hashLength];
+        for (int i = 0; i < 10000; i++) {
+            random.nextBytes(hash);
+            // clear a random number of low bits to hit the boundaries
+            int zeros = random.nextInt(hash.length * 8 + 1);
+            for (int bit = 0; bit < zeros; bit++) {
+                hash[bit / 8] &= ~(1 << bit % 8);
+            }
+            for (int leadingZeros = 0; leadingZeros <= hash.length * 8; leadingZeros++) {
+                assertEquals(bitwiseZeros(hash, leadingZeros), ProofOfWork.enoughZeros(hash, leadingZeros));
+            }
+        }
+    }
+
+    private static boolean bitwiseZeros(byte[] hash, int leadingZeros) {
+        for (int i = 0; i < leadingZeros; i++) {
+            if ((hash[i / 8] >> i % 8 & 1) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -7,6 +7,8 @@ import org.spongycastle.util.encoders.Base64;
 import org.spongycastle.util.encoders.Hex;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ProofOfWorkTest {
     @Test
@@ -30,4 +32,17 @@ public class ProofOfWorkTest {
         assertEquals(Base64.decode(pow.getProofOfWorkHashB64())[0], 0);
         assertEquals(Base64.decode(pow.getProofOfWorkHashB64())[1], 0);
     }
+
+    @Test
+    public void interruptedCalculationFails() {
+        Thread.currentThread().interrupt();
+        try {
+            ProofOfWork.calculate(64, Hex.decode("257157de4b0551"), Hex.decode("abcdef"));
+            fail("interrupted calculation returned a PoW");
+        } catch (IllegalStateException expected) {
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
 }
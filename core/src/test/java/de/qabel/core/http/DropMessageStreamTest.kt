@@ -0,0 +1,107 @@
+package de.qabel.core.http
+
+import de.qabel.core.drop.MainDropServer
+import de.qabel.core.drop.http.DropHttpClient
+import de.qabel.core.exceptions.QblDropInvalidURL
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import rx.observers.TestSubscriber
+
+class DropMessageStreamTest {
+
+    private val server = MockDropHttpServer()
+    private val client = DropHttpClient(2, 4, 200)
+    private val dropServer = MainDropServer(client)
+
+    @After
+    fun tearDown() {
+        client.close()
+        server.close()
+    }
+
+    @Test
+    fun streamsAllMessages() {
+        val uri = server.dropUri("stream")
+        for (i in 0 until 50) {
+            dropServer.sendBytes(uri, "message$i".toByteArray())
+        }
+        var response: Pair<Int, String>? = null
+
+        val messages = dropServer.receiveMessageStream(uri, "") { statusCode, latestETag -> response = Pair(statusCode, latestETag) }
+            .map { String(it) }.toList().toBlocking().single()
+
+        assertEquals((0 until 50).map { "message$it" }, messages)
+        assertEquals(200, response!!.first)
+        assertEquals(server.dropServer.receiveMessageBytes(uri, "").second, response!!.second)
+        assertEquals(0, client.poolStats.leased)
+        assertEquals(1, client.poolStats.available)
+    }
+
+    @Test
+    fun readsOnlyRequestedMessages() {
+        val uri = server.dropUri("backpressure")
+        for (i in 0 until 20) {
+            dropServer.sendBytes(uri, "message$i".toByteArray())
+        }
+        val subscriber = TestSubscriber<ByteArray>(1)
+
+        dropServer.receiveMessageStream(uri, "").subscribe(subscriber)
+        subscriber.assertValueCount(1)
+        subscriber.assertNoTerminalEvent()
+
+        subscriber.requestMore(5)
+        subscriber.assertValueCount(6)
+        subscriber.requestMore(100)
+        subscriber.assertValueCount(20)
+        subscriber.assertCompleted()
+        assertEquals(0, client.poolStats.leased)
+    }
+
+    @Test
+    fun unsubscribeReleasesConnection() {
+        val uri = server.dropUri("unsubscribe")
+        for (i in 0 until 10) {
+            dropServer.sendBytes(uri, "message$i".toByteArray())
+        }
+
+        val messages = dropServer.receiveMessageStream(uri, "").take(2).toList().toBlocking().single()
+
+        assertEquals(2, messages.size)
+        assertEquals(0, client.poolStats.leased)
+    }
+
+    @Test
+    fun emptyDrop() {
+        var response: Pair<Int, String>? = null
+        val subscriber = TestSubscriber<ByteArray>()
+
+        dropServer.receiveMessageStream(server.dropUri("empty"), "") { statusCode, latestETag ->
+            response = Pair(statusCode, latestETag)
+        }.subscribe(subscriber)
+
+        subscriber.assertNoValues()
+        subscriber.assertCompleted()
+        assertEquals(204, response!!.first)
+    }
+
+    @Test
+    fun invalidUri() {
+        val subscriber = TestSubscriber<ByteArray>()
+
+        dropServer.receiveMessageStream(server.root.resolve("/IAmTooShort"), "").subscribe(subscriber)
+
+        subscriber.assertError(QblDropInvalidURL::class.java)
+        assertEquals(0, client.poolStats.leased)
+    }
+
+    @Test
+    fun defaultStreamOfMockServer() {
+        val uri = server.dropUri("mock")
+        server.dropServer.sendBytes(uri, "mock".toByteArray())
+
+        val messages = server.dropServer.receiveMessageStream(uri, "").toList().toBlocking().single()
+
+        assertEquals(listOf("mock"), messages.map { String(it) })
+    }
+}
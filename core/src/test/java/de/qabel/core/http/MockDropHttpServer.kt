@@ -0,0 +1,108 @@
+package de.qabel.core.http
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import de.qabel.core.drop.http.DropServerHttp.QblHeaders
+import de.qabel.core.drop.http.DropServerHttp.QblStatusCodes
+import org.apache.commons.io.IOUtils
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.net.InetSocketAddress
+import java.net.URI
+import java.util.*
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Serves a [MockDropServer] over HTTP with the status codes and multipart responses of the drop server.
+ * Records the client ports, so tests can count the TCP connections used.
+ */
+class MockDropHttpServer(val dropServer: MockDropServer = MockDropServer()) : Closeable {
+
+    companion object {
+        const val MAX_MESSAGE_SIZE = 2573
+        private const val BOUNDARY = "drop-boundary"
+    }
+
+    val clientPorts: MutableSet<Int> = Collections.synchronizedSet(HashSet<Int>())
+    val maxConcurrentRequests = AtomicInteger()
+    private val concurrentRequests = AtomicInteger()
+
+    private val server = HttpServer.create(InetSocketAddress("localhost", 0), 0).apply {
+        executor = Executors.newCachedThreadPool()
+        createContext("/") { exchange -> exchange.use { handle(it) } }
+        start()
+    }
+
+    val root: URI = URI("http://localhost:${server.address.port}")
+
+    fun dropUri(id: String) = root.resolve("/" + id.padEnd(43, 'x'))
+
+    private fun handle(exchange: HttpExchange) {
+        val running = concurrentRequests.incrementAndGet()
+        synchronized(maxConcurrentRequests) {
+            maxConcurrentRequests.set(Math.max(maxConcurrentRequests.get(), running))
+        }
+        try {
+            clientPorts.add(exchange.remoteAddress.port)
+            val uri = root.resolve(exchange.requestURI.path)
+            val body = IOUtils.toByteArray(exchange.requestBody)
+            if (exchange.requestURI.path.length != 44) {
+                exchange.sendResponseHeaders(QblStatusCodes.INVALID, -1)
+            } else if (exchange.requestMethod == "POST") {
+                post(exchange, uri, body)
+            } else {
+                get(exchange, uri)
+            }
+        } finally {
+            concurrentRequests.decrementAndGet()
+        }
+    }
+
+    private fun post(exchange: HttpExchange, uri: URI, body: ByteArray) {
+        val status = when {
+            body.isEmpty() -> QblStatusCodes.INVALID
+            body.size > MAX_MESSAGE_SIZE -> QblStatusCodes.INVALID_SIZE
+            else -> {
+                dropServer.sendBytes(uri, body)
+                QblStatusCodes.OK
+            }
+        }
+        exchange.sendResponseHeaders(status, -1)
+    }
+
+    private fun get(exchange: HttpExchange, uri: URI) {
+        val eTag = exchange.requestHeaders.getFirst(QblHeaders.X_QABEL_NEW_SINCE) ?: ""
+        val response = dropServer.receiveMessageBytes(uri, eTag)
+        val messages = response.third
+        exchange.responseHeaders.add(QblHeaders.X_QABEL_LATEST, response.second)
+        if (messages.isEmpty()) {
+            exchange.sendResponseHeaders(QblStatusCodes.EMPTY_DROP, -1)
+            return
+        }
+        val body = ByteArrayOutputStream()
+        messages.forEach {
+            body.write("--$BOUNDARY\r\nContent-Type: application/octet-stream\r\n\r\n".toByteArray())
+            body.write(it)
+            body.write("\r\n".toByteArray())
+        }
+        body.write("--$BOUNDARY--\r\n".toByteArray())
+        exchange.responseHeaders.add("Content-Type", "multipart/mixed; boundary=$BOUNDARY")
+        exchange.sendResponseHeaders(QblStatusCodes.OK, body.size().toLong())
+        exchange.responseBody.write(body.toByteArray())
+    }
+
+    private inline fun <T> HttpExchange.use(block: (HttpExchange) -> T): T {
+        try {
+            return block(this)
+        } finally {
+            close()
+        }
+    }
+
+    override fun close() {
+        server.stop(0)
+        (server.executor as ExecutorService).shutdownNow()
+    }
+}
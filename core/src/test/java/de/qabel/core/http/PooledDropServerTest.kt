@@ -0,0 +1,122 @@
+package de.qabel.core.http
+
+import de.qabel.core.drop.MainDropServer
+import de.qabel.core.drop.http.DropHTTP
+import de.qabel.core.drop.http.DropHttpClient
+import de.qabel.core.exceptions.QblDropInvalidMessageSizeException
+import de.qabel.core.exceptions.QblDropInvalidURL
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class PooledDropServerTest {
+
+    private val server = MockDropHttpServer()
+    private val client = DropHttpClient(2, 4, 200)
+    private val dropServer = MainDropServer(client)
+
+    @After
+    fun tearDown() {
+        client.close()
+        server.close()
+    }
+
+    @Test
+    fun sendAndReceive() {
+        val uri = server.dropUri("sendAndReceive")
+        dropServer.sendBytes(uri, "first".toByteArray())
+        dropServer.sendBytes(uri, "second".toByteArray())
+
+        val (status, eTag, messages) = dropServer.receiveMessageBytes(uri, "")
+
+        assertEquals(200, status)
+        assertNotEquals("", eTag)
+        assertEquals(listOf("first", "second"), messages.map { String(it) })
+        assertEquals(2, server.dropServer.receiveMessageBytes(uri, "").third.size)
+    }
+
+    @Test
+    fun emptyDrop() {
+        val (status, eTag, messages) = dropServer.receiveMessageBytes(server.dropUri("empty"), "")
+        assertEquals("", eTag)
+        assertEquals(204, status)
+        assertTrue(messages.isEmpty())
+    }
+
+    @Test
+    fun reusesConnectionForAllDropsOfServer() {
+        for (i in 0 until 20) {
+            val uri = server.dropUri("drop$i")
+            dropServer.sendBytes(uri, "message".toByteArray())
+            dropServer.receiveMessageBytes(uri, "")
+        }
+
+        assertEquals(1, server.clientPorts.size)
+        assertEquals(0, client.poolStats.leased)
+        assertEquals(1, client.poolStats.available)
+    }
+
+    @Test
+    fun limitsConnectionsPerHost() {
+        val executor = Executors.newFixedThreadPool(8)
+        val done = CountDownLatch(40)
+        for (i in 0 until 40) {
+            executor.execute {
+                try {
+                    dropServer.sendBytes(server.dropUri("limit$i"), "message".toByteArray())
+                } finally {
+                    done.countDown()
+                }
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS))
+        executor.shutdown()
+
+        assertTrue(server.maxConcurrentRequests.get() <= 2)
+        assertTrue(server.clientPorts.size <= 2)
+    }
+
+    @Test
+    fun evictsIdleConnections() {
+        dropServer.sendBytes(server.dropUri("idle"), "message".toByteArray())
+        assertEquals(1, client.poolStats.available)
+
+        Thread.sleep(client.idleTimeoutMillis * 3)
+
+        assertEquals(0, client.poolStats.available)
+        dropServer.sendBytes(server.dropUri("idle"), "message".toByteArray())
+        assertEquals(2, server.clientPorts.size)
+    }
+
+    @Test(expected = QblDropInvalidURL::class)
+    fun emptyMessage() {
+        dropServer.sendBytes(server.dropUri("invalid"), ByteArray(0))
+    }
+
+    @Test(expected = QblDropInvalidMessageSizeException::class)
+    fun messageTooBig() {
+        dropServer.sendBytes(server.dropUri("tooBig"), ByteArray(MockDropHttpServer.MAX_MESSAGE_SIZE + 1))
+    }
+
+    @Test(expected = QblDropInvalidURL::class)
+    fun invalidUri() {
+        dropServer.receiveMessageBytes(server.root.resolve("/IAmTooShort"), "")
+    }
+
+    @Test
+    fun legacyDropHttpSharesPool() {
+        val dropHttp = DropHTTP(client)
+        val uri = server.dropUri("legacy")
+
+        assertTrue(dropHttp.send(uri, "legacy".toByteArray()).isOk)
+        val result = dropHttp.receiveMessages(uri)
+        dropServer.receiveMessageBytes(uri, "")
+
+        assertEquals(200, result.responseCode)
+        assertEquals(listOf("legacy"), result.data.map { String(it) })
+        assertEquals(1, server.clientPorts.size)
+    }
+}
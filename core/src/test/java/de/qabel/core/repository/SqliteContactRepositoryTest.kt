@@ -340,6 +340,24 @@ class SqliteContactRepositoryTest : AbstractSqliteRepositoryTest<SqliteContactRe
         assertTrue(identityContactDetails.isIdentity)
     }
 
+    @Test
+    fun testFindContactsWithIdentities() {
+        repo.save(contact, identity)
+        repo.save(contact, otherIdentity)
+        repo.save(otherContact, identity)
+
+        val result = repo.findContactsWithIdentities(listOf(contact.keyIdentifier, otherContact.keyIdentifier,
+            otherContact.keyIdentifier, identity.keyIdentifier, unknownContact.keyIdentifier),
+            identityRepository.findAll())
+
+        assertThat(result.keys, containsInAnyOrder(contact.keyIdentifier, otherContact.keyIdentifier,
+            identity.keyIdentifier))
+        assertThat(result[contact.keyIdentifier]!!.identities, containsInAnyOrder(identity, otherIdentity))
+        assertThat(result[otherContact.keyIdentifier]!!.identities, contains(identity))
+        assertFalse(result[contact.keyIdentifier]!!.isIdentity)
+        assertTrue(result[identity.keyIdentifier]!!.isIdentity)
+    }
+
     private fun attachEntityObserver() {
         repo.attach(EntityObserver { hasCalled = true })
     }
@@ -159,4 +159,25 @@ public class SqliteTransactionManagerTest extends AbstractSqliteTest {
         assertFalse("rollback failed?", tableExists("test2"));
         assertTrue("no commit happened", tableExists("test"));
     }
+
+    @Test
+    public void nestedCallsJoinTransaction() throws Exception {
+        try {
+            manager.transactional(new RunnableTransaction() {
+                @Override
+                public void run() throws Exception {
+                    manager.transactional(new RunnableTransaction() {
+                        @Override
+                        public void run() throws Exception {
+                            SqliteTransactionManagerTest.this.execute("CREATE TABLE test_nested (id INTEGER PRIMARY KEY)");
+                        }
+                    });
+                    SqliteTransactionManagerTest.this.execute("BLA BLUBB BLA");
+                }
+            });
+            fail("no exception thrown");
+        } catch (Exception ignored) {}
+        assertFalse("nested transaction was committed", tableExists("test_nested"));
+        assertTrue("autocommit state was not reset", connection.getAutoCommit());
+    }
 }
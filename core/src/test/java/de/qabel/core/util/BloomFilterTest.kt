@@ -0,0 +1,38 @@
+package de.qabel.core.util
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.security.MessageDigest
+
+class BloomFilterTest {
+
+    private fun digest(value: Int) = MessageDigest.getInstance("SHA-256").digest(value.toString().toByteArray())
+
+    @Test
+    fun containsPutDigests() {
+        val filter = BloomFilter(1000)
+        (0 until 1000).forEach { filter.put(digest(it)) }
+
+        (0 until 1000).forEach { assertTrue(filter.mightContain(digest(it))) }
+        assertEquals(1000, filter.size)
+    }
+
+    @Test
+    fun rejectsMostUnknownDigests() {
+        val filter = BloomFilter(1000, 0.01)
+        (0 until 1000).forEach { filter.put(digest(it)) }
+
+        val falsePositives = (1000 until 11000).count { filter.mightContain(digest(it)) }
+        assertTrue("$falsePositives false positives", falsePositives < 300)
+    }
+
+    @Test
+    fun emptyFilterContainsNothing() {
+        assertFalse(BloomFilter(10).mightContain(digest(1)))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun requiresDigest() {
+        BloomFilter(10).put(byteArrayOf(1, 2, 3))
+    }
+}